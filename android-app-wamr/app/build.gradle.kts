@@ -29,6 +29,10 @@ android {
             cmake {
                 cppFlags += listOf("-O3")
                 arguments += listOf("-DCMAKE_BUILD_TYPE=Release")
+                // Opt-in binary translation of guest code: -Pfriscy.binaryTranslation=true
+                if (project.findProperty("friscy.binaryTranslation")?.toString() == "true") {
+                    arguments += listOf("-DFRISCY_BINARY_TRANSLATION=ON")
+                }
             }
         }
     }
@@ -59,6 +63,11 @@ android {
         compose = true
     }
 
+    androidResources {
+        // Rootfs images are mmapped straight out of the APK via AssetManager.openFd
+        noCompress += "tar"
+    }
+
     externalNativeBuild {
         cmake {
             path = file("src/main/cpp/CMakeLists.txt")
@@ -56,9 +56,9 @@ class FriscyRuntimeInstrumentationTest {
         val tarBytes = ctx.assets.open("rootfs.tar").use { it.readBytes() }
         assertTrue("rootfs.tar should not be empty", tarBytes.isNotEmpty())
 
-        val result = FriscyRuntime.loadRootfs(tarBytes, "/bin/sh") { text ->
+        val result = FriscyRuntime.loadRootfs(tarBytes, "/bin/sh") { data, offset, length ->
             synchronized(lock) {
-                outputBuffer.append(text)
+                outputBuffer.append(String(data, offset, length, Charsets.UTF_8))
             }
         }
         assertTrue("loadRootfs() should return true", result)
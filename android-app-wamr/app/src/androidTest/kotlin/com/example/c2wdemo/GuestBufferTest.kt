@@ -0,0 +1,85 @@
+package com.example.c2wdemo
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Syscalls that read straight into the guest arena must still honour page protections: a read()
+ * into a page mprotect'd read-only fails with EFAULT and leaves the page alone.
+ */
+@RunWith(AndroidJUnit4::class)
+class GuestBufferTest {
+
+    private val context = InstrumentationRegistry.getInstrumentation().targetContext
+
+    @Test
+    fun readIntoReadOnlyPageFails() {
+        GuestShell.use(context) { shell ->
+            // printf takes octal escapes; a few lines keep each command short for the line editor
+            shell.run("rm -f /tmp/rofault")
+            for (part in READ_ONLY_READ.asList().chunked(64)) {
+                val escaped = part.joinToString("") { "\\%03o".format(it.toInt() and 0xFF) }
+                shell.run("printf '$escaped' >> /tmp/rofault")
+            }
+            val status = shell.run("chmod +x /tmp/rofault; /tmp/rofault < /etc/passwd; echo \$?").trim()
+            assertEquals("exit status is the errno of the read", "14", status)
+        }
+    }
+
+    companion object {
+        private const val LOAD_ADDRESS = 0x10000L
+        private const val HEADERS_SIZE = 64 + 56
+
+        /**
+         * A static RV64 program: mmap a page, mprotect it PROT_READ, read(0, page, 16) into it and
+         * exit with the negated result, so EFAULT exits with 14.
+         */
+        private val READ_ONLY_READ: ByteArray = run {
+            val code = intArrayOf(
+                0x00000513, // li a0, 0
+                0x000015B7, // lui a1, 1           (4096)
+                0x00300613, // li a2, 3            (PROT_READ | PROT_WRITE)
+                0x02200693, // li a3, 0x22         (MAP_PRIVATE | MAP_ANONYMOUS)
+                0xFFF00713.toInt(), // li a4, -1
+                0x00000793, // li a5, 0
+                0x0DE00893, // li a7, 222          (mmap)
+                0x00000073, // ecall
+                0x00050413, // mv s0, a0
+                0x000015B7, // lui a1, 1
+                0x00100613, // li a2, 1            (PROT_READ)
+                0x0E200893, // li a7, 226          (mprotect)
+                0x00000073, // ecall
+                0x00000513, // li a0, 0
+                0x00040593, // mv a1, s0
+                0x01000613, // li a2, 16
+                0x03F00893, // li a7, 63           (read)
+                0x00000073, // ecall
+                0x40A00533, // neg a0, a0
+                0x05D00893, // li a7, 93           (exit)
+                0x00000073, // ecall
+            )
+            val size = HEADERS_SIZE + code.size * 4
+            val elf = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN)
+            // ELF header: 64-bit, little-endian, ET_EXEC, EM_RISCV
+            elf.put(byteArrayOf(0x7F, 'E'.code.toByte(), 'L'.code.toByte(), 'F'.code.toByte(), 2, 1, 1, 0))
+            elf.put(ByteArray(8))
+            elf.putShort(2).putShort(243).putInt(1)
+            elf.putLong(LOAD_ADDRESS + HEADERS_SIZE) // e_entry
+            elf.putLong(64).putLong(0) // e_phoff, e_shoff
+            elf.putInt(0) // e_flags
+            elf.putShort(64).putShort(56).putShort(1) // e_ehsize, e_phentsize, e_phnum
+            elf.putShort(64).putShort(0).putShort(0) // e_shentsize, e_shnum, e_shstrndx
+            // One PT_LOAD, R+X, covering the whole file
+            elf.putInt(1).putInt(5)
+            elf.putLong(0).putLong(LOAD_ADDRESS).putLong(LOAD_ADDRESS)
+            elf.putLong(size.toLong()).putLong(size.toLong()).putLong(0x1000)
+            for (instruction in code) elf.putInt(instruction)
+            elf.array()
+        }
+    }
+}
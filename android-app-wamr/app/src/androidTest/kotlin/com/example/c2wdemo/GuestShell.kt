@@ -0,0 +1,55 @@
+package com.example.c2wdemo
+
+import android.content.Context
+import org.junit.Assert.assertTrue
+import java.io.File
+
+/** A shell on the bundled Alpine rootfs or an image, for tests that drive the guest with commands. */
+class GuestShell private constructor() {
+    private val output = StringBuilder()
+
+    private fun append(text: String) = synchronized(output) { output.append(text) }
+
+    /** Run [command] and return what it printed, waiting up to [timeoutMs]. */
+    fun run(command: String, timeoutMs: Long = 120_000): String {
+        val from = synchronized(output) { output.length }
+        FriscyRuntime.sendInput("echo BEGIN; $command; echo END\n")
+        val deadline = System.currentTimeMillis() + timeoutMs
+        while (System.currentTimeMillis() < deadline) {
+            // The echoed command line has "BEGIN;" and "echo END"; only the output has them as lines
+            val text = synchronized(output) { output.substring(from) }.replace("\r", "")
+            val begin = text.indexOf("BEGIN\n")
+            val end = if (begin >= 0) text.indexOf("\nEND\n", begin) else -1
+            if (end >= 0) return text.substring(begin + "BEGIN\n".length, end)
+            Thread.sleep(10)
+        }
+        error("No output within $timeoutMs ms: ${synchronized(output) { output.takeLast(200) }}")
+    }
+
+    companion object {
+        /**
+         * Boot [image], or the bundled rootfs if null, to a prompt, run [block] with its shell,
+         * then destroy the runtime.
+         */
+        fun <T> use(context: Context, image: File? = null, block: (GuestShell) -> T): T {
+            val shell = GuestShell()
+            val listener = FriscyRuntime.OutputListener { data, offset, length ->
+                shell.append(String(data, offset, length, Charsets.UTF_8))
+            }
+            FriscyRuntime.initialize()
+            try {
+                if (image != null) {
+                    assertTrue(FriscyRuntime.loadRootfs(image, "/bin/sh", listener = listener))
+                } else {
+                    val tarBytes = context.assets.open("rootfs.tar").use { it.readBytes() }
+                    assertTrue(FriscyRuntime.loadRootfs(tarBytes, "/bin/sh", listener))
+                }
+                assertTrue(FriscyRuntime.start())
+                assertTrue("No shell prompt", FriscyRuntime.awaitPrompt(60_000))
+                return block(shell)
+            } finally {
+                FriscyRuntime.destroy()
+            }
+        }
+    }
+}
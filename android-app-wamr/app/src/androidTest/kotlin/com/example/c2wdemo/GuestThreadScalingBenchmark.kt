@@ -0,0 +1,76 @@
+package com.example.c2wdemo
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.File
+
+/**
+ * How multi-threaded guest work scales with its thread count, on the thread-bench image:
+ * `threadbench` splits a fixed amount of pure computation across threads, and `pigz` compresses
+ * the same file with more and more threads. Reports the speedup over one thread.
+ *
+ * All guest threads take turns on the runtime's execution thread, so the speedup stays at
+ * about 1x; this is the yardstick for running them on several cores.
+ *
+ * The image must have been downloaded to files/images/thread-bench.tar first; the benchmark is
+ * skipped otherwise.
+ */
+@RunWith(AndroidJUnit4::class)
+class GuestThreadScalingBenchmark {
+
+    private val context = InstrumentationRegistry.getInstrumentation().targetContext
+    private val image = File(context.filesDir, "images/thread-bench.tar")
+    private val threadCounts = listOf(1, 2, 4, 8)
+
+    @Test
+    fun benchmarkThreadbench() {
+        assumeTrue("thread-bench has not been downloaded", image.exists())
+        GuestShell.use(context, image) { shell ->
+            var oneThreadMs = 0L
+            for (threads in threadCounts) {
+                val before = FriscyRuntime.schedulerStats
+                val line = shell.run("threadbench $threads 50", timeoutMs = 600_000).trim()
+                val ms = Regex("ms=(\\d+)").find(line)?.groupValues?.get(1)?.toLong()
+                    ?: error("Unexpected threadbench output: $line")
+                if (threads == 1) oneThreadMs = ms
+                report("threadbench", threads, ms, oneThreadMs, before)
+            }
+        }
+    }
+
+    @Test
+    fun benchmarkPigz() {
+        assumeTrue("thread-bench has not been downloaded", image.exists())
+        GuestShell.use(context, image) { shell ->
+            shell.run("seq 1 2000000 > /tmp/data")
+            val reference = shell.run("gzip -c /tmp/data | gzip -dc | md5sum").trim()
+            var oneThreadMs = 0L
+            for (threads in threadCounts) {
+                val before = FriscyRuntime.schedulerStats
+                val start = System.nanoTime()
+                shell.run("pigz -p $threads -c /tmp/data > /tmp/data.gz", timeoutMs = 600_000)
+                val ms = (System.nanoTime() - start) / 1_000_000
+                assertEquals(reference, shell.run("gzip -dc /tmp/data.gz | md5sum").trim())
+                if (threads == 1) oneThreadMs = ms
+                report("pigz", threads, ms, oneThreadMs, before)
+            }
+            shell.run("rm /tmp/data /tmp/data.gz")
+        }
+    }
+
+    private fun report(name: String, threads: Int, ms: Long, oneThreadMs: Long, before: FriscyRuntime.SchedulerStats) {
+        val after = FriscyRuntime.schedulerStats
+        assertTrue("$name should have run $threads threads", threads == 1 || after.peakThreads > threads)
+        println(
+            "%s, %d threads: %d ms, speedup %.2fx, %d switches (%d preemptions), %d futex waits".format(
+                name, threads, ms, oneThreadMs.toDouble() / ms.coerceAtLeast(1), after.switches - before.switches,
+                after.preemptions - before.preemptions, after.futexWaits - before.futexWaits,
+            )
+        )
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.c2wdemo
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.Assert.assertTrue
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.File
+
+/**
+ * Guest threads on the node-alpine image: busy worker threads must not starve the main thread,
+ * which only time slices can prevent, and libuv threadpool jobs must all finish. Prints the
+ * scheduler counters.
+ *
+ * The image must have been downloaded in the app first; the test is skipped otherwise.
+ */
+@RunWith(AndroidJUnit4::class)
+class GuestThreadsTest {
+
+    private val image = File(
+        InstrumentationRegistry.getInstrumentation().targetContext.filesDir, "images/node-alpine.tar",
+    )
+
+    @Test
+    fun busyWorkersDoNotStarveMainThread() {
+        assumeTrue("node-alpine has not been downloaded", image.exists())
+        withNode { repl ->
+            repl.eval(
+                "const { Worker } = require('worker_threads'); " +
+                    "for (let i = 0; i < 2; i++) new Worker('for (;;) {}', { eval: true }).unref()"
+            )
+            val start = System.nanoTime()
+            repl.eval("setTimeout(() => console.log('TI' + 'CK'), 100)", until = "TICK", timeoutMs = 60_000)
+            val ms = (System.nanoTime() - start) / 1_000_000
+            val stats = FriscyRuntime.schedulerStats
+            println("main thread timer with 2 busy workers: %d ms, %s".format(ms, stats))
+            assertTrue(stats.preemptions > 0)
+        }
+    }
+
+    @Test
+    fun threadpoolJobsComplete() {
+        assumeTrue("node-alpine has not been downloaded", image.exists())
+        withNode { repl ->
+            val start = System.nanoTime()
+            repl.eval(
+                "{ let left = 8; for (let i = 0; i < 8; i++) require('crypto').pbkdf2('pw', 'salt' + i, 2000, 32, " +
+                    "'sha256', () => { if (--left == 0) console.log('DO' + 'NE') }) }",
+                until = "DONE",
+                timeoutMs = 120_000,
+            )
+            val ms = (System.nanoTime() - start) / 1_000_000
+            val stats = FriscyRuntime.schedulerStats
+            println("8 pbkdf2 jobs on the threadpool: %d ms, %s".format(ms, stats))
+            assertTrue(stats.peakThreads > 4)
+            assertTrue(stats.futexWakes > 0)
+        }
+    }
+
+    private class Repl(private val output: StringBuilder) {
+        /** Evaluate [code] and wait up to [timeoutMs] for [until] in the output after it. */
+        fun eval(code: String, until: String = "> ", timeoutMs: Long = 30_000) {
+            val from = synchronized(output) { output.length }
+            FriscyRuntime.sendInput("$code\n")
+            val deadline = System.currentTimeMillis() + timeoutMs
+            while (System.currentTimeMillis() < deadline) {
+                // The code builds what it prints from two parts, so its echo does not match
+                if (synchronized(output) { output.indexOf(until, from) } >= 0) return
+                Thread.sleep(10)
+            }
+            error("No \"$until\" within $timeoutMs ms: ${synchronized(output) { output.takeLast(200) }}")
+        }
+    }
+
+    private fun withNode(block: (Repl) -> Unit) {
+        val output = StringBuilder()
+        FriscyRuntime.initialize()
+        try {
+            assertTrue(FriscyRuntime.loadRootfs(image, "/usr/bin/node") { data, offset, length ->
+                synchronized(output) { output.append(String(data, offset, length, Charsets.UTF_8)) }
+            })
+            assertTrue(FriscyRuntime.start())
+            assertTrue("No REPL prompt within 5 minutes", FriscyRuntime.awaitPrompt(5 * 60 * 1000L))
+            block(Repl(output))
+        } finally {
+            FriscyRuntime.destroy()
+        }
+    }
+}
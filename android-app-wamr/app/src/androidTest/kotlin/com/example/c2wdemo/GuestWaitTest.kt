@@ -0,0 +1,51 @@
+package com.example.c2wdemo
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Guest waits parked in the execution loop: timeouts end when they should, not on the next
+ * wakeup, and input reaches a waiting shell quickly. Reports the stdin latency per command.
+ */
+@RunWith(AndroidJUnit4::class)
+class GuestWaitTest {
+
+    private val context = InstrumentationRegistry.getInstrumentation().targetContext
+
+    @Test
+    fun sleepAndReadTimeoutsAreHonoured() {
+        GuestShell.use(context) { shell ->
+            var start = System.nanoTime()
+            shell.run("sleep 1")
+            var ms = (System.nanoTime() - start) / 1_000_000
+            assertTrue("sleep 1 took $ms ms", ms in 950..5_000)
+
+            // No input arrives, so read gives up after its timeout with a nonzero status
+            start = System.nanoTime()
+            val status = shell.run("read -t 1 x; echo \$?").trim()
+            ms = (System.nanoTime() - start) / 1_000_000
+            assertTrue("read -t 1 returned $status", status != "0")
+            assertTrue("read -t 1 took $ms ms", ms in 950..5_000)
+        }
+    }
+
+    @Test
+    fun benchmarkInputLatency() {
+        GuestShell.use(context) { shell ->
+            val before = FriscyRuntime.inputLatency
+            repeat(50) { i -> assertEquals("$i", shell.run("echo $i").trim()) }
+            val after = FriscyRuntime.inputLatency
+            val reads = after.reads - before.reads
+            assertTrue(reads > 0)
+            println(
+                "stdin latency over %d reads: mean %.1f us, max %.1f us".format(
+                    reads, (after.totalNanos - before.totalNanos) / 1000.0 / reads, after.maxNanos / 1000.0,
+                )
+            )
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.c2wdemo
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.Assert.assertTrue
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.File
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * Startup time of Node.js on the node-alpine image, with and without the VFS resolved-path cache.
+ *
+ * Module resolution at startup is dominated by stat and open probes, so this is where the cache
+ * matters most. The runtime cannot pass arguments to the entry point, so instead of `node -e 0`
+ * this measures the time until the REPL prompt, which includes the same bootstrap.
+ *
+ * [benchmarkWarmBoot] compares that cold start with restoring a snapshot taken at the prompt, as
+ * VmService does on later launches of an image.
+ *
+ * The image must have been downloaded in the app first; the benchmark is skipped otherwise.
+ */
+@RunWith(AndroidJUnit4::class)
+class NodeStartupBenchmark {
+
+    private val image = File(
+        InstrumentationRegistry.getInstrumentation().targetContext.filesDir, "images/node-alpine.tar",
+    )
+
+    @Test
+    fun benchmarkNodeStartup() {
+        assumeTrue("node-alpine has not been downloaded", image.exists())
+
+        for (capacity in listOf(0, 4096)) {
+            val (ms, stats) = startNode(capacity)
+            println(
+                "node startup, cache capacity %d: %d ms, %d lookups cached (%d ENOENT), %d walked, hit rate %.3f".format(
+                    capacity, ms, stats.hits, stats.negativeHits, stats.misses, stats.hitRate,
+                )
+            )
+            if (capacity > 0) assertTrue("cache should answer most lookups", stats.hitRate > 0.5f)
+        }
+    }
+
+    @Test
+    fun benchmarkWarmBoot() {
+        assumeTrue("node-alpine has not been downloaded", image.exists())
+        val snapshot = File(InstrumentationRegistry.getInstrumentation().targetContext.cacheDir, "node-boot.snap")
+
+        FriscyRuntime.initialize()
+        val coldMs = try {
+            assertTrue(FriscyRuntime.loadRootfs(image, "/usr/bin/node") { _, _, _ -> })
+            val start = System.nanoTime()
+            assertTrue(FriscyRuntime.start())
+            assertTrue("No REPL prompt within 5 minutes", FriscyRuntime.awaitPrompt(5 * 60 * 1000L))
+            val ms = (System.nanoTime() - start) / 1_000_000
+            assertTrue(FriscyRuntime.nativeSaveSnapshot(snapshot.path, null, false) >= 0)
+            ms
+        } finally {
+            FriscyRuntime.destroy()
+        }
+
+        val warmMs = try {
+            val start = System.nanoTime()
+            assertTrue(FriscyRuntime.loadRootfs(image, "/usr/bin/node") { _, _, _ -> })
+            assertTrue("restore should succeed", FriscyRuntime.nativeRestoreSnapshot(snapshot.path, true))
+            assertTrue(FriscyRuntime.start())
+            assertTrue("Restored REPL should wait for input", FriscyRuntime.awaitPrompt(10_000))
+            (System.nanoTime() - start) / 1_000_000
+        } finally {
+            FriscyRuntime.destroy()
+            snapshot.delete()
+        }
+        println("node time to prompt: cold %d ms, warm %d ms (load + restore)".format(coldMs, warmMs))
+    }
+
+    private fun startNode(capacity: Int): Pair<Long, FriscyRuntime.ResolveStats> {
+        val output = StringBuilder()
+        val prompt = CountDownLatch(1)
+        FriscyRuntime.initialize()
+        FriscyRuntime.resolveCacheCapacity = capacity
+        try {
+            val loaded = FriscyRuntime.loadRootfs(image, "/usr/bin/node") { data, offset, length ->
+                synchronized(output) {
+                    output.append(String(data, offset, length, Charsets.UTF_8))
+                    if (output.endsWith("> ")) prompt.countDown()
+                }
+            }
+            assertTrue("loadRootfs() should return true", loaded)
+
+            val start = System.nanoTime()
+            assertTrue("start() should return true", FriscyRuntime.start())
+            assertTrue(
+                "No REPL prompt within 5 minutes, output: ${synchronized(output) { output.takeLast(200) }}",
+                prompt.await(5, TimeUnit.MINUTES),
+            )
+            val ms = (System.nanoTime() - start) / 1_000_000
+            return ms to FriscyRuntime.resolveStats!!
+        } finally {
+            FriscyRuntime.destroy()
+            FriscyRuntime.resolveCacheCapacity = 4096
+        }
+    }
+}
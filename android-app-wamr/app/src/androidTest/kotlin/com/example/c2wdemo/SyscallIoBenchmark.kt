@@ -0,0 +1,41 @@
+package com.example.c2wdemo
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Throughput of read and write on VFS files, which move data straight between the VFS and the
+ * guest arena. `dd` copies a 128 MB file eight times per block size, so 1 GB is read and written
+ * in 4 KB and in 64 KB chunks; a copy is checked against the source first.
+ */
+@RunWith(AndroidJUnit4::class)
+class SyscallIoBenchmark {
+
+    private val context = InstrumentationRegistry.getInstrumentation().targetContext
+
+    @Test
+    fun benchmarkVfsReadWrite() {
+        GuestShell.use(context) { shell ->
+            // /dev/null is a plain VFS file here and would keep what is written to it, so copy to a file
+            shell.run("truncate -s 128M /tmp/big && echo 'some data' | dd of=/tmp/big conv=notrunc 2>/dev/null")
+            assertEquals(
+                "same",
+                shell.run("dd if=/tmp/big of=/tmp/copy bs=64k 2>/dev/null; cmp /tmp/big /tmp/copy && echo same; rm /tmp/copy").trim(),
+            )
+            for (blockSize in listOf("4k", "64k")) {
+                val start = System.nanoTime()
+                shell.run(
+                    "i=0; while [ \$i -lt 8 ]; do dd if=/tmp/big of=/tmp/copy bs=$blockSize 2>/dev/null; " +
+                        "rm /tmp/copy; i=\$((i + 1)); done",
+                    timeoutMs = 600_000,
+                )
+                val ms = (System.nanoTime() - start) / 1_000_000
+                println("vfs read+write 1 GB, bs=%s: %d ms, %.0f MB/s".format(blockSize, ms, 1024_000.0 / ms))
+            }
+            shell.run("rm /tmp/big")
+        }
+    }
+}
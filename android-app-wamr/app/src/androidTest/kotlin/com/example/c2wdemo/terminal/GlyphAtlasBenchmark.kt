@@ -0,0 +1,97 @@
+package com.example.c2wdemo.terminal
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.termux.terminal.TerminalEmulator
+import com.termux.terminal.TerminalOutput
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import kotlin.random.Random
+
+/**
+ * Time to draw a full screen of colored text with [TerminalRenderer], with and without the
+ * glyph atlas, at 80x24 and 200x60.
+ */
+@RunWith(AndroidJUnit4::class)
+class GlyphAtlasBenchmark {
+
+    private class NullOutput : TerminalOutput() {
+        override fun write(data: ByteArray, offset: Int, count: Int) {}
+        override fun titleChanged(oldTitle: String?, newTitle: String?) {}
+        override fun onCopyTextToClipboard(text: String?) {}
+        override fun onPasteTextFromClipboard() {}
+        override fun onBell() {}
+        override fun onColorsChanged() {}
+    }
+
+    private val renderer = TerminalRenderer()
+
+    @Test
+    fun benchmarkFullFrame() {
+        for ((cols, rows) in listOf(80 to 24, 200 to 60)) {
+            val emulator = emulator(screenContent(cols, rows), cols, rows)
+            val bitmap = Bitmap.createBitmap(
+                (cols * renderer.cellWidth).toInt() + 1, (rows * renderer.cellHeight).toInt() + 1, Bitmap.Config.ARGB_8888,
+            )
+            val target = Canvas(bitmap)
+
+            renderer.glyphAtlasEnabled = false
+            val drawTextMs = timeFrames(emulator, target)
+            renderer.glyphAtlasEnabled = true
+            val atlasMs = timeFrames(emulator, target)
+            val atlas = renderer.glyphAtlas!!
+
+            println(
+                "Full %dx%d frame: drawText %.2f ms, glyph atlas %.2f ms (hit rate %.3f, %d glyphs, %d fallbacks)".format(
+                    cols, rows, drawTextMs, atlasMs, atlas.hitRate, atlas.misses, atlas.fallbacks,
+                )
+            )
+            assertTrue(atlas.hitRate > 0.9f)
+            renderer.glyphAtlasEnabled = false
+        }
+    }
+
+    private fun timeFrames(emulator: TerminalEmulator, target: Canvas): Double {
+        repeat(20) { drawScreen(emulator, target) } // Warm up, and fill the atlas
+        val frames = 100
+        val start = System.nanoTime()
+        repeat(frames) { drawScreen(emulator, target) }
+        return (System.nanoTime() - start) / 1e6 / frames
+    }
+
+    private fun drawScreen(emulator: TerminalEmulator, target: Canvas) {
+        val screen = emulator.screen
+        for (row in 0 until emulator.mRows) {
+            val termRow = screen.allocateFullLineIfNecessary(screen.externalToInternalRow(row))
+            renderer.drawRow(target, termRow, emulator.mColumns, 0f, row * renderer.cellHeight, target.width.toFloat(), emulator.mColors.mCurrentColors)
+        }
+    }
+
+    private fun emulator(text: String, cols: Int, rows: Int): TerminalEmulator {
+        val emulator = TerminalEmulator(NullOutput(), cols, rows, 100, null)
+        val bytes = text.toByteArray(Charsets.UTF_8)
+        emulator.append(bytes, bytes.size)
+        return emulator
+    }
+
+    /** A screen full of colored source-code-like text, similar to an editor or a build log. */
+    private fun screenContent(cols: Int, rows: Int): String {
+        val random = Random(7)
+        val words = listOf("val", "fun", "return", "if", "else", "0x7f", "buffer", "length", "{", "}", "(", ")", "->", "//", "TODO")
+        return buildString {
+            repeat(rows) { row ->
+                var column = 0
+                while (true) {
+                    val word = words[random.nextInt(words.size)]
+                    if (column + word.length + 1 >= cols) break
+                    append("\u001B[3").append(1 + random.nextInt(7)).append('m').append(word).append(' ')
+                    column += word.length + 1
+                }
+                append("\u001B[0m")
+                if (row < rows - 1) append("\r\n")
+            }
+        }
+    }
+}
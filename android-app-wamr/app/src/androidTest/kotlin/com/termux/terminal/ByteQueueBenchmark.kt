@@ -0,0 +1,143 @@
+package com.termux.terminal
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.junit.runner.RunWith
+import kotlin.concurrent.thread
+
+/**
+ * Throughput of [ByteQueue] between a producer and a consumer thread, against the
+ * synchronized wait()/notify() queue it replaced. Moves 64 MB through each in 4 KB chunks.
+ */
+@RunWith(AndroidJUnit4::class)
+class ByteQueueBenchmark {
+
+    @Test
+    fun benchmarkThroughput() {
+        val total = 64 * 1024 * 1024
+        val chunk = 4096
+        // Warm up both implementations before timing
+        pump(ByteQueueAdapter(ByteQueue(4096)), total / 8, chunk)
+        pump(MonitorByteQueue(4096), total / 8, chunk)
+
+        var start = System.nanoTime()
+        val lockFreeChecksum = pump(ByteQueueAdapter(ByteQueue(4096)), total, chunk)
+        val lockFreeNs = System.nanoTime() - start
+
+        start = System.nanoTime()
+        val monitorChecksum = pump(MonitorByteQueue(4096), total, chunk)
+        val monitorNs = System.nanoTime() - start
+
+        assertEquals(expectedChecksum(total), lockFreeChecksum)
+        assertEquals(expectedChecksum(total), monitorChecksum)
+        println(
+            "ByteQueue throughput: lock-free %.1f MB/s, monitor %.1f MB/s".format(
+                total / 1e6 / (lockFreeNs / 1e9),
+                total / 1e6 / (monitorNs / 1e9),
+            )
+        )
+    }
+
+    private interface Queue {
+        fun read(buffer: ByteArray, block: Boolean): Int
+        fun write(buffer: ByteArray, offset: Int, length: Int): Boolean
+    }
+
+    private class ByteQueueAdapter(private val queue: ByteQueue) : Queue {
+        override fun read(buffer: ByteArray, block: Boolean) = queue.read(buffer, block)
+        override fun write(buffer: ByteArray, offset: Int, length: Int) = queue.write(buffer, offset, length)
+    }
+
+    /** Writes [total] bytes of a known pattern from a second thread and returns the consumer's checksum. */
+    private fun pump(queue: Queue, total: Int, chunk: Int): Long {
+        val producer = thread {
+            val buffer = ByteArray(chunk)
+            var written = 0
+            while (written < total) {
+                val length = minOf(chunk, total - written)
+                for (i in 0 until length) buffer[i] = (written + i).toByte()
+                queue.write(buffer, 0, length)
+                written += length
+            }
+        }
+        val buffer = ByteArray(4096)
+        var read = 0
+        var checksum = 0L
+        while (read < total) {
+            val n = queue.read(buffer, true)
+            for (i in 0 until n) {
+                if (buffer[i] != (read + i).toByte()) throw AssertionError("Mismatch at offset ${read + i}")
+                checksum += buffer[i]
+            }
+            read += n
+        }
+        producer.join()
+        return checksum
+    }
+
+    private fun expectedChecksum(total: Int): Long {
+        var sum = 0L
+        for (i in 0 until total) sum += i.toByte()
+        return sum
+    }
+
+    /** The previous synchronized wait()/notify() implementation, kept as the benchmark baseline. */
+    @Suppress("PLATFORM_CLASS_MAPPED_TO_KOTLIN")
+    private class MonitorByteQueue(size: Int) : Queue {
+        private val lock = Object()
+        private val mBuffer = ByteArray(size)
+        private var mHead = 0
+        private var mStoredBytes = 0
+
+        override fun read(buffer: ByteArray, block: Boolean): Int = synchronized(lock) {
+            while (mStoredBytes == 0) {
+                if (!block) return 0
+                lock.wait()
+            }
+            val bufferLength = mBuffer.size
+            val wasFull = bufferLength == mStoredBytes
+            var length = buffer.size
+            var offset = 0
+            while (length > 0 && mStoredBytes > 0) {
+                val bytesToCopy = minOf(length, minOf(bufferLength - mHead, mStoredBytes))
+                System.arraycopy(mBuffer, mHead, buffer, offset, bytesToCopy)
+                mHead += bytesToCopy
+                if (mHead >= bufferLength) mHead = 0
+                mStoredBytes -= bytesToCopy
+                length -= bytesToCopy
+                offset += bytesToCopy
+            }
+            if (wasFull) lock.notify()
+            return offset
+        }
+
+        override fun write(buffer: ByteArray, offset: Int, length: Int): Boolean = synchronized(lock) {
+            var srcOffset = offset
+            var lengthToWrite = length
+            val bufferLength = mBuffer.size
+            while (lengthToWrite > 0) {
+                while (bufferLength == mStoredBytes) lock.wait()
+                val wasEmpty = mStoredBytes == 0
+                var bytesToWriteBeforeWaiting = minOf(lengthToWrite, bufferLength - mStoredBytes)
+                lengthToWrite -= bytesToWriteBeforeWaiting
+                while (bytesToWriteBeforeWaiting > 0) {
+                    var tail = mHead + mStoredBytes
+                    val oneRun = if (tail >= bufferLength) {
+                        tail -= bufferLength
+                        mHead - tail
+                    } else {
+                        bufferLength - tail
+                    }
+                    val bytesToCopy = minOf(oneRun, bytesToWriteBeforeWaiting)
+                    System.arraycopy(buffer, srcOffset, mBuffer, tail, bytesToCopy)
+                    srcOffset += bytesToCopy
+                    bytesToWriteBeforeWaiting -= bytesToCopy
+                    mStoredBytes += bytesToCopy
+                }
+                if (wasEmpty) lock.notify()
+            }
+            return true
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.termux.terminal
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Speed of [TerminalEmulator.append] on a long `ls -l` style listing, through the bulk
+ * printable-ASCII path and one code point at a time.
+ */
+@RunWith(AndroidJUnit4::class)
+class TerminalEmulatorAppendBenchmark {
+
+    private class NullOutput : TerminalOutput() {
+        override fun write(data: ByteArray, offset: Int, count: Int) {}
+        override fun titleChanged(oldTitle: String?, newTitle: String?) {}
+        override fun onCopyTextToClipboard(text: String?) {}
+        override fun onPasteTextFromClipboard() {}
+        override fun onBell() {}
+        override fun onColorsChanged() {}
+    }
+
+    private fun emulator(cols: Int, rows: Int) = TerminalEmulator(NullOutput(), cols, rows, 100, null)
+
+    @Test
+    fun benchmarkAppend() {
+        val line = "drwxr-xr-x    2 root     root          4096 Jan  1 00:00 node_modules-package-name\r\n"
+        val text = line.repeat(20_000)
+        val bytes = text.toByteArray(Charsets.UTF_8)
+
+        // Warm up
+        repeat(3) {
+            emulator(80, 24).append(bytes, bytes.size)
+            val reference = emulator(80, 24)
+            for (b in bytes) reference.processCodePoint(b.toInt())
+        }
+
+        var start = System.nanoTime()
+        val bulk = emulator(80, 24)
+        bulk.append(bytes, bytes.size)
+        val bulkNs = System.nanoTime() - start
+
+        start = System.nanoTime()
+        val reference = emulator(80, 24)
+        for (b in bytes) reference.processCodePoint(b.toInt())
+        val referenceNs = System.nanoTime() - start
+
+        assertEquals(reference.screen.transcriptText, bulk.screen.transcriptText)
+        println(
+            "TerminalEmulator.append: bulk %.1f MB/s, per code point %.1f MB/s".format(
+                bytes.size / 1e6 / (bulkNs / 1e9),
+                bytes.size / 1e6 / (referenceNs / 1e9),
+            )
+        )
+    }
+}
@@ -5,27 +5,87 @@
 //
 // The JNI layer (friscy_runtime.cpp) calls push_stdin() when the user
 // types, and the syscall handlers call try_read_stdin() / has_stdin_data()
-// to serve guest read()/ppoll() on fd 0.
+// to serve guest read()/ppoll() on fd 0. A guest waiting for input is
+// woken through the reactor (reactor.hpp), not by this header.
+//
+// Guest stdout/stderr goes the other way through the output ring: the
+// printer calls write_output(), and Kotlin (FriscyRuntime.OutputRing)
+// drains the bytes unchanged into TerminalEmulator.append().
 
 #pragma once
 
 #include <mutex>
 #include <condition_variable>
-#include <vector>
 #include <atomic>
 #include <cstdint>
 #include <cstddef>
 #include <algorithm>
+#include <chrono>
+#include <cstring>
 
 namespace android_io {
 
-// --- Stdin buffer (protected by mutex) ---
+// --- Stdin ring (Kotlin -> guest) ---
+//
+// Fixed-capacity single producer, single consumer byte ring. Positions are
+// free-running byte counts; the index is position & (STDIN_CAPACITY - 1).
+// The execution thread consumes without locking. stdin_mutex only
+// serializes producers.
+
+inline constexpr size_t STDIN_CAPACITY = 256 * 1024;  // power of two
 
+inline uint8_t stdin_ring[STDIN_CAPACITY];
+inline std::atomic<uint64_t> stdin_write_pos{0};
+inline std::atomic<uint64_t> stdin_read_pos{0};
 inline std::mutex stdin_mutex;
-inline std::condition_variable stdin_cv;
-inline std::vector<uint8_t> stdin_buffer;
 inline std::atomic<bool> stdin_eof{false};
 
+// --- Input latency ---
+//
+// Time from push_stdin() to the guest read that returns the input, taken
+// from the first push after the guest has read everything before it (input
+// pushed meanwhile is read by the same read).
+
+inline std::atomic<int64_t> input_pushed_ns{0};  // 0 while nothing is unread
+inline std::atomic<uint64_t> input_reads{0};
+inline std::atomic<uint64_t> input_latency_total_ns{0};
+inline std::atomic<uint64_t> input_latency_max_ns{0};
+
+// --- Output ring (guest stdout/stderr -> Kotlin) ---
+//
+// Single producer, single consumer byte ring over a direct ByteBuffer that
+// Kotlin allocates. Positions are free-running byte counts and the index
+// into the ring is position & (capacity - 1). The writer publishes
+// output_write_pos and calls output_notify() unless the reader has already
+// been told; the reader copies the bytes out and hands its position back
+// through output_consumed().
+
+inline uint8_t* output_data = nullptr;
+inline size_t output_capacity = 0;  // power of two
+inline std::atomic<uint64_t> output_write_pos{0};
+inline std::atomic<uint64_t> output_read_pos{0};
+inline std::atomic<bool> output_notify_pending{false};
+inline std::mutex output_mutex;  // serializes writers
+inline std::condition_variable output_space_cv;
+
+// Tells the reader that output is available. May drain the ring before it
+// returns. Returns false if nobody is reading (installed by friscy_runtime.cpp).
+inline bool (*output_notify)() = nullptr;
+
+// --- Output batching ---
+//
+// Every reader notification is a JNI upcall, so write_output() only notifies
+// once output_flush_threshold bytes have accumulated since the last flush.
+// Smaller writes arm the flush thread, which flushes them together
+// output_flush_interval_us later. A threshold of 0 flushes every write.
+
+inline std::atomic<size_t> output_flush_threshold{4096};
+inline std::atomic<uint32_t> output_flush_interval_us{2000};
+inline std::atomic<uint64_t> output_flushed_pos{0};
+inline std::atomic<bool> output_flush_armed{false};
+inline std::mutex output_flush_mutex;
+inline std::condition_variable output_flush_cv;
+
 // --- Terminal dimensions ---
 
 inline std::atomic<int> term_rows{24};
@@ -33,24 +93,41 @@ inline std::atomic<int> term_cols{80};
 
 // --- Execution state ---
 
-// True when the RISC-V machine stopped because stdin had no data.
-// The execution loop checks this after simulate() returns to decide
-// whether to wait for input or treat it as program exit.
-inline std::atomic<bool> waiting_for_stdin{false};
-
 // True while the execution thread is running.
 inline std::atomic<bool> running{false};
 
 // --- Functions ---
 
-// Try to read from stdin buffer.
+inline int64_t monotonic_ns() {
+    return std::chrono::duration_cast<std::chrono::nanoseconds>(
+        std::chrono::steady_clock::now().time_since_epoch()).count();
+}
+
+// Record the latency of the input a guest read is returning
+inline void record_input_read() {
+    int64_t pushed = input_pushed_ns.exchange(0);
+    if (pushed == 0) return;
+    uint64_t latency = static_cast<uint64_t>(monotonic_ns() - pushed);
+    input_reads.fetch_add(1, std::memory_order_relaxed);
+    input_latency_total_ns.fetch_add(latency, std::memory_order_relaxed);
+    uint64_t max = input_latency_max_ns.load(std::memory_order_relaxed);
+    while (latency > max && !input_latency_max_ns.compare_exchange_weak(max, latency)) {}
+}
+
+// Try to read from stdin buffer. Only called from the execution thread.
 // Returns bytes read (>0), 0 if EOF, -1 if no data available yet.
 inline int try_read_stdin(uint8_t* buf, size_t count) {
-    std::lock_guard<std::mutex> lock(stdin_mutex);
-    if (!stdin_buffer.empty()) {
-        size_t to_read = std::min(count, stdin_buffer.size());
-        std::copy(stdin_buffer.begin(), stdin_buffer.begin() + to_read, buf);
-        stdin_buffer.erase(stdin_buffer.begin(), stdin_buffer.begin() + to_read);
+    uint64_t read_pos = stdin_read_pos.load(std::memory_order_relaxed);
+    size_t available = static_cast<size_t>(
+        stdin_write_pos.load(std::memory_order_acquire) - read_pos);
+    if (available > 0) {
+        size_t to_read = std::min(count, available);
+        size_t index = static_cast<size_t>(read_pos) & (STDIN_CAPACITY - 1);
+        size_t first = std::min(to_read, STDIN_CAPACITY - index);
+        std::memcpy(buf, stdin_ring + index, first);
+        std::memcpy(buf + first, stdin_ring, to_read - first);
+        stdin_read_pos.store(read_pos + to_read, std::memory_order_release);
+        record_input_read();
         return static_cast<int>(to_read);
     }
     if (stdin_eof.load(std::memory_order_relaxed)) return 0;  // EOF
@@ -59,8 +136,8 @@ inline int try_read_stdin(uint8_t* buf, size_t count) {
 
 // Check if stdin has data available (non-blocking).
 inline bool has_stdin_data() {
-    std::lock_guard<std::mutex> lock(stdin_mutex);
-    return !stdin_buffer.empty();
+    return stdin_write_pos.load(std::memory_order_acquire) !=
+           stdin_read_pos.load(std::memory_order_relaxed);
 }
 
 // Check if stdin is at EOF.
@@ -69,22 +146,138 @@ inline bool is_eof() {
 }
 
 // Push data to stdin buffer (called from JNI nativeSendInput).
-inline void push_stdin(const uint8_t* data, size_t len) {
+// Never blocks: returns how many bytes fit, which is less than len only
+// when the guest has not read STDIN_CAPACITY bytes of earlier input.
+inline size_t push_stdin(const uint8_t* data, size_t len) {
+    size_t n;
     {
         std::lock_guard<std::mutex> lock(stdin_mutex);
-        stdin_buffer.insert(stdin_buffer.end(), data, data + len);
+        uint64_t write_pos = stdin_write_pos.load(std::memory_order_relaxed);
+        size_t space = STDIN_CAPACITY - static_cast<size_t>(
+            write_pos - stdin_read_pos.load(std::memory_order_acquire));
+        n = std::min(len, space);
+        size_t index = static_cast<size_t>(write_pos) & (STDIN_CAPACITY - 1);
+        size_t first = std::min(n, STDIN_CAPACITY - index);
+        std::memcpy(stdin_ring + index, data, first);
+        std::memcpy(stdin_ring, data + first, n - first);
+        if (n > 0) {
+            int64_t none = 0;
+            input_pushed_ns.compare_exchange_strong(none, monotonic_ns());
+        }
+        stdin_write_pos.store(write_pos + n, std::memory_order_release);
+    }
+    return n;
+}
+
+// Point the output ring at new storage (nullptr to detach it).
+inline void set_output_ring(uint8_t* data, size_t capacity) {
+    std::lock_guard<std::mutex> lock(output_mutex);
+    output_data = data;
+    output_capacity = capacity;
+    output_write_pos.store(0, std::memory_order_relaxed);
+    output_read_pos.store(0, std::memory_order_relaxed);
+    output_flushed_pos.store(0, std::memory_order_relaxed);
+    output_notify_pending.store(false);
+}
+
+// Wake the reader unless it has already been woken and not yet caught up.
+// Returns false if there is no reader.
+inline bool notify_output_reader() {
+    if (output_notify_pending.exchange(true)) return true;
+    if (output_notify && output_notify()) return true;
+    output_notify_pending.store(false);
+    return false;
+}
+
+// Append guest output to the ring. When the ring is full the writer waits
+// for the reader to make room, so output is never reordered or dropped
+// while someone is reading it. The reader is notified per the batching
+// policy above.
+inline void write_output(const uint8_t* data, size_t len) {
+    std::unique_lock<std::mutex> lock(output_mutex);
+    if (!output_data || len == 0) return;
+
+    while (len > 0) {
+        uint64_t write_pos = output_write_pos.load(std::memory_order_relaxed);
+        size_t used = static_cast<size_t>(
+            write_pos - output_read_pos.load(std::memory_order_acquire));
+        size_t space = output_capacity - used;
+        if (space == 0) {
+            if (!notify_output_reader()) return;  // Nobody reading: drop the rest
+            // A reader that drains synchronously has already made room
+            output_space_cv.wait_for(lock, std::chrono::milliseconds(10), [write_pos] {
+                return write_pos - output_read_pos.load(std::memory_order_acquire) <
+                       output_capacity;
+            });
+            continue;
+        }
+
+        size_t n = std::min(len, space);
+        size_t index = static_cast<size_t>(write_pos) & (output_capacity - 1);
+        size_t first = std::min(n, output_capacity - index);
+        std::memcpy(output_data + index, data, first);
+        std::memcpy(output_data, data + first, n - first);
+        output_write_pos.store(write_pos + n, std::memory_order_release);
+        data += n;
+        len -= n;
+    }
+
+    uint64_t write_pos = output_write_pos.load(std::memory_order_relaxed);
+    size_t threshold = std::min(output_flush_threshold.load(std::memory_order_relaxed),
+                                output_capacity / 2);
+    if (write_pos - output_flushed_pos.load() >= threshold) {
+        output_flushed_pos.store(write_pos);
+        notify_output_reader();
+    } else if (!output_flush_armed.exchange(true)) {
+        std::lock_guard<std::mutex> flush_lock(output_flush_mutex);
+        output_flush_cv.notify_one();
+    }
+}
+
+// Notify the reader of everything written so far.
+inline void flush_output() {
+    uint64_t write_pos = output_write_pos.load(std::memory_order_acquire);
+    if (output_flushed_pos.exchange(write_pos) != write_pos) {
+        notify_output_reader();
+    }
+}
+
+// Wake the flush thread, e.g. so it notices that execution stopped.
+inline void wake_output_flusher() {
+    std::lock_guard<std::mutex> lock(output_flush_mutex);
+    output_flush_cv.notify_all();
+}
+
+// Called by the reader after copying out everything up to read_pos.
+// Returns true if more output arrived meanwhile, in which case the reader
+// must drain again (it has been re-notified).
+inline bool output_consumed(uint64_t read_pos) {
+    output_read_pos.store(read_pos, std::memory_order_release);
+    output_space_cv.notify_all();
+    output_notify_pending.store(false);
+    if (output_write_pos.load() != read_pos) {
+        return !output_notify_pending.exchange(true);
     }
-    stdin_cv.notify_one();
+    return false;
 }
 
 // Reset all state for a new session.
 inline void reset() {
     {
         std::lock_guard<std::mutex> lock(stdin_mutex);
-        stdin_buffer.clear();
+        stdin_write_pos.store(0, std::memory_order_relaxed);
+        stdin_read_pos.store(0, std::memory_order_relaxed);
     }
+    output_write_pos.store(0, std::memory_order_relaxed);
+    output_read_pos.store(0, std::memory_order_relaxed);
+    output_flushed_pos.store(0, std::memory_order_relaxed);
+    output_flush_armed.store(false, std::memory_order_relaxed);
+    output_notify_pending.store(false);
     stdin_eof.store(false, std::memory_order_relaxed);
-    waiting_for_stdin.store(false, std::memory_order_relaxed);
+    input_pushed_ns.store(0, std::memory_order_relaxed);
+    input_reads.store(0, std::memory_order_relaxed);
+    input_latency_total_ns.store(0, std::memory_order_relaxed);
+    input_latency_max_ns.store(0, std::memory_order_relaxed);
     running.store(false, std::memory_order_relaxed);
 }
 
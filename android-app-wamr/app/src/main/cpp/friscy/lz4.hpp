@@ -0,0 +1,179 @@
+// lz4.hpp - LZ4 block compression for snapshot pages
+//
+// A compact implementation of the LZ4 block format (no frame format), so
+// the output can be read by any LZ4 block decoder and this can be swapped
+// for liblz4 without changing snapshot files. Blocks are small (one guest
+// page), so a greedy single-probe match finder is all that is needed.
+//
+// Block layout: a sequence of
+//   token (literal length << 4 | match length - 4), [literal length bytes],
+//   literals, match offset (u16 LE), [match length bytes]
+// where length fields of 15 continue in following bytes of 255 until a
+// byte < 255. The last sequence has literals only; the last 5 bytes are
+// always literals and no match starts within the last 12 bytes.
+
+#pragma once
+
+#include <cstdint>
+#include <cstddef>
+#include <cstring>
+
+namespace lz4 {
+
+inline constexpr size_t MIN_MATCH = 4;
+inline constexpr size_t LAST_LITERALS = 5;
+inline constexpr size_t MF_LIMIT = 12;
+inline constexpr int HASH_BITS = 12;
+
+// Largest possible compressed size of n input bytes
+inline constexpr size_t compress_bound(size_t n) {
+    return n + n / 255 + 16;
+}
+
+namespace detail {
+
+inline uint32_t read32(const uint8_t* p) {
+    uint32_t v;
+    memcpy(&v, p, 4);
+    return v;
+}
+
+inline uint32_t hash(uint32_t v) {
+    return (v * 2654435761u) >> (32 - HASH_BITS);
+}
+
+// Write a length continuation (the part of a length field past 15)
+inline uint8_t* put_length(uint8_t* op, size_t len) {
+    while (len >= 255) {
+        *op++ = 255;
+        len -= 255;
+    }
+    *op++ = static_cast<uint8_t>(len);
+    return op;
+}
+
+} // namespace detail
+
+// Compress src[0, n), at most 64 KiB, into dst, which must hold
+// compress_bound(n) bytes. Returns the compressed size.
+inline size_t compress(const uint8_t* src, size_t n, uint8_t* dst) {
+    using namespace detail;
+    uint16_t table[1 << HASH_BITS];
+    memset(table, 0, sizeof(table));
+
+    const uint8_t* ip = src;
+    const uint8_t* anchor = src;
+    const uint8_t* const end = src + n;
+    uint8_t* op = dst;
+
+    if (n >= MF_LIMIT + 1) {
+        const uint8_t* const match_limit = end - LAST_LITERALS;
+        const uint8_t* const search_limit = end - MF_LIMIT;
+        ip++;  // Position 0 is the implicit empty table entry
+        while (ip < search_limit) {
+            uint32_t h = hash(read32(ip));
+            const uint8_t* ref = src + table[h];
+            table[h] = static_cast<uint16_t>(ip - src);
+            if (ref >= ip || ip - ref > 0xFFFF || read32(ref) != read32(ip)) {
+                ip++;
+                continue;
+            }
+
+            // Extend the match backwards over pending literals, then forwards
+            while (ip > anchor && ref > src && ip[-1] == ref[-1]) {
+                ip--;
+                ref--;
+            }
+            const uint8_t* mp = ip + MIN_MATCH;
+            const uint8_t* mr = ref + MIN_MATCH;
+            while (mp < match_limit && *mp == *mr) {
+                mp++;
+                mr++;
+            }
+
+            size_t literals = static_cast<size_t>(ip - anchor);
+            size_t match_len = static_cast<size_t>(mp - ip) - MIN_MATCH;
+            uint8_t* token = op++;
+            *token = static_cast<uint8_t>((literals >= 15 ? 15 : literals) << 4);
+            if (literals >= 15) op = put_length(op, literals - 15);
+            memcpy(op, anchor, literals);
+            op += literals;
+
+            uint16_t offset = static_cast<uint16_t>(ip - ref);
+            *op++ = static_cast<uint8_t>(offset);
+            *op++ = static_cast<uint8_t>(offset >> 8);
+            *token |= static_cast<uint8_t>(match_len >= 15 ? 15 : match_len);
+            if (match_len >= 15) op = put_length(op, match_len - 15);
+
+            ip = mp;
+            anchor = ip;
+            if (ip < search_limit) {
+                table[hash(read32(ip - 2))] = static_cast<uint16_t>(ip - 2 - src);
+            }
+        }
+    }
+
+    // Trailing literals
+    size_t literals = static_cast<size_t>(end - anchor);
+    *op++ = static_cast<uint8_t>((literals >= 15 ? 15 : literals) << 4);
+    if (literals >= 15) op = put_length(op, literals - 15);
+    if (literals > 0) memcpy(op, anchor, literals);
+    op += literals;
+    return static_cast<size_t>(op - dst);
+}
+
+// Decompress src[0, n) into dst, which must decode to exactly out_size
+// bytes. Returns false if the block is malformed or has another size.
+inline bool decompress(const uint8_t* src, size_t n, uint8_t* dst, size_t out_size) {
+    const uint8_t* ip = src;
+    const uint8_t* const iend = src + n;
+    uint8_t* op = dst;
+    uint8_t* const oend = dst + out_size;
+
+    while (ip < iend) {
+        uint8_t token = *ip++;
+
+        size_t literals = token >> 4;
+        if (literals == 15) {
+            uint8_t b;
+            do {
+                if (ip >= iend) return false;
+                b = *ip++;
+                literals += b;
+            } while (b == 255);
+        }
+        if (literals > static_cast<size_t>(iend - ip) ||
+            literals > static_cast<size_t>(oend - op)) {
+            return false;
+        }
+        if (literals > 0) memcpy(op, ip, literals);
+        ip += literals;
+        op += literals;
+        if (ip == iend) break;  // Last sequence has no match
+
+        if (iend - ip < 2) return false;
+        size_t offset = ip[0] | (ip[1] << 8);
+        ip += 2;
+        if (offset == 0 || offset > static_cast<size_t>(op - dst)) return false;
+
+        size_t match_len = token & 15;
+        if (match_len == 15) {
+            uint8_t b;
+            do {
+                if (ip >= iend) return false;
+                b = *ip++;
+                match_len += b;
+            } while (b == 255);
+        }
+        match_len += MIN_MATCH;
+        if (match_len > static_cast<size_t>(oend - op)) return false;
+
+        // Byte by byte: the match may overlap the bytes it produces
+        const uint8_t* ref = op - offset;
+        for (size_t i = 0; i < match_len; i++) op[i] = ref[i];
+        op += match_len;
+    }
+    return op == oend;
+}
+
+} // namespace lz4
@@ -0,0 +1,378 @@
+// machine_state.hpp - Runtime state outside the guest arena, for snapshots
+//
+// Registers and guest memory are not a whole machine: the filesystem and
+// fd table, cooperative threads, vfork state, epoll sets, terminal modes
+// and the brk/mmap layout live in the runtime. save() encodes all of it
+// for the state section of a snapshot (see snapshot.hpp); decode() checks
+// a saved state against the loaded rootfs without changing anything, and
+// apply() then installs it.
+//
+// Layout: MAGIC, VERSION, then sections of (u32 tag, u64 length, body).
+// Readers skip sections they do not know, so sections can be added
+// without a new version; changing an existing section needs one.
+//
+// Not saved:
+//   - Sockets. Connections are host resources and cannot be resumed; the
+//     network state is left as it is.
+//   - The executables' bytes. ExecContext keeps copies of the running
+//     binary and interpreter; they are saved by path and read back from
+//     the restored filesystem.
+
+#pragma once
+
+#include <algorithm>
+#include <cstdint>
+#include <set>
+#include <string>
+#include <unordered_map>
+#include <vector>
+
+#include "serial.hpp"
+#include "vfs.hpp"
+#include "syscalls.hpp"
+
+namespace machine_state {
+
+using Machine = syscalls::Machine;
+
+inline constexpr uint32_t MAGIC = 0x54534D46;  // "FMST"
+inline constexpr uint32_t VERSION = 2;  // 2: VThread table with FP registers
+
+enum Section : uint32_t {
+    FILESYSTEM = 1,  // VirtualFS tree, cwd and open fds
+    PROCESS    = 2,  // Next pid and vfork state
+    THREADS    = 3,  // VThreads and futex waits
+    EXEC       = 4,  // ExecContext
+    MEMORY     = 5,  // mmap bump pointers
+    EPOLL      = 6,  // epoll instances
+    TERMINAL   = 7,  // termios and tty fds
+};
+inline constexpr uint32_t ALL_SECTIONS = (1u << 8) - 2;  // Bits 1..7
+
+// Decoded state, installed by apply()
+struct State {
+    vfs::VirtualFS::State fs;
+    pid_t next_pid = 100;
+    syscalls::ForkState fork{};
+    syscalls::ThreadScheduler sched{};
+    syscalls::ExecContext exec;
+    uint64_t mmap_bump = 0;
+    uint64_t mmap_address = 0;
+    std::unordered_map<int, syscalls::handlers::EpollInstance> epoll_instances;
+    int next_epoll_fd = 2000;
+    syscalls::TermiosState termios;
+    std::set<int> tty_fds;
+};
+
+namespace detail {
+
+inline void put_region(serial::Writer& w, const syscalls::ForkState::MemRegion& region) {
+    w.put(region.addr);
+    w.put(region.size);
+    w.put_blob(region.data.data(), region.data.size());
+}
+
+inline void get_region(serial::Reader& r, syscalls::ForkState::MemRegion& region) {
+    r.get(region.addr);
+    r.get(region.size);
+    size_t n = 0;
+    const uint8_t* data = r.get_blob(n);
+    region.data.assign(data, data + n);
+}
+
+inline void put_fds(serial::Writer& w, const std::set<int>& fds) {
+    w.put(static_cast<uint32_t>(fds.size()));
+    for (int fd : fds) w.put<int32_t>(fd);
+}
+
+inline void get_fds(serial::Reader& r, std::set<int>& fds) {
+    fds.clear();
+    uint32_t count = r.get_count(4);
+    for (uint32_t i = 0; i < count; i++) fds.insert(r.get<int32_t>());
+}
+
+} // namespace detail
+
+// Encode the runtime state of m and fs. The guest must not be running.
+inline std::vector<uint8_t> save(Machine& m, const vfs::VirtualFS& fs) {
+    using namespace syscalls;
+    using namespace syscalls::handlers;
+    serial::Writer w;
+    w.put(MAGIC);
+    w.put(VERSION);
+
+    size_t at = w.begin_section(FILESYSTEM);
+    fs.save_state(w);
+    w.end_section(at);
+
+    at = w.begin_section(PROCESS);
+    w.put<int32_t>(g_next_pid);
+    w.put(g_fork.regs);
+    w.put(g_fork.pc);
+    w.put<int32_t>(g_fork.exit_status);
+    w.put<int32_t>(g_fork.child_pid);
+    w.put<uint8_t>(g_fork.in_child);
+    w.put<uint8_t>(g_fork.child_reaped);
+    detail::put_region(w, g_fork.exec_data);
+    detail::put_region(w, g_fork.interp_data);
+    detail::put_region(w, g_fork.stack_data);
+    detail::put_region(w, g_fork.mmap_data);
+    detail::put_fds(w, g_fork.parent_open_fds);
+    w.end_section(at);
+
+    // Futex deadlines are saved as time left, and blocked threads as
+    // runnable: they make their call again with a new deadline
+    at = w.begin_section(THREADS);
+    w.put<int32_t>(g_sched.current);
+    w.put<int32_t>(g_sched.count);
+    w.put<uint32_t>(static_cast<uint32_t>(sizeof(GuestRegisters)));
+    w.put<uint32_t>(static_cast<uint32_t>(g_sched.threads.size()));
+    int64_t now = steady_now_ns();
+    for (const auto& t : g_sched.threads) {
+        w.put_bytes(&t.regs, sizeof(t.regs));  // Raw, like the CPU registers in a snapshot
+        w.put(t.pc);
+        w.put<int32_t>(t.tid);
+        w.put<uint8_t>(t.active);
+        w.put<uint8_t>(t.waiting);
+        w.put(t.futex_addr);
+        w.put<int64_t>(t.futex_deadline_ns < 0 ? -1 : std::max<int64_t>(t.futex_deadline_ns - now, 0));
+        w.put(t.clear_child_tid);
+    }
+    w.end_section(at);
+
+    at = w.begin_section(EXEC);
+    const auto& ctx = g_exec_ctx;
+    w.put_string(ctx.exec_path);
+    w.put_string(ctx.interp_path);
+    w.put(ctx.exec_info.entry_point);
+    w.put(ctx.exec_info.phdr_addr);
+    w.put(ctx.exec_info.phdr_size);
+    w.put(ctx.exec_info.phdr_count);
+    w.put(ctx.exec_info.base_addr);
+    w.put<uint8_t>(ctx.exec_info.is_dynamic);
+    w.put_string(ctx.exec_info.interpreter);
+    w.put(ctx.exec_info.type);
+    for (uint64_t value : {ctx.exec_base, ctx.exec_rw_start, ctx.exec_rw_end,
+                           ctx.interp_base, ctx.interp_rw_start, ctx.interp_rw_end,
+                           ctx.interp_entry, ctx.original_stack_top, ctx.heap_start,
+                           ctx.heap_size, ctx.brk_base, ctx.brk_current}) {
+        w.put(value);
+    }
+    w.put<uint8_t>(ctx.brk_overridden);
+    w.put<uint8_t>(ctx.dynamic);
+    w.put(static_cast<uint32_t>(ctx.env.size()));
+    for (const auto& var : ctx.env) w.put_string(var);
+    w.end_section(at);
+
+    at = w.begin_section(MEMORY);
+    w.put(g_mmap_bump);
+    w.put(static_cast<uint64_t>(m.memory.mmap_address()));
+    w.end_section(at);
+
+    at = w.begin_section(EPOLL);
+    w.put<int32_t>(g_next_epoll_fd);
+    w.put(static_cast<uint32_t>(g_epoll_instances.size()));
+    for (const auto& [epfd, instance] : g_epoll_instances) {
+        w.put<int32_t>(epfd);
+        w.put(static_cast<uint32_t>(instance.interests.size()));
+        for (const auto& [fd, interest] : instance.interests) {
+            w.put<int32_t>(fd);
+            w.put(interest.events);
+            w.put(interest.data);
+        }
+    }
+    w.end_section(at);
+
+    at = w.begin_section(TERMINAL);
+    uint8_t termios[44];
+    g_termios.serialize(termios);
+    w.put(termios);
+    detail::put_fds(w, g_tty_fds);
+    w.end_section(at);
+
+    return std::move(w.data());
+}
+
+// Decode a state written by save(). Fails without side effects if it is
+// malformed, of another version, or was saved over a different rootfs
+// than the one fs has loaded.
+inline bool decode(const std::vector<uint8_t>& data, const vfs::VirtualFS& fs,
+                   State& out, std::string& error) {
+    using namespace syscalls;
+    using namespace syscalls::handlers;
+    serial::Reader r(data.data(), data.size());
+    if (r.get<uint32_t>() != MAGIC) {
+        error = "corrupt machine state";
+        return false;
+    }
+    uint32_t version = r.get<uint32_t>();
+    if (version != VERSION) {
+        error = "unsupported machine state version " + std::to_string(version);
+        return false;
+    }
+
+    uint32_t seen = 0;
+    uint32_t tag = 0;
+    serial::Reader body(nullptr, 0);
+    while (r.next_section(tag, body)) {
+        if (tag < 32) seen |= 1u << tag;
+        switch (tag) {
+        case FILESYSTEM:
+            if (!fs.decode_state(body, out.fs, error)) return false;
+            break;
+
+        case PROCESS:
+            out.next_pid = body.get<int32_t>();
+            body.get_bytes(out.fork.regs, sizeof(out.fork.regs));
+            body.get(out.fork.pc);
+            out.fork.exit_status = body.get<int32_t>();
+            out.fork.child_pid = body.get<int32_t>();
+            out.fork.in_child = body.get<uint8_t>() != 0;
+            out.fork.child_reaped = body.get<uint8_t>() != 0;
+            detail::get_region(body, out.fork.exec_data);
+            detail::get_region(body, out.fork.interp_data);
+            detail::get_region(body, out.fork.stack_data);
+            detail::get_region(body, out.fork.mmap_data);
+            detail::get_fds(body, out.fork.parent_open_fds);
+            break;
+
+        case THREADS: {
+            auto& sched = out.sched;
+            sched.current = body.get<int32_t>();
+            sched.count = body.get<int32_t>();
+            if (body.get<uint32_t>() != static_cast<uint32_t>(sizeof(GuestRegisters))) body.fail();
+            uint32_t slots = body.get_count(sizeof(GuestRegisters));
+            if (slots == 0 || slots > MAX_VTHREADS || sched.current < 0 ||
+                static_cast<uint32_t>(sched.current) >= slots) {
+                body.fail();
+                break;
+            }
+            sched.threads.assign(slots, VThread{});
+            int64_t now = steady_now_ns();
+            for (uint32_t i = 0; i < slots && !body.failed(); i++) {
+                auto& t = sched.threads[i];
+                body.get_bytes(&t.regs, sizeof(t.regs));
+                body.get(t.pc);
+                t.tid = body.get<int32_t>();
+                t.active = body.get<uint8_t>() != 0;
+                t.waiting = body.get<uint8_t>() != 0;
+                body.get(t.futex_addr);
+                int64_t left = body.get<int64_t>();
+                body.get(t.clear_child_tid);
+                if (t.active && t.waiting) {
+                    t.futex_deadline_ns = left < 0 ? -1 : now + left;
+                    sched.wait(static_cast<int>(i), t.futex_addr, t.futex_deadline_ns);
+                }
+            }
+            break;
+        }
+
+        case EXEC: {
+            auto& ctx = out.exec;
+            ctx.exec_path = body.get_string();
+            ctx.interp_path = body.get_string();
+            body.get(ctx.exec_info.entry_point);
+            body.get(ctx.exec_info.phdr_addr);
+            body.get(ctx.exec_info.phdr_size);
+            body.get(ctx.exec_info.phdr_count);
+            body.get(ctx.exec_info.base_addr);
+            ctx.exec_info.is_dynamic = body.get<uint8_t>() != 0;
+            ctx.exec_info.interpreter = body.get_string();
+            body.get(ctx.exec_info.type);
+            for (uint64_t* value : {&ctx.exec_base, &ctx.exec_rw_start, &ctx.exec_rw_end,
+                                    &ctx.interp_base, &ctx.interp_rw_start, &ctx.interp_rw_end,
+                                    &ctx.interp_entry, &ctx.original_stack_top, &ctx.heap_start,
+                                    &ctx.heap_size, &ctx.brk_base, &ctx.brk_current}) {
+                body.get(*value);
+            }
+            ctx.brk_overridden = body.get<uint8_t>() != 0;
+            ctx.dynamic = body.get<uint8_t>() != 0;
+            ctx.env.resize(body.get_count(4));
+            for (auto& var : ctx.env) var = body.get_string();
+            break;
+        }
+
+        case MEMORY:
+            body.get(out.mmap_bump);
+            body.get(out.mmap_address);
+            break;
+
+        case EPOLL: {
+            out.next_epoll_fd = body.get<int32_t>();
+            uint32_t instances = body.get_count(8);
+            for (uint32_t i = 0; i < instances && !body.failed(); i++) {
+                auto& instance = out.epoll_instances[body.get<int32_t>()];
+                uint32_t interests = body.get_count(16);
+                for (uint32_t j = 0; j < interests; j++) {
+                    int fd = body.get<int32_t>();
+                    EpollInterest interest{};
+                    body.get(interest.events);
+                    body.get(interest.data);
+                    instance.interests[fd] = interest;
+                }
+            }
+            break;
+        }
+
+        case TERMINAL: {
+            uint8_t termios[44];
+            body.get_bytes(termios, sizeof(termios));
+            out.termios.deserialize(termios);
+            detail::get_fds(body, out.tty_fds);
+            break;
+        }
+
+        default:
+            break;  // Added after this version
+        }
+        if (body.failed()) {
+            error = "corrupt machine state (section " + std::to_string(tag) + ")";
+            return false;
+        }
+    }
+    if (r.failed() || (seen & ALL_SECTIONS) != ALL_SECTIONS) {
+        error = "corrupt machine state";
+        return false;
+    }
+    return true;
+}
+
+// Install a decoded state. Registers and memory are restored separately.
+inline void apply(Machine& m, vfs::VirtualFS& fs, State&& state) {
+    using namespace syscalls;
+    using namespace syscalls::handlers;
+    fs.commit_state(std::move(state.fs));
+
+    g_next_pid = state.next_pid;
+    g_fork = std::move(state.fork);
+    g_sched = std::move(state.sched);
+    // A state saved while every thread waited resumes waiting
+    g_sched.idle = !g_sched.runnable(g_sched.current);
+    g_sched_stats.threads.store(g_sched.count, std::memory_order_relaxed);
+
+    // The binaries are read back from the restored filesystem. If one has
+    // been replaced since it was executed, execve treats the next exec of
+    // it as a new binary, as Linux would.
+    auto read_file = [&fs](const std::string& path) {
+        std::vector<uint8_t> data;
+        auto entry = path.empty() ? nullptr : fs.resolve(path);
+        if (entry && entry->is_file()) data.assign(entry->content.begin(), entry->content.end());
+        return data;
+    };
+    state.exec.exec_binary = read_file(state.exec.exec_path);
+    state.exec.interp_binary = read_file(state.exec.interp_path);
+    g_exec_ctx = std::move(state.exec);
+
+    g_mmap_bump = state.mmap_bump;
+    m.memory.mmap_address() = state.mmap_address;
+
+    clear_epoll();  // Host epoll fds are created again on first use
+    g_epoll_instances = std::move(state.epoll_instances);
+    g_next_epoll_fd = state.next_epoll_fd;
+    g_termios = state.termios;
+    g_tty_fds = std::move(state.tty_fds);
+    g_execve_restart = false;
+    g_guest_exited = false;
+}
+
+} // namespace machine_state
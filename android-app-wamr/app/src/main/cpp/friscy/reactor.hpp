@@ -0,0 +1,123 @@
+// reactor.hpp - Host wakeups for guest waits
+//
+// Each guest epoll instance is backed by a host epoll fd (see
+// syscalls.hpp), where its socket interests are registered once at
+// epoll_ctl time. The guest's other sources (stdin, VFS pipes and
+// eventfds) live in memory and cannot be polled by the host. Pipes and
+// eventfds are only written by guest threads, which all run on the
+// execution thread, so a blocked thread sees such a write when it makes
+// its call again. Stdin and stop or pause requests come from other host
+// threads, which signal the reactor's eventfd through wake().
+//
+// When no guest thread can run, the execution loop parks on the reactor's
+// own epoll fd, which watches the eventfd and, for the duration of the
+// park, the host epoll fds of the epoll instances the blocked guest
+// threads wait on. So one blocking epoll_wait returns on a ready socket,
+// new input, a stop or pause request, or the wait's deadline, and socket
+// events stay queued for the guest to collect.
+//
+// A wake() while nobody is parked is remembered, and the next park()
+// returns at once.
+
+#pragma once
+
+#include <atomic>
+#include <cerrno>
+#include <cstdint>
+#include <sys/epoll.h>
+#include <sys/eventfd.h>
+#include <unistd.h>
+#include <vector>
+
+namespace reactor {
+
+// epoll_event data of the eventfd and of a parked-on host epoll fd; guest fds are small
+inline constexpr uint64_t WAKE_TOKEN = ~0ULL;
+inline constexpr uint64_t HOST_TOKEN = ~1ULL;
+
+class Reactor {
+public:
+    // Create the eventfd and epoll fd. Returns false if the host is out of fds.
+    bool open() {
+        if (epoll_fd_ >= 0) return true;
+        int wake_fd = ::eventfd(0, EFD_NONBLOCK | EFD_CLOEXEC);
+        int epoll_fd = ::epoll_create1(EPOLL_CLOEXEC);
+        struct epoll_event ev{};
+        ev.events = EPOLLIN;
+        ev.data.u64 = WAKE_TOKEN;
+        if (wake_fd < 0 || epoll_fd < 0 || ::epoll_ctl(epoll_fd, EPOLL_CTL_ADD, wake_fd, &ev) < 0) {
+            if (wake_fd >= 0) ::close(wake_fd);
+            if (epoll_fd >= 0) ::close(epoll_fd);
+            return false;
+        }
+        wake_fd_.store(wake_fd);
+        epoll_fd_ = epoll_fd;
+        return true;
+    }
+
+    void close() {
+        int fd = wake_fd_.exchange(-1);
+        if (fd >= 0) ::close(fd);
+        if (epoll_fd_ >= 0) ::close(epoll_fd_);
+        epoll_fd_ = -1;
+        pending_.store(false);
+    }
+
+    // A host epoll fd for a guest epoll instance, or -1 on failure
+    int create_epoll() const {
+        return ::epoll_create1(EPOLL_CLOEXEC);
+    }
+
+    // Events ready on host epoll fd epfd now
+    int poll(int epfd, struct epoll_event* events, int max_events) const {
+        int n = ::epoll_wait(epfd, events, max_events, 0);
+        return n < 0 ? 0 : n;
+    }
+
+    // Block until wake(), one of host_fds (host epoll fds) has events, or
+    // timeout_ms passes (-1 for no limit). Returns true unless it timed out.
+    bool park(const std::vector<int>& host_fds, int timeout_ms) {
+        if (epoll_fd_ < 0) return true;
+        struct epoll_event ev{};
+        ev.events = EPOLLIN;
+        ev.data.u64 = HOST_TOKEN;
+        // Threads waiting on the same instance share its fd; EEXIST is fine
+        for (int fd : host_fds) ::epoll_ctl(epoll_fd_, EPOLL_CTL_ADD, fd, &ev);
+
+        parked_.store(true);
+        struct epoll_event events[2];
+        int n = pending_.exchange(false) ? 1 : ::epoll_wait(epoll_fd_, events, 2, timeout_ms);
+        parked_.store(false);
+        // Wakers change what the guest is waiting on before calling wake(),
+        // and the guest looks again after every park, so this one is seen
+        pending_.store(false);
+
+        for (int fd : host_fds) ::epoll_ctl(epoll_fd_, EPOLL_CTL_DEL, fd, nullptr);
+        uint64_t count;
+        while (::read(wake_fd_.load(), &count, sizeof(count)) > 0) {}
+        return n != 0;
+    }
+
+    // Wake the current or next park(). Safe from any thread.
+    void wake() {
+        pending_.store(true);
+        if (parked_.load()) signal();
+    }
+
+private:
+    void signal() {
+        int fd = wake_fd_.load();
+        uint64_t one = 1;
+        if (fd >= 0) (void)::write(fd, &one, sizeof(one));
+    }
+
+    int epoll_fd_ = -1;                 // Used by the execution thread only
+    std::atomic<int> wake_fd_{-1};
+    std::atomic<bool> pending_{false};  // wake() not yet seen by park()
+    std::atomic<bool> parked_{false};   // A park() is in progress
+};
+
+// Owned by the runtime: opened when a machine is loaded, closed on destroy
+inline Reactor g_reactor;
+
+}  // namespace reactor
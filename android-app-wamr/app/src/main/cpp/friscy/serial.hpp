@@ -0,0 +1,152 @@
+// serial.hpp - Binary encoding of runtime state for snapshots
+//
+// Values are written in native byte order and layout, like the rootfs
+// index: snapshots are restored on the device that saved them. Reader
+// never reads past the end of its input; a failed read sets failed()
+// and yields zeros, so decoders can check once at the end.
+
+#pragma once
+
+#include <cstdint>
+#include <cstring>
+#include <string>
+#include <vector>
+#include <type_traits>
+
+namespace serial {
+
+class Writer {
+public:
+    template <typename T>
+    void put(const T& value) {
+        static_assert(std::is_trivially_copyable_v<T>);
+        put_bytes(&value, sizeof(T));
+    }
+
+    void put_bytes(const void* data, size_t n) {
+        auto* p = static_cast<const uint8_t*>(data);
+        out_.insert(out_.end(), p, p + n);
+    }
+
+    void put_string(const std::string& str) {
+        put(static_cast<uint32_t>(str.size()));
+        put_bytes(str.data(), str.size());
+    }
+
+    void put_blob(const uint8_t* data, size_t n) {
+        put(static_cast<uint64_t>(n));
+        put_bytes(data, n);
+    }
+
+    // Start a section of the given tag, to be closed by end_section()
+    size_t begin_section(uint32_t tag) {
+        put(tag);
+        size_t at = out_.size();
+        put(uint64_t(0));
+        return at;
+    }
+
+    // Fill in the length of the section begun at at
+    void end_section(size_t at) {
+        uint64_t length = out_.size() - at - sizeof(uint64_t);
+        memcpy(out_.data() + at, &length, sizeof(length));
+    }
+
+    size_t size() const { return out_.size(); }
+    std::vector<uint8_t>& data() { return out_; }
+
+private:
+    std::vector<uint8_t> out_;
+};
+
+class Reader {
+public:
+    Reader(const uint8_t* data, size_t size) : p_(data), end_(data + size) {}
+
+    template <typename T>
+    T get() {
+        static_assert(std::is_trivially_copyable_v<T>);
+        T value{};
+        get_bytes(&value, sizeof(T));
+        return value;
+    }
+
+    template <typename T>
+    void get(T& value) { value = get<T>(); }
+
+    void get_bytes(void* out, size_t n) {
+        if (n > remaining()) {
+            failed_ = true;
+            p_ = end_;
+            memset(out, 0, n);
+            return;
+        }
+        memcpy(out, p_, n);
+        p_ += n;
+    }
+
+    std::string get_string() {
+        uint32_t len = get<uint32_t>();
+        if (len > remaining()) {
+            failed_ = true;
+            p_ = end_;
+            return {};
+        }
+        std::string str(reinterpret_cast<const char*>(p_), len);
+        p_ += len;
+        return str;
+    }
+
+    // A length-prefixed byte range, returned in place
+    const uint8_t* get_blob(size_t& n) {
+        uint64_t len = get<uint64_t>();
+        if (len > remaining()) {
+            failed_ = true;
+            p_ = end_;
+            n = 0;
+            return nullptr;
+        }
+        const uint8_t* data = p_;
+        p_ += len;
+        n = static_cast<size_t>(len);
+        return data;
+    }
+
+    // A count of items that each take at least min_size bytes; fails
+    // instead of returning counts the remaining input cannot hold
+    uint32_t get_count(size_t min_size = 1) {
+        uint32_t count = get<uint32_t>();
+        if (uint64_t(count) * min_size > remaining()) {
+            failed_ = true;
+            p_ = end_;
+            return 0;
+        }
+        return count;
+    }
+
+    // Read the next section header; false at the end of the input
+    bool next_section(uint32_t& tag, Reader& body) {
+        if (remaining() == 0 || failed_) return false;
+        tag = get<uint32_t>();
+        uint64_t length = get<uint64_t>();
+        if (failed_ || length > remaining()) {
+            failed_ = true;
+            return false;
+        }
+        size_t n = static_cast<size_t>(length);
+        body = Reader(p_, n);
+        p_ += n;
+        return true;
+    }
+
+    size_t remaining() const { return static_cast<size_t>(end_ - p_); }
+    bool failed() const { return failed_; }
+    void fail() { failed_ = true; }
+
+private:
+    const uint8_t* p_;
+    const uint8_t* end_;
+    bool failed_ = false;
+};
+
+} // namespace serial
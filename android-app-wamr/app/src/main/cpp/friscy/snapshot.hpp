@@ -0,0 +1,692 @@
+// snapshot.hpp - Machine snapshot files
+//
+// A snapshot holds the CPU registers and the guest memory arena. Version 1
+// files are the registers followed by the whole flat arena, hundreds of MB
+// of mostly zeros. Version 2 stores only non-zero pages, each compressed
+// with LZ4 unless that does not make it smaller, and a table saying where
+// each page is. A version 2 snapshot can also be a delta: pages whose hash
+// matches the same page of a base snapshot are not stored again but read
+// from the base on restore. Version 3 adds the runtime state outside the
+// arena (filesystem, fds, threads; see machine_state.hpp) as an opaque
+// section, so that restoring resumes the machine rather than just its
+// memory.
+//
+// Version 2 and 3 layout (little endian):
+//   Header (80 bytes in version 2, 96 in version 3)
+//   registers[regs_size]
+//   base snapshot file name[base_name_len]  (deltas only; same directory)
+//   page data
+//   PageEntry[page_count], sorted by page index, at table_offset
+//   state[state_size] at state_offset (version 3): a sequence of chunks of
+//     at most 64 KiB, each u32 size, u32 stored size, then the chunk,
+//     LZ4-compressed if the stored size is smaller
+// Pages not in the table are zero.
+//
+// Saving is split in two so the guest only has to stop for the first
+// part: capture() copies the registers and the non-zero pages out of the
+// paused machine, and save() hashes, compresses and writes the copy.
+//
+// Snapshots saved without compression keep every stored page at a
+// page-aligned file offset. Restoring one maps the pages into the arena
+// with MAP_PRIVATE instead of reading them, so restore time does not grow
+// with memory size and pages the guest never touches again are never read.
+
+#pragma once
+
+#include <cstdint>
+#include <cstdio>
+#include <cstring>
+#include <string>
+#include <vector>
+#include <memory>
+#include <algorithm>
+
+#include <fcntl.h>
+#include <unistd.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+
+#include "lz4.hpp"
+
+namespace snapshot {
+
+inline constexpr uint64_t MAGIC = 0x4653524953435946ULL;  // "FYSCRISF"
+inline constexpr uint32_t VERSION_FLAT = 1;
+inline constexpr uint32_t VERSION_PAGES = 2;
+inline constexpr uint32_t VERSION = 3;
+inline constexpr uint32_t PAGE_SIZE = 4096;
+
+inline constexpr uint32_t FLAG_DELTA = 1;
+
+struct Header {
+    // Shared with version 1
+    uint64_t magic;
+    uint32_t version;
+    uint32_t regs_size;
+    uint64_t arena_size;
+    uint64_t instruction_counter;
+    // Version 2
+    uint32_t page_size;
+    uint32_t flags;
+    uint64_t page_count;
+    uint64_t table_offset;
+    uint64_t content_hash;  // Identifies this snapshot's memory, see save()
+    uint64_t base_hash;     // content_hash of the base (deltas only)
+    uint32_t base_name_len;
+    uint32_t reserved;
+    // Version 3
+    uint64_t state_offset;
+    uint64_t state_size;
+};
+static_assert(sizeof(Header) == 96);
+
+inline constexpr size_t FLAT_HEADER_SIZE = 32;   // Version 1 header
+inline constexpr size_t PAGES_HEADER_SIZE = 80;  // Version 2 header
+inline constexpr size_t STATE_CHUNK = 64 * 1024;
+
+// Size of the header of a version 2 or later snapshot
+inline constexpr size_t header_size(uint32_t version) {
+    return version == VERSION_PAGES ? PAGES_HEADER_SIZE : sizeof(Header);
+}
+
+enum class PageKind : uint32_t {
+    Raw  = 0,  // Stored as is
+    Lz4  = 1,  // Stored as an LZ4 block
+    Base = 2,  // Same as in the base snapshot; length and offset unused
+};
+
+struct PageEntry {
+    uint32_t index;
+    PageKind kind;
+    uint32_t length;
+    uint32_t reserved;
+    uint64_t offset;
+    uint64_t hash;
+};
+static_assert(sizeof(PageEntry) == 32);
+
+struct SaveStats {
+    uint64_t pages_stored = 0;     // Written to this file
+    uint64_t pages_from_base = 0;  // Left to the base snapshot
+    uint64_t bytes_written = 0;
+};
+
+struct RestoreStats {
+    uint64_t pages_mapped = 0;  // Mapped from a snapshot file, read on first access
+    uint64_t pages_read = 0;    // Read or decompressed up front
+};
+
+inline bool is_zero(const uint8_t* p, size_t n) {
+    uint64_t acc = 0;
+    size_t i = 0;
+    for (; i + 32 <= n; i += 32) {
+        uint64_t w[4];
+        memcpy(w, p + i, 32);
+        acc |= w[0] | w[1] | w[2] | w[3];
+        if (acc) return false;
+    }
+    for (; i < n; i++) acc |= p[i];
+    return acc == 0;
+}
+
+// 64-bit hash of a page, for finding pages unchanged since the base
+inline uint64_t hash_page(const uint8_t* p, size_t n) {
+    constexpr uint64_t K = 0xbf58476d1ce4e5b9ULL;
+    uint64_t h[4] = {0x9e3779b97f4a7c15ULL, 0x94d049bb133111ebULL, n, ~n};
+    size_t i = 0;
+    for (; i + 32 <= n; i += 32) {
+        for (int lane = 0; lane < 4; lane++) {
+            uint64_t w;
+            memcpy(&w, p + i + lane * 8, 8);
+            h[lane] = (h[lane] ^ w) * K;
+            h[lane] ^= h[lane] >> 31;
+        }
+    }
+    for (; i < n; i++) h[0] = (h[0] ^ p[i]) * K;
+    uint64_t r = h[0] ^ (h[1] * 3) ^ (h[2] * 5) ^ (h[3] * 7);
+    r ^= r >> 33;
+    r *= 0xff51afd7ed558ccdULL;
+    r ^= r >> 33;
+    return r;
+}
+
+// Header, base name and page table of a version 2 or later snapshot
+struct PageTable {
+    Header header{};
+    std::string base_name;
+    std::vector<PageEntry> pages;
+};
+
+namespace detail {
+
+inline bool pread_all(int fd, void* buf, size_t n, uint64_t offset) {
+    auto* p = static_cast<uint8_t*>(buf);
+    while (n > 0) {
+        ssize_t r = ::pread(fd, p, n, static_cast<off_t>(offset));
+        if (r <= 0) return false;
+        p += r;
+        n -= static_cast<size_t>(r);
+        offset += static_cast<uint64_t>(r);
+    }
+    return true;
+}
+
+struct Fd {
+    int fd = -1;
+    explicit Fd(const std::string& path) : fd(::open(path.c_str(), O_RDONLY | O_CLOEXEC)) {}
+    ~Fd() { if (fd >= 0) ::close(fd); }
+    Fd(const Fd&) = delete;
+    Fd& operator=(const Fd&) = delete;
+};
+
+inline std::string directory_of(const std::string& path) {
+    size_t slash = path.rfind('/');
+    return slash == std::string::npos ? "." : path.substr(0, slash);
+}
+
+inline std::string file_name_of(const std::string& path) {
+    size_t slash = path.rfind('/');
+    return slash == std::string::npos ? path : path.substr(slash + 1);
+}
+
+} // namespace detail
+
+// Read the header of any version and, from version 2, the page table
+inline bool read_table(int fd, PageTable& out, std::string& error) {
+    Header& h = out.header;
+    h = {};
+    if (!detail::pread_all(fd, &h, FLAT_HEADER_SIZE, 0) || h.magic != MAGIC) {
+        error = "not a snapshot";
+        return false;
+    }
+    if (h.version == VERSION_FLAT) return true;
+    if (h.version != VERSION_PAGES && h.version != VERSION) {
+        error = "unsupported snapshot version " + std::to_string(h.version);
+        return false;
+    }
+    if (!detail::pread_all(fd, &h, header_size(h.version), 0) || h.page_size != PAGE_SIZE ||
+        h.base_name_len > 4096 || h.page_count > h.arena_size / PAGE_SIZE + 1) {
+        error = "corrupt snapshot header";
+        return false;
+    }
+    out.base_name.resize(h.base_name_len);
+    out.pages.resize(h.page_count);
+    if (!detail::pread_all(fd, out.base_name.data(), h.base_name_len,
+                           header_size(h.version) + h.regs_size) ||
+        !detail::pread_all(fd, out.pages.data(), h.page_count * sizeof(PageEntry),
+                           h.table_offset)) {
+        error = "truncated snapshot";
+        return false;
+    }
+    for (size_t i = 0; i < out.pages.size(); i++) {
+        const auto& e = out.pages[i];
+        if ((i > 0 && e.index <= out.pages[i - 1].index) ||
+            uint64_t(e.index) * PAGE_SIZE >= h.arena_size) {
+            error = "corrupt page table";
+            return false;
+        }
+    }
+    return true;
+}
+
+// Machine state copied out of a paused guest, to be written by save()
+struct Capture {
+    std::vector<uint8_t> registers;
+    uint64_t arena_size = 0;
+    uint64_t instruction_counter = 0;
+    std::vector<uint32_t> pages;  // Indices of the non-zero pages, ascending
+    std::vector<uint8_t> data;    // Their contents, PAGE_SIZE bytes each
+    std::vector<uint8_t> state;   // Runtime state outside the arena
+
+    const uint8_t* page(size_t i) const { return data.data() + i * PAGE_SIZE; }
+};
+
+namespace detail {
+
+// Pages of the arena that may be non-zero: those resident or swapped out
+// according to /proc/self/pagemap. Anonymous pages the guest never touched
+// are neither, so this skips reading them. Returns false if the pagemap
+// cannot be used.
+inline bool touched_pages(const uint8_t* arena, uint64_t page_count, std::vector<uint32_t>& out) {
+    if (reinterpret_cast<uintptr_t>(arena) % PAGE_SIZE != 0 || sysconf(_SC_PAGESIZE) != PAGE_SIZE) {
+        return false;
+    }
+    Fd pagemap("/proc/self/pagemap");
+    if (pagemap.fd < 0) return false;
+
+    constexpr uint64_t PRESENT = 1ULL << 63;
+    constexpr uint64_t SWAPPED = 1ULL << 62;
+    uint64_t first = reinterpret_cast<uintptr_t>(arena) / PAGE_SIZE;
+    std::vector<uint64_t> entries(std::min<uint64_t>(page_count, 64 * 1024));
+    for (uint64_t done = 0; done < page_count; ) {
+        size_t n = static_cast<size_t>(std::min<uint64_t>(entries.size(), page_count - done));
+        if (!pread_all(pagemap.fd, entries.data(), n * sizeof(uint64_t),
+                       (first + done) * sizeof(uint64_t))) {
+            return false;
+        }
+        for (size_t i = 0; i < n; i++) {
+            if (entries[i] & (PRESENT | SWAPPED)) out.push_back(static_cast<uint32_t>(done + i));
+        }
+        done += n;
+    }
+    return true;
+}
+
+} // namespace detail
+
+// Copy the registers and the non-zero pages of arena. With only_touched,
+// pages the pagemap shows were never touched are skipped without reading
+// them; that is only valid while the whole arena is anonymous memory, not
+// after pages were mapped from a file by restore().
+inline std::unique_ptr<Capture> capture(const void* regs, uint32_t regs_size,
+                                        const uint8_t* arena, uint64_t arena_size,
+                                        uint64_t instruction_counter, bool only_touched) {
+    auto c = std::make_unique<Capture>();
+    c->registers.assign(static_cast<const uint8_t*>(regs),
+                        static_cast<const uint8_t*>(regs) + regs_size);
+    c->arena_size = arena_size;
+    c->instruction_counter = instruction_counter;
+
+    uint64_t page_count = (arena_size + PAGE_SIZE - 1) / PAGE_SIZE;
+    std::vector<uint32_t> candidates;
+    if (!only_touched || !detail::touched_pages(arena, page_count, candidates)) {
+        candidates.clear();
+        candidates.reserve(page_count);
+        for (uint64_t i = 0; i < page_count; i++) candidates.push_back(static_cast<uint32_t>(i));
+    }
+
+    for (uint32_t index : candidates) {
+        size_t n = static_cast<size_t>(std::min<uint64_t>(PAGE_SIZE, arena_size - uint64_t(index) * PAGE_SIZE));
+        if (!is_zero(arena + uint64_t(index) * PAGE_SIZE, n)) c->pages.push_back(index);
+    }
+    c->data.resize(c->pages.size() * PAGE_SIZE);
+    for (size_t i = 0; i < c->pages.size(); i++) {
+        uint64_t offset = uint64_t(c->pages[i]) * PAGE_SIZE;
+        size_t n = static_cast<size_t>(std::min<uint64_t>(PAGE_SIZE, arena_size - offset));
+        memcpy(c->data.data() + i * PAGE_SIZE, arena + offset, n);
+    }
+    return c;
+}
+
+// Write a capture to path. With base_path, pages equal to the same page of
+// that snapshot are only referenced. Without compress, pages are stored raw
+// at page-aligned offsets so that restore can map them. The file is written
+// next to path and renamed into place when complete.
+inline bool save(const std::string& path, const Capture& capture,
+                 const std::string& base_path, bool compress,
+                 SaveStats& stats, std::string& error) {
+    const uint64_t arena_size = capture.arena_size;
+    const uint32_t regs_size = static_cast<uint32_t>(capture.registers.size());
+    PageTable base;
+    if (!base_path.empty()) {
+        detail::Fd base_fd(base_path);
+        if (base_fd.fd < 0 || !read_table(base_fd.fd, base, error)) {
+            error = "cannot use base snapshot: " + (error.empty() ? "cannot open" : error);
+            return false;
+        }
+        if (base.header.version == VERSION_FLAT || (base.header.flags & FLAG_DELTA) ||
+            base.header.arena_size != arena_size) {
+            error = "base snapshot is not a full snapshot of this machine";
+            return false;
+        }
+    }
+
+    std::string tmp_path = path + ".tmp";
+    FILE* fp = fopen(tmp_path.c_str(), "wb");
+    if (!fp) {
+        error = "cannot open " + tmp_path;
+        return false;
+    }
+
+    Header h{};
+    h.magic = MAGIC;
+    h.version = VERSION;
+    h.regs_size = regs_size;
+    h.arena_size = arena_size;
+    h.instruction_counter = capture.instruction_counter;
+    h.page_size = PAGE_SIZE;
+    std::string base_name;
+    if (!base_path.empty()) {
+        h.flags |= FLAG_DELTA;
+        h.base_hash = base.header.content_hash;
+        base_name = detail::file_name_of(base_path);
+        h.base_name_len = static_cast<uint32_t>(base_name.size());
+    }
+
+    bool ok = fwrite(&h, sizeof(h), 1, fp) == 1 &&
+              fwrite(capture.registers.data(), 1, regs_size, fp) == regs_size &&
+              fwrite(base_name.data(), 1, base_name.size(), fp) == base_name.size();
+    uint64_t offset = sizeof(h) + regs_size + base_name.size();
+
+    std::vector<PageEntry> pages;
+    std::vector<uint8_t> packed(lz4::compress_bound(PAGE_SIZE));
+    static const uint8_t padding[PAGE_SIZE] = {};
+    uint64_t content_hash = 0xcbf29ce484222325ULL;
+    size_t base_pos = 0;
+    for (size_t i = 0; ok && i < capture.pages.size(); i++) {
+        uint64_t index = capture.pages[i];
+        const uint8_t* page = capture.page(i);
+        size_t n = static_cast<size_t>(std::min<uint64_t>(PAGE_SIZE, arena_size - index * PAGE_SIZE));
+
+        PageEntry e{};
+        e.index = static_cast<uint32_t>(index);
+        e.hash = hash_page(page, n);
+        content_hash = (content_hash ^ e.hash ^ index) * 0x100000001b3ULL;
+
+        while (base_pos < base.pages.size() && base.pages[base_pos].index < index) base_pos++;
+        if (base_pos < base.pages.size() && base.pages[base_pos].index == index &&
+            base.pages[base_pos].hash == e.hash) {
+            e.kind = PageKind::Base;
+            stats.pages_from_base++;
+            pages.push_back(e);
+            continue;
+        }
+
+        const uint8_t* data = page;
+        e.kind = PageKind::Raw;
+        e.length = static_cast<uint32_t>(n);
+        if (compress) {
+            size_t packed_size = lz4::compress(page, n, packed.data());
+            if (packed_size < n) {
+                data = packed.data();
+                e.kind = PageKind::Lz4;
+                e.length = static_cast<uint32_t>(packed_size);
+            }
+        } else if (size_t pad = (PAGE_SIZE - offset % PAGE_SIZE) % PAGE_SIZE; pad > 0) {
+            ok = fwrite(padding, 1, pad, fp) == pad;
+            offset += pad;
+        }
+        e.offset = offset;
+        ok = ok && fwrite(data, 1, e.length, fp) == e.length;
+        offset += e.length;
+        stats.pages_stored++;
+        pages.push_back(e);
+    }
+
+    h.page_count = pages.size();
+    h.table_offset = offset;
+    h.content_hash = content_hash;
+    ok = ok && fwrite(pages.data(), sizeof(PageEntry), pages.size(), fp) == pages.size();
+    offset += pages.size() * sizeof(PageEntry);
+
+    h.state_offset = offset;
+    std::vector<uint8_t> packed_chunk(lz4::compress_bound(STATE_CHUNK));
+    for (size_t pos = 0; ok && pos < capture.state.size(); pos += STATE_CHUNK) {
+        const uint8_t* chunk = capture.state.data() + pos;
+        uint32_t sizes[2];
+        sizes[0] = static_cast<uint32_t>(std::min(STATE_CHUNK, capture.state.size() - pos));
+        sizes[1] = sizes[0];
+        if (compress) {
+            size_t packed_size = lz4::compress(chunk, sizes[0], packed_chunk.data());
+            if (packed_size < sizes[0]) {
+                chunk = packed_chunk.data();
+                sizes[1] = static_cast<uint32_t>(packed_size);
+            }
+        }
+        ok = fwrite(sizes, sizeof(sizes), 1, fp) == 1 && fwrite(chunk, 1, sizes[1], fp) == sizes[1];
+        offset += sizeof(sizes) + sizes[1];
+    }
+    h.state_size = offset - h.state_offset;
+
+    ok = ok && fseek(fp, 0, SEEK_SET) == 0 && fwrite(&h, sizeof(h), 1, fp) == 1;
+    ok = (fclose(fp) == 0) && ok;
+    if (!ok || ::rename(tmp_path.c_str(), path.c_str()) != 0) {
+        ::unlink(tmp_path.c_str());
+        error = "cannot write " + path;
+        return false;
+    }
+    stats.bytes_written = offset;
+    return true;
+}
+
+// Read the runtime state section of a snapshot into state. Snapshots
+// before version 3 have none, which leaves state empty.
+inline bool read_state(const std::string& path, std::vector<uint8_t>& state, std::string& error) {
+    detail::Fd fd(path);
+    PageTable table;
+    if (fd.fd < 0) {
+        error = "cannot open " + path;
+        return false;
+    }
+    if (!read_table(fd.fd, table, error)) return false;
+    state.clear();
+    const Header& h = table.header;
+    if (h.version < VERSION) return true;
+
+    struct stat st;
+    if (fstat(fd.fd, &st) != 0 || h.state_offset > uint64_t(st.st_size) ||
+        h.state_size > uint64_t(st.st_size) - h.state_offset) {
+        error = "truncated snapshot";
+        return false;
+    }
+    std::vector<uint8_t> stored(h.state_size);
+    if (!detail::pread_all(fd.fd, stored.data(), stored.size(), h.state_offset)) {
+        error = "truncated snapshot";
+        return false;
+    }
+    for (size_t pos = 0; pos < stored.size(); ) {
+        uint32_t sizes[2];
+        if (stored.size() - pos < sizeof(sizes)) {
+            error = "corrupt snapshot state";
+            return false;
+        }
+        memcpy(sizes, stored.data() + pos, sizeof(sizes));
+        pos += sizeof(sizes);
+        if (sizes[0] == 0 || sizes[0] > STATE_CHUNK || sizes[1] > sizes[0] ||
+            sizes[1] > stored.size() - pos) {
+            error = "corrupt snapshot state";
+            return false;
+        }
+        size_t at = state.size();
+        state.resize(at + sizes[0]);
+        if (sizes[1] == sizes[0]) {
+            memcpy(state.data() + at, stored.data() + pos, sizes[0]);
+        } else if (!lz4::decompress(stored.data() + pos, sizes[1], state.data() + at, sizes[0])) {
+            error = "corrupt snapshot state";
+            return false;
+        }
+        pos += sizes[1];
+    }
+    return true;
+}
+
+namespace detail {
+
+inline uint64_t file_size(int fd) {
+    struct stat st;
+    return fstat(fd, &st) == 0 ? static_cast<uint64_t>(st.st_size) : 0;
+}
+
+// A stored page to restore: its entry, after following a delta to the
+// base, and the file it is in
+struct StoredPage {
+    uint64_t index;
+    const PageEntry* entry;
+    int fd;
+    size_t staged;  // Offset of its decompressed data in the staging buffer, for LZ4 pages
+};
+
+} // namespace detail
+
+// Restore registers and arena from a snapshot of any version. The arena
+// and register sizes must match the machine the snapshot was taken of.
+//
+// Everything that can be checked is checked before the machine changes:
+// the page table, the base, that every page lies within its file, and the
+// decompression of LZ4 pages, which are staged for the second pass. So a
+// corrupt or mismatched snapshot returns false with registers and arena
+// untouched. Only a read or mmap that fails after that leaves the machine
+// partly restored; damaged is then set, and the machine must not run.
+//
+// With map, the arena is replaced by fresh zero pages, and every raw
+// page-aligned page (of this snapshot or its base) is mapped copy-on-write
+// from its file, in runs of consecutive pages. This needs a page-aligned
+// arena and 4 KiB host pages; otherwise, and for other pages, the data is
+// read into the arena.
+inline bool restore(const std::string& path, void* regs, uint32_t regs_size,
+                    uint8_t* arena, uint64_t arena_size, bool map,
+                    RestoreStats& stats, bool& damaged, std::string& error) {
+    damaged = false;
+    detail::Fd fd(path);
+    PageTable table;
+    if (fd.fd < 0) {
+        error = "cannot open " + path;
+        return false;
+    }
+    if (!read_table(fd.fd, table, error)) return false;
+    const Header& h = table.header;
+    if (h.regs_size != regs_size || h.arena_size != arena_size) {
+        error = "snapshot is of a different machine (registers " + std::to_string(h.regs_size) +
+                ", arena " + std::to_string(h.arena_size) + ")";
+        return false;
+    }
+
+    std::vector<uint8_t> saved_regs(regs_size);
+    uint64_t size = detail::file_size(fd.fd);
+
+    if (h.version == VERSION_FLAT) {
+        if (size < FLAT_HEADER_SIZE + regs_size + arena_size ||
+            !detail::pread_all(fd.fd, saved_regs.data(), regs_size, FLAT_HEADER_SIZE)) {
+            error = "truncated snapshot";
+            return false;
+        }
+        if (!detail::pread_all(fd.fd, arena, arena_size, FLAT_HEADER_SIZE + regs_size)) {
+            error = "cannot read snapshot memory";
+            damaged = true;
+            return false;
+        }
+        memcpy(regs, saved_regs.data(), regs_size);
+        stats.pages_read = (arena_size + PAGE_SIZE - 1) / PAGE_SIZE;
+        return true;
+    }
+
+    PageTable base;
+    std::unique_ptr<detail::Fd> base_fd;
+    uint64_t base_size = 0;
+    if (h.flags & FLAG_DELTA) {
+        std::string base_path = detail::directory_of(path) + "/" + table.base_name;
+        base_fd = std::make_unique<detail::Fd>(base_path);
+        if (base_fd->fd < 0 || !read_table(base_fd->fd, base, error) ||
+            base.header.content_hash != h.base_hash) {
+            error = "base snapshot " + table.base_name + " is missing or has changed";
+            return false;
+        }
+        base_size = detail::file_size(base_fd->fd);
+    }
+
+    if (!detail::pread_all(fd.fd, saved_regs.data(), regs_size, header_size(h.version))) {
+        error = "truncated snapshot";
+        return false;
+    }
+
+    // First pass: find and check the data of every stored page, and
+    // decompress LZ4 pages into staged
+    std::vector<detail::StoredPage> stored;
+    stored.reserve(table.pages.size());
+    std::vector<uint8_t> staged;
+    std::vector<uint8_t> packed(lz4::compress_bound(PAGE_SIZE));
+    size_t base_pos = 0;
+    for (const auto& entry : table.pages) {
+        uint64_t index = entry.index;
+        size_t n = static_cast<size_t>(std::min<uint64_t>(PAGE_SIZE, arena_size - index * PAGE_SIZE));
+        const PageEntry* e = &entry;
+        int source = fd.fd;
+        uint64_t source_size = size;
+        if (e->kind == PageKind::Base) {
+            while (base_pos < base.pages.size() && base.pages[base_pos].index < index) base_pos++;
+            if (!base_fd || base_pos == base.pages.size() || base.pages[base_pos].index != index) {
+                error = "page " + std::to_string(index) + " is missing from the base snapshot";
+                return false;
+            }
+            e = &base.pages[base_pos];
+            source = base_fd->fd;
+            source_size = base_size;
+        }
+
+        bool valid = e->offset <= source_size && e->length <= source_size - e->offset &&
+                     ((e->kind == PageKind::Raw && e->length == n) ||
+                      (e->kind == PageKind::Lz4 && e->length <= packed.size()));
+        size_t at = SIZE_MAX;
+        if (valid && e->kind == PageKind::Lz4) {
+            at = staged.size();
+            staged.resize(at + n);
+            valid = detail::pread_all(source, packed.data(), e->length, e->offset) &&
+                    lz4::decompress(packed.data(), e->length, staged.data() + at, n);
+        }
+        if (!valid) {
+            error = "corrupt page " + std::to_string(index);
+            return false;
+        }
+        stored.push_back({index, e, source, at});
+    }
+
+    // Second pass: change the machine
+    memcpy(regs, saved_regs.data(), regs_size);
+
+    map = map && reinterpret_cast<uintptr_t>(arena) % PAGE_SIZE == 0 &&
+          sysconf(_SC_PAGESIZE) == PAGE_SIZE &&
+          mmap(arena, arena_size, PROT_READ | PROT_WRITE,
+               MAP_PRIVATE | MAP_ANONYMOUS | MAP_FIXED | MAP_NORESERVE, -1, 0) != MAP_FAILED;
+
+    uint64_t page_count = (arena_size + PAGE_SIZE - 1) / PAGE_SIZE;
+    size_t pos = 0;
+
+    // Pending run of pages to map: [run_index, run_index + run_pages) from
+    // run_fd at run_offset
+    int run_fd = -1;
+    uint64_t run_index = 0, run_pages = 0, run_offset = 0;
+    auto map_run = [&]() {
+        if (run_pages == 0) return true;
+        void* at = arena + run_index * PAGE_SIZE;
+        bool mapped = mmap(at, run_pages * PAGE_SIZE, PROT_READ | PROT_WRITE,
+                           MAP_PRIVATE | MAP_FIXED, run_fd, static_cast<off_t>(run_offset)) == at;
+        stats.pages_mapped += run_pages;
+        run_pages = 0;
+        return mapped;
+    };
+    auto fail = [&](const std::string& message) {
+        error = message;
+        damaged = true;
+        return false;
+    };
+
+    for (uint64_t index = 0; index < page_count; index++) {
+        uint8_t* page = arena + index * PAGE_SIZE;
+        size_t n = static_cast<size_t>(std::min<uint64_t>(PAGE_SIZE, arena_size - index * PAGE_SIZE));
+        if (pos == stored.size() || stored[pos].index != index) {
+            // Already zero when mapping
+            if (!map && !is_zero(page, n)) memset(page, 0, n);
+            continue;
+        }
+
+        const auto& s = stored[pos++];
+        const PageEntry* e = s.entry;
+        if (e->kind == PageKind::Lz4) {
+            memcpy(page, staged.data() + s.staged, n);
+            stats.pages_read++;
+            continue;
+        }
+
+        if (map && e->length == PAGE_SIZE && e->offset % PAGE_SIZE == 0) {
+            bool extends = run_pages > 0 && run_fd == s.fd && run_index + run_pages == index &&
+                           run_offset + run_pages * PAGE_SIZE == e->offset;
+            if (!extends) {
+                if (!map_run()) return fail("cannot map snapshot pages");
+                run_fd = s.fd;
+                run_index = index;
+                run_offset = e->offset;
+            }
+            run_pages++;
+            continue;
+        }
+
+        if (!detail::pread_all(s.fd, page, n, e->offset)) {
+            return fail("cannot read page " + std::to_string(index));
+        }
+        stats.pages_read++;
+    }
+    if (!map_run()) return fail("cannot map snapshot pages");
+    return true;
+}
+
+} // namespace snapshot
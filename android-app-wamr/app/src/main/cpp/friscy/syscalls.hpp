@@ -14,10 +14,16 @@
 #include <iostream>
 #include <set>
 #include <unordered_map>
-#include <unistd.h>  // usleep
+#include <atomic>
+#include <deque>
+#include <type_traits>
+#include <utility>
+#include <unistd.h>
+#include <chrono>
 #include <sys/socket.h>
 #include <poll.h>
 #include "android_io.hpp"
+#include "reactor.hpp"
 
 namespace syscalls {
 
@@ -31,6 +37,10 @@ inline int  (*net_get_native_fd)(int fd) = nullptr;  // returns native fd or -1
 // Execve restart flag — set by sys_execve handler, checked by execution loop
 inline bool g_execve_restart = false;
 
+// Set when the guest exits, so the execution loop can tell an exit apart
+// from the other reasons the machine stops (stdin waits, snapshot captures)
+inline bool g_guest_exited = false;
+
 // Cooperative fork state — single-process vfork emulation.
 // On clone(): save parent registers, return 0 (child runs).
 // On exit_group() in child: restore parent registers, return child PID.
@@ -107,119 +117,360 @@ struct TermiosState {
 inline TermiosState g_termios;
 inline std::set<int> g_tty_fds = {0, 1, 2};
 
-// Cooperative thread scheduler for CLONE_THREAD.
+// Thread scheduler for CLONE_THREAD. All guest threads run on the
+// execution thread, one at a time, in round-robin order. A thread runs
+// until it blocks (futex wait, or a guest wait, see block_guest) or for
+// THREAD_QUANTUM instructions: while there is more than one thread, the
+// execution loop passes the rest of the quantum to simulate() as its
+// instruction limit and switches to the next thread when it runs out.
+//
+// The running thread's registers live in the CPU; the others' are saved in
+// their VThread, with pc the address its ecall or quantum ended at minus 4
+// (so that the +4 libriscv adds when a syscall changes the pc resumes it).
+// Slot 0 is the main thread. Slots of exited threads are reused, and the
+// table grows as needed.
+using GuestRegisters = std::remove_reference_t<decltype(std::declval<Machine&>().cpu.registers())>;
+
+// A guest call that has nothing to return yet: a read of empty stdin, or a
+// ppoll, epoll_pwait or nanosleep that has to wait. The handler records in
+// the thread's GuestWait what would end the wait, rewinds to its ecall and
+// marks the thread blocked (see block_guest). Other threads run meanwhile,
+// and blocked ones try again each time a quantum ends. When no thread can
+// run, the execution loop (friscy_runtime.cpp) parks until a source any
+// blocked thread waits for may be ready or the earliest deadline passes.
+// Each retry keeps the deadline of the first attempt, so wakeups that find
+// nothing ready do not restart the timeout.
+struct GuestWait {
+    bool retry = false;        // The next attempt of the call below keeps its deadline
+    uint64_t pc = 0;           // Its ecall
+    uint64_t nr = 0;           // and syscall number
+    int64_t deadline_ns = -1;  // steady_clock time, -1 for none
+    bool input = false;        // Waits for stdin
+    int host_fd = -1;          // Host epoll fd with the sockets it waits for, or -1
+};
+
 struct VThread {
-    uint64_t regs[32];
-    uint64_t pc;
-    int tid;
-    bool active;
-    bool waiting;
-    uint64_t futex_addr;
-    int32_t futex_val;
-    uint64_t clear_child_tid;
-    uint64_t syscall_budget;
+    GuestRegisters regs{};          // Integer and FP registers
+    uint64_t pc = 0;
+    int tid = 0;
+    bool active = false;
+    bool waiting = false;           // In a futex wait
+    bool blocked = false;           // In a guest wait, until the execution loop parks
+    uint64_t futex_addr = 0;
+    int64_t futex_deadline_ns = -1; // steady_clock time, -1 for none
+    uint64_t clear_child_tid = 0;
+    GuestWait wait;
 };
-constexpr int MAX_VTHREADS = 8;
-constexpr uint64_t THREAD_QUANTUM = 50000;
+
+inline constexpr uint64_t THREAD_QUANTUM = 50000;
+inline constexpr size_t MAX_VTHREADS = 4096;  // Beyond this, clone fails with EAGAIN
+
 struct ThreadScheduler {
-    VThread threads[MAX_VTHREADS];
+    std::vector<VThread> threads = std::vector<VThread>(1, VThread{{}, 0, 1, true});
     int current = 0;
-    int count = 0;
+    int count = 1;
+    bool idle = false;                // No thread can run; the execution loop parks
+    // Futex waiters by address, in the order they started waiting
+    std::unordered_map<uint64_t, std::deque<int>> futex_queues;
+    int64_t next_timeout_ns = -1;     // Earliest futex deadline, -1 for none
 
-    void init(int main_tid) {
-        threads[0].tid = main_tid;
-        threads[0].active = true;
-        threads[0].waiting = false;
-        current = 0;
-        count = 1;
+    bool runnable(int i) const {
+        const auto& t = threads[i];
+        return t.active && !t.waiting && !t.blocked;
     }
 
+    // A free slot for thread tid, or -1 if there are MAX_VTHREADS
     int add_thread(int tid) {
-        for (int i = 0; i < MAX_VTHREADS; i++) {
-            if (!threads[i].active) {
-                threads[i].tid = tid;
-                threads[i].active = true;
-                threads[i].waiting = false;
-                threads[i].clear_child_tid = 0;
-                threads[i].syscall_budget = THREAD_QUANTUM;
-                count++;
-                return i;
-            }
+        size_t i = 0;
+        while (i < threads.size() && threads[i].active) i++;
+        if (i == MAX_VTHREADS) return -1;
+        if (i == threads.size()) threads.emplace_back();
+        threads[i] = VThread{};
+        threads[i].tid = tid;
+        threads[i].active = true;
+        count++;
+        return static_cast<int>(i);
+    }
+
+    // The next runnable thread after from, round robin, or -1
+    int next_runnable(int from) const {
+        int n = static_cast<int>(threads.size());
+        for (int k = 1; k < n; k++) {
+            int i = (from + k) % n;
+            if (runnable(i)) return i;
         }
         return -1;
     }
 
-    int next_runnable(int skip = -1) {
-        for (int i = 0; i < MAX_VTHREADS; i++) {
-            if (i != skip && threads[i].active && !threads[i].waiting) {
-                return i;
-            }
+    void wait(int i, uint64_t addr, int64_t deadline_ns) {
+        auto& t = threads[i];
+        t.waiting = true;
+        t.futex_addr = addr;
+        t.futex_deadline_ns = deadline_ns;
+        futex_queues[addr].push_back(i);
+        if (deadline_ns >= 0 && (next_timeout_ns < 0 || deadline_ns < next_timeout_ns)) {
+            next_timeout_ns = deadline_ns;
         }
-        return -1;
     }
 
+    // Wake up to max_wake waiters on addr, first come first served
     int wake(uint64_t addr, int max_wake) {
+        auto it = futex_queues.find(addr);
+        if (it == futex_queues.end()) return 0;
         int woken = 0;
-        for (int i = 0; i < MAX_VTHREADS && woken < max_wake; i++) {
-            if (threads[i].active && threads[i].waiting && threads[i].futex_addr == addr) {
-                threads[i].waiting = false;
-                woken++;
-            }
+        auto& queue = it->second;
+        while (!queue.empty() && woken < max_wake) {
+            threads[queue.front()].waiting = false;
+            queue.pop_front();
+            woken++;
         }
+        if (queue.empty()) futex_queues.erase(it);
         return woken;
     }
 
-    void remove_thread(int tid) {
-        for (int i = 0; i < MAX_VTHREADS; i++) {
-            if (threads[i].active && threads[i].tid == tid) {
-                threads[i].active = false;
-                threads[i].waiting = false;
-                count--;
-                return;
+    // Move up to max_move waiters on from to the end of the queue of to
+    int requeue(uint64_t from, uint64_t to, int max_move) {
+        auto it = futex_queues.find(from);
+        if (it == futex_queues.end() || from == to) return 0;
+        int moved = 0;
+        auto& queue = it->second;
+        while (!queue.empty() && moved < max_move) {
+            int i = queue.front();
+            queue.pop_front();
+            threads[i].futex_addr = to;
+            futex_queues[to].push_back(i);
+            moved++;
+        }
+        // By key: inserting to may have rehashed the map, which keeps
+        // references to its queues but not iterators
+        if (queue.empty()) futex_queues.erase(from);
+        return moved;
+    }
+
+    // End the wait of thread i without a wake
+    void cancel_wait(int i) {
+        auto& t = threads[i];
+        if (!t.waiting) return;
+        t.waiting = false;
+        auto it = futex_queues.find(t.futex_addr);
+        if (it == futex_queues.end()) return;
+        auto& queue = it->second;
+        for (auto q = queue.begin(); q != queue.end(); ++q) {
+            if (*q == i) {
+                queue.erase(q);
+                break;
             }
         }
+        if (queue.empty()) futex_queues.erase(it);
+    }
+
+    // Let every thread in a guest wait try its call again
+    void unblock_all() {
+        for (auto& t : threads) t.blocked = false;
+    }
+
+    void remove_thread(int i) {
+        cancel_wait(i);
+        threads[i].active = false;
+        threads[i].blocked = false;
+        count--;
     }
 };
 inline ThreadScheduler g_sched;
 
+// Scheduler counters since the machine was loaded, read by the JNI layer
+struct SchedulerStats {
+    std::atomic<uint64_t> switches{0};        // Thread switches
+    std::atomic<uint64_t> preemptions{0};     // of which at the end of a quantum
+    std::atomic<uint64_t> futex_waits{0};
+    std::atomic<uint64_t> futex_wakes{0};     // Waiters woken by FUTEX_WAKE or thread exit
+    std::atomic<uint64_t> futex_timeouts{0};
+    std::atomic<uint64_t> idle_parks{0};      // Times no thread could run
+    std::atomic<uint32_t> threads{1};
+    std::atomic<uint32_t> peak_threads{1};
+
+    void reset() {
+        for (auto* counter : {&switches, &preemptions, &futex_waits, &futex_wakes,
+                              &futex_timeouts, &idle_parks}) {
+            counter->store(0, std::memory_order_relaxed);
+        }
+        threads.store(1, std::memory_order_relaxed);
+        peak_threads.store(1, std::memory_order_relaxed);
+    }
+
+    void count(std::atomic<uint64_t>& counter, uint64_t n = 1) {
+        counter.fetch_add(n, std::memory_order_relaxed);
+    }
+};
+inline SchedulerStats g_sched_stats;
+
+inline int64_t steady_now_ns() {
+    return std::chrono::duration_cast<std::chrono::nanoseconds>(
+        std::chrono::steady_clock::now().time_since_epoch()).count();
+}
+
 inline void save_thread(Machine& m, VThread& t) {
-    for (int i = 0; i < 32; i++) t.regs[i] = m.cpu.reg(i);
+    t.regs = m.cpu.registers();
     t.pc = m.cpu.pc();
 }
 
 inline void restore_thread(Machine& m, VThread& t) {
-    for (int i = 0; i < 32; i++) m.cpu.reg(i) = t.regs[i];
+    m.cpu.registers() = t.regs;
     m.cpu.jump(t.pc);
 }
 
+// Give the running thread a full quantum from here, if there are others
+inline void start_quantum(Machine& m) {
+    if (g_sched.count > 1) m.set_max_instructions(m.instruction_counter() + THREAD_QUANTUM);
+}
+
+// Set the result of thread i's pending syscall
+inline void set_thread_result(Machine& m, int i, int64_t result) {
+    if (i == g_sched.current) {
+        m.set_result(result);
+    } else {
+        g_sched.threads[i].regs.get(riscv::REG_ARG0) = static_cast<uint64_t>(result);
+    }
+}
+
+// Make futex waiters whose deadline has passed runnable, with ETIMEDOUT
+inline void expire_futex_waits(Machine& m) {
+    if (g_sched.next_timeout_ns < 0 || steady_now_ns() < g_sched.next_timeout_ns) return;
+    int64_t now = steady_now_ns();
+    g_sched.next_timeout_ns = -1;
+    for (int i = 0; i < static_cast<int>(g_sched.threads.size()); i++) {
+        auto& t = g_sched.threads[i];
+        if (!t.active || !t.waiting || t.futex_deadline_ns < 0) continue;
+        if (t.futex_deadline_ns <= now) {
+            g_sched.cancel_wait(i);
+            set_thread_result(m, i, -110);  // -ETIMEDOUT
+            g_sched_stats.count(g_sched_stats.futex_timeouts);
+        } else if (g_sched.next_timeout_ns < 0 || t.futex_deadline_ns < g_sched.next_timeout_ns) {
+            g_sched.next_timeout_ns = t.futex_deadline_ns;
+        }
+    }
+}
+
+// Switch to thread target_idx from a syscall handler. The current thread
+// resumes after its ecall, unless the handler rewound it.
 inline bool switch_to_thread(Machine& m, int target_idx) {
     if (target_idx < 0 || target_idx == g_sched.current) return false;
     auto& cur = g_sched.threads[g_sched.current];
-    auto& tgt = g_sched.threads[target_idx];
-    save_thread(m, cur);
-    restore_thread(m, tgt);
+    if (cur.active) save_thread(m, cur);
+    restore_thread(m, g_sched.threads[target_idx]);
     g_sched.current = target_idx;
-    tgt.syscall_budget = THREAD_QUANTUM;
+    start_quantum(m);
+    g_sched_stats.count(g_sched_stats.switches);
     return true;
 }
 
-inline void maybe_preempt(Machine& m) {
-    if (g_sched.count <= 1) return;
-    auto& cur = g_sched.threads[g_sched.current];
-    if (cur.syscall_budget > 0) {
-        cur.syscall_budget--;
-        return;
-    }
+// From a syscall handler whose thread cannot go on: switch to the next
+// runnable thread, or stop the machine with the scheduler idle
+inline void reschedule(Machine& m) {
+    expire_futex_waits(m);
     int next = g_sched.next_runnable(g_sched.current);
     if (next >= 0) {
-        static int preempt_count = 0;
-        if (++preempt_count <= 20)
-            fprintf(stderr, "[preempt] t%d -> t%d (quantum exhausted)\n",
-                    g_sched.current, next);
         switch_to_thread(m, next);
+    } else if (g_sched.runnable(g_sched.current)) {
+        start_quantum(m);  // A futex wait of the current thread timed out
     } else {
-        cur.syscall_budget = THREAD_QUANTUM;
+        g_sched.idle = true;
+        m.stop();
+    }
+}
+
+// Switch to thread next between two simulate() calls, where the pc is the
+// next instruction to run rather than an ecall
+inline void switch_between_runs(Machine& m, int next) {
+    auto& cur = g_sched.threads[g_sched.current];
+    if (cur.active) {
+        save_thread(m, cur);
+        cur.pc -= 4;
+    }
+    auto& tgt = g_sched.threads[next];
+    restore_thread(m, tgt);
+    m.cpu.jump(tgt.pc + 4);
+    g_sched.current = next;
+    g_sched_stats.count(g_sched_stats.switches);
+}
+
+// Called by the execution loop when simulate() used up the quantum: give
+// blocked threads a retry and switch to the next runnable thread
+inline void preempt(Machine& m) {
+    g_sched.unblock_all();
+    expire_futex_waits(m);
+    int next = g_sched.next_runnable(g_sched.current);
+    if (next < 0) return;
+    switch_between_runs(m, next);
+    g_sched_stats.count(g_sched_stats.preemptions);
+}
+
+// Called by the execution loop while the scheduler is idle: resume a
+// runnable thread, after waking those that the park may have unblocked if
+// parked. Returns false if none can run yet.
+inline bool resume_idle(Machine& m, bool parked) {
+    if (parked) {
+        g_sched.unblock_all();
+    }
+    expire_futex_waits(m);
+    int next = g_sched.runnable(g_sched.current) ? g_sched.current
+                                                 : g_sched.next_runnable(g_sched.current);
+    if (next < 0) return false;
+    g_sched.idle = false;
+    if (next != g_sched.current) switch_between_runs(m, next);
+    return true;
+}
+
+// What the execution loop parks on while idle: any blocked thread's
+// sources, and the earliest deadline of a guest or futex wait
+struct IdleWait {
+    int64_t deadline_ns = -1;
+    bool input = false;
+    std::vector<int> host_fds;
+};
+
+inline IdleWait idle_wait() {
+    IdleWait idle;
+    idle.deadline_ns = g_sched.next_timeout_ns;
+    for (const auto& t : g_sched.threads) {
+        if (!t.active || !t.blocked) continue;
+        const auto& wait = t.wait;
+        if (wait.deadline_ns >= 0 && (idle.deadline_ns < 0 || wait.deadline_ns < idle.deadline_ns)) {
+            idle.deadline_ns = wait.deadline_ns;
+        }
+        idle.input |= wait.input;
+        if (wait.host_fd >= 0) idle.host_fds.push_back(wait.host_fd);
     }
+    return idle;
+}
+
+// Deadline of the call being made: timeout_ns from now (-1 for none), or
+// that of its first attempt if this is the retry of a wait.
+inline int64_t wait_deadline(Machine& m, int64_t timeout_ns) {
+    auto& wait = g_sched.threads[g_sched.current].wait;
+    bool retry = wait.retry && wait.pc == m.cpu.pc() && wait.nr == m.cpu.reg(riscv::REG_ECALL);
+    wait.retry = false;
+    if (retry) return wait.deadline_ns;
+    return timeout_ns < 0 ? -1 : steady_now_ns() + timeout_ns;
+}
+
+inline bool deadline_passed(int64_t deadline_ns) {
+    return deadline_ns >= 0 && steady_now_ns() >= deadline_ns;
+}
+
+// Block the calling thread until input (if input), readiness on host_fd,
+// or deadline_ns; the call is then made again (see GuestWait)
+inline void block_guest(Machine& m, int64_t deadline_ns, bool input, int host_fd = -1) {
+    auto& t = g_sched.threads[g_sched.current];
+    t.wait.retry = true;
+    t.wait.pc = m.cpu.pc();
+    t.wait.nr = m.cpu.reg(riscv::REG_ECALL);
+    t.wait.deadline_ns = deadline_ns;
+    t.wait.input = input;
+    t.wait.host_fd = host_fd;
+    t.blocked = true;
+    m.cpu.increment_pc(-4);  // Rewind past ecall (4 bytes)
+    reschedule(m);
 }
 
 // Execution context saved from initial load — used by execve to
@@ -227,6 +478,8 @@ inline void maybe_preempt(Machine& m) {
 struct ExecContext {
     std::vector<uint8_t> exec_binary;    // Original main executable
     std::vector<uint8_t> interp_binary;  // Original interpreter (ld-musl)
+    std::string exec_path;               // VFS paths the two were read from
+    std::string interp_path;
     elf::ElfInfo exec_info;              // Adjusted ELF info (with PIE base)
     uint64_t exec_base = 0;             // PIE base for main executable
     uint64_t exec_rw_start = 0;         // First writable segment of main binary
@@ -409,6 +662,7 @@ namespace err {
 struct SyscallContext {
     vfs::VirtualFS* fs;
     std::mt19937 rng;
+    std::vector<uint8_t> scratch;  // Bounce buffer for guest I/O outside the arena
 
     SyscallContext(vfs::VirtualFS* vfs) : fs(vfs) {
         std::random_device rd;
@@ -426,6 +680,70 @@ inline vfs::VirtualFS& get_fs(Machine& m) {
     return *get_ctx(m)->fs;
 }
 
+// Guest buffers of read/write-style syscalls. With the flat arena, a buffer
+// inside it is one run of host memory, so the VFS, stdin and sockets read
+// into it and write from it directly. Anything else (the zero page, or a
+// range past the arena) bounces through the per-machine scratch buffer and
+// libriscv's checked copies, which fault as before; such a transfer is cut
+// to SCRATCH_SIZE bytes, which read() and write() allow as a short count.
+// Direct stores skip page attributes, so reads into a page that is not
+// writable (text, rodata, mprotect without PROT_WRITE) fail with -EFAULT
+// before anything is consumed.
+inline constexpr size_t SCRATCH_SIZE = 64 * 1024;
+inline constexpr uint64_t ZERO_PAGE_END = 4096;
+
+// Host pointer to guest [addr, addr + len), or nullptr if it is not all in the arena
+inline uint8_t* guest_span(Machine& m, uint64_t addr, size_t len) {
+    auto* arena = (uint8_t*)m.memory.memory_arena_ptr();
+    uint64_t arena_size = m.memory.memory_arena_size();
+    if (!arena || addr < ZERO_PAGE_END || addr > arena_size || len > arena_size - addr)
+        return nullptr;
+    return arena + addr;
+}
+
+// Whether no page of guest [addr, addr + len) has attributes denying writes.
+// Pages with default attributes have no entry in the page table.
+inline bool guest_writable(Machine& m, uint64_t addr, size_t len) {
+    const auto& pages = m.memory.pages();
+    if (pages.empty() || len == 0) return true;
+    for (uint64_t pageno = addr >> 12; pageno <= (addr + len - 1) >> 12; pageno++) {
+        auto it = pages.find(pageno);
+        if (it != pages.end() && !it->second.attr.write) return false;
+    }
+    return true;
+}
+
+inline uint8_t* scratch_buffer(Machine& m, size_t len) {
+    auto& scratch = get_ctx(m)->scratch;
+    if (scratch.size() < len) scratch.resize(len);
+    return scratch.data();
+}
+
+// Fill the guest buffer at addr with read_fn(host_buf, len), which returns
+// the byte count or a negative error.
+template <typename ReadFn>
+inline ssize_t read_to_guest(Machine& m, uint64_t addr, size_t len, ReadFn&& read_fn) {
+    if (uint8_t* span = guest_span(m, addr, len)) {
+        if (!guest_writable(m, addr, len)) return -14;  // -EFAULT
+        return read_fn(span, len);
+    }
+    len = std::min(len, SCRATCH_SIZE);
+    uint8_t* buf = scratch_buffer(m, len);
+    ssize_t n = read_fn(buf, len);
+    if (n > 0) m.memory.memcpy(addr, buf, n);
+    return n;
+}
+
+// Hand the guest buffer at addr to write_fn(host_buf, len)
+template <typename WriteFn>
+inline ssize_t write_from_guest(Machine& m, uint64_t addr, size_t len, WriteFn&& write_fn) {
+    if (const uint8_t* span = guest_span(m, addr, len)) return write_fn(span, len);
+    len = std::min(len, SCRATCH_SIZE);
+    uint8_t* buf = scratch_buffer(m, len);
+    m.memory.memcpy_out(buf, addr, len);
+    return write_fn(buf, len);
+}
+
 // Saved references to libriscv's built-in handlers (for forwarding).
 inline Machine::syscall_t libriscv_mmap_handler = nullptr;
 inline Machine::syscall_t libriscv_brk_handler = nullptr;
@@ -438,6 +756,7 @@ namespace handlers {
 
 // Forward declaration — sys_exit has the fork parent restore logic
 static void sys_exit(Machine& m);
+inline bool close_epoll(int epfd);
 
 // exit_group — terminate all threads and stop the machine
 static void sys_exit_group(Machine& m) {
@@ -451,12 +770,14 @@ static void sys_exit_group(Machine& m) {
         return;
     }
 
-    for (int i = 0; i < MAX_VTHREADS; i++) {
-        g_sched.threads[i].active = false;
-        g_sched.threads[i].waiting = false;
+    for (auto& t : g_sched.threads) {
+        t.active = false;
+        t.waiting = false;
     }
+    g_sched.futex_queues.clear();
     g_sched.count = 0;
 
+    g_guest_exited = true;
     m.stop();
     m.set_result(exit_code);
 }
@@ -472,20 +793,14 @@ static void sys_exit(Machine& m) {
 
         if (t.clear_child_tid != 0) {
             m.memory.template write<int32_t>(t.clear_child_tid, 0);
-            g_sched.wake(t.clear_child_tid, 1);
+            g_sched_stats.count(g_sched_stats.futex_wakes, g_sched.wake(t.clear_child_tid, 1));
             fprintf(stderr, "[exit] cleared child_tid at 0x%lx\n", (long)t.clear_child_tid);
         }
 
-        t.active = false;
-        t.waiting = false;
-        g_sched.count--;
-
-        int next = g_sched.next_runnable(exiting);
-        if (next >= 0) {
-            restore_thread(m, g_sched.threads[next]);
-            g_sched.current = next;
-            return;
-        }
+        g_sched.remove_thread(exiting);
+        g_sched_stats.threads.store(g_sched.count, std::memory_order_relaxed);
+        reschedule(m);
+        return;
     }
 
     if (g_fork.in_child) {
@@ -566,6 +881,7 @@ static void sys_exit(Machine& m) {
     }
     int exit_code = m.template sysarg<int>(0);
     fprintf(stderr, "[exit] main thread exit code=%d\n", exit_code);
+    g_guest_exited = true;
     m.stop();
     m.set_result(exit_code);
 }
@@ -579,7 +895,7 @@ static void sys_clone(Machine& m) {
     constexpr uint64_t F_CLONE_VFORK  = 0x00004000;
 
     if ((flags & F_CLONE_THREAD) || ((flags & F_CLONE_VM) && !(flags & F_CLONE_VFORK))) {
-        // Thread creation with cooperative scheduling.
+        // Thread creation: the child gets a VThread (see ThreadScheduler)
         constexpr uint64_t F_CLONE_PARENT_SETTID  = 0x00100000;
         constexpr uint64_t F_CLONE_CHILD_CLEARTID = 0x00200000;
         constexpr uint64_t F_CLONE_SETTLS         = 0x00080000;
@@ -594,20 +910,21 @@ static void sys_clone(Machine& m) {
             }
         }
 
-        if (g_sched.count == 0) {
-            g_sched.init(g_next_pid - 2);
-        }
-
         int child_idx = g_sched.add_thread(tid);
         if (child_idx < 0) {
-            fprintf(stderr, "[clone] thread slots full, faking tid=%d\n", tid);
-            m.set_result(tid);
+            fprintf(stderr, "[clone] %zu threads, refusing tid=%d\n", MAX_VTHREADS, tid);
+            m.set_result(-11);  // -EAGAIN
             return;
         }
+        uint32_t threads = static_cast<uint32_t>(g_sched.count);
+        g_sched_stats.threads.store(threads, std::memory_order_relaxed);
+        if (threads > g_sched_stats.peak_threads.load(std::memory_order_relaxed)) {
+            g_sched_stats.peak_threads.store(threads, std::memory_order_relaxed);
+        }
 
         int parent_idx = g_sched.current;
         save_thread(m, g_sched.threads[parent_idx]);
-        g_sched.threads[parent_idx].regs[10] = (uint64_t)tid;
+        g_sched.threads[parent_idx].regs.get(riscv::REG_ARG0) = (uint64_t)tid;
 
         m.cpu.reg(riscv::REG_SP) = child_stack;
         m.set_result(0);
@@ -622,8 +939,11 @@ static void sys_clone(Machine& m) {
             g_sched.threads[child_idx].clear_child_tid = child_tidptr;
         }
 
+        // The child runs first, on a fresh quantum
         g_sched.current = child_idx;
         g_sched.threads[child_idx].pc = m.cpu.pc();
+        start_quantum(m);
+        g_sched_stats.count(g_sched_stats.switches);
 
         static int thread_count = 0;
         if (++thread_count <= 10)
@@ -1022,10 +1342,12 @@ static void sys_execve(Machine& m) {
                 g_exec_ctx.interp_rw_start = interp_base + irw_lo;
                 g_exec_ctx.interp_rw_end = interp_base + irw_hi;
                 g_exec_ctx.interp_binary = std::move(interp_binary);
+                g_exec_ctx.interp_path = interp_resolved;
                 g_exec_ctx.interp_entry = interp_entry;
             }
 
             g_exec_ctx.exec_binary = std::move(new_binary);
+            g_exec_ctx.exec_path = resolved;
             g_exec_ctx.exec_info = exec_info;
 
             // Reset memory layout after loading new binary
@@ -1133,7 +1455,8 @@ static void sys_openat(Machine& m) {
 }
 
 static void sys_close(Machine& m) {
-    get_fs(m).close(m.template sysarg<int>(0));
+    int fd = m.template sysarg<int>(0);
+    if (!close_epoll(fd)) get_fs(m).close(fd);
     m.set_result(0);
 }
 
@@ -1145,31 +1468,22 @@ static void sys_read(Machine& m) {
 
     // If fd has been redirected (e.g. dup2'd to a pipe), use VFS
     if (fd == 0 && fs.is_open(fd)) {
-        std::vector<uint8_t> buf(count);
-        ssize_t n = fs.read(fd, buf.data(), count);
-        if (n > 0) {
-            m.memory.memcpy(buf_addr, buf.data(), n);
-        }
-        m.set_result(n);
+        m.set_result(read_to_guest(m, buf_addr, count, [&](uint8_t* buf, size_t len) {
+            return fs.read(fd, buf, len);
+        }));
         return;
     }
 
     if (fd == 0) {
         // Try non-blocking read from Android stdin buffer
-        std::vector<uint8_t> tmp(count);
-        int bytes_read = android_io::try_read_stdin(tmp.data(), count);
-        if (bytes_read >= 0) {
-            if (bytes_read > 0) {
-                m.memory.memcpy(buf_addr, tmp.data(), bytes_read);
-            }
+        ssize_t bytes_read = read_to_guest(m, buf_addr, count, [](uint8_t* buf, size_t len) {
+            return (ssize_t)android_io::try_read_stdin(buf, len);
+        });
+        if (bytes_read >= 0 || bytes_read == -14) {  // Data, or -EFAULT
             m.set_result(bytes_read);
         } else {
-            // No data available — rewind PC to the ecall instruction
-            // and stop the machine. When resumed, the ecall will
-            // re-execute this syscall handler, retrying the read.
-            android_io::waiting_for_stdin.store(true);
-            m.cpu.increment_pc(-4);  // Rewind past ecall (4 bytes)
-            m.stop();
+            // No data available — wait for input, then retry the read
+            block_guest(m, -1, true);
         }
         return;
     }
@@ -1178,22 +1492,18 @@ static void sys_read(Machine& m) {
     if (net_is_socket_fd && net_is_socket_fd(fd)) {
         int native_fd = net_get_native_fd ? net_get_native_fd(fd) : -1;
         if (native_fd >= 0) {
-            std::vector<uint8_t> buf(count);
-            ssize_t n = ::recv(native_fd, buf.data(), count, 0);
-            if (n > 0) {
-                m.memory.memcpy(buf_addr, buf.data(), n);
-            }
-            m.set_result(n >= 0 ? n : -errno);
+            ssize_t n = read_to_guest(m, buf_addr, count, [&](uint8_t* buf, size_t len) {
+                ssize_t r = ::recv(native_fd, buf, len, 0);
+                return r >= 0 ? r : (ssize_t)-errno;
+            });
+            m.set_result(n);
             return;
         }
     }
 
-    std::vector<uint8_t> buf(count);
-    ssize_t n = fs.read(fd, buf.data(), count);
-    if (n > 0) {
-        m.memory.memcpy(buf_addr, buf.data(), n);
-    }
-    m.set_result(n);
+    m.set_result(read_to_guest(m, buf_addr, count, [&](uint8_t* buf, size_t len) {
+        return fs.read(fd, buf, len);
+    }));
 }
 
 static void sys_write(Machine& m) {
@@ -1204,10 +1514,9 @@ static void sys_write(Machine& m) {
 
     // Check VFS first — fd 1/2 may have been dup2'd to a pipe/file
     if (fs.is_open(fd)) {
-        std::vector<uint8_t> buf(count);
-        m.memory.memcpy_out(buf.data(), buf_addr, count);
-        ssize_t n = fs.write(fd, buf.data(), count);
-        m.set_result(n);
+        m.set_result(write_from_guest(m, buf_addr, count, [&](const uint8_t* buf, size_t len) {
+            return fs.write(fd, buf, len);
+        }));
         return;
     }
 
@@ -1227,10 +1536,11 @@ static void sys_write(Machine& m) {
     if (net_is_socket_fd && net_is_socket_fd(fd)) {
         int native_fd = net_get_native_fd ? net_get_native_fd(fd) : -1;
         if (native_fd >= 0) {
-            std::vector<uint8_t> buf(count);
-            m.memory.memcpy_out(buf.data(), buf_addr, count);
-            ssize_t n = ::send(native_fd, buf.data(), count, 0);
-            m.set_result(n >= 0 ? n : -errno);
+            ssize_t n = write_from_guest(m, buf_addr, count, [&](const uint8_t* buf, size_t len) {
+                ssize_t r = ::send(native_fd, buf, len, 0);
+                return r >= 0 ? r : (ssize_t)-errno;
+            });
+            m.set_result(n);
             return;
         }
     }
@@ -1251,14 +1561,15 @@ static void sys_writev(Machine& m) {
             uint64_t base = m.memory.template read<uint64_t>(iov_addr + i * 16);
             uint64_t len = m.memory.template read<uint64_t>(iov_addr + i * 16 + 8);
             if (len > 0) {
-                std::vector<uint8_t> buf(len);
-                m.memory.memcpy_out(buf.data(), base, len);
-                ssize_t n = fs.write(fd, buf.data(), len);
+                ssize_t n = write_from_guest(m, base, len, [&](const uint8_t* buf, size_t chunk) {
+                    return fs.write(fd, buf, chunk);
+                });
                 if (n < 0) {
                     m.set_result(total > 0 ? (int64_t)total : n);
                     return;
                 }
                 total += n;
+                if (static_cast<size_t>(n) < len) break;
             }
         }
         m.set_result(total);
@@ -1290,11 +1601,12 @@ static void sys_writev(Machine& m) {
                 uint64_t base = m.memory.template read<uint64_t>(iov_addr + i * 16);
                 uint64_t len = m.memory.template read<uint64_t>(iov_addr + i * 16 + 8);
                 if (len > 0) {
-                    std::vector<uint8_t> buf(len);
-                    m.memory.memcpy_out(buf.data(), base, len);
-                    ssize_t n = ::send(native_fd, buf.data(), len, 0);
+                    ssize_t n = write_from_guest(m, base, len, [&](const uint8_t* buf, size_t chunk) {
+                        ssize_t r = ::send(native_fd, buf, chunk, 0);
+                        return r >= 0 ? r : (ssize_t)-errno;
+                    });
                     if (n < 0) {
-                        m.set_result(total > 0 ? (int64_t)total : -errno);
+                        m.set_result(total > 0 ? (int64_t)total : n);
                         return;
                     }
                     total += n;
@@ -1324,12 +1636,9 @@ static void sys_getdents64(Machine& m) {
     auto buf_addr = m.sysarg(1);
     size_t count = m.sysarg(2);
 
-    std::vector<uint8_t> buf(count);
-    ssize_t n = fs.getdents64(fd, buf.data(), count);
-    if (n > 0) {
-        m.memory.memcpy(buf_addr, buf.data(), n);
-    }
-    m.set_result(n);
+    m.set_result(read_to_guest(m, buf_addr, count, [&](uint8_t* buf, size_t len) {
+        return fs.getdents64(fd, buf, len);
+    }));
 }
 
 static void sys_newfstatat(Machine& m) {
@@ -1533,9 +1842,6 @@ static void sys_clock_gettime(Machine& m) {
     lts.tv_nsec = ts.tv_nsec;
     m.memory.memcpy(tp_addr, &lts, sizeof(lts));
     m.set_result(0);
-
-    // Preemptive scheduling: yield to other threads periodically
-    maybe_preempt(m);
 }
 
 static void sys_getrandom(Machine& m) {
@@ -1563,7 +1869,7 @@ static void sys_mmap(Machine& m) {
         auto length = m.sysarg(1);
         auto prot   = m.template sysarg<int>(2);
         auto flags  = m.template sysarg<int>(3);
-        constexpr int MAP_FIXED = 0x10;
+        constexpr int GUEST_MAP_FIXED = 0x10;  // Guest (Linux) value; <sys/mman.h> may define MAP_FIXED
 
         if (length == 0) {
             m.set_result(uint64_t(-22));  // -EINVAL
@@ -1581,7 +1887,7 @@ static void sys_mmap(Machine& m) {
         uint64_t aligned_len = (length + 4095) & ~4095ULL;
         uint64_t result;
 
-        if (flags & MAP_FIXED) {
+        if (flags & GUEST_MAP_FIXED) {
             if (addr_g + aligned_len > ARENA_LIMIT) {
                 m.set_result(uint64_t(-12));  // -ENOMEM
                 return;
@@ -1606,7 +1912,7 @@ static void sys_mmap(Machine& m) {
         }
 
         // Zero-fill anonymous pages
-        if (!(flags & MAP_FIXED)) {
+        if (!(flags & GUEST_MAP_FIXED)) {
             if constexpr (riscv::encompassing_Nbit_arena != 0) {
                 auto* arena = (uint8_t*)m.memory.memory_arena_ptr();
                 if (arena && result + aligned_len <= m.memory.memory_arena_size()) {
@@ -1620,7 +1926,6 @@ static void sys_mmap(Machine& m) {
         }
 
         m.set_result(result);
-        maybe_preempt(m);
         return;
     }
 
@@ -1638,7 +1943,7 @@ static void sys_mmap(Machine& m) {
               << " flags=0x" << std::hex << flags
               << " off=0x" << offset << std::dec << "\n";
 
-    constexpr int MAP_FIXED = 0x10;
+    constexpr int GUEST_MAP_FIXED = 0x10;
     constexpr uint64_t PAGE_ALIGN_MASK = 4095;
 
     if (addr_g % 4096 != 0) {
@@ -1665,11 +1970,11 @@ static void sys_mmap(Machine& m) {
         }
         dst = nextfree;
         nextfree += length;
-    } else if ((flags & MAP_FIXED) && addr_g < m.memory.mmap_start()) {
+    } else if ((flags & GUEST_MAP_FIXED) && addr_g < m.memory.mmap_start()) {
         dst = addr_g;
-    } else if ((flags & MAP_FIXED) && addr_g >= m.memory.mmap_start() && addr_g + length <= nextfree) {
+    } else if ((flags & GUEST_MAP_FIXED) && addr_g >= m.memory.mmap_start() && addr_g + length <= nextfree) {
         dst = addr_g;
-    } else if ((flags & MAP_FIXED) && addr_g >= m.memory.mmap_start()) {
+    } else if ((flags & GUEST_MAP_FIXED) && addr_g >= m.memory.mmap_start()) {
         if constexpr (riscv::encompassing_Nbit_arena > 0) {
             uint64_t needed_end = addr_g + length;
             if (needed_end > riscv::encompassing_arena_mask) {
@@ -1969,16 +2274,14 @@ static void sys_readv(Machine& m) {
             uint64_t base = m.memory.template read<uint64_t>(iov_addr + i * 16);
             uint64_t len = m.memory.template read<uint64_t>(iov_addr + i * 16 + 8);
             if (len > 0) {
-                std::vector<uint8_t> buf(len);
-                ssize_t n = fs.read(fd, buf.data(), len);
+                ssize_t n = read_to_guest(m, base, len, [&](uint8_t* buf, size_t chunk) {
+                    return fs.read(fd, buf, chunk);
+                });
                 if (n < 0) {
                     m.set_result(total > 0 ? (int64_t)total : n);
                     return;
                 }
-                if (n > 0) {
-                    m.memory.memcpy(base, buf.data(), n);
-                    total += n;
-                }
+                total += n;
                 if (static_cast<size_t>(n) < len) break;
             }
         }
@@ -1996,10 +2299,8 @@ static void sys_readv(Machine& m) {
             return;
         }
         if (has_data == 0) {
-            // No data — rewind PC and stop machine so main loop can yield
-            android_io::waiting_for_stdin.store(true);
-            m.cpu.increment_pc(-4);  // Rewind past ecall (4 bytes)
-            m.stop();
+            // No data — wait for input, then retry the read
+            block_guest(m, -1, true);
             return;
         }
         size_t total = 0;
@@ -2007,12 +2308,14 @@ static void sys_readv(Machine& m) {
             uint64_t base = m.memory.template read<uint64_t>(iov_addr + i * 16);
             uint64_t len = m.memory.template read<uint64_t>(iov_addr + i * 16 + 8);
             if (len > 0) {
-                std::vector<uint8_t> tmp(len);
-                int bytes_read = android_io::try_read_stdin(tmp.data(), len);
-                if (bytes_read > 0) {
-                    m.memory.memcpy(base, tmp.data(), bytes_read);
-                    total += bytes_read;
+                ssize_t bytes_read = read_to_guest(m, base, len, [](uint8_t* buf, size_t chunk) {
+                    return (ssize_t)android_io::try_read_stdin(buf, chunk);
+                });
+                if (bytes_read == -14 && total == 0) {  // -EFAULT
+                    m.set_result(bytes_read);
+                    return;
                 }
+                if (bytes_read > 0) total += bytes_read;
                 if (bytes_read <= 0 || static_cast<size_t>(bytes_read) < len) break;
             }
         }
@@ -2025,16 +2328,14 @@ static void sys_readv(Machine& m) {
         uint64_t base = m.memory.template read<uint64_t>(iov_addr + i * 16);
         uint64_t len = m.memory.template read<uint64_t>(iov_addr + i * 16 + 8);
         if (len > 0) {
-            std::vector<uint8_t> buf(len);
-            ssize_t n = fs.read(fd, buf.data(), len);
+            ssize_t n = read_to_guest(m, base, len, [&](uint8_t* buf, size_t chunk) {
+                return fs.read(fd, buf, chunk);
+            });
             if (n < 0) {
                 m.set_result(total > 0 ? (int64_t)total : n);
                 return;
             }
-            if (n > 0) {
-                m.memory.memcpy(base, buf.data(), n);
-                total += n;
-            }
+            total += n;
             if (static_cast<size_t>(n) < len) break;  // Short read
         }
     }
@@ -2048,12 +2349,9 @@ static void sys_pread64(Machine& m) {
     size_t count = m.sysarg(2);
     uint64_t offset = m.sysarg(3);
 
-    std::vector<uint8_t> buf(count);
-    ssize_t n = fs.pread(fd, buf.data(), count, offset);
-    if (n > 0) {
-        m.memory.memcpy(buf_addr, buf.data(), n);
-    }
-    m.set_result(n);
+    m.set_result(read_to_guest(m, buf_addr, count, [&](uint8_t* buf, size_t len) {
+        return fs.pread(fd, buf, len, offset);
+    }));
 }
 
 static void sys_pwrite64(Machine& m) {
@@ -2063,10 +2361,9 @@ static void sys_pwrite64(Machine& m) {
     size_t count = m.sysarg(2);
     uint64_t offset = m.sysarg(3);
 
-    std::vector<uint8_t> buf(count);
-    m.memory.memcpy_out(buf.data(), buf_addr, count);
-    ssize_t n = fs.pwrite(fd, buf.data(), count, offset);
-    m.set_result(n);
+    m.set_result(write_from_guest(m, buf_addr, count, [&](const uint8_t* buf, size_t len) {
+        return fs.pwrite(fd, buf, len, offset);
+    }));
 }
 
 static void sys_ftruncate(Machine& m) {
@@ -2218,13 +2515,14 @@ static void sys_ppoll(Machine& m) {
     }
     if (nfds > 64) nfds = 64;
 
-    bool has_timeout = (timeout_addr != 0);
-    bool zero_timeout = false;
-    if (has_timeout) {
+    int64_t timeout_ns = -1;
+    if (timeout_addr != 0) {
         int64_t tv_sec = m.memory.template read<int64_t>(timeout_addr);
         int64_t tv_nsec = m.memory.template read<int64_t>(timeout_addr + 8);
-        zero_timeout = (tv_sec == 0 && tv_nsec == 0);
+        timeout_ns = tv_sec * 1000000000LL + tv_nsec;
     }
+    bool zero_timeout = timeout_ns == 0;
+    int64_t deadline = wait_deadline(m, timeout_ns);
     int ready = 0;
     bool needs_stdin = false;
 
@@ -2261,16 +2559,10 @@ static void sys_ppoll(Machine& m) {
 
     if (ready > 0) {
         m.set_result(ready);
-    } else if (zero_timeout) {
+    } else if (zero_timeout || deadline_passed(deadline)) {
         m.set_result(0);
-    } else if (needs_stdin) {
-        android_io::waiting_for_stdin.store(true);
-        m.cpu.increment_pc(-4);
-        m.stop();
     } else {
-        android_io::waiting_for_stdin.store(true);
-        m.cpu.increment_pc(-4);
-        m.stop();
+        block_guest(m, deadline, needs_stdin);
     }
 }
 
@@ -2278,19 +2570,97 @@ static void sys_ppoll(Machine& m) {
 // epoll — I/O event notification for libuv (Node.js event loop)
 // ============================================================================
 
-// Epoll instance keyed by VFS fd
+// Epoll instance keyed by VFS fd. Socket interests are also registered on
+// the instance's host epoll fd, so their readiness comes from one host call.
 struct EpollInterest {
     uint32_t events;  // EPOLLIN=1, EPOLLOUT=4, etc.
     uint64_t data;    // Caller's epoll_data (returned as-is in epoll_pwait)
 };
 struct EpollInstance {
     std::unordered_map<int, EpollInterest> interests;  // fd → {events, data}
+    int host_fd = -1;  // Host epoll fd (created on first use, see host_epoll_fd)
 };
 
 // Global epoll instances (keyed by epoll fd)
 inline std::unordered_map<int, EpollInstance> g_epoll_instances;
 inline int g_next_epoll_fd = 2000;  // Start at 2000 to avoid collision with socket FDs (base 1000)
 
+// Native fd of a guest socket, or -1 if fd is not a socket
+inline int host_socket_fd(int fd) {
+    if (!net_is_socket_fd || !net_is_socket_fd(fd)) return -1;
+    return net_get_native_fd ? net_get_native_fd(fd) : -1;
+}
+
+// Add, change or remove (events == 0) a socket interest on a host epoll fd
+inline void register_host_interest(int host_fd, int native_fd, int fd, uint32_t events) {
+    if (events == 0) {
+        ::epoll_ctl(host_fd, EPOLL_CTL_DEL, native_fd, nullptr);
+        return;
+    }
+    struct epoll_event ev{};
+    ev.events = events;
+    ev.data.u64 = static_cast<uint64_t>(fd);
+    if (::epoll_ctl(host_fd, EPOLL_CTL_ADD, native_fd, &ev) < 0 && errno == EEXIST) {
+        ::epoll_ctl(host_fd, EPOLL_CTL_MOD, native_fd, &ev);
+    }
+}
+
+// The instance's host epoll fd, created with its socket interests on first
+// use (an instance restored from a snapshot has none yet). -1 if the host
+// is out of fds.
+inline int host_epoll_fd(EpollInstance& instance) {
+    if (instance.host_fd >= 0) return instance.host_fd;
+    instance.host_fd = reactor::g_reactor.create_epoll();
+    if (instance.host_fd < 0) return -1;
+    for (auto& [fd, interest] : instance.interests) {
+        int native_fd = host_socket_fd(fd);
+        if (native_fd >= 0) register_host_interest(instance.host_fd, native_fd, fd, interest.events);
+    }
+    return instance.host_fd;
+}
+
+// Close the host epoll fds and forget all instances
+inline void clear_epoll() {
+    for (auto& [epfd, instance] : g_epoll_instances) {
+        if (instance.host_fd >= 0) ::close(instance.host_fd);
+    }
+    g_epoll_instances.clear();
+    g_next_epoll_fd = 2000;
+}
+
+// Forget one instance when the guest closes its fd. Returns false if fd is not one.
+inline bool close_epoll(int epfd) {
+    auto it = g_epoll_instances.find(epfd);
+    if (it == g_epoll_instances.end()) return false;
+    if (it->second.host_fd >= 0) ::close(it->second.host_fd);
+    g_epoll_instances.erase(it);
+    return true;
+}
+
+// Readiness of a source that lives in guest memory (stdin, stdout/stderr,
+// VFS files and pipes); 0 for sockets, which the host epoll fd reports.
+inline uint32_t local_revents(vfs::VirtualFS& fs, int fd, uint32_t events) {
+    uint32_t revents = 0;
+    if (fd == 0 && !fs.is_open(fd)) {
+        // stdin — check Android buffer (EOF reads as readable, like Linux)
+        if ((android_io::has_stdin_data() || android_io::is_eof()) && (events & EPOLLIN))
+            revents |= EPOLLIN;
+    } else if ((fd == 1 || fd == 2) && !fs.is_open(fd)) {
+        // stdout/stderr always writable
+        revents |= events & EPOLLOUT;
+    } else if (fs.is_open(fd)) {
+        auto entry = fs.get_entry(fd);
+        if (entry && entry->type == vfs::FileType::Fifo) {
+            if ((events & EPOLLIN) && entry->content.size() > 0)
+                revents |= EPOLLIN;
+            revents |= events & EPOLLOUT;
+        } else {
+            revents |= events & (EPOLLIN | EPOLLOUT);
+        }
+    }
+    return revents;
+}
+
 static void sys_epoll_create1(Machine& m) {
     int fd = g_next_epoll_fd++;
     g_epoll_instances[fd] = EpollInstance{};
@@ -2308,25 +2678,35 @@ static void sys_epoll_ctl(Machine& m) {
         m.set_result(-9);  // -EBADF
         return;
     }
-
-    constexpr int EPOLL_CTL_ADD = 1;
-    constexpr int EPOLL_CTL_DEL = 2;
-    constexpr int EPOLL_CTL_MOD = 3;
+    auto& instance = it->second;
 
     if (op == EPOLL_CTL_ADD || op == EPOLL_CTL_MOD) {
         // struct epoll_event { uint32_t events; [pad]; uint64_t data; } = 16 bytes
         uint32_t events = m.memory.template read<uint32_t>(event_addr);
         uint64_t data   = m.memory.template read<uint64_t>(event_addr + 8);
-        it->second.interests[fd] = EpollInterest{events, data};
+        bool existed = instance.host_fd >= 0;
+        instance.interests[fd] = EpollInterest{events, data};
+        // A new host epoll fd registers every socket interest, this one included
+        int native_fd = host_socket_fd(fd);
+        if (native_fd >= 0 && host_epoll_fd(instance) >= 0 && existed) {
+            register_host_interest(instance.host_fd, native_fd, fd, events);
+        }
         m.set_result(0);
     } else if (op == EPOLL_CTL_DEL) {
-        it->second.interests.erase(fd);
+        instance.interests.erase(fd);
+        int native_fd = host_socket_fd(fd);
+        if (native_fd >= 0 && instance.host_fd >= 0) {
+            register_host_interest(instance.host_fd, native_fd, fd, 0);
+        }
         m.set_result(0);
     } else {
         m.set_result(err::INVAL);
     }
 }
 
+// Stdin, pipes and other in-memory sources are checked directly; sockets
+// come from the instance's host epoll fd. With nothing ready the caller
+// blocks until a source may be ready or the timeout passes.
 static void sys_epoll_pwait(Machine& m) {
     int epfd = m.template sysarg<int>(0);
     auto events_addr = m.sysarg(1);
@@ -2338,115 +2718,53 @@ static void sys_epoll_pwait(Machine& m) {
         m.set_result(-9);  // -EBADF
         return;
     }
+    if (maxevents <= 0) {
+        m.set_result(err::INVAL);
+        return;
+    }
 
     auto& fs = get_fs(m);
+    auto& instance = it->second;
+    int host_fd = host_epoll_fd(instance);
+    int64_t deadline = wait_deadline(m, timeout < 0 ? -1 : timeout * 1000000LL);
     int ready = 0;
 
-    // Check each interest for readiness
-    for (auto& [fd, interest] : it->second.interests) {
-        if (ready >= maxevents) break;
-
-        uint32_t revents = 0;
-
-        if (fd == 0) {
-            // stdin — check Android buffer
-            if (android_io::has_stdin_data() && (interest.events & 0x01 /*EPOLLIN*/))
-                revents |= 0x01;
-        } else if (fd == 1 || fd == 2) {
-            // stdout/stderr always writable
-            if (interest.events & 0x04 /*EPOLLOUT*/)
-                revents |= 0x04;
-        } else if (fs.is_open(fd)) {
-            auto entry = fs.get_entry(fd);
-            if (entry && entry->type == vfs::FileType::Fifo) {
-                if ((interest.events & 0x01) && entry->content.size() > 0)
-                    revents |= 0x01;
-                if (interest.events & 0x04)
-                    revents |= 0x04;
-            } else {
-                if (interest.events & 0x01) revents |= 0x01;
-                if (interest.events & 0x04) revents |= 0x04;
-            }
+    auto put_event = [&](uint32_t revents, uint64_t data) {
+        uint64_t offset = events_addr + ready * 16;
+        m.memory.template write<uint32_t>(offset, revents);
+        m.memory.template write<uint32_t>(offset + 4, 0);
+        m.memory.template write<uint64_t>(offset + 8, data);
+        ready++;
+    };
+    auto scan_local = [&] {
+        for (auto& [fd, interest] : instance.interests) {
+            if (ready >= maxevents) break;
+            uint32_t revents = local_revents(fs, fd, interest.events);
+            if (revents) put_event(revents, interest.data);
         }
-        else if (net_is_socket_fd && net_is_socket_fd(fd)) {
-            int native_fd = net_get_native_fd ? net_get_native_fd(fd) : -1;
-            if (native_fd >= 0) {
-                struct pollfd pfd;
-                pfd.fd = native_fd;
-                pfd.events = 0;
-                if (interest.events & 0x01) pfd.events |= POLLIN;
-                if (interest.events & 0x04) pfd.events |= POLLOUT;
-                pfd.revents = 0;
-                if (::poll(&pfd, 1, 0) > 0) {
-                    if (pfd.revents & POLLIN)  revents |= 0x01;
-                    if (pfd.revents & POLLOUT) revents |= 0x04;
-                    if (pfd.revents & (POLLERR | POLLHUP)) revents |= 0x08;
-                }
+    };
+    struct epoll_event host_events[64];
+    auto put_host_events = [&](int n) {
+        for (int i = 0; i < n && ready < maxevents; i++) {
+            auto interest = instance.interests.find(static_cast<int>(host_events[i].data.u64));
+            if (interest != instance.interests.end()) {
+                put_event(host_events[i].events, interest->second.data);
             }
         }
-
-        if (revents) {
-            uint64_t offset = events_addr + ready * 16;
-            m.memory.template write<uint32_t>(offset, revents);
-            m.memory.template write<uint32_t>(offset + 4, 0);
-            m.memory.template write<uint64_t>(offset + 8, interest.data);
-            ready++;
-        }
+    };
+    scan_local();
+    if (host_fd >= 0 && ready < maxevents) {
+        put_host_events(reactor::g_reactor.poll(host_fd, host_events, std::min(maxevents - ready, 64)));
     }
-
-    if (ready > 0) {
+    if (ready > 0 || timeout == 0 || deadline_passed(deadline)) {
         m.set_result(ready);
-    } else if (timeout == 0) {
-        m.set_result(0);
-    } else {
-        // Native mode: collect socket fds and do a blocking poll
-        std::vector<struct pollfd> pfds;
-        std::vector<std::pair<int, EpollInterest*>> pfd_map;
-        for (auto& [fd2, interest2] : it->second.interests) {
-            if (net_is_socket_fd && net_is_socket_fd(fd2)) {
-                int native_fd = net_get_native_fd ? net_get_native_fd(fd2) : -1;
-                if (native_fd >= 0) {
-                    struct pollfd pfd;
-                    pfd.fd = native_fd;
-                    pfd.events = 0;
-                    if (interest2.events & 0x01) pfd.events |= POLLIN;
-                    if (interest2.events & 0x04) pfd.events |= POLLOUT;
-                    pfd.revents = 0;
-                    pfds.push_back(pfd);
-                    pfd_map.push_back({fd2, &interest2});
-                }
-            }
-        }
-        if (!pfds.empty()) {
-            int poll_timeout = timeout;
-            int ret = ::poll(pfds.data(), pfds.size(), poll_timeout);
-            if (ret > 0) {
-                for (size_t i = 0; i < pfds.size() && ready < maxevents; i++) {
-                    uint32_t revents2 = 0;
-                    if (pfds[i].revents & POLLIN)  revents2 |= 0x01;
-                    if (pfds[i].revents & POLLOUT) revents2 |= 0x04;
-                    if (pfds[i].revents & (POLLERR | POLLHUP)) revents2 |= 0x08;
-                    if (revents2) {
-                        uint64_t offset = events_addr + ready * 16;
-                        m.memory.template write<uint32_t>(offset, revents2);
-                        m.memory.template write<uint32_t>(offset + 4, 0);
-                        m.memory.template write<uint64_t>(offset + 8, pfd_map[i].second->data);
-                        ready++;
-                    }
-                }
-            }
-            m.set_result(ready);
-            return;
-        }
-        // Nothing ready, no sockets to poll — yield
-        android_io::waiting_for_stdin.store(true);
-        m.cpu.increment_pc(-4);
-        m.stop();
+        return;
     }
+    block_guest(m, deadline, instance.interests.count(0) > 0, host_fd);
 }
 
 // ============================================================================
-// futex — thread synchronization with cooperative scheduling
+// futex — wait queues of the thread scheduler
 // ============================================================================
 
 static void sys_futex(Machine& m) {
@@ -2457,8 +2775,11 @@ static void sys_futex(Machine& m) {
 
     constexpr int FUTEX_WAIT = 0;
     constexpr int FUTEX_WAKE = 1;
+    constexpr int FUTEX_REQUEUE = 3;
+    constexpr int FUTEX_CMP_REQUEUE = 4;
     constexpr int FUTEX_WAIT_BITSET = 9;
     constexpr int FUTEX_WAKE_BITSET = 10;
+    constexpr int FUTEX_CLOCK_REALTIME = 256;
 
     if (cmd == FUTEX_WAIT || cmd == FUTEX_WAIT_BITSET) {
         int32_t expected = m.template sysarg<int>(2);
@@ -2468,64 +2789,55 @@ static void sys_futex(Machine& m) {
             return;
         }
 
-        // Cooperative scheduling: if another thread is runnable, switch to it.
-        if (g_sched.count > 1) {
-            auto& cur = g_sched.threads[g_sched.current];
-            cur.waiting = true;
-            cur.futex_addr = uaddr;
-            cur.futex_val = expected;
-            m.set_result(0);
-
-            int next = g_sched.next_runnable(g_sched.current);
-            if (next >= 0) {
-                static int switch_count = 0;
-                if (++switch_count <= 50)
-                    fprintf(stderr, "[futex] WAIT switch t%d->t%d addr=0x%lx exp=0x%x\n",
-                            g_sched.current, next, (long)uaddr, (unsigned)expected);
-                switch_to_thread(m, next);
-                return;
+        // FUTEX_WAIT takes a relative timeout, FUTEX_WAIT_BITSET an absolute one
+        int64_t deadline = -1;
+        if (auto timeout_addr = m.sysarg(3)) {
+            int64_t tv_sec = m.memory.template read<int64_t>(timeout_addr);
+            int64_t tv_nsec = m.memory.template read<int64_t>(timeout_addr + 8);
+            int64_t timeout_ns = tv_sec * 1000000000LL + tv_nsec;
+            if (cmd == FUTEX_WAIT_BITSET) {
+                struct timespec now;
+                clock_gettime((op & FUTEX_CLOCK_REALTIME) ? CLOCK_REALTIME : CLOCK_MONOTONIC, &now);
+                timeout_ns -= now.tv_sec * 1000000000LL + now.tv_nsec;
             }
-            // All threads waiting — cooperative deadlock. Force-wake a sleeping
-            // thread so it can observe any shutdown signals written to memory.
-            for (int i = 0; i < MAX_VTHREADS; i++) {
-                if (i != g_sched.current && g_sched.threads[i].active && g_sched.threads[i].waiting) {
-                    g_sched.threads[i].waiting = false;
-                    static int deadlock_count = 0;
-                    if (++deadlock_count <= 50)
-                        fprintf(stderr, "[futex] deadlock-break: force-wake t%d, switch from t%d\n",
-                                i, g_sched.current);
-                    switch_to_thread(m, i);
-                    return;
-                }
+            if (timeout_ns <= 0) {
+                m.set_result(-110);  // -ETIMEDOUT
+                return;
             }
-            // Truly no other threads — fall through
-            cur.waiting = false;
-        }
-
-        // Fallback: no cooperative threads (all exited).
-        static int futex_wait_count = 0;
-        if (++futex_wait_count <= 50) {
-            fprintf(stderr, "[futex] WAIT fallback addr=0x%lx exp=0x%x actual=0x%x count=%d\n",
-                    (long)uaddr, (unsigned)expected, (unsigned)actual, g_sched.count);
-        }
-        if (g_sched.count <= 1) {
+            deadline = steady_now_ns() + timeout_ns;
+        } else if (g_sched.count <= 1) {
+            // No other thread could ever wake it
             m.set_result(-11);  // -EAGAIN
             return;
         }
-        m.memory.template write<int32_t>(uaddr, 0);
+
+        // Sleep until FUTEX_WAKE or the deadline, running other threads meanwhile
         m.set_result(0);
+        g_sched.wait(g_sched.current, uaddr, deadline);
+        g_sched_stats.count(g_sched_stats.futex_waits);
+        reschedule(m);
 
     } else if (cmd == FUTEX_WAKE || cmd == FUTEX_WAKE_BITSET) {
         int max_wake = m.template sysarg<int>(2);
         int woken = g_sched.wake(uaddr, max_wake);
+        g_sched_stats.count(g_sched_stats.futex_wakes, woken);
+        m.set_result(woken);
 
-        if (woken > 0) {
-            static int wake_count = 0;
-            if (++wake_count <= 20)
-                fprintf(stderr, "[futex] WAKE addr=0x%lx woke=%d\n",
-                        (long)uaddr, woken);
+    } else if (cmd == FUTEX_REQUEUE || cmd == FUTEX_CMP_REQUEUE) {
+        // Wake up to val waiters on uaddr and move up to val2 of the rest to uaddr2
+        int max_wake = m.template sysarg<int>(2);
+        int max_move = m.template sysarg<int>(3);
+        auto uaddr2 = m.sysarg(4);
+        if (cmd == FUTEX_CMP_REQUEUE &&
+            m.memory.template read<int32_t>(uaddr) != m.template sysarg<int>(5)) {
+            m.set_result(-11);  // -EAGAIN
+            return;
         }
-        m.set_result(woken);
+        int woken = g_sched.wake(uaddr, max_wake);
+        int moved = g_sched.requeue(uaddr, uaddr2, max_move);
+        g_sched_stats.count(g_sched_stats.futex_wakes, woken);
+        m.set_result(cmd == FUTEX_CMP_REQUEUE ? woken + moved : woken);
+
     } else {
         m.set_result(-38);  // -ENOSYS for other futex ops
     }
@@ -2664,20 +2976,14 @@ static void sys_nanosleep(Machine& m) {
 
     int64_t tv_sec = m.memory.template read<int64_t>(req_addr);
     int64_t tv_nsec = m.memory.template read<int64_t>(req_addr + 8);
-    int ms = static_cast<int>(tv_sec * 1000 + tv_nsec / 1000000);
-    if (ms < 1) ms = 1;
-
-    // Cooperative scheduling: nanosleep is a natural yield point
-    if (g_sched.count > 1) {
-        int next = g_sched.next_runnable(g_sched.current);
-        if (next >= 0) {
-            switch_to_thread(m, next);
-            return;
-        }
+    int64_t deadline = wait_deadline(m, tv_sec * 1000000000LL + tv_nsec);
+    if (deadline_passed(deadline)) {
+        m.set_result(0);
+        return;
     }
 
-    usleep(static_cast<useconds_t>(ms) * 1000);
-    m.set_result(0);
+    // Runs another guest thread, if one can, until the deadline
+    block_guest(m, deadline, false);
 }
 
 // ============================================================================
@@ -2875,16 +3181,14 @@ static void sys_recvmsg(Machine& m) {
         uint64_t base = m.memory.template read<uint64_t>(iov_addr + i * 16);
         uint64_t len  = m.memory.template read<uint64_t>(iov_addr + i * 16 + 8);
         if (len > 0) {
-            std::vector<uint8_t> buf(len);
-            ssize_t n = fs.read(fd, buf.data(), len);
+            ssize_t n = read_to_guest(m, base, len, [&](uint8_t* buf, size_t chunk) {
+                return fs.read(fd, buf, chunk);
+            });
             if (n < 0) {
                 m.set_result(total > 0 ? (int64_t)total : n);
                 return;
             }
-            if (n > 0) {
-                m.memory.memcpy(base, buf.data(), n);
-                total += n;
-            }
+            total += n;
             if (static_cast<size_t>(n) < len) break;
         }
     }
@@ -3026,9 +3330,9 @@ static void sys_sendmsg(Machine& m) {
         uint64_t base = m.memory.template read<uint64_t>(iov_addr + i * 16);
         uint64_t len  = m.memory.template read<uint64_t>(iov_addr + i * 16 + 8);
         if (len > 0) {
-            std::vector<uint8_t> buf(len);
-            m.memory.memcpy_out(buf.data(), base, len);
-            ssize_t n = fs.write(fd, buf.data(), len);
+            ssize_t n = write_from_guest(m, base, len, [&](const uint8_t* buf, size_t chunk) {
+                return fs.write(fd, buf, chunk);
+            });
             if (n < 0) {
                 m.set_result(total > 0 ? (int64_t)total : n);
                 return;
@@ -3102,6 +3406,7 @@ static void sys_riscv_hwprobe(Machine& m) {
 inline void install_syscalls(Machine& machine, vfs::VirtualFS& fs) {
     // Create and store context
     static SyscallContext ctx(&fs);
+    ctx.fs = &fs;  // Each loaded rootfs has a new VFS
     machine.set_userdata(&ctx);
 
     // Install handlers
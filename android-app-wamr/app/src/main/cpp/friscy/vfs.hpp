@@ -11,9 +11,134 @@
 #include <memory>
 #include <algorithm>
 #include <set>
+#include <atomic>
+#include <cstdio>
+
+#include <sys/mman.h>
+#include <sys/stat.h>
+
+#include "serial.hpp"
 
 namespace vfs {
 
+// A read-only, private mapping of (part of) a file, usually a rootfs tar.
+// Entries loaded from it reference slices of the mapping, which stays
+// mapped until the last of them lets go.
+class Mapping {
+public:
+    // Map length bytes at offset of fd. offset need not be page aligned
+    // (AssetFileDescriptor offsets usually are not). Returns null on failure.
+    static std::shared_ptr<const Mapping> map_fd(int fd, uint64_t offset, size_t length) {
+        if (length == 0) return nullptr;
+        uint64_t aligned = offset & ~static_cast<uint64_t>(4095);
+        size_t slack = static_cast<size_t>(offset - aligned);
+        void* base = mmap(nullptr, length + slack, PROT_READ, MAP_PRIVATE, fd,
+                          static_cast<off_t>(aligned));
+        if (base == MAP_FAILED) return nullptr;
+
+        // FNV-1a over what identifies this version of the file
+        uint64_t stamp = 0xcbf29ce484222325ULL;
+        struct stat st;
+        if (fstat(fd, &st) == 0) {
+            for (uint64_t v : {uint64_t(st.st_dev), uint64_t(st.st_ino), uint64_t(st.st_size),
+                               uint64_t(st.st_mtim.tv_sec), uint64_t(st.st_mtim.tv_nsec), offset}) {
+                stamp = (stamp ^ v) * 0x100000001b3ULL;
+            }
+        }
+        return std::shared_ptr<const Mapping>(
+            new Mapping(static_cast<uint8_t*>(base), length + slack, slack, stamp));
+    }
+
+    ~Mapping() { munmap(base_, mapped_size_); }
+
+    Mapping(const Mapping&) = delete;
+    Mapping& operator=(const Mapping&) = delete;
+
+    const uint8_t* data() const { return base_ + slack_; }
+    size_t size() const { return mapped_size_ - slack_; }
+
+    // Hash of the device, inode, size and modification time of the file,
+    // and the offset. Writing the file or renaming a new one over it (as a
+    // download does) changes it, even where the contents keep their size.
+    uint64_t stamp() const { return stamp_; }
+
+private:
+    Mapping(uint8_t* base, size_t mapped_size, size_t slack, uint64_t stamp)
+        : base_(base), mapped_size_(mapped_size), slack_(slack), stamp_(stamp) {}
+
+    uint8_t* base_;
+    size_t mapped_size_;
+    size_t slack_;
+    uint64_t stamp_;
+};
+
+// Contents of a regular file: either an owned buffer or a slice of a
+// Mapping. Reading a slice costs nothing; the first mutation copies it into
+// an owned buffer (copy-on-write), so the mapping itself is never written.
+class Content {
+public:
+    Content() = default;
+    Content(const std::vector<uint8_t>& bytes) : owned_(bytes) {}
+
+    Content& operator=(const std::vector<uint8_t>& bytes) {
+        mapping_.reset();
+        owned_ = bytes;
+        return *this;
+    }
+
+    // Reference [data, data + size) of mapping instead of owning a copy
+    void set_slice(std::shared_ptr<const Mapping> mapping, const uint8_t* data, size_t size) {
+        owned_.clear();
+        owned_.shrink_to_fit();
+        mapping_ = std::move(mapping);
+        slice_ = data;
+        slice_size_ = size;
+    }
+
+    bool is_mapped() const { return mapping_ != nullptr; }
+    const Mapping* mapping() const { return mapping_.get(); }
+    size_t size() const { return mapping_ ? slice_size_ : owned_.size(); }
+    bool empty() const { return size() == 0; }
+    const uint8_t* data() const { return mapping_ ? slice_ : owned_.data(); }
+    const uint8_t* begin() const { return data(); }
+    const uint8_t* end() const { return data() + size(); }
+
+    // Writable access; copies a mapped slice first
+    uint8_t* mutable_data() {
+        materialize();
+        return owned_.data();
+    }
+
+    void assign(const uint8_t* first, const uint8_t* last) {
+        mapping_.reset();
+        owned_.assign(first, last);
+    }
+
+    void clear() {
+        mapping_.reset();
+        owned_.clear();
+    }
+
+    void resize(size_t size, uint8_t value = 0) {
+        materialize();
+        owned_.resize(size, value);
+    }
+
+private:
+    void materialize() {
+        if (!mapping_) return;
+        owned_.assign(slice_, slice_ + slice_size_);
+        mapping_.reset();
+        slice_ = nullptr;
+        slice_size_ = 0;
+    }
+
+    std::vector<uint8_t> owned_;
+    std::shared_ptr<const Mapping> mapping_;
+    const uint8_t* slice_ = nullptr;
+    size_t slice_size_ = 0;
+};
+
 // File types (matching Linux stat mode)
 enum class FileType : uint16_t {
     Regular    = 0100000,
@@ -37,58 +162,59 @@ struct Entry {
     std::string link_target;  // For symlinks
 
     // File content (for regular files)
-    std::vector<uint8_t> content;
+    Content content;
 
     // Children (for directories)
     std::unordered_map<std::string, std::shared_ptr<Entry>> children;
 
+    // TarIndex directory whose children have not been materialized yet
+    // (-1 once they have, or for entries that did not come from an index)
+    int32_t pending_dir = -1;
+
     bool is_dir() const { return type == FileType::Directory; }
     bool is_file() const { return type == FileType::Regular; }
     bool is_symlink() const { return type == FileType::Symlink; }
 };
 
-// Open file handle
-struct FileHandle {
-    std::shared_ptr<Entry> entry;
-    uint64_t offset;
-    int flags;
-    std::string path;  // For debugging
-
-    FileHandle(std::shared_ptr<Entry> e, int f, const std::string& p)
-        : entry(e), offset(0), flags(f), path(p) {}
-};
-
-// Directory listing state
-struct DirHandle {
-    std::shared_ptr<Entry> entry;
-    std::vector<std::string> names;
-    size_t index;
-    std::string path;
-
-    DirHandle(std::shared_ptr<Entry> e, const std::string& p)
-        : entry(e), index(0), path(p) {
-        for (const auto& [name, _] : e->children) {
-            names.push_back(name);
-        }
-        std::sort(names.begin(), names.end());
-    }
-};
-
-class VirtualFS {
+// Headers of a tar archive: one record per path, without file contents.
+//
+// Scanning only reads the 512-byte headers and skips over file data, and a
+// saved index skips even that, so a large mapped archive is barely touched
+// until files are opened. VirtualFS turns records into Entries one
+// directory at a time, on first access.
+class TarIndex {
 public:
-    VirtualFS() {
-        // Create root directory
-        root_ = std::make_shared<Entry>();
-        root_->name = "";
-        root_->type = FileType::Directory;
-        root_->mode = 0755;
-        cwd_ = "/";
-    }
+    struct Record {
+        std::string path;  // Without leading or trailing slash; "" is the root
+        std::string link_target;
+        FileType type;
+        uint32_t mode;
+        uint32_t uid;
+        uint32_t gid;
+        uint64_t size;
+        uint64_t mtime;
+        uint64_t data_offset;  // Of the file data within the archive
+        int32_t dir;           // Index into dir_children for directories, else -1
+    };
+
+    std::vector<Record> records;  // records[0] is the root directory
+    std::vector<std::vector<uint32_t>> dir_children;  // Record indices per directory
+    uint64_t archive_size = 0;
+    uint64_t fingerprint = 0;
+
+    // Build the index by walking the archive headers. Later records for the
+    // same path replace earlier ones, and missing parent directories are
+    // created, as when extracting the archive. stamp identifies the file
+    // the archive was mapped from (Mapping::stamp), 0 for one in memory.
+    static std::shared_ptr<TarIndex> scan(const uint8_t* data, size_t size, uint64_t stamp = 0) {
+        auto index = std::make_shared<TarIndex>();
+        index->archive_size = size;
+        index->fingerprint = compute_fingerprint(data, size, stamp);
+
+        std::unordered_map<std::string, uint32_t> by_path;
+        index->add_dir(by_path, "");
 
-    // Load from tar archive in memory
-    bool load_tar(const uint8_t* data, size_t size) {
         size_t offset = 0;
-
         while (offset + 512 <= size) {
             // TAR header is 512 bytes
             const uint8_t* header = data + offset;
@@ -110,9 +236,11 @@ public:
                 offset += 512;
                 size_t name_len = parse_octal(header + 124, 12);
                 size_t name_blocks = (name_len + 511) / 512;
+                if (offset + name_len > size) break;
                 name = std::string(reinterpret_cast<const char*>(data + offset), name_len);
                 name = name.c_str();  // Trim at null
                 offset += name_blocks * 512;
+                if (offset + 512 > size) break;
                 header = data + offset;
             }
 
@@ -125,155 +253,390 @@ public:
                 }
             }
 
-            // Skip ./ prefix
+            // Skip ./ prefix, and normalize away leading and trailing slashes
             if (name.starts_with("./")) {
                 name = name.substr(2);
             }
+            while (!name.empty() && name.front() == '/') name.erase(0, 1);
+            while (!name.empty() && name.back() == '/') name.pop_back();
             if (name.empty()) {
                 offset += 512;
                 continue;
             }
 
-            // Parse fields
-            uint32_t mode = parse_octal(header + 100, 8);
-            uint32_t uid = parse_octal(header + 108, 8);
-            uint32_t gid = parse_octal(header + 116, 8);
-            uint64_t file_size = parse_octal(header + 124, 12);
-            uint64_t mtime = parse_octal(header + 136, 12);
-            char type_flag = header[156];
+            Record r;
+            r.path = name;
+            r.mode = parse_octal(header + 100, 8);
+            r.uid = parse_octal(header + 108, 8);
+            r.gid = parse_octal(header + 116, 8);
+            r.size = parse_octal(header + 124, 12);
+            r.mtime = parse_octal(header + 136, 12);
+            r.dir = -1;
 
             // Link target for symlinks
             std::string link_target(reinterpret_cast<const char*>(header + 157), 100);
-            link_target = link_target.c_str();
+            r.link_target = link_target.c_str();
 
             // Determine file type
-            FileType type;
-            switch (type_flag) {
+            switch (header[156]) {
                 case '0': case '\0':
-                    type = FileType::Regular;
+                    r.type = FileType::Regular;
                     break;
-                case '1':  // Hard link (treat as regular file, copy content later)
-                    type = FileType::Regular;
+                case '1':  // Hard link (treat as regular file)
+                    r.type = FileType::Regular;
                     break;
                 case '2':
-                    type = FileType::Symlink;
+                    r.type = FileType::Symlink;
                     break;
                 case '3':
-                    type = FileType::CharDev;
+                    r.type = FileType::CharDev;
                     break;
                 case '4':
-                    type = FileType::BlockDev;
+                    r.type = FileType::BlockDev;
                     break;
                 case '5':
-                    type = FileType::Directory;
+                    r.type = FileType::Directory;
                     break;
                 case '6':
-                    type = FileType::Fifo;
+                    r.type = FileType::Fifo;
                     break;
                 default:
-                    type = FileType::Regular;
-            }
-
-            // Create entry
-            auto entry = std::make_shared<Entry>();
-            entry->name = name.substr(name.rfind('/') + 1);
-            if (entry->name.empty() && type == FileType::Directory) {
-                entry->name = name;
+                    r.type = FileType::Regular;
             }
-            entry->type = type;
-            entry->mode = mode;
-            entry->uid = uid;
-            entry->gid = gid;
-            entry->size = file_size;
-            entry->mtime = mtime;
-            entry->link_target = link_target;
 
             // Move to content
             offset += 512;
+            r.data_offset = offset;
 
-            // Read file content
-            if (type == FileType::Regular && file_size > 0) {
-                if (offset + file_size > size) break;
-                entry->content.assign(data + offset, data + offset + file_size);
-                offset += ((file_size + 511) / 512) * 512;  // Round up to block
+            if (r.type == FileType::Regular && r.size > 0) {
+                if (offset + r.size > size) break;
+                offset += ((r.size + 511) / 512) * 512;  // Round up to block
             }
 
-            // Insert into VFS tree
-            insert_entry("/" + name, entry);
+            index->add(by_path, std::move(r));
+        }
+        return index;
+    }
+
+    // Load an index saved by save(). Returns null if the file is missing,
+    // malformed, or was built from a different archive or file.
+    static std::shared_ptr<TarIndex> load(const std::string& path, const uint8_t* data,
+                                          size_t size, uint64_t stamp) {
+        FILE* fp = fopen(path.c_str(), "rb");
+        if (!fp) return nullptr;
+
+        auto index = std::make_shared<TarIndex>();
+        bool ok = index->read_from(fp);
+        fclose(fp);
+        if (!ok || index->archive_size != size ||
+            index->fingerprint != compute_fingerprint(data, size, stamp)) {
+            return nullptr;
         }
+        return index;
+    }
 
+    // Save the index next to its archive so the next boot can skip scan().
+    bool save(const std::string& path) const {
+        std::string tmp = path + ".tmp";
+        FILE* fp = fopen(tmp.c_str(), "wb");
+        if (!fp) return false;
+        bool ok = write_to(fp);
+        ok = fclose(fp) == 0 && ok;
+        if (!ok || ::rename(tmp.c_str(), path.c_str()) != 0) {
+            ::remove(tmp.c_str());
+            return false;
+        }
         return true;
     }
 
-    // Resolve a path (following symlinks up to max_depth times)
-    std::shared_ptr<Entry> resolve(const std::string& path, int max_depth = 16) {
-        std::string abs_path = make_absolute(path);
+    static uint64_t parse_octal(const uint8_t* p, size_t len) {
+        uint64_t val = 0;
+        for (size_t i = 0; i < len && p[i] >= '0' && p[i] <= '7'; i++) {
+            val = val * 8 + (p[i] - '0');
+        }
+        return val;
+    }
 
-        // Split path into components
-        std::vector<std::string> parts;
-        size_t start = 1;
-        while (start < abs_path.size()) {
-            size_t end = abs_path.find('/', start);
-            if (end == std::string::npos) end = abs_path.size();
-            if (end > start) {
-                parts.push_back(abs_path.substr(start, end - start));
+private:
+    static constexpr uint32_t INDEX_MAGIC = 0x58495446;  // "FTIX"
+    static constexpr uint32_t INDEX_VERSION = 2;  // 2: fingerprint includes the file stamp
+    static constexpr size_t FINGERPRINT_SPAN = 64 * 1024;
+
+    // FNV-1a over the size and the first and last 64 KiB of the archive,
+    // seeded with the stamp of its file. The sampled bytes alone miss a
+    // rebuilt image of the same size whose headers moved in the middle.
+    static uint64_t compute_fingerprint(const uint8_t* data, size_t size, uint64_t stamp) {
+        uint64_t hash = (0xcbf29ce484222325ULL ^ stamp) * 0x100000001b3ULL ^ size;
+        auto mix = [&hash](const uint8_t* p, size_t n) {
+            for (size_t i = 0; i < n; i++) {
+                hash = (hash ^ p[i]) * 0x100000001b3ULL;
             }
-            start = end + 1;
-        }
+        };
+        size_t head = std::min(size, FINGERPRINT_SPAN);
+        mix(data, head);
+        size_t tail = std::min(size - head, FINGERPRINT_SPAN);
+        mix(data + size - tail, tail);
+        return hash;
+    }
 
-        // Traverse
-        auto current = root_;
-        std::string current_path = "";
+    static std::string parent_of(const std::string& path) {
+        size_t slash = path.rfind('/');
+        return slash == std::string::npos ? "" : path.substr(0, slash);
+    }
 
-        for (size_t i = 0; i < parts.size(); i++) {
-            const auto& part = parts[i];
+    uint32_t add_dir(std::unordered_map<std::string, uint32_t>& by_path,
+                     const std::string& path) {
+        auto it = by_path.find(path);
+        if (it != by_path.end()) return it->second;
 
-            if (!current || !current->is_dir()) {
-                return nullptr;  // Not a directory
-            }
+        Record r{};
+        r.path = path;
+        r.type = FileType::Directory;
+        r.mode = 0755;
+        return add(by_path, std::move(r));
+    }
 
-            if (part == ".") {
-                continue;
-            } else if (part == "..") {
-                // Go up - find parent
-                size_t last_slash = current_path.rfind('/');
-                if (last_slash != std::string::npos) {
-                    current_path = current_path.substr(0, last_slash);
-                    current = resolve_no_symlink(current_path.empty() ? "/" : current_path);
+    uint32_t add(std::unordered_map<std::string, uint32_t>& by_path, Record r) {
+        auto it = by_path.find(r.path);
+        if (it != by_path.end()) {
+            // Replace the earlier record, keeping a directory's children
+            Record& existing = records[it->second];
+            int32_t dir = existing.dir;
+            existing = std::move(r);
+            if (existing.type == FileType::Directory) {
+                if (dir < 0) {
+                    dir = static_cast<int32_t>(dir_children.size());
+                    dir_children.emplace_back();
                 }
-                continue;
+                existing.dir = dir;
+            } else {
+                existing.dir = -1;
             }
+            return it->second;
+        }
 
-            auto it = current->children.find(part);
-            if (it == current->children.end()) {
-                return nullptr;  // Not found
+        uint32_t parent = 0;
+        if (!r.path.empty()) {
+            parent = add_dir(by_path, parent_of(r.path));
+            if (records[parent].dir < 0) {
+                // A non-directory path used as a directory: make it one
+                records[parent].type = FileType::Directory;
+                records[parent].dir = static_cast<int32_t>(dir_children.size());
+                dir_children.emplace_back();
             }
+        }
 
-            current = it->second;
-            current_path += "/" + part;
+        uint32_t id = static_cast<uint32_t>(records.size());
+        if (r.type == FileType::Directory) {
+            r.dir = static_cast<int32_t>(dir_children.size());
+            dir_children.emplace_back();
+        }
+        by_path.emplace(r.path, id);
+        records.push_back(std::move(r));
+        if (id != 0) dir_children[records[parent].dir].push_back(id);
+        return id;
+    }
 
-            // Handle symlinks
-            if (current->is_symlink() && max_depth > 0) {
-                std::string target = current->link_target;
-                if (!target.starts_with("/")) {
-                    // Relative symlink
-                    size_t last_slash = current_path.rfind('/');
-                    if (last_slash != std::string::npos) {
-                        target = current_path.substr(0, last_slash) + "/" + target;
-                    }
-                }
+    // --- Serialization (native endianness; the index never leaves the device) ---
 
-                // Resolve the symlink target + remaining path
-                std::string remaining;
-                for (size_t j = i + 1; j < parts.size(); j++) {
-                    remaining += "/" + parts[j];
-                }
+    template <typename T>
+    static bool put(FILE* fp, const T& value) {
+        return fwrite(&value, sizeof(T), 1, fp) == 1;
+    }
+
+    template <typename T>
+    static bool get(FILE* fp, T& value) {
+        return fread(&value, sizeof(T), 1, fp) == 1;
+    }
+
+    static bool put_string(FILE* fp, const std::string& str) {
+        uint32_t len = static_cast<uint32_t>(str.size());
+        return put(fp, len) && fwrite(str.data(), 1, len, fp) == len;
+    }
 
-                return resolve(target + remaining, max_depth - 1);
+    static bool get_string(FILE* fp, std::string& str) {
+        uint32_t len = 0;
+        if (!get(fp, len) || len > 65536) return false;
+        str.resize(len);
+        return fread(str.data(), 1, len, fp) == len;
+    }
+
+    bool write_to(FILE* fp) const {
+        bool ok = put(fp, INDEX_MAGIC) && put(fp, INDEX_VERSION) &&
+                  put(fp, archive_size) && put(fp, fingerprint) &&
+                  put(fp, static_cast<uint32_t>(records.size())) &&
+                  put(fp, static_cast<uint32_t>(dir_children.size()));
+        for (const auto& r : records) {
+            if (!ok) break;
+            ok = put_string(fp, r.path) && put_string(fp, r.link_target) &&
+                 put(fp, static_cast<uint16_t>(r.type)) && put(fp, r.mode) &&
+                 put(fp, r.uid) && put(fp, r.gid) && put(fp, r.size) &&
+                 put(fp, r.mtime) && put(fp, r.data_offset) && put(fp, r.dir);
+        }
+        for (const auto& children : dir_children) {
+            if (!ok) break;
+            uint32_t count = static_cast<uint32_t>(children.size());
+            ok = put(fp, count) &&
+                 (count == 0 || fwrite(children.data(), sizeof(uint32_t), count, fp) == count);
+        }
+        return ok;
+    }
+
+    bool read_from(FILE* fp) {
+        uint32_t magic = 0, version = 0, record_count = 0, dir_count = 0;
+        if (!get(fp, magic) || magic != INDEX_MAGIC) return false;
+        if (!get(fp, version) || version != INDEX_VERSION) return false;
+        if (!get(fp, archive_size) || !get(fp, fingerprint) ||
+            !get(fp, record_count) || !get(fp, dir_count) || record_count == 0) {
+            return false;
+        }
+
+        records.resize(record_count);
+        for (auto& r : records) {
+            uint16_t type = 0;
+            if (!get_string(fp, r.path) || !get_string(fp, r.link_target) ||
+                !get(fp, type) || !get(fp, r.mode) || !get(fp, r.uid) ||
+                !get(fp, r.gid) || !get(fp, r.size) || !get(fp, r.mtime) ||
+                !get(fp, r.data_offset) || !get(fp, r.dir) ||
+                r.dir >= static_cast<int32_t>(dir_count)) {
+                return false;
             }
+            r.type = static_cast<FileType>(type);
         }
+        if (records[0].dir != 0) return false;
+
+        dir_children.resize(dir_count);
+        for (auto& children : dir_children) {
+            uint32_t count = 0;
+            if (!get(fp, count) || count > record_count) return false;
+            children.resize(count);
+            if (count > 0 && fread(children.data(), sizeof(uint32_t), count, fp) != count) return false;
+            for (uint32_t id : children) {
+                if (id == 0 || id >= record_count) return false;
+            }
+        }
+        return true;
+    }
+};
 
-        return current;
+// Open file handle
+struct FileHandle {
+    std::shared_ptr<Entry> entry;
+    uint64_t offset;
+    int flags;
+    std::string path;  // For debugging
+
+    FileHandle(std::shared_ptr<Entry> e, int f, const std::string& p)
+        : entry(e), offset(0), flags(f), path(p) {}
+};
+
+// Directory listing state
+struct DirHandle {
+    std::shared_ptr<Entry> entry;
+    std::vector<std::string> names;
+    size_t index;
+    std::string path;
+
+    DirHandle(std::shared_ptr<Entry> e, const std::string& p)
+        : entry(e), index(0), path(p) {
+        for (const auto& [name, _] : e->children) {
+            names.push_back(name);
+        }
+        std::sort(names.begin(), names.end());
+    }
+};
+
+class VirtualFS {
+public:
+    VirtualFS() {
+        // Create root directory
+        root_ = std::make_shared<Entry>();
+        root_->name = "";
+        root_->type = FileType::Directory;
+        root_->mode = 0755;
+        cwd_ = "/";
+    }
+
+    // Load from tar archive in memory, copying file contents
+    bool load_tar(const uint8_t* data, size_t size) {
+        // The caller's buffer does not outlive this call, so materialize
+        // the whole tree now
+        index_ = TarIndex::scan(data, size);
+        index_data_ = data;
+        root_->pending_dir = 0;
+        materialize_tree(*root_);
+        index_.reset();
+        index_data_ = nullptr;
+        return true;
+    }
+
+    // Load from a mapped tar archive. Only the index is built up front;
+    // directories become Entries when first looked into, and file contents
+    // stay in the mapping until written. With index_path the index is read
+    // from there if it matches the archive, and saved there otherwise.
+    bool load_tar(const std::shared_ptr<const Mapping>& mapping,
+                  const std::string& index_path = "") {
+        std::shared_ptr<const TarIndex> index;
+        if (!index_path.empty()) {
+            index = TarIndex::load(index_path, mapping->data(), mapping->size(), mapping->stamp());
+            index_loaded_ = index != nullptr;
+        }
+        if (!index) {
+            auto scanned = TarIndex::scan(mapping->data(), mapping->size(), mapping->stamp());
+            if (!index_path.empty()) scanned->save(index_path);
+            index = scanned;
+        }
+        index_ = index;
+        mapping_ = mapping;
+        index_data_ = mapping->data();
+        root_->pending_dir = 0;
+        return true;
+    }
+
+    // Whether the last load_tar() reused a saved index
+    bool index_loaded() const { return index_loaded_; }
+
+    // Number of paths in the archive index (0 if not loaded from one)
+    size_t index_size() const { return index_ ? index_->records.size() : 0; }
+
+    // Counters of the resolved-path cache
+    struct ResolveStats {
+        uint64_t hits;           // Lookups answered from the cache
+        uint64_t negative_hits;  // Hits that were a cached ENOENT
+        uint64_t misses;         // Lookups that walked the tree
+        uint64_t invalidations;  // Namespace changes that made cached results stale
+    };
+
+    static constexpr size_t kDefaultResolveCacheCapacity = 4096;
+
+    ResolveStats resolve_stats() const {
+        return {stats_hits_.load(std::memory_order_relaxed),
+                stats_negative_hits_.load(std::memory_order_relaxed),
+                stats_misses_.load(std::memory_order_relaxed),
+                stats_invalidations_.load(std::memory_order_relaxed)};
+    }
+
+    // Bound the number of cached paths; 0 disables the cache
+    void set_resolve_cache_capacity(size_t capacity) {
+        resolve_cache_capacity_ = capacity;
+        resolve_cache_.clear();
+        resolve_nofollow_cache_.clear();
+    }
+
+    // Resolve a path (following symlinks up to max_depth times)
+    //
+    // Results, including ENOENT, are cached per absolute path. A cached Entry
+    // stays valid until a name is removed or replaced anywhere in the tree,
+    // and a cached ENOENT until a name is added, so the tens of thousands of
+    // stat/open probes a runtime like Node makes at startup mostly skip the
+    // walk from the root.
+    std::shared_ptr<Entry> resolve(const std::string& path, int max_depth = 16) {
+        std::string abs_path = make_absolute(path);
+        std::shared_ptr<Entry> entry;
+        if (lookup_cached(resolve_cache_, abs_path, entry)) return entry;
+        entry = resolve_walk(abs_path, max_depth);
+        store_cached(resolve_cache_, abs_path, entry);
+        return entry;
     }
 
     // Stat a path
@@ -335,6 +698,7 @@ public:
         if (!entry) return -2;  // ENOENT
         if (!entry->is_dir()) return -20;  // ENOTDIR
 
+        children(*entry);  // DirHandle lists the children
         int fd = next_fd_++;
         open_dirs_[fd] = std::make_unique<DirHandle>(entry, path);
         return fd;
@@ -378,7 +742,7 @@ public:
             fh->entry->size = end_pos;
         }
 
-        memcpy(fh->entry->content.data() + fh->offset, buf, count);
+        memcpy(fh->entry->content.mutable_data() + fh->offset, buf, count);
         fh->offset += count;
 
         return static_cast<ssize_t>(count);
@@ -419,6 +783,7 @@ public:
             auto fit = open_files_.find(fd);
             if (fit != open_files_.end() && fit->second->entry->is_dir()) {
                 // Convert to dir handle
+                children(*fit->second->entry);
                 open_dirs_[fd] = std::make_unique<DirHandle>(
                     fit->second->entry, fit->second->path);
                 open_files_.erase(fd);
@@ -546,17 +911,19 @@ public:
         auto parent = resolve(parent_path);
         if (!parent || !parent->is_dir()) return -2;  // ENOENT
 
-        auto it = parent->children.find(name);
-        if (it == parent->children.end()) return -2;  // ENOENT
+        auto& siblings = children(*parent);
+        auto it = siblings.find(name);
+        if (it == siblings.end()) return -2;  // ENOENT
 
         bool is_dir = it->second->is_dir();
         bool at_removedir = (flags & 0x200) != 0;  // AT_REMOVEDIR
 
         if (is_dir && !at_removedir) return -21;  // EISDIR
         if (!is_dir && at_removedir) return -20;  // ENOTDIR
-        if (is_dir && !it->second->children.empty()) return -39;  // ENOTEMPTY
+        if (is_dir && !children(*it->second).empty()) return -39;  // ENOTEMPTY
 
-        parent->children.erase(it);
+        siblings.erase(it);
+        names_changed(false, true);
         return 0;
     }
 
@@ -618,12 +985,13 @@ public:
 
         // Remove any existing entry at the destination
         std::string new_name = abs_new.substr(new_slash + 1);
-        new_parent->children.erase(new_name);
+        children(*new_parent).erase(new_name);
 
         // Move: remove from old parent, insert in new parent
-        old_parent->children.erase(old_name);
+        children(*old_parent).erase(old_name);
         entry->name = new_name;
-        new_parent->children[new_name] = entry;
+        children(*new_parent)[new_name] = entry;
+        names_changed(true, true);
         return 0;
     }
 
@@ -682,7 +1050,7 @@ public:
             fh->entry->size = end_pos;
         }
 
-        memcpy(fh->entry->content.data() + offset, buf, count);
+        memcpy(fh->entry->content.mutable_data() + offset, buf, count);
         return static_cast<ssize_t>(count);
     }
 
@@ -769,6 +1137,238 @@ public:
         return "";
     }
 
+    // --- Snapshot state ---
+    //
+    // The tree, working directory and open fds, for machine snapshots. File
+    // contents still in the rootfs mapping and directories not yet read from
+    // the index are saved as references to the archive, so a snapshot stays
+    // small but can only be restored over the same rootfs.
+
+    // Decoded state, applied by commit_state()
+    struct State {
+        std::shared_ptr<Entry> root;
+        std::string cwd;
+        int next_fd = 3;
+        std::unordered_map<int, std::unique_ptr<FileHandle>> open_files;
+        std::unordered_map<int, std::unique_ptr<DirHandle>> open_dirs;
+    };
+
+    void save_state(serial::Writer& w) const {
+        // Number every entry reachable from the tree or an open fd; hard
+        // links and pipes are shared, so entries are written once by id
+        std::unordered_map<const Entry*, uint32_t> ids;
+        std::vector<const Entry*> entries;
+        auto number = [&](const Entry* e) {
+            if (ids.emplace(e, static_cast<uint32_t>(entries.size())).second) entries.push_back(e);
+        };
+        number(root_.get());
+        for (const auto& [_, fh] : open_files_) number(fh->entry.get());
+        for (const auto& [_, dh] : open_dirs_) number(dh->entry.get());
+        for (size_t i = 0; i < entries.size(); i++) {
+            for (const auto& [_, child] : entries[i]->children) number(child.get());
+        }
+
+        w.put<uint8_t>(index_ ? 1 : 0);
+        w.put(index_ ? index_->archive_size : uint64_t(0));
+        w.put(index_ ? index_->fingerprint : uint64_t(0));
+        w.put_string(cwd_);
+        w.put<int32_t>(next_fd_);
+
+        w.put(static_cast<uint32_t>(entries.size()));
+        for (const Entry* e : entries) {
+            w.put_string(e->name);
+            w.put(static_cast<uint16_t>(e->type));
+            w.put(e->mode);
+            w.put(e->uid);
+            w.put(e->gid);
+            w.put(e->size);
+            w.put(e->mtime);
+            w.put_string(e->link_target);
+            w.put(e->pending_dir);
+            if (mapping_ && e->content.mapping() == mapping_.get()) {
+                w.put<uint8_t>(CONTENT_ARCHIVE);
+                w.put(static_cast<uint64_t>(e->content.data() - mapping_->data()));
+                w.put(static_cast<uint64_t>(e->content.size()));
+            } else {
+                w.put<uint8_t>(CONTENT_INLINE);
+                w.put_blob(e->content.data(), e->content.size());
+            }
+            w.put(static_cast<uint32_t>(e->children.size()));
+            for (const auto& [name, child] : e->children) {
+                w.put_string(name);
+                w.put(ids.at(child.get()));
+            }
+        }
+
+        w.put(static_cast<uint32_t>(open_files_.size()));
+        for (const auto& [fd, fh] : open_files_) {
+            w.put<int32_t>(fd);
+            w.put(ids.at(fh->entry.get()));
+            w.put(fh->offset);
+            w.put<int32_t>(fh->flags);
+            w.put_string(fh->path);
+        }
+        w.put(static_cast<uint32_t>(open_dirs_.size()));
+        for (const auto& [fd, dh] : open_dirs_) {
+            w.put<int32_t>(fd);
+            w.put(ids.at(dh->entry.get()));
+            w.put(static_cast<uint64_t>(dh->index));
+            w.put_string(dh->path);
+            w.put(static_cast<uint32_t>(dh->names.size()));
+            for (const auto& name : dh->names) w.put_string(name);
+        }
+    }
+
+    // Decode a state written by save_state() without changing this VFS.
+    // Fails if it refers to an archive other than the one loaded.
+    bool decode_state(serial::Reader& r, State& out, std::string& error) const {
+        bool has_archive = r.get<uint8_t>() != 0;
+        uint64_t archive_size = r.get<uint64_t>();
+        uint64_t fingerprint = r.get<uint64_t>();
+        out.cwd = r.get_string();
+        out.next_fd = r.get<int32_t>();
+
+        // Smallest encoded entry: empty strings, no content, no children
+        uint32_t count = r.get_count(50);
+        if (r.failed() || count == 0) {
+            error = "corrupt filesystem state";
+            return false;
+        }
+        bool archive_matches = index_ && index_->archive_size == archive_size &&
+                               index_->fingerprint == fingerprint;
+        if (has_archive && !archive_matches) {
+            error = "snapshot was taken over a different rootfs";
+            return false;
+        }
+
+        std::vector<std::shared_ptr<Entry>> entries(count);
+        std::vector<uint32_t> parents(count, 0);
+        for (auto& e : entries) e = std::make_shared<Entry>();
+        for (auto& e : entries) {
+            e->name = r.get_string();
+            e->type = static_cast<FileType>(r.get<uint16_t>());
+            r.get(e->mode);
+            r.get(e->uid);
+            r.get(e->gid);
+            r.get(e->size);
+            r.get(e->mtime);
+            e->link_target = r.get_string();
+            r.get(e->pending_dir);
+            if (e->pending_dir >= 0 &&
+                (!archive_matches || e->pending_dir >= static_cast<int32_t>(index_->dir_children.size()))) {
+                r.fail();
+            }
+            if (r.get<uint8_t>() == CONTENT_ARCHIVE) {
+                uint64_t offset = r.get<uint64_t>();
+                uint64_t size = r.get<uint64_t>();
+                if (!mapping_ || !archive_matches || offset > mapping_->size() ||
+                    size > mapping_->size() - offset) {
+                    r.fail();
+                } else if (size > 0) {
+                    e->content.set_slice(mapping_, mapping_->data() + offset, static_cast<size_t>(size));
+                }
+            } else {
+                size_t size = 0;
+                const uint8_t* data = r.get_blob(size);
+                if (size > 0) e->content.assign(data, data + size);
+            }
+            uint32_t children = r.get_count(8);
+            if (children > 0 && !e->is_dir()) r.fail();
+            for (uint32_t i = 0; i < children && !r.failed(); i++) {
+                std::string name = r.get_string();
+                uint32_t id = r.get<uint32_t>();
+                // Only files may have several names (hard links)
+                if (id == 0 || id >= count || (entries[id] == e) ||
+                    (++parents[id] > 1 && entries[id]->is_dir())) {
+                    r.fail();
+                    break;
+                }
+                e->children.emplace(std::move(name), entries[id]);
+            }
+            if (r.failed()) break;
+        }
+
+        uint32_t files = r.get_count(24);
+        for (uint32_t i = 0; i < files && !r.failed(); i++) {
+            int fd = r.get<int32_t>();
+            uint32_t id = r.get<uint32_t>();
+            uint64_t offset = r.get<uint64_t>();
+            int flags = r.get<int32_t>();
+            std::string path = r.get_string();
+            if (id >= count) {
+                r.fail();
+                break;
+            }
+            auto fh = std::make_unique<FileHandle>(entries[id], flags, path);
+            fh->offset = offset;
+            out.open_files[fd] = std::move(fh);
+        }
+        uint32_t dirs = r.get_count(24);
+        for (uint32_t i = 0; i < dirs && !r.failed(); i++) {
+            int fd = r.get<int32_t>();
+            uint32_t id = r.get<uint32_t>();
+            uint64_t index = r.get<uint64_t>();
+            std::string path = r.get_string();
+            if (id >= count) {
+                r.fail();
+                break;
+            }
+            auto dh = std::make_unique<DirHandle>(entries[id], path);
+            dh->names.resize(r.get_count(4));
+            for (auto& name : dh->names) name = r.get_string();
+            dh->index = static_cast<size_t>(index);
+            out.open_dirs[fd] = std::move(dh);
+        }
+
+        // Every named entry must hang off the root, or off a removed entry
+        // still held by an fd; anything else is a cycle of directories
+        if (!r.failed() && entries[0]->is_dir()) {
+            std::vector<bool> reached(count, false);
+            std::vector<uint32_t> pending{0};
+            std::unordered_map<const Entry*, uint32_t> ids;
+            for (uint32_t id = 0; id < count; id++) ids.emplace(entries[id].get(), id);
+            auto reach_unnamed = [&](const std::shared_ptr<Entry>& e) {
+                uint32_t id = ids.at(e.get());
+                if (parents[id] == 0) pending.push_back(id);
+            };
+            for (const auto& [_, fh] : out.open_files) reach_unnamed(fh->entry);
+            for (const auto& [_, dh] : out.open_dirs) reach_unnamed(dh->entry);
+            while (!pending.empty()) {
+                uint32_t id = pending.back();
+                pending.pop_back();
+                if (reached[id]) continue;
+                reached[id] = true;
+                for (const auto& [_, child] : entries[id]->children) pending.push_back(ids.at(child.get()));
+            }
+            for (uint32_t id = 0; id < count; id++) {
+                if (parents[id] > 0 && !reached[id]) r.fail();
+            }
+        } else {
+            r.fail();
+        }
+
+        if (r.failed()) {
+            // Break any cycles so the entries are freed
+            for (auto& e : entries) e->children.clear();
+            out = State{};
+            error = "corrupt filesystem state";
+            return false;
+        }
+        out.root = entries[0];
+        return true;
+    }
+
+    // Replace the tree, working directory and open fds with a decoded state
+    void commit_state(State&& state) {
+        root_ = std::move(state.root);
+        cwd_ = std::move(state.cwd);
+        next_fd_ = state.next_fd;
+        open_files_ = std::move(state.open_files);
+        open_dirs_ = std::move(state.open_dirs);
+        resolve_cache_.clear();
+        resolve_nofollow_cache_.clear();
+    }
+
     // Serialize the VFS tree to a POSIX tar archive
     std::vector<uint8_t> save_tar() {
         std::vector<uint8_t> out;
@@ -786,6 +1386,192 @@ private:
     std::unordered_map<int, std::unique_ptr<FileHandle>> open_files_;
     std::unordered_map<int, std::unique_ptr<DirHandle>> open_dirs_;
 
+    // How save_state() stores a file's contents
+    static constexpr uint8_t CONTENT_INLINE = 0;   // The bytes themselves
+    static constexpr uint8_t CONTENT_ARCHIVE = 1;  // Offset and size in the mapped archive
+
+    // Archive the tree is materialized from (see load_tar)
+    std::shared_ptr<const TarIndex> index_;
+    std::shared_ptr<const Mapping> mapping_;  // null if contents are copied
+    const uint8_t* index_data_ = nullptr;
+    bool index_loaded_ = false;
+
+    // Children of dir, creating them from the tar index on first access
+    std::unordered_map<std::string, std::shared_ptr<Entry>>& children(Entry& dir) {
+        if (dir.pending_dir >= 0) materialize_dir(dir);
+        return dir.children;
+    }
+
+    void materialize_dir(Entry& dir) {
+        int32_t id = dir.pending_dir;
+        dir.pending_dir = -1;
+        if (!index_ || id >= static_cast<int32_t>(index_->dir_children.size())) return;
+
+        for (uint32_t record_id : index_->dir_children[id]) {
+            const auto& r = index_->records[record_id];
+            std::string name = r.path.substr(r.path.rfind('/') + 1);
+            // Keep entries created since loading, e.g. virtual /etc files
+            if (dir.children.count(name)) continue;
+
+            auto entry = std::make_shared<Entry>();
+            entry->name = name;
+            entry->type = r.type;
+            entry->mode = r.mode;
+            entry->uid = r.uid;
+            entry->gid = r.gid;
+            entry->size = r.size;
+            entry->mtime = r.mtime;
+            entry->link_target = r.link_target;
+            entry->pending_dir = r.dir;
+            if (r.type == FileType::Regular && r.size > 0 &&
+                r.data_offset + r.size <= index_->archive_size) {
+                const uint8_t* data = index_data_ + r.data_offset;
+                if (mapping_) {
+                    entry->content.set_slice(mapping_, data, r.size);
+                } else {
+                    entry->content.assign(data, data + r.size);
+                }
+            }
+            dir.children.emplace(std::move(name), std::move(entry));
+        }
+    }
+
+    void materialize_tree(Entry& dir) {
+        for (auto& [_, child] : children(dir)) {
+            if (child->is_dir()) materialize_tree(*child);
+        }
+    }
+
+    // --- Resolved-path cache ---
+
+    struct CachedPath {
+        std::weak_ptr<Entry> entry;  // Empty for a cached ENOENT
+        bool found;
+        uint64_t generation;  // removed_generation_ if found, else added_generation_
+    };
+    using PathCache = std::unordered_map<std::string, CachedPath>;
+
+    PathCache resolve_cache_;
+    PathCache resolve_nofollow_cache_;
+    size_t resolve_cache_capacity_ = kDefaultResolveCacheCapacity;
+    uint64_t added_generation_ = 0;    // Bumped when a name is added
+    uint64_t removed_generation_ = 0;  // Bumped when a name is removed or replaced
+    std::atomic<uint64_t> stats_hits_{0};
+    std::atomic<uint64_t> stats_negative_hits_{0};
+    std::atomic<uint64_t> stats_misses_{0};
+    std::atomic<uint64_t> stats_invalidations_{0};
+
+    bool lookup_cached(const PathCache& cache, const std::string& abs_path,
+                       std::shared_ptr<Entry>& out) {
+        auto it = cache.find(abs_path);
+        if (it != cache.end()) {
+            const auto& cached = it->second;
+            if (!cached.found && cached.generation == added_generation_) {
+                stats_hits_.fetch_add(1, std::memory_order_relaxed);
+                stats_negative_hits_.fetch_add(1, std::memory_order_relaxed);
+                out = nullptr;
+                return true;
+            }
+            if (cached.found && cached.generation == removed_generation_) {
+                out = cached.entry.lock();
+                if (out) {
+                    stats_hits_.fetch_add(1, std::memory_order_relaxed);
+                    return true;
+                }
+            }
+        }
+        stats_misses_.fetch_add(1, std::memory_order_relaxed);
+        return false;
+    }
+
+    void store_cached(PathCache& cache, const std::string& abs_path,
+                      const std::shared_ptr<Entry>& entry) {
+        if (resolve_cache_capacity_ == 0) return;
+        // Startup probes are mostly distinct paths, so dropping everything
+        // when full works as well as tracking recency and costs nothing per hit
+        if (cache.size() >= resolve_cache_capacity_ && !cache.count(abs_path)) {
+            cache.clear();
+        }
+        cache[abs_path] = CachedPath{entry, entry != nullptr,
+                                     entry ? removed_generation_ : added_generation_};
+    }
+
+    // Record a change to the namespace, making the affected cached results stale
+    void names_changed(bool added, bool removed) {
+        if (added) added_generation_++;
+        if (removed) removed_generation_++;
+        stats_invalidations_.fetch_add(1, std::memory_order_relaxed);
+    }
+
+    std::shared_ptr<Entry> resolve_walk(const std::string& abs_path, int max_depth) {
+        // Split path into components
+        std::vector<std::string> parts;
+        size_t start = 1;
+        while (start < abs_path.size()) {
+            size_t end = abs_path.find('/', start);
+            if (end == std::string::npos) end = abs_path.size();
+            if (end > start) {
+                parts.push_back(abs_path.substr(start, end - start));
+            }
+            start = end + 1;
+        }
+
+        // Traverse
+        auto current = root_;
+        std::string current_path = "";
+
+        for (size_t i = 0; i < parts.size(); i++) {
+            const auto& part = parts[i];
+
+            if (!current || !current->is_dir()) {
+                return nullptr;  // Not a directory
+            }
+
+            if (part == ".") {
+                continue;
+            } else if (part == "..") {
+                // Go up - find parent
+                size_t last_slash = current_path.rfind('/');
+                if (last_slash != std::string::npos) {
+                    current_path = current_path.substr(0, last_slash);
+                    current = resolve_no_symlink(current_path.empty() ? "/" : current_path);
+                }
+                continue;
+            }
+
+            auto& current_children = children(*current);
+            auto it = current_children.find(part);
+            if (it == current_children.end()) {
+                return nullptr;  // Not found
+            }
+
+            current = it->second;
+            current_path += "/" + part;
+
+            // Handle symlinks
+            if (current->is_symlink() && max_depth > 0) {
+                std::string target = current->link_target;
+                if (!target.starts_with("/")) {
+                    // Relative symlink
+                    size_t last_slash = current_path.rfind('/');
+                    if (last_slash != std::string::npos) {
+                        target = current_path.substr(0, last_slash) + "/" + target;
+                    }
+                }
+
+                // Resolve the symlink target + remaining path
+                std::string remaining;
+                for (size_t j = i + 1; j < parts.size(); j++) {
+                    remaining += "/" + parts[j];
+                }
+
+                return resolve_walk(target + remaining, max_depth - 1);
+            }
+        }
+
+        return current;
+    }
+
     // Create a new regular file, returns null if parent doesn't exist
     std::shared_ptr<Entry> create_file(const std::string& path) {
         std::string abs_path = make_absolute(path);
@@ -806,14 +1592,6 @@ private:
         return entry;
     }
 
-    static uint64_t parse_octal(const uint8_t* p, size_t len) {
-        uint64_t val = 0;
-        for (size_t i = 0; i < len && p[i] >= '0' && p[i] <= '7'; i++) {
-            val = val * 8 + (p[i] - '0');
-        }
-        return val;
-    }
-
     std::string make_absolute(const std::string& path) {
         if (path.empty()) return cwd_;
         if (path[0] == '/') return path;
@@ -825,6 +1603,15 @@ private:
         std::string abs_path = make_absolute(path);
         if (abs_path == "/") return root_;
 
+        std::shared_ptr<Entry> entry;
+        if (lookup_cached(resolve_nofollow_cache_, abs_path, entry)) return entry;
+        entry = resolve_no_symlink_walk(abs_path);
+        store_cached(resolve_nofollow_cache_, abs_path, entry);
+        return entry;
+    }
+
+    std::shared_ptr<Entry> resolve_no_symlink_walk(const std::string& abs_path) {
+
         std::vector<std::string> parts;
         size_t start = 1;
         while (start < abs_path.size()) {
@@ -848,8 +1635,9 @@ private:
                 current = stack.back();
                 continue;
             }
-            auto it = current->children.find(part);
-            if (it == current->children.end()) return nullptr;
+            auto& current_children = children(*current);
+            auto it = current_children.find(part);
+            if (it == current_children.end()) return nullptr;
             current = it->second;
             stack.push_back(current);
         }
@@ -890,13 +1678,14 @@ private:
             }
 
             for (const auto& part : parts) {
-                auto it = parent->children.find(part);
-                if (it == parent->children.end()) {
+                auto& parent_children = children(*parent);
+                auto it = parent_children.find(part);
+                if (it == parent_children.end()) {
                     auto dir = std::make_shared<Entry>();
                     dir->name = part;
                     dir->type = FileType::Directory;
                     dir->mode = 0755;
-                    parent->children[part] = dir;
+                    parent_children[part] = dir;
                     parent = dir;
                 } else {
                     parent = it->second;
@@ -904,7 +1693,10 @@ private:
             }
         }
 
-        parent->children[name] = entry;
+        auto& siblings = children(*parent);
+        auto [it, added] = siblings.try_emplace(name, entry);
+        if (!added) it->second = entry;
+        names_changed(true, !added);
     }
 
     // --- Tar serialization helpers ---
@@ -1069,14 +1861,15 @@ private:
                             const std::string& prefix) {
         // Collect and sort children for deterministic output
         std::vector<std::string> names;
-        names.reserve(node->children.size());
-        for (const auto& [name, _] : node->children) {
+        auto& node_children = children(*node);
+        names.reserve(node_children.size());
+        for (const auto& [name, _] : node_children) {
             names.push_back(name);
         }
         std::sort(names.begin(), names.end());
 
         for (const auto& name : names) {
-            auto& child = node->children.at(name);
+            auto& child = node_children.at(name);
             std::string child_path = prefix.empty() ? name : prefix + "/" + name;
 
             // Emit tar header for this entry
@@ -12,24 +12,39 @@
  *      a RISC-V machine (with dynamic linker if needed), installs
  *      syscall handlers, and spawns an execution thread
  *   3. The execution thread runs machine.simulate() in a loop:
- *      - When the guest reads stdin and no data is available, the
- *        syscall handler calls machine.stop() and sets waiting_for_stdin
- *      - The execution thread then blocks on a condition variable
- *      - nativeSendInput() pushes data to the stdin buffer and wakes
- *        the execution thread, which calls machine.simulate() again
+ *      - Guest threads take turns: with more than one, each simulate()
+ *        call runs the current thread for at most a quantum, and the loop
+ *        then switches to the next (see syscalls::ThreadScheduler)
+ *      - When a thread has to wait (a read of empty stdin, or a ppoll,
+ *        epoll_pwait, nanosleep or futex wait with nothing ready), the
+ *        syscall handler records the wait and its deadline and switches
+ *        to another thread (see syscalls::GuestWait)
+ *      - When no thread can run, the handler stops the machine and the
+ *        execution thread parks on the reactor (friscy/reactor.hpp) until
+ *        input, socket readiness, a deadline, or a stop or pause request
+ *      - It then calls machine.simulate() again, and waiting threads
+ *        make their calls again with the deadlines they started with
  *   4. nativeStop() signals the execution thread to exit
+ *   5. nativeSaveSnapshot() and nativeRestoreSnapshot() on a running
+ *      machine ask the execution thread to stop at an instruction
+ *      boundary, copy or replace the machine state, and resume; a copy
+ *      is written on the caller's thread
  */
 
 #include <jni.h>
 #include <android/log.h>
 
+#include <algorithm>
+#include <chrono>
 #include <string>
 #include <vector>
 #include <mutex>
 #include <thread>
 #include <condition_variable>
+#include <cerrno>
 #include <cstring>
 #include <memory>
+#include <functional>
 #include <unordered_map>
 
 #include <libriscv/machine.hpp>
@@ -40,6 +55,8 @@
 #include "friscy/elf_loader.hpp"
 #include "friscy/syscalls.hpp"
 #include "friscy/network.hpp"
+#include "friscy/snapshot.hpp"
+#include "friscy/machine_state.hpp"
 
 #define LOG_TAG "friscy"
 #define LOGI(...) __android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
@@ -60,65 +77,236 @@ static constexpr uint32_t MEMORY_SYSCALLS_BASE = 485;
 
 static JavaVM* g_jvm = nullptr;
 static jobject g_callback_obj = nullptr;
-static jmethodID g_on_output_method = nullptr;
+static jmethodID g_on_output_available_method = nullptr;
+static jobject g_output_buffer = nullptr;  // direct ByteBuffer backing the output ring
 static std::mutex g_callback_mutex;
 
 // Machine and VFS (owned by the runtime, accessed from execution thread)
 static std::unique_ptr<Machine> g_machine;
 static std::unique_ptr<vfs::VirtualFS> g_vfs;
 static std::thread g_exec_thread;
+static std::thread g_flush_thread;
+
+// Resolved-path cache size for the next VFS (see nativeSetResolveCacheCapacity)
+static size_t g_resolve_cache_capacity = vfs::VirtualFS::kDefaultResolveCacheCapacity;
+
+// Serializes nativeStart, nativeStop, nativeDestroy and the snapshot calls,
+// so the execution thread is not started or stopped while a snapshot task
+// waits for it, and the machine is not destroyed under a capture or restore.
+static std::mutex g_lifecycle_mutex;
+
+// Pause handshake for snapshots: run_paused() sets g_pause_task and stops
+// the machine; the execution thread runs the task between two simulate()
+// calls, clears it and resumes the guest.
+static std::mutex g_pause_mutex;
+static std::condition_variable g_pause_cv;
+static std::atomic<bool> g_pause_requested{false};
+static std::function<void()> g_pause_task;
+// Guest instructions executed since the machine was loaded
+static std::atomic<uint64_t> g_instructions_executed{0};
+
+#ifdef FRISCY_BINARY_TRANSLATION
+// Binary translation for the next machine (see nativeSetBinaryTranslation)
+static bool g_translate = false;
+static std::string g_translation_cache_dir;
+#endif
+
+// Times the guest has blocked reading stdin since the machine was loaded.
+// The first is when a shell or REPL has printed its prompt, which is what
+// nativeAwaitInputWait reports as time to prompt.
+static std::mutex g_input_wait_mutex;
+static std::condition_variable g_input_wait_cv;
+static uint64_t g_input_waits = 0;
+
+static void note_input_wait() {
+    {
+        std::lock_guard<std::mutex> lock(g_input_wait_mutex);
+        g_input_waits++;
+    }
+    g_input_wait_cv.notify_all();
+}
+
+// Whether capture may skip arena pages the pagemap shows as never touched.
+// Not after a restore mapped pages from a file, which are not resident yet.
+static bool g_capture_only_touched = true;
+
+// Set when a snapshot restore failed after it had started changing the
+// machine. Such a machine is never run again; it has to be loaded anew.
+static std::atomic<bool> g_machine_damaged{false};
 
 // ============================================================================
 // JNI Output Callback
 // ============================================================================
 
-static void send_to_java(const char* data, size_t len) {
+// Called by android_io::write_output() when the output ring has new bytes.
+// The Kotlin callback drains the ring before returning.
+static bool notify_java() {
     std::lock_guard<std::mutex> lock(g_callback_mutex);
-    if (!g_jvm || !g_callback_obj || !g_on_output_method || len == 0) return;
+    if (!g_jvm || !g_callback_obj || !g_on_output_available_method) return false;
 
     JNIEnv* env = nullptr;
     bool attached = false;
 
     jint res = g_jvm->GetEnv(reinterpret_cast<void**>(&env), JNI_VERSION_1_6);
     if (res == JNI_EDETACHED) {
-        if (g_jvm->AttachCurrentThread(&env, nullptr) != 0) return;
+        if (g_jvm->AttachCurrentThread(&env, nullptr) != 0) return false;
         attached = true;
     }
 
     if (env) {
-        // Handle potential non-UTF8 data by replacing invalid bytes
-        std::string str(data, len);
-        jstring jstr = env->NewStringUTF(str.c_str());
-        if (jstr) {
-            env->CallVoidMethod(g_callback_obj, g_on_output_method, jstr);
-            env->DeleteLocalRef(jstr);
+        env->CallVoidMethod(g_callback_obj, g_on_output_available_method);
+        if (env->ExceptionCheck()) {
+            env->ExceptionDescribe();
+            env->ExceptionClear();
         }
     }
 
     if (attached) {
         g_jvm->DetachCurrentThread();
     }
+    return true;
+}
+
+// Write runtime messages to the terminal and deliver them right away
+static void emit_output(const char* data, size_t len) {
+    android_io::write_output(reinterpret_cast<const uint8_t*>(data), len);
+    android_io::flush_output();
 }
 
-// libriscv printer callback (raw function pointer — no captures)
+// libriscv printer callback (raw function pointer — no captures).
+// Guest output is written unchanged (no String conversion, so UTF-8
+// sequences and NULs arrive exactly as the guest wrote them) and batched.
 static void friscy_printer(const Machine&, const char* data, size_t size) {
-    send_to_java(data, size);
+    android_io::write_output(reinterpret_cast<const uint8_t*>(data), size);
+}
+
+// ============================================================================
+// Output Flush Thread
+// ============================================================================
+
+// Flushes batched guest output output_flush_interval_us after the first
+// write that did not reach the size threshold. Stays attached to the JVM
+// so flushes do not pay for AttachCurrentThread.
+static void output_flush_loop() {
+    JNIEnv* env = nullptr;
+    bool attached = g_jvm && g_jvm->AttachCurrentThread(&env, nullptr) == 0;
+
+    std::unique_lock<std::mutex> lock(android_io::output_flush_mutex);
+    while (android_io::running.load()) {
+        android_io::output_flush_cv.wait(lock, [] {
+            return android_io::output_flush_armed.load() || !android_io::running.load();
+        });
+        // Let more writes accumulate for one interval, then flush them together
+        auto interval = std::chrono::microseconds(
+            android_io::output_flush_interval_us.load(std::memory_order_relaxed));
+        android_io::output_flush_cv.wait_for(lock, interval, [] {
+            return !android_io::running.load();
+        });
+        android_io::output_flush_armed.store(false);
+        lock.unlock();
+        android_io::flush_output();
+        lock.lock();
+    }
+    lock.unlock();
+    android_io::flush_output();
+
+    if (attached) {
+        g_jvm->DetachCurrentThread();
+    }
 }
 
 // ============================================================================
 // Execution Thread
 // ============================================================================
 
+// Copy the machine state for a snapshot. The guest must not be running.
+static std::unique_ptr<snapshot::Capture> capture_machine() {
+    auto& cpu = g_machine->cpu;
+    auto& mem = g_machine->memory;
+    auto capture = snapshot::capture(
+        &cpu.registers(), static_cast<uint32_t>(sizeof(cpu.registers())),
+        static_cast<const uint8_t*>(mem.memory_arena_ptr()), mem.memory_arena_size(),
+        g_machine->instruction_counter(), g_capture_only_touched);
+    capture->state = machine_state::save(*g_machine, *g_vfs);
+    return capture;
+}
+
+// Run the task of run_paused(), if there is one
+static void service_pause() {
+    if (!g_pause_requested.load()) return;
+
+    std::lock_guard<std::mutex> lock(g_pause_mutex);
+    if (g_pause_task) {
+        g_pause_task();
+        g_pause_task = nullptr;
+    }
+    g_pause_requested.store(false);
+    g_pause_cv.notify_all();
+}
+
+// Run task with the guest stopped at an instruction boundary: on the
+// execution thread if it is running, otherwise here once that thread has
+// exited. Returns the time the guest was paused for, in microseconds (0 if
+// it was not running). Called with g_lifecycle_mutex held.
+static int64_t run_paused(const std::function<void()>& task) {
+    std::unique_lock<std::mutex> lock(g_pause_mutex);
+    if (android_io::running.load()) {
+        int64_t us = 0;
+        g_pause_task = [&task, &us] {
+            auto start = std::chrono::steady_clock::now();
+            task();
+            us = std::chrono::duration_cast<std::chrono::microseconds>(
+                std::chrono::steady_clock::now() - start).count();
+        };
+        // Stop the guest, or wake it if it is waiting for stdin. Repeat the
+        // stop in case it landed between two simulate() calls and was lost.
+        g_pause_requested.store(true);
+        while (g_pause_task && android_io::running.load()) {
+            g_machine->stop();
+            reactor::g_reactor.wake();
+            g_pause_cv.wait_for(lock, std::chrono::milliseconds(1));
+        }
+        g_pause_requested.store(false);
+        if (!g_pause_task) return us;
+        // Execution stopped before running the task
+        g_pause_task = nullptr;
+    }
+    lock.unlock();
+    // running is cleared before the execution thread leaves simulate() when
+    // stopping, and before it is done with the machine when the guest exits
+    if (g_exec_thread.joinable()) g_exec_thread.join();
+    task();
+    return 0;
+}
+
+// Milliseconds to park for a wait with deadline_ns (-1 for no limit),
+// rounded up so the guest does not wake just before its deadline
+static int park_timeout_ms(int64_t deadline_ns) {
+    if (deadline_ns < 0) return -1;
+    int64_t left = deadline_ns - syscalls::steady_now_ns();
+    if (left <= 0) return 0;
+    return static_cast<int>(std::min<int64_t>((left + 999999) / 1000000, INT32_MAX));
+}
+
 static void execution_loop() {
     LOGI("Execution thread started");
 
+    // Stay attached for the thread's lifetime, so output notifications do
+    // not attach and detach on every flush
+    JNIEnv* env = nullptr;
+    bool attached = g_jvm && g_jvm->AttachCurrentThread(&env, nullptr) == 0;
+
     while (android_io::running.load()) {
         try {
-            // Run until the machine stops (stdin wait, exit, or exception)
-            // Retry on page faults by making the faulting page writable
+            // Run until the machine stops (a wait, exit, or exception) or
+            // the current thread's quantum ends. Retry on page faults by
+            // making the faulting page writable
             for (int retries = 0; retries < 8; retries++) {
                 try {
-                    g_machine->simulate(MAX_INSTRUCTIONS);
+                    bool threads = syscalls::g_sched.count > 1;
+                    g_machine->simulate<false>(threads ? syscalls::THREAD_QUANTUM : MAX_INSTRUCTIONS);
+                    g_instructions_executed.fetch_add(
+                        g_machine->instruction_counter(), std::memory_order_relaxed);
                     // execve: machine.stop() signals new binary loaded
                     if (syscalls::g_execve_restart) {
                         syscalls::g_execve_restart = false;
@@ -143,50 +331,79 @@ static void execution_loop() {
                 }
             }
 
-            if (android_io::waiting_for_stdin.load()) {
-                // Machine stopped because stdin has no data.
-                // Wait for input from the Java side.
-                android_io::waiting_for_stdin.store(false);
-
-                std::unique_lock<std::mutex> lock(android_io::stdin_mutex);
-                android_io::stdin_cv.wait(lock, [] {
-                    return !android_io::stdin_buffer.empty() ||
-                           android_io::stdin_eof.load() ||
-                           !android_io::running.load();
-                });
-
-                if (!android_io::running.load()) {
+            // Still running: the quantum ended, so it is the next thread's turn
+            if (!g_machine->stopped()) syscalls::preempt(*g_machine);
+            service_pause();
+            if (!android_io::running.load()) break;  // Stopped, or a restore failed
+
+            if (syscalls::g_sched.idle) {
+                // No guest thread can run. Show everything written so far
+                // (e.g. the prompt), then park until what a blocked thread
+                // waits for may be ready, the earliest deadline, or a stop
+                // or pause request.
+                bool stopping = false;
+                for (bool parked = false; !syscalls::resume_idle(*g_machine, parked); parked = true) {
+                    android_io::flush_output();
+                    auto wait = syscalls::idle_wait();
+                    if (wait.input) note_input_wait();
+                    syscalls::g_sched_stats.count(syscalls::g_sched_stats.idle_parks);
+
+                    int timeout_ms = park_timeout_ms(wait.deadline_ns);
+                    if (timeout_ms != 0) reactor::g_reactor.park(wait.host_fds, timeout_ms);
+
+                    service_pause();
+                    if (!android_io::running.load()) {
+                        stopping = true;
+                        break;
+                    }
+                }
+                if (stopping) {
                     LOGI("Execution thread: stop signal received");
                     break;
                 }
-                // Data arrived — resume machine (the ecall will re-execute)
-            } else {
-                // Machine exited normally (sys_exit or completed)
+                // Resume the machine; blocked threads' ecalls re-execute
+            } else if (syscalls::g_guest_exited) {
+                // Machine exited normally (sys_exit)
                 auto exit_code = g_machine->return_value<int>();
                 LOGI("Program exited with code: %d", exit_code);
                 std::string msg = "\r\n[friscy] Program exited with code: " +
                                   std::to_string(exit_code) + "\r\n";
-                send_to_java(msg.c_str(), msg.size());
+                emit_output(msg.c_str(), msg.size());
                 break;
             }
+            // Otherwise stopped for a snapshot or by nativeStop — the loop
+            // condition decides whether to resume
         } catch (const riscv::MachineException& e) {
             LOGE("RISC-V machine exception: %s (data: 0x%lX, pc: 0x%lX)",
                  e.what(), (unsigned long)e.data(),
                  (unsigned long)g_machine->cpu.pc());
             std::string err = "\r\n\033[31m[friscy error] " +
                               std::string(e.what()) + "\033[0m\r\n";
-            send_to_java(err.c_str(), err.size());
+            emit_output(err.c_str(), err.size());
             break;
         } catch (const std::exception& e) {
             LOGE("Exception: %s", e.what());
             std::string err = "\r\n\033[31m[friscy error] " +
                               std::string(e.what()) + "\033[0m\r\n";
-            send_to_java(err.c_str(), err.size());
+            emit_output(err.c_str(), err.size());
             break;
         }
     }
 
     android_io::running.store(false);
+    android_io::wake_output_flusher();
+    android_io::flush_output();
+    g_pause_cv.notify_all();
+    g_input_wait_cv.notify_all();
+
+    auto stats = g_vfs->resolve_stats();
+    LOGI("Path resolution: %llu cached (%llu ENOENT), %llu walked, %llu invalidations",
+         (unsigned long long)stats.hits, (unsigned long long)stats.negative_hits,
+         (unsigned long long)stats.misses, (unsigned long long)stats.invalidations);
+
+    if (attached) {
+        g_jvm->DetachCurrentThread();
+    }
     LOGI("Execution thread finished");
 }
 
@@ -302,21 +519,15 @@ Java_com_example_c2wdemo_FriscyRuntime_nativeInit(JNIEnv* env, jclass clazz) {
     return JNI_TRUE;
 }
 
-/**
- * Load a rootfs tar archive into the in-memory VFS, find the entry binary,
- * create a RISC-V machine with dynamic linking support, and install syscalls.
- *
- * @param tarBytes The rootfs tar archive bytes
- * @param entryPath The entry binary path (e.g., "/bin/sh")
- * @param callback Output callback for terminal output
- * @return true on success
- */
-JNIEXPORT jboolean JNICALL
-Java_com_example_c2wdemo_FriscyRuntime_nativeLoadRootfs(
-    JNIEnv* env, jclass clazz,
-    jbyteArray tarBytes, jstring entryPath, jobject callback) {
+// Store the output ring and its callback for a new session.
+static bool attach_output(JNIEnv* env, jobject outputRing, jobject callback) {
+    auto* ring_data = static_cast<uint8_t*>(env->GetDirectBufferAddress(outputRing));
+    jlong ring_capacity = env->GetDirectBufferCapacity(outputRing);
+    if (!ring_data || ring_capacity <= 0 || (ring_capacity & (ring_capacity - 1)) != 0) {
+        LOGE("Output ring must be a direct buffer with a power of two capacity");
+        return false;
+    }
 
-    // Store callback
     {
         std::lock_guard<std::mutex> lock(g_callback_mutex);
         if (g_callback_obj) {
@@ -324,32 +535,44 @@ Java_com_example_c2wdemo_FriscyRuntime_nativeLoadRootfs(
         }
         g_callback_obj = env->NewGlobalRef(callback);
         jclass cls = env->GetObjectClass(callback);
-        g_on_output_method = env->GetMethodID(cls, "onOutput", "(Ljava/lang/String;)V");
-    }
-
-    // Get tar bytes
-    jsize tar_len = env->GetArrayLength(tarBytes);
-    LOGI("Loading rootfs tar: %d bytes", tar_len);
+        g_on_output_available_method = env->GetMethodID(cls, "onOutputAvailable", "()V");
 
-    jbyte* tar_data = env->GetByteArrayElements(tarBytes, nullptr);
-    if (!tar_data) {
-        LOGE("Failed to get tar byte array");
-        return JNI_FALSE;
+        if (g_output_buffer) {
+            env->DeleteGlobalRef(g_output_buffer);
+        }
+        g_output_buffer = env->NewGlobalRef(outputRing);
     }
+    android_io::output_notify = notify_java;
+    android_io::set_output_ring(ring_data, static_cast<size_t>(ring_capacity));
+    return true;
+}
 
-    // Get entry path string
-    const char* entry_cstr = env->GetStringUTFChars(entryPath, nullptr);
-    std::string entry_path(entry_cstr);
-    env->ReleaseStringUTFChars(entryPath, entry_cstr);
+static std::string jstring_to_string(JNIEnv* env, jstring str) {
+    if (!str) return {};
+    const char* chars = env->GetStringUTFChars(str, nullptr);
+    std::string result(chars);
+    env->ReleaseStringUTFChars(str, chars);
+    return result;
+}
 
+// Find the entry binary in the rootfs now in g_vfs, create a RISC-V machine
+// with dynamic linking support, and install syscalls.
+static jboolean load_machine(const std::string& entry_path) {
     try {
-        // Reset state
-        android_io::reset();
-
-        // Load tar into VFS
-        g_vfs = std::make_unique<vfs::VirtualFS>();
-        g_vfs->load_tar(reinterpret_cast<const uint8_t*>(tar_data), tar_len);
-        env->ReleaseByteArrayElements(tarBytes, tar_data, JNI_ABORT);
+        g_vfs->set_resolve_cache_capacity(g_resolve_cache_capacity);
+        syscalls::g_guest_exited = false;
+        g_capture_only_touched = true;
+        g_machine_damaged.store(false);
+        {
+            std::lock_guard<std::mutex> lock(g_input_wait_mutex);
+            g_input_waits = 0;
+        }
+        g_instructions_executed.store(0, std::memory_order_relaxed);
+        syscalls::handlers::clear_epoll();
+        syscalls::g_sched_stats.reset();
+        if (!reactor::g_reactor.open()) {
+            LOGE("Cannot create the epoll wakeup eventfd: %s", strerror(errno));
+        }
 
         // Setup virtual /proc, /dev, /etc files (synced from standalone)
         setup_virtual_files(*g_vfs);
@@ -362,7 +585,7 @@ Java_com_example_c2wdemo_FriscyRuntime_nativeLoadRootfs(
         if (resolved_entry.empty()) {
             LOGE("Entry not found in VFS: %s", entry_path.c_str());
             std::string msg = "[friscy] Entry not found: " + entry_path + "\n";
-            send_to_java(msg.c_str(), msg.size());
+            emit_output(msg.c_str(), msg.size());
             return JNI_FALSE;
         }
 
@@ -379,6 +602,7 @@ Java_com_example_c2wdemo_FriscyRuntime_nativeLoadRootfs(
         bool use_dynamic_linker = exec_info.is_dynamic &&
                                   !exec_info.interpreter.empty();
 
+        std::string interp_resolved;
         std::vector<uint8_t> interp_binary;
         elf::ElfInfo interp_info{};
         uint64_t interp_base = 0;
@@ -387,7 +611,7 @@ Java_com_example_c2wdemo_FriscyRuntime_nativeLoadRootfs(
             LOGI("Dynamic binary, interpreter: %s", exec_info.interpreter.c_str());
 
             // Read interpreter from VFS
-            std::string interp_resolved = resolve_vfs_path(*g_vfs, exec_info.interpreter);
+            interp_resolved = resolve_vfs_path(*g_vfs, exec_info.interpreter);
             if (interp_resolved.empty()) {
                 LOGE("Interpreter not found: %s", exec_info.interpreter.c_str());
                 return JNI_FALSE;
@@ -407,6 +631,19 @@ Java_com_example_c2wdemo_FriscyRuntime_nativeLoadRootfs(
         riscv::MachineOptions<riscv::RISCV64> options{
             .memory_max = 512ull << 20,  // 512MB
         };
+#ifdef FRISCY_BINARY_TRANSLATION
+        // Translate the entry binary's execute segment. libriscv names
+        // translations by a hash of the segment and looks for one under the
+        // prefix before translating, so each image gets its own directory.
+        options.translate_enabled = g_translate;
+        options.translate_timing = true;
+        if (g_translate && !g_translation_cache_dir.empty()) {
+            options.translation_cache = true;
+            options.translation_prefix = g_translation_cache_dir + "/segment-";
+            options.translation_suffix = ".so";
+        }
+        LOGI("Binary translation: %s", g_translate ? "on" : "off");
+#endif
         g_machine = std::make_unique<Machine>(binary, options);
 
         // If dynamic, load interpreter and set up auxiliary vector
@@ -456,9 +693,11 @@ Java_com_example_c2wdemo_FriscyRuntime_nativeLoadRootfs(
 
         // Save execution context for execve support
         syscalls::g_exec_ctx.exec_binary = binary;
+        syscalls::g_exec_ctx.exec_path = resolved_entry;
         syscalls::g_exec_ctx.exec_info = exec_info;
         if (use_dynamic_linker) {
             syscalls::g_exec_ctx.interp_binary = interp_binary;
+            syscalls::g_exec_ctx.interp_path = interp_resolved;
             syscalls::g_exec_ctx.interp_base = interp_base;
             syscalls::g_exec_ctx.interp_entry = g_machine->cpu.pc();
             syscalls::g_exec_ctx.dynamic = true;
@@ -494,7 +733,7 @@ Java_com_example_c2wdemo_FriscyRuntime_nativeLoadRootfs(
             return net::get_network_ctx().get_native_fd(fd);
         };
 
-        // Initialize cooperative thread scheduler (for CLONE_THREAD support)
+        // Reset the thread scheduler to the main thread (for CLONE_THREAD support)
         syscalls::g_sched = {};
         syscalls::g_fork = {};
         syscalls::g_next_pid = 100;
@@ -579,17 +818,103 @@ Java_com_example_c2wdemo_FriscyRuntime_nativeLoadRootfs(
         LOGI("Machine ready, entry: %s", entry_path.c_str());
         std::string msg = "[friscy] Loaded " + entry_path + " (" +
                           std::to_string(binary.size()) + " bytes)\r\n";
-        send_to_java(msg.c_str(), msg.size());
+        emit_output(msg.c_str(), msg.size());
 
         return JNI_TRUE;
 
     } catch (const std::exception& e) {
-        env->ReleaseByteArrayElements(tarBytes, tar_data, JNI_ABORT);
         LOGE("Failed to load rootfs: %s", e.what());
         std::string err = "[friscy error] " + std::string(e.what()) + "\n";
-        send_to_java(err.c_str(), err.size());
+        emit_output(err.c_str(), err.size());
+        return JNI_FALSE;
+    }
+}
+
+/**
+ * Load a rootfs tar archive into the in-memory VFS, find the entry binary,
+ * create a RISC-V machine with dynamic linking support, and install syscalls.
+ *
+ * @param tarBytes The rootfs tar archive bytes
+ * @param entryPath The entry binary path (e.g., "/bin/sh")
+ * @param outputRing Direct ByteBuffer (power of two capacity) for terminal output
+ * @param callback Told when the output ring has bytes to drain
+ * @return true on success
+ */
+JNIEXPORT jboolean JNICALL
+Java_com_example_c2wdemo_FriscyRuntime_nativeLoadRootfs(
+    JNIEnv* env, jclass clazz,
+    jbyteArray tarBytes, jstring entryPath, jobject outputRing, jobject callback) {
+
+    if (!attach_output(env, outputRing, callback)) return JNI_FALSE;
+
+    // Get tar bytes
+    jsize tar_len = env->GetArrayLength(tarBytes);
+    LOGI("Loading rootfs tar: %d bytes", tar_len);
+
+    jbyte* tar_data = env->GetByteArrayElements(tarBytes, nullptr);
+    if (!tar_data) {
+        LOGE("Failed to get tar byte array");
         return JNI_FALSE;
     }
+
+    std::string entry_path = jstring_to_string(env, entryPath);
+
+    // Reset state
+    android_io::reset();
+
+    // Load tar into VFS (file contents are copied)
+    g_vfs = std::make_unique<vfs::VirtualFS>();
+    g_vfs->load_tar(reinterpret_cast<const uint8_t*>(tar_data), tar_len);
+    env->ReleaseByteArrayElements(tarBytes, tar_data, JNI_ABORT);
+
+    return load_machine(entry_path);
+}
+
+/**
+ * Like nativeLoadRootfs, but maps the tar archive from a file descriptor
+ * instead of copying it. Regular files in the VFS reference slices of the
+ * mapping until they are first written. The descriptor may be closed once
+ * this returns.
+ *
+ * @param fd File descriptor of the archive (e.g. from an AssetFileDescriptor)
+ * @param offset Offset of the archive within the file
+ * @param length Length of the archive in bytes
+ */
+JNIEXPORT jboolean JNICALL
+Java_com_example_c2wdemo_FriscyRuntime_nativeLoadRootfsFd(
+    JNIEnv* env, jclass clazz,
+    jint fd, jlong offset, jlong length, jstring entryPath, jstring indexPath,
+    jobject outputRing, jobject callback) {
+
+    if (!attach_output(env, outputRing, callback)) return JNI_FALSE;
+
+    LOGI("Mapping rootfs tar: %lld bytes at offset %lld",
+         (long long)length, (long long)offset);
+    auto mapping = vfs::Mapping::map_fd(fd, static_cast<uint64_t>(offset),
+                                        static_cast<size_t>(length));
+    if (!mapping) {
+        LOGE("Failed to map rootfs tar: %s", strerror(errno));
+        return JNI_FALSE;
+    }
+
+    std::string entry_path = jstring_to_string(env, entryPath);
+    std::string index_path = jstring_to_string(env, indexPath);
+
+    // Reset state
+    android_io::reset();
+
+    // Index the tar into the VFS without copying file contents. Directories
+    // are populated from the index on first lookup, so the time to the first
+    // prompt no longer grows with the size of the image.
+    auto index_start = std::chrono::steady_clock::now();
+    g_vfs = std::make_unique<vfs::VirtualFS>();
+    g_vfs->load_tar(mapping, index_path);
+    auto index_ms = std::chrono::duration<double, std::milli>(
+        std::chrono::steady_clock::now() - index_start).count();
+    LOGI("Rootfs indexed: %zu paths in %.1f ms (%s)", g_vfs->index_size(), index_ms,
+         g_vfs->index_loaded() ? "saved index" : "scanned");
+
+    return load_machine(entry_path);
 }
 
 /**
@@ -597,10 +922,15 @@ Java_com_example_c2wdemo_FriscyRuntime_nativeLoadRootfs(
  */
 JNIEXPORT jboolean JNICALL
 Java_com_example_c2wdemo_FriscyRuntime_nativeStart(JNIEnv* env, jclass clazz) {
+    std::lock_guard<std::mutex> lifecycle(g_lifecycle_mutex);
     if (!g_machine) {
         LOGE("Cannot start: no machine loaded");
         return JNI_FALSE;
     }
+    if (g_machine_damaged.load()) {
+        LOGE("Cannot start: a failed snapshot restore left the machine inconsistent");
+        return JNI_FALSE;
+    }
 
     if (android_io::running.load()) {
         LOGI("Already running");
@@ -608,13 +938,16 @@ Java_com_example_c2wdemo_FriscyRuntime_nativeStart(JNIEnv* env, jclass clazz) {
     }
 
     android_io::running.store(true);
-    android_io::waiting_for_stdin.store(false);
 
-    // Join any previous execution thread
+    // Join any previous execution and flush threads
     if (g_exec_thread.joinable()) {
         g_exec_thread.join();
     }
+    if (g_flush_thread.joinable()) {
+        g_flush_thread.join();
+    }
 
+    g_flush_thread = std::thread(output_flush_loop);
     g_exec_thread = std::thread(execution_loop);
     LOGI("Execution thread spawned");
 
@@ -622,47 +955,220 @@ Java_com_example_c2wdemo_FriscyRuntime_nativeStart(JNIEnv* env, jclass clazz) {
 }
 
 /**
- * Send input text to the guest's stdin.
+ * Wait until the guest blocks reading stdin for the first time since it was
+ * loaded, i.e. has shown its prompt. Returns false if it stopped running or
+ * timeout_ms passed first.
+ */
+JNIEXPORT jboolean JNICALL
+Java_com_example_c2wdemo_FriscyRuntime_nativeAwaitInputWait(
+    JNIEnv* env, jclass clazz, jlong timeout_ms) {
+    std::unique_lock<std::mutex> lock(g_input_wait_mutex);
+    bool waited = g_input_wait_cv.wait_for(
+        lock, std::chrono::milliseconds(timeout_ms),
+        [] { return g_input_waits > 0 || !android_io::running.load(); });
+    return waited && g_input_waits > 0 ? JNI_TRUE : JNI_FALSE;
+}
+
+/**
+ * Position just past the last byte the guest has written to the output ring.
+ */
+JNIEXPORT jlong JNICALL
+Java_com_example_c2wdemo_FriscyRuntime_nativeOutputWritePosition(JNIEnv* env, jclass clazz) {
+    return static_cast<jlong>(
+        android_io::output_write_pos.load(std::memory_order_acquire));
+}
+
+/**
+ * Hand the output ring up to readPosition back to the writer.
+ * Returns true if more output arrived meanwhile and must be drained too.
+ */
+JNIEXPORT jboolean JNICALL
+Java_com_example_c2wdemo_FriscyRuntime_nativeOutputConsumed(
+    JNIEnv* env, jclass clazz, jlong readPosition) {
+    return android_io::output_consumed(static_cast<uint64_t>(readPosition))
+        ? JNI_TRUE : JNI_FALSE;
+}
+
+/**
+ * Configure output batching: the reader is notified once thresholdBytes
+ * are pending, or intervalMicros after the first smaller write.
  */
 JNIEXPORT void JNICALL
-Java_com_example_c2wdemo_FriscyRuntime_nativeSendInput(
-    JNIEnv* env, jclass clazz, jstring text) {
+Java_com_example_c2wdemo_FriscyRuntime_nativeSetOutputFlushPolicy(
+    JNIEnv* env, jclass clazz, jint thresholdBytes, jint intervalMicros) {
+    android_io::output_flush_threshold.store(
+        static_cast<size_t>(std::max(thresholdBytes, 0)), std::memory_order_relaxed);
+    android_io::output_flush_interval_us.store(
+        static_cast<uint32_t>(std::max(intervalMicros, 0)), std::memory_order_relaxed);
+    LOGI("Output flush policy: %d bytes / %d us", thresholdBytes, intervalMicros);
+}
 
-    const char* chars = env->GetStringUTFChars(text, nullptr);
-    if (!chars) return;
+/**
+ * Whether this build can translate guest code to native code.
+ */
+JNIEXPORT jboolean JNICALL
+Java_com_example_c2wdemo_FriscyRuntime_nativeHasBinaryTranslation(JNIEnv* env, jclass clazz) {
+#ifdef FRISCY_BINARY_TRANSLATION
+    return JNI_TRUE;
+#else
+    return JNI_FALSE;
+#endif
+}
 
-    size_t len = strlen(chars);
-    if (len > 0) {
-        android_io::push_stdin(
-            reinterpret_cast<const uint8_t*>(chars), len);
-    }
-    env->ReleaseStringUTFChars(text, chars);
+/**
+ * Enable or disable binary translation, keeping translations in cacheDir
+ * (may be null). Applies from the next nativeLoadRootfs / nativeLoadRootfsFd;
+ * ignored by builds without binary translation.
+ */
+JNIEXPORT void JNICALL
+Java_com_example_c2wdemo_FriscyRuntime_nativeSetBinaryTranslation(
+    JNIEnv* env, jclass clazz, jboolean enabled, jstring cacheDir) {
+#ifdef FRISCY_BINARY_TRANSLATION
+    g_translate = enabled == JNI_TRUE;
+    g_translation_cache_dir = jstring_to_string(env, cacheDir);
+#else
+    if (enabled == JNI_TRUE) LOGE("Binary translation is not in this build");
+#endif
 }
 
 /**
- * Stop the execution thread.
+ * Guest instructions executed since the machine was loaded.
+ */
+JNIEXPORT jlong JNICALL
+Java_com_example_c2wdemo_FriscyRuntime_nativeInstructionCount(JNIEnv* env, jclass clazz) {
+    return static_cast<jlong>(g_instructions_executed.load(std::memory_order_relaxed));
+}
+
+/**
+ * Set how many resolved paths the VFS caches (0 disables the cache).
+ * Applies from the next nativeLoadRootfs / nativeLoadRootfsFd.
  */
 JNIEXPORT void JNICALL
-Java_com_example_c2wdemo_FriscyRuntime_nativeStop(JNIEnv* env, jclass clazz) {
-    if (!android_io::running.load()) return;
+Java_com_example_c2wdemo_FriscyRuntime_nativeSetResolveCacheCapacity(
+    JNIEnv* env, jclass clazz, jint capacity) {
+    g_resolve_cache_capacity = static_cast<size_t>(std::max(capacity, 0));
+}
 
-    LOGI("Stopping execution...");
-    android_io::running.store(false);
+/**
+ * Latency from nativeSendInput to the guest read that returned the input,
+ * as [reads, total ns, max ns], since the rootfs was loaded.
+ */
+JNIEXPORT jlongArray JNICALL
+Java_com_example_c2wdemo_FriscyRuntime_nativeGetInputLatency(JNIEnv* env, jclass clazz) {
+    jlong values[] = {
+        static_cast<jlong>(android_io::input_reads.load()),
+        static_cast<jlong>(android_io::input_latency_total_ns.load()),
+        static_cast<jlong>(android_io::input_latency_max_ns.load()),
+    };
+    jlongArray result = env->NewLongArray(3);
+    if (result) env->SetLongArrayRegion(result, 0, 3, values);
+    return result;
+}
 
-    // Stop the machine (if it's running simulate())
-    if (g_machine) {
-        g_machine->stop();
-    }
+/**
+ * Guest thread scheduler counters since the rootfs was loaded, as [threads,
+ * peak threads, switches, preemptions, futex waits, futex wakes, futex
+ * timeouts, idle parks].
+ */
+JNIEXPORT jlongArray JNICALL
+Java_com_example_c2wdemo_FriscyRuntime_nativeGetSchedulerStats(JNIEnv* env, jclass clazz) {
+    auto& stats = syscalls::g_sched_stats;
+    jlong values[] = {
+        static_cast<jlong>(stats.threads.load()), static_cast<jlong>(stats.peak_threads.load()),
+        static_cast<jlong>(stats.switches.load()), static_cast<jlong>(stats.preemptions.load()),
+        static_cast<jlong>(stats.futex_waits.load()), static_cast<jlong>(stats.futex_wakes.load()),
+        static_cast<jlong>(stats.futex_timeouts.load()), static_cast<jlong>(stats.idle_parks.load()),
+    };
+    jlongArray result = env->NewLongArray(8);
+    if (result) env->SetLongArrayRegion(result, 0, 8, values);
+    return result;
+}
+
+/**
+ * Path resolution counters of the loaded VFS as
+ * [hits, negative hits, misses, invalidations], or null if none is loaded.
+ */
+JNIEXPORT jlongArray JNICALL
+Java_com_example_c2wdemo_FriscyRuntime_nativeGetResolveStats(JNIEnv* env, jclass clazz) {
+    if (!g_vfs) return nullptr;
+    auto stats = g_vfs->resolve_stats();
+    jlong values[] = {
+        static_cast<jlong>(stats.hits), static_cast<jlong>(stats.negative_hits),
+        static_cast<jlong>(stats.misses), static_cast<jlong>(stats.invalidations),
+    };
+    jlongArray result = env->NewLongArray(4);
+    if (result) env->SetLongArrayRegion(result, 0, 4, values);
+    return result;
+}
+
+/**
+ * Send bytes from a Java array to the guest's stdin.
+ * Returns how many were queued (fewer than length if the stdin ring is full).
+ */
+JNIEXPORT jint JNICALL
+Java_com_example_c2wdemo_FriscyRuntime_nativeSendInput(
+    JNIEnv* env, jclass clazz, jbyteArray data, jint offset, jint length) {
+    if (length <= 0 || offset < 0 || length > env->GetArrayLength(data) - offset) return 0;
+
+    // Copy straight from the Java heap into the stdin ring
+    auto* bytes = static_cast<uint8_t*>(env->GetPrimitiveArrayCritical(data, nullptr));
+    if (!bytes) return 0;
+    size_t queued = android_io::push_stdin(bytes + offset, static_cast<size_t>(length));
+    env->ReleasePrimitiveArrayCritical(data, bytes, JNI_ABORT);
+    if (queued > 0) reactor::g_reactor.wake();
+    return static_cast<jint>(queued);
+}
+
+/**
+ * Send bytes from a direct ByteBuffer to the guest's stdin.
+ * Returns how many were queued (fewer than length if the stdin ring is full).
+ */
+JNIEXPORT jint JNICALL
+Java_com_example_c2wdemo_FriscyRuntime_nativeSendInputBuffer(
+    JNIEnv* env, jclass clazz, jobject buffer, jint offset, jint length) {
+    auto* bytes = static_cast<uint8_t*>(env->GetDirectBufferAddress(buffer));
+    if (!bytes || length <= 0 || offset < 0 ||
+        length > env->GetDirectBufferCapacity(buffer) - offset) return 0;
+    size_t queued = android_io::push_stdin(bytes + offset, static_cast<size_t>(length));
+    if (queued > 0) reactor::g_reactor.wake();
+    return static_cast<jint>(queued);
+}
+
+// Stop the execution thread and wait for it and the flush thread, also when
+// the guest has already exited. Called with g_lifecycle_mutex held.
+static void stop_execution() {
+    bool was_running = android_io::running.exchange(false);
+    if (was_running) {
+        LOGI("Stopping execution...");
+
+        // Stop the machine (if it's running simulate())
+        if (g_machine) {
+            g_machine->stop();
+        }
 
-    // Wake up the execution thread if it's waiting for stdin
-    android_io::stdin_cv.notify_one();
+        // Wake up the execution thread if the guest is waiting
+        reactor::g_reactor.wake();
+    }
 
-    // Wait for the execution thread to finish
+    // Wait for the execution and flush threads to finish
     if (g_exec_thread.joinable()) {
         g_exec_thread.join();
     }
+    android_io::wake_output_flusher();
+    if (g_flush_thread.joinable()) {
+        g_flush_thread.join();
+    }
 
-    LOGI("Execution stopped");
+    if (was_running) LOGI("Execution stopped");
+}
+
+/**
+ * Stop the execution thread.
+ */
+JNIEXPORT void JNICALL
+Java_com_example_c2wdemo_FriscyRuntime_nativeStop(JNIEnv* env, jclass clazz) {
+    std::lock_guard<std::mutex> lifecycle(g_lifecycle_mutex);
+    stop_execution();
 }
 
 /**
@@ -670,8 +1176,8 @@ Java_com_example_c2wdemo_FriscyRuntime_nativeStop(JNIEnv* env, jclass clazz) {
  */
 JNIEXPORT void JNICALL
 Java_com_example_c2wdemo_FriscyRuntime_nativeDestroy(JNIEnv* env, jclass clazz) {
-    // Stop first
-    Java_com_example_c2wdemo_FriscyRuntime_nativeStop(env, clazz);
+    std::lock_guard<std::mutex> lifecycle(g_lifecycle_mutex);
+    stop_execution();
 
     g_machine.reset();
     g_vfs.reset();
@@ -683,19 +1189,27 @@ Java_com_example_c2wdemo_FriscyRuntime_nativeDestroy(JNIEnv* env, jclass clazz)
     syscalls::g_next_pid = 100;
     syscalls::g_mmap_bump = 0;
     syscalls::g_execve_restart = false;
+    syscalls::g_guest_exited = false;
     syscalls::libriscv_mmap_handler = nullptr;
     syscalls::libriscv_brk_handler = nullptr;
     syscalls::net_is_socket_fd = nullptr;
     syscalls::net_get_native_fd = nullptr;
+    syscalls::handlers::clear_epoll();
+    reactor::g_reactor.close();
 
-    // Clear callback
+    // Clear callback and output ring
+    android_io::set_output_ring(nullptr, 0);
     {
         std::lock_guard<std::mutex> lock(g_callback_mutex);
         if (g_callback_obj) {
             env->DeleteGlobalRef(g_callback_obj);
             g_callback_obj = nullptr;
         }
-        g_on_output_method = nullptr;
+        g_on_output_available_method = nullptr;
+        if (g_output_buffer) {
+            env->DeleteGlobalRef(g_output_buffer);
+            g_output_buffer = nullptr;
+        }
     }
 
     LOGI("Runtime destroyed");
@@ -716,148 +1230,140 @@ Java_com_example_c2wdemo_FriscyRuntime_nativeGetVersion(JNIEnv* env, jclass claz
 
 // --- Snapshot save/restore ---
 // Custom format for flat arena mode (libriscv's built-in serialize
-// doesn't work with RISCV_FLAT_RW_ARENA).
-//
-// Format:
-//   [magic: 8]  [version: 4]  [regs_size: 4]
-//   [arena_size: 8]  [instruction_counter: 8]
-//   [registers: regs_size bytes]
-//   [arena: arena_size bytes]
+// doesn't work with RISCV_FLAT_RW_ARENA). The file format lives in
+// friscy/snapshot.hpp.
 
-static constexpr uint64_t SNAPSHOT_MAGIC = 0x4653524953435946ULL;  // "FYSCRISF"
-static constexpr uint32_t SNAPSHOT_VERSION = 1;
-
-JNIEXPORT jboolean JNICALL
+/**
+ * Save registers and guest memory to path (see friscy/snapshot.hpp). With
+ * basePath, pages unchanged since that snapshot are not written again.
+ * Uncompressed snapshots can be restored by mapping them.
+ *
+ * A running guest is only paused while its state is copied; hashing,
+ * compression and writing happen on the calling thread afterwards.
+ * Returns how long the guest was paused in microseconds, or -1 on failure.
+ */
+JNIEXPORT jlong JNICALL
 Java_com_example_c2wdemo_FriscyRuntime_nativeSaveSnapshot(
-    JNIEnv* env, jclass clazz, jstring jpath) {
-    if (!g_machine) {
-        LOGE("Cannot save snapshot: no machine");
-        return JNI_FALSE;
+    JNIEnv* env, jclass clazz, jstring jpath, jstring jbasePath, jboolean compress) {
+    std::string path = jstring_to_string(env, jpath);
+    std::string base_path = jstring_to_string(env, jbasePath);
+    if (base_path.empty()) {
+        LOGI("Saving snapshot to: %s", path.c_str());
+    } else {
+        LOGI("Saving snapshot to: %s (delta against %s)", path.c_str(), base_path.c_str());
     }
 
-    const char* path = env->GetStringUTFChars(jpath, nullptr);
-    LOGI("Saving snapshot to: %s", path);
-
-    FILE* fp = fopen(path, "wb");
-    env->ReleaseStringUTFChars(jpath, path);
-    if (!fp) {
-        LOGE("Cannot open snapshot file for writing");
-        return JNI_FALSE;
+    auto start = std::chrono::steady_clock::now();
+    std::unique_ptr<snapshot::Capture> capture;
+    int64_t pause_us;
+    {
+        std::lock_guard<std::mutex> lifecycle(g_lifecycle_mutex);
+        if (!g_machine) {
+            LOGE("Cannot save snapshot: no machine");
+            return -1;
+        }
+        pause_us = run_paused([&capture] { capture = capture_machine(); });
     }
+    auto captured = std::chrono::steady_clock::now();
 
-    auto& cpu = g_machine->cpu;
-    auto& mem = g_machine->memory;
-
-    // Header
-    uint64_t magic = SNAPSHOT_MAGIC;
-    uint32_t version = SNAPSHOT_VERSION;
-    uint32_t regs_size = static_cast<uint32_t>(sizeof(cpu.registers()));
-    uint64_t arena_size = mem.memory_arena_size();
-    uint64_t counter = g_machine->instruction_counter();
-
-    fwrite(&magic, 8, 1, fp);
-    fwrite(&version, 4, 1, fp);
-    fwrite(&regs_size, 4, 1, fp);
-    fwrite(&arena_size, 8, 1, fp);
-    fwrite(&counter, 8, 1, fp);
-
-    // CPU registers (POD struct)
-    fwrite(&cpu.registers(), regs_size, 1, fp);
-
-    // Flat arena memory
-    const void* arena = mem.memory_arena_ptr();
-    if (arena && arena_size > 0) {
-        size_t written = fwrite(arena, 1, arena_size, fp);
-        if (written != arena_size) {
-            LOGE("Short write: %zu / %zu", written, (size_t)arena_size);
-            fclose(fp);
-            return JNI_FALSE;
-        }
+    snapshot::SaveStats stats;
+    std::string error;
+    if (!snapshot::save(path, *capture, base_path, compress == JNI_TRUE, stats, error)) {
+        LOGE("Snapshot failed: %s", error.c_str());
+        return -1;
     }
 
-    fclose(fp);
-    LOGI("Snapshot saved: regs=%u arena=%zu", regs_size, (size_t)arena_size);
-    return JNI_TRUE;
+    auto end = std::chrono::steady_clock::now();
+    LOGI("Snapshot saved: %llu pages stored, %llu from base, %llu bytes (arena %llu); "
+         "guest paused %.2f ms, capture %.1f ms, write %.1f ms",
+         (unsigned long long)stats.pages_stored, (unsigned long long)stats.pages_from_base,
+         (unsigned long long)stats.bytes_written, (unsigned long long)capture->arena_size,
+         pause_us / 1000.0,
+         std::chrono::duration<double, std::milli>(captured - start).count(),
+         std::chrono::duration<double, std::milli>(end - captured).count());
+    return static_cast<jlong>(pause_us);
 }
 
+/**
+ * Restore registers, guest memory and, from version 3 snapshots, the
+ * runtime state (filesystem, fds, threads) from path. With map,
+ * uncompressed pages are mapped copy-on-write from the file instead of read.
+ *
+ * A snapshot that does not fit the machine or is corrupt is rejected
+ * before anything changes. If reading or mapping fails once the machine is
+ * being overwritten, it is stopped and cannot be started again until it is
+ * loaded anew.
+ */
 JNIEXPORT jboolean JNICALL
 Java_com_example_c2wdemo_FriscyRuntime_nativeRestoreSnapshot(
-    JNIEnv* env, jclass clazz, jstring jpath) {
-    if (!g_machine) {
-        LOGE("Cannot restore snapshot: no machine (call loadRootfs first)");
+    JNIEnv* env, jclass clazz, jstring jpath, jboolean map) {
+    std::string path = jstring_to_string(env, jpath);
+    LOGI("Restoring snapshot from: %s", path.c_str());
+
+    auto start = std::chrono::steady_clock::now();
+    std::string error;
+    std::vector<uint8_t> saved_state;
+    if (!snapshot::read_state(path, saved_state, error)) {
+        LOGE("Snapshot restore failed: %s", error.c_str());
         return JNI_FALSE;
     }
 
-    const char* path = env->GetStringUTFChars(jpath, nullptr);
-    LOGI("Restoring snapshot from: %s", path);
-
-    FILE* fp = fopen(path, "rb");
-    env->ReleaseStringUTFChars(jpath, path);
-    if (!fp) {
-        LOGE("Cannot open snapshot file for reading");
+    snapshot::RestoreStats stats;
+    bool ok = false;
+    std::lock_guard<std::mutex> lifecycle(g_lifecycle_mutex);
+    if (!g_machine) {
+        LOGE("Cannot restore snapshot: no machine (call loadRootfs first)");
         return JNI_FALSE;
     }
+    run_paused([&] {
+        // Check the runtime state before touching memory, so a snapshot of
+        // a different rootfs fails without changing the machine
+        machine_state::State state;
+        if (!saved_state.empty() &&
+            !machine_state::decode(saved_state, *g_vfs, state, error)) {
+            return;
+        }
 
-    // Read and validate header
-    uint64_t magic = 0;
-    uint32_t version = 0, regs_size = 0;
-    uint64_t arena_size = 0, counter = 0;
-
-    fread(&magic, 8, 1, fp);
-    fread(&version, 4, 1, fp);
-    fread(&regs_size, 4, 1, fp);
-    fread(&arena_size, 8, 1, fp);
-    fread(&counter, 8, 1, fp);
-
-    if (magic != SNAPSHOT_MAGIC) {
-        LOGE("Invalid snapshot magic");
-        fclose(fp);
-        return JNI_FALSE;
-    }
-    if (version != SNAPSHOT_VERSION) {
-        LOGE("Unsupported snapshot version: %u", version);
-        fclose(fp);
-        return JNI_FALSE;
-    }
+        auto& cpu = g_machine->cpu;
+        auto& mem = g_machine->memory;
+        bool damaged = false;
+        ok = snapshot::restore(
+            path, &cpu.registers(), static_cast<uint32_t>(sizeof(cpu.registers())),
+            static_cast<uint8_t*>(mem.memory_arena_ptr()), mem.memory_arena_size(),
+            map == JNI_TRUE, stats, damaged, error);
+        if (damaged) {
+            // Half of the machine is from the snapshot: never resume it
+            g_machine_damaged.store(true);
+            android_io::running.store(false);
+            g_machine->stop();
+        }
+        if (!ok) return;
 
-    auto& cpu = g_machine->cpu;
-    auto& mem = g_machine->memory;
+        // Mapped pages are not resident until touched, so captures must
+        // check every page from now on
+        if (stats.pages_mapped > 0) g_capture_only_touched = false;
 
-    uint32_t expected_regs = static_cast<uint32_t>(sizeof(cpu.registers()));
-    uint64_t expected_arena = mem.memory_arena_size();
+        if (!saved_state.empty()) {
+            machine_state::apply(*g_machine, *g_vfs, std::move(state));
+        }
 
-    if (regs_size != expected_regs) {
-        LOGE("Register size mismatch: file=%u expected=%u", regs_size, expected_regs);
-        fclose(fp);
+        // Restore instruction counter
+        g_machine->reset_instruction_counter();
+        // Note: we don't restore the exact counter, just reset it
+    });
+    if (!ok) {
+        LOGE("Snapshot restore failed: %s%s", error.c_str(),
+             g_machine_damaged.load() ? "; the machine was stopped and must be loaded again" : "");
         return JNI_FALSE;
     }
-    if (arena_size != expected_arena) {
-        LOGE("Arena size mismatch: file=%zu expected=%zu",
-             (size_t)arena_size, (size_t)expected_arena);
-        fclose(fp);
-        return JNI_FALSE;
+    if (saved_state.empty()) {
+        LOGI("Snapshot has no runtime state (version < 3); restored memory only");
     }
 
-    // Restore CPU registers
-    fread(&cpu.registers(), regs_size, 1, fp);
-
-    // Restore arena memory
-    void* arena = mem.memory_arena_ptr();
-    if (arena && arena_size > 0) {
-        size_t read_bytes = fread(arena, 1, arena_size, fp);
-        if (read_bytes != arena_size) {
-            LOGE("Short read: %zu / %zu", read_bytes, (size_t)arena_size);
-            fclose(fp);
-            return JNI_FALSE;
-        }
-    }
-
-    // Restore instruction counter
-    g_machine->reset_instruction_counter();
-    // Note: we don't restore the exact counter, just reset it
-
-    fclose(fp);
-    LOGI("Snapshot restored: regs=%u arena=%zu", regs_size, (size_t)arena_size);
+    auto ms = std::chrono::duration<double, std::milli>(
+        std::chrono::steady_clock::now() - start).count();
+    LOGI("Snapshot restored in %.1f ms: %llu pages mapped, %llu read", ms,
+         (unsigned long long)stats.pages_mapped, (unsigned long long)stats.pages_read);
     return JNI_TRUE;
 }
 
@@ -1,54 +1,78 @@
 package com.termux.terminal;
 
-/** A circular byte buffer allowing one producer and one consumer thread. */
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A circular byte buffer allowing one producer and one consumer thread.
+ * <p/>
+ * The queue is lock-free: the producer only ever advances {@link #mTail} and the consumer only ever advances
+ * {@link #mHead}, so each side publishes its progress with a single volatile store and observes the other side with a
+ * single volatile load. A thread only parks when the queue is empty (consumer) or full (producer), and is unparked by
+ * the other side after it has published new progress.
+ * <p/>
+ * Both indices grow monotonically and are reduced to a buffer position with {@link #mMask}, so the capacity is rounded
+ * up to a power of two.
+ */
 final class ByteQueue {
 
     private final byte[] mBuffer;
-    private int mHead;
-    private int mStoredBytes;
-    private boolean mOpen = true;
+    private final int mMask;
+
+    /** Index of the next byte to read. Written by the consumer only. */
+    private final PaddedIndex mHead = new PaddedIndex();
+    /** Index of the next byte to write. Written by the producer only. */
+    private final PaddedIndex mTail = new PaddedIndex();
+
+    /** Producer-local snapshot of {@link #mHead}, refreshed only when the queue looks full. */
+    private long mCachedHead;
+    /** Consumer-local snapshot of {@link #mTail}, refreshed only when the queue looks empty. */
+    private long mCachedTail;
+
+    private volatile boolean mOpen = true;
+    private volatile Thread mParkedConsumer;
+    private volatile Thread mParkedProducer;
 
     public ByteQueue(int size) {
-        mBuffer = new byte[size];
+        int capacity = Integer.highestOneBit(Math.max(size, 1));
+        if (capacity < size) capacity <<= 1;
+        mBuffer = new byte[capacity];
+        mMask = capacity - 1;
     }
 
-    public synchronized void close() {
+    public void close() {
         mOpen = false;
-        notify();
+        LockSupport.unpark(mParkedConsumer);
+        LockSupport.unpark(mParkedProducer);
     }
 
-    public synchronized int read(byte[] buffer, boolean block) {
-        while (mStoredBytes == 0 && mOpen) {
-            if (block) {
-                try {
-                    wait();
-                } catch (InterruptedException e) {
-                    // Ignore.
-                }
-            } else {
-                return 0;
+    public int read(byte[] buffer, boolean block) {
+        final long head = mHead.value;
+        long tail = mCachedTail;
+        if (tail == head) {
+            tail = mCachedTail = mTail.value;
+            while (tail == head && mOpen) {
+                if (!block) return 0;
+                mParkedConsumer = Thread.currentThread();
+                // Re-check after announcing ourselves: the producer either sees mParkedConsumer or we see its tail.
+                tail = mTail.value;
+                if (tail == head && mOpen) parkUninterruptibly();
+                mParkedConsumer = null;
+                tail = mCachedTail = mTail.value;
             }
         }
         if (!mOpen) return -1;
 
-        int totalRead = 0;
-        int bufferLength = mBuffer.length;
-        boolean wasFull = bufferLength == mStoredBytes;
-        int length = buffer.length;
-        int offset = 0;
-        while (length > 0 && mStoredBytes > 0) {
-            int oneRun = Math.min(bufferLength - mHead, mStoredBytes);
-            int bytesToCopy = Math.min(length, oneRun);
-            System.arraycopy(mBuffer, mHead, buffer, offset, bytesToCopy);
-            mHead += bytesToCopy;
-            if (mHead >= bufferLength) mHead = 0;
-            mStoredBytes -= bytesToCopy;
-            length -= bytesToCopy;
-            offset += bytesToCopy;
-            totalRead += bytesToCopy;
-        }
-        if (wasFull) notify();
-        return totalRead;
+        final int bufferLength = mBuffer.length;
+        final int bytesToRead = (int) Math.min(buffer.length, tail - head);
+        final int position = (int) head & mMask;
+        final int firstRun = Math.min(bytesToRead, bufferLength - position);
+        System.arraycopy(mBuffer, position, buffer, 0, firstRun);
+        if (firstRun < bytesToRead) System.arraycopy(mBuffer, 0, buffer, firstRun, bytesToRead - firstRun);
+
+        mHead.value = head + bytesToRead;
+        Thread producer = mParkedProducer;
+        if (producer != null) LockSupport.unpark(producer);
+        return bytesToRead;
     }
 
     /**
@@ -64,45 +88,63 @@ final class ByteQueue {
         }
 
         final int bufferLength = mBuffer.length;
+        long tail = mTail.value;
 
-        synchronized (this) {
-            while (lengthToWrite > 0) {
-                while (bufferLength == mStoredBytes && mOpen) {
-                    try {
-                        wait();
-                    } catch (InterruptedException e) {
-                        // Ignore.
-                    }
-                }
-                if (!mOpen) return false;
-                final boolean wasEmpty = mStoredBytes == 0;
-                int bytesToWriteBeforeWaiting = Math.min(lengthToWrite, bufferLength - mStoredBytes);
-                lengthToWrite -= bytesToWriteBeforeWaiting;
-
-                while (bytesToWriteBeforeWaiting > 0) {
-                    int tail = mHead + mStoredBytes;
-                    int oneRun;
-                    if (tail >= bufferLength) {
-                        // Buffer: [.............]
-                        // ________________H_______T
-                        // =>
-                        // Buffer: [.............]
-                        // ___________T____H
-                        // onRun= _____----_
-                        tail = tail - bufferLength;
-                        oneRun = mHead - tail;
-                    } else {
-                        oneRun = bufferLength - tail;
-                    }
-                    int bytesToCopy = Math.min(oneRun, bytesToWriteBeforeWaiting);
-                    System.arraycopy(buffer, offset, mBuffer, tail, bytesToCopy);
-                    offset += bytesToCopy;
-                    bytesToWriteBeforeWaiting -= bytesToCopy;
-                    mStoredBytes += bytesToCopy;
+        while (lengthToWrite > 0) {
+            long head = mCachedHead;
+            if (tail - head == bufferLength) {
+                head = mCachedHead = mHead.value;
+                while (tail - head == bufferLength && mOpen) {
+                    mParkedProducer = Thread.currentThread();
+                    head = mHead.value;
+                    if (tail - head == bufferLength && mOpen) parkUninterruptibly();
+                    mParkedProducer = null;
+                    head = mCachedHead = mHead.value;
                 }
-                if (wasEmpty) notify();
             }
+            if (!mOpen) return false;
+
+            final int bytesToWriteBeforeWaiting = (int) Math.min(lengthToWrite, bufferLength - (tail - head));
+            final int position = (int) tail & mMask;
+            final int firstRun = Math.min(bytesToWriteBeforeWaiting, bufferLength - position);
+            System.arraycopy(buffer, offset, mBuffer, position, firstRun);
+            if (firstRun < bytesToWriteBeforeWaiting)
+                System.arraycopy(buffer, offset + firstRun, mBuffer, 0, bytesToWriteBeforeWaiting - firstRun);
+            offset += bytesToWriteBeforeWaiting;
+            lengthToWrite -= bytesToWriteBeforeWaiting;
+
+            tail += bytesToWriteBeforeWaiting;
+            mTail.value = tail;
+            Thread consumer = mParkedConsumer;
+            if (consumer != null) LockSupport.unpark(consumer);
         }
         return true;
     }
+
+    private void parkUninterruptibly() {
+        LockSupport.park(this);
+        // Like the previous wait()-based implementation we ignore interrupts, but must clear the flag or park() would
+        // return immediately on every following iteration.
+        Thread.interrupted();
+    }
+
+    /*
+     * Cache line padding around a volatile index, so that the producer's and consumer's indices never share a cache
+     * line with each other or with the neighbouring fields. Field padding is spread over a class hierarchy since both
+     * HotSpot and ART lay out superclass fields before subclass fields, but may reorder fields within a class.
+     */
+
+    @SuppressWarnings("unused")
+    private static class LeftPadding {
+        long p01, p02, p03, p04, p05, p06, p07;
+    }
+
+    private static class IndexValue extends LeftPadding {
+        volatile long value;
+    }
+
+    @SuppressWarnings("unused")
+    private static final class PaddedIndex extends IndexValue {
+        long p11, p12, p13, p14, p15, p16, p17;
+    }
 }
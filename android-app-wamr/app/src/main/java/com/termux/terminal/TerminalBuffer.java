@@ -19,6 +19,10 @@ public final class TerminalBuffer {
     private int mActiveTranscriptRows = 0;
     /** The index in the circular buffer where the visible screen starts. */
     private int mScreenFirstRow = 0;
+    /** The number of rows the whole screen has scrolled up since {@link #consumeDamage(TerminalDamage)}. */
+    private int mScrolledRows = 0;
+    /** If every screen row must be repainted regardless of the {@link TerminalRow#mDirty} flags. */
+    private boolean mFullDamage = true;
 
     /**
      * Create a transcript screen.
@@ -201,6 +205,7 @@ public final class TerminalBuffer {
      * @param cursor     An int[2] containing the (column, row) cursor location.
      */
     public void resize(int newColumns, int newRows, int newTotalRows, int[] cursor, long currentStyle, boolean altScreen) {
+        mFullDamage = true;
         // newRows > mTotalRows should not normally happen since mTotalRows is TRANSCRIPT_ROWS (10000):
         if (newColumns == mColumns && newRows <= mTotalRows) {
             // Fast resize where just the rows changed.
@@ -393,6 +398,16 @@ public final class TerminalBuffer {
 
         // Update the screen location in the ring buffer:
         mScreenFirstRow = (mScreenFirstRow + 1) % mTotalRows;
+        if (topMargin == 0 && bottomMargin == mScreenRows) {
+            // The whole screen moved up, which a renderer can handle by moving its previous frame:
+            mScrolledRows++;
+        } else {
+            // Only the rows between the margins moved, so they must all be repainted:
+            for (int row = topMargin; row < bottomMargin - 1; row++) {
+                TerminalRow line = mLines[externalToInternalRow(row)];
+                if (line != null) line.mDirty = true;
+            }
+        }
         // Note that the history has grown if not already full:
         if (mActiveTranscriptRows < mTotalRows - mScreenRows) mActiveTranscriptRows++;
 
@@ -455,6 +470,13 @@ public final class TerminalBuffer {
         allocateFullLineIfNecessary(row).setChar(column, codePoint, style);
     }
 
+    /** Set a run of printable ASCII bytes in a row, see {@link TerminalRow#setAsciiChars(int, byte[], int, int, long)}. */
+    public void setAsciiChars(int column, int row, byte[] source, int start, int count, long style) {
+        if (row < 0 || row >= mScreenRows || column < 0 || column + count > mColumns)
+            throw new IllegalArgumentException("TerminalBuffer.setAsciiChars(): row=" + row + ", column=" + column + ", count=" + count + ", mScreenRows=" + mScreenRows + ", mColumns=" + mColumns);
+        allocateFullLineIfNecessary(externalToInternalRow(row)).setAsciiChars(column, source, start, count, style);
+    }
+
     public long getStyleAt(int externalRow, int column) {
         return allocateFullLineIfNecessary(externalToInternalRow(externalRow)).getStyle(column);
     }
@@ -481,9 +503,42 @@ public final class TerminalBuffer {
                 }
                 line.mStyle[x] = TextStyle.encode(foreColor, backColor, effect);
             }
+            line.mDirty = true;
         }
     }
 
+    /**
+     * Collect which screen rows have changed since the last call, and reset the tracking so that the next call only
+     * reports changes made after this one.
+     *
+     * @param damage the instance to fill in, which is reused to avoid allocating on every frame.
+     * @return the damage argument.
+     */
+    public TerminalDamage consumeDamage(TerminalDamage damage) {
+        final int screenRows = mScreenRows;
+        if (damage.rows.length != screenRows) damage.rows = new boolean[screenRows];
+        final boolean fullRedraw = mFullDamage || mScrolledRows >= screenRows;
+        damage.fullRedraw = fullRedraw;
+        damage.scrolledRows = fullRedraw ? 0 : mScrolledRows;
+        int dirtyRowCount = 0;
+        for (int row = 0; row < screenRows; row++) {
+            TerminalRow line = mLines[externalToInternalRow(row)];
+            boolean dirty = fullRedraw || line == null || line.mDirty;
+            if (line != null) line.mDirty = false;
+            damage.rows[row] = dirty;
+            if (dirty) dirtyRowCount++;
+        }
+        damage.dirtyRowCount = dirtyRowCount;
+        mFullDamage = false;
+        mScrolledRows = 0;
+        return damage;
+    }
+
+    /** Make the next {@link #consumeDamage(TerminalDamage)} report every row, e.g. after the color palette changed. */
+    public void invalidateScreen() {
+        mFullDamage = true;
+    }
+
     public void clearTranscript() {
         if (mScreenFirstRow < mActiveTranscriptRows) {
             Arrays.fill(mLines, mTotalRows + mScreenFirstRow - mActiveTranscriptRows, mTotalRows, null);
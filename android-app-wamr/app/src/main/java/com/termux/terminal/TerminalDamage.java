@@ -0,0 +1,23 @@
+package com.termux.terminal;
+
+/**
+ * The part of the visible screen of a {@link TerminalBuffer} that has changed since the previous call to
+ * {@link TerminalBuffer#consumeDamage(TerminalDamage)}.
+ * <p>
+ * A renderer keeping its previous frame should first move it up by {@link #scrolledRows} rows and then repaint the rows
+ * flagged in {@link #rows}. If {@link #fullRedraw} is set the previous frame cannot be reused and every row is flagged.
+ * <p>
+ * Instances are meant to be reused between frames, {@link #rows} is only reallocated when the screen height changes.
+ */
+public final class TerminalDamage {
+
+    /** If every row must be repainted, for example after a resize. */
+    public boolean fullRedraw;
+    /** The number of rows the whole screen content has moved up, always less than the screen height. */
+    public int scrolledRows;
+    /** For each screen row, if it must be repainted after the previous frame has been moved by {@link #scrolledRows}. */
+    public boolean[] rows = new boolean[0];
+    /** The number of set entries in {@link #rows}. */
+    public int dirtyRowCount;
+
+}
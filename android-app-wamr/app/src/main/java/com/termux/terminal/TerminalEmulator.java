@@ -480,8 +480,20 @@ public final class TerminalEmulator {
      * @param length the number of bytes in the array to process
      */
     public void append(byte[] buffer, int length) {
-        for (int i = 0; i < length; i++)
-            processByte(buffer[i]);
+        int i = 0;
+        while (i < length) {
+            if (mEscapeState == ESC_NONE && mUtf8ToFollow == 0 && !(mUseLineDrawingUsesG0 ? mUseLineDrawingG0 : mUseLineDrawingG1)) {
+                // Fast path: plain printable ASCII outside of any escape sequence is copied into the row in bulk.
+                int runEnd = i;
+                while (runEnd < length && buffer[runEnd] >= 0x20 && buffer[runEnd] < 0x7F) runEnd++;
+                if (runEnd > i) {
+                    emitAsciiRun(buffer, i, runEnd);
+                    i = runEnd;
+                    continue;
+                }
+            }
+            processByte(buffer[i++]);
+        }
     }
 
     private void processByte(byte byteToProcess) {
@@ -2382,6 +2394,60 @@ public final class TerminalEmulator {
         mCursorCol = Math.min(mCursorCol + displayWidth, mRightMargin - 1);
     }
 
+    /**
+     * Emit a run of printable ASCII bytes (0x20-0x7E), with the same result as calling {@link #emitCodePoint(int)} for
+     * each byte, but writing as many columns as fit before the right margin in one go.
+     */
+    private void emitAsciiRun(byte[] buffer, int start, int end) {
+        mContinueSequence = false;
+        final int lastCodePoint = buffer[end - 1];
+        final boolean autoWrap = isDecsetInternalBitSet(DECSET_BIT_AUTOWRAP);
+        final long style = getStyle();
+
+        while (start < end) {
+            final boolean wrapBeforeWriting = autoWrap && mAboutToAutoWrap && mCursorCol == mRightMargin - 1;
+            if (mCursorCol < 0 || mCursorCol >= mRightMargin || (mInsertMode && (wrapBeforeWriting
+                || mScreen.allocateFullLineIfNecessary(mScreen.externalToInternalRow(mCursorRow)).mHasNonOneWidthOrSurrogateChars))) {
+                // Cursor outside of the margins, or shifting a row that may hold wide chars - keep the exact per char
+                // semantics of emitCodePoint().
+                emitCodePoint(buffer[start++]);
+                continue;
+            }
+
+            if (wrapBeforeWriting) {
+                mScreen.setLineWrap(mCursorRow);
+                mCursorCol = mLeftMargin;
+                if (mCursorRow + 1 < mBottomMargin) {
+                    mCursorRow++;
+                } else {
+                    scrollDownOneLine();
+                }
+            }
+
+            final int count = Math.min(end - start, mRightMargin - mCursorCol);
+            if (mInsertMode) {
+                // Shifting right once by count columns is the same as shifting right by one column count times.
+                int destCol = mCursorCol + count;
+                if (destCol < mRightMargin)
+                    mScreen.blockCopy(mCursorCol, mCursorRow, mRightMargin - destCol, 1, destCol, mCursorRow);
+            }
+            mScreen.setAsciiChars(mCursorCol, mCursorRow, buffer, start, count, style);
+            start += count;
+
+            final int lastColumnWritten = mCursorCol + count - 1;
+            mCursorCol = Math.min(lastColumnWritten + 1, mRightMargin - 1);
+            if (autoWrap) {
+                mAboutToAutoWrap = (lastColumnWritten == mRightMargin - 1);
+            } else if (lastColumnWritten == mRightMargin - 1 && start < end) {
+                // Without autowrap the remaining chars overwrite each other in the last column, so only the last one
+                // is visible.
+                mScreen.setChar(mCursorCol, mCursorRow, lastCodePoint, style);
+                start = end;
+            }
+        }
+        mLastEmittedCodePoint = lastCodePoint;
+    }
+
     private void setCursorRow(int row) {
         mCursorRow = row;
         mAboutToAutoWrap = false;
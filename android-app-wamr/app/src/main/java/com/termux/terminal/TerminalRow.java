@@ -42,13 +42,25 @@ public final class TerminalRow {
     /** The text filling this terminal row. */
     public char[] mText;
     /** The number of java chars used in {@link #mText}. */
-    private short mSpaceUsed;
+    private int mSpaceUsed;
     /** If this row has been line wrapped due to text output at the end of line. */
     boolean mLineWrap;
     /** The style bits of each cell in the row. See {@link TextStyle}. */
     final long[] mStyle;
     /** If this row might contain chars with width != 1, used for deactivating fast path */
     boolean mHasNonOneWidthOrSurrogateChars;
+    /**
+     * The index in {@link #mText} where each column starts, with the {@link #mColumns} entry holding
+     * {@link #mSpaceUsed}. Only used while {@link #mHasNonOneWidthOrSurrogateChars} is set, and lazily rebuilt by
+     * {@link #findStartOfColumn(int)} after {@link #mColumnStartValid} has been cleared by a text change.
+     */
+    private int[] mColumnStart;
+    private boolean mColumnStartValid;
+    /**
+     * If the text or style of this row has changed since a renderer last painted it. Set by every modification and
+     * cleared by {@link TerminalBuffer#consumeDamage(TerminalDamage)}.
+     */
+    boolean mDirty;
 
     /** Construct a blank row (containing only whitespace, ' ') with a specified style. */
     public TerminalRow(int columns, long style) {
@@ -65,6 +77,8 @@ public final class TerminalRow {
         final int x2 = line.findStartOfColumn(sourceX2);
         boolean startingFromSecondHalfOfWideChar = (sourceX1 > 0 && line.wideDisplayCharacterStartingAt(sourceX1 - 1));
         final char[] sourceChars = (this == line) ? Arrays.copyOf(line.mText, line.mText.length) : line.mText;
+        // Styles are overwritten by setChar() below as well, so a copy within the same row must read from a snapshot.
+        final long[] sourceStyles = (this == line) ? Arrays.copyOf(line.mStyle, line.mStyle.length) : line.mStyle;
         int latestNonCombiningWidth = 0;
         for (int i = x1; i < x2; i++) {
             char sourceChar = sourceChars[i];
@@ -80,7 +94,7 @@ public final class TerminalRow {
                 sourceX1 += latestNonCombiningWidth;
                 latestNonCombiningWidth = w;
             }
-            setChar(destinationX, codePoint, line.getStyle(sourceX1));
+            setChar(destinationX, codePoint, sourceStyles[sourceX1]);
         }
     }
 
@@ -90,6 +104,41 @@ public final class TerminalRow {
 
     /** Note that the column may end of second half of wide character. */
     public int findStartOfColumn(int column) {
+        // Without wide, combining or surrogate chars every column is exactly one java char.
+        if (!mHasNonOneWidthOrSurrogateChars) return column;
+        if (!mColumnStartValid) buildColumnStart();
+        return mColumnStart[column];
+    }
+
+    /**
+     * Fill {@link #mColumnStart} in a single pass over the row, with the same results as
+     * {@link #findStartOfColumnUncached(int)} gives for each column.
+     */
+    private void buildColumnStart() {
+        if (mColumnStart == null) mColumnStart = new int[mColumns + 1];
+        final int[] columnStart = mColumnStart;
+        final char[] text = mText;
+        final int spaceUsed = mSpaceUsed;
+        int column = 0;
+        for (int charIndex = 0; charIndex < spaceUsed && column < mColumns; ) {
+            final int codePointStart = charIndex;
+            char c = text[charIndex++];
+            int codePoint = Character.isHighSurrogate(c) ? Character.toCodePoint(c, text[charIndex++]) : c;
+            int wcwidth = WcWidth.width(codePoint);
+            // Combining chars belong to the preceding column, so a column starts at its first non-zero width char.
+            if (wcwidth <= 0) continue;
+            columnStart[column] = codePointStart;
+            // The second half of a wide char starts at the wide char itself.
+            if (wcwidth == 2 && column + 1 < mColumns) columnStart[column + 1] = codePointStart;
+            column += wcwidth;
+        }
+        while (column < mColumns) columnStart[column++] = spaceUsed;
+        columnStart[mColumns] = spaceUsed;
+        mColumnStartValid = true;
+    }
+
+    /** Walk the row to find where a column starts, for use while the row is being modified. */
+    private int findStartOfColumnUncached(int column) {
         if (column == mColumns) return getSpaceUsed();
 
         int currentColumn = 0;
@@ -144,8 +193,10 @@ public final class TerminalRow {
     public void clear(long style) {
         Arrays.fill(mText, ' ');
         Arrays.fill(mStyle, style);
-        mSpaceUsed = (short) mColumns;
+        mSpaceUsed = mColumns;
         mHasNonOneWidthOrSurrogateChars = false;
+        mColumnStartValid = false;
+        mDirty = true;
     }
 
     // https://github.com/steven676/Android-Terminal-Emulator/commit/9a47042620bec87617f0b4f5d50568535668fe26
@@ -154,6 +205,7 @@ public final class TerminalRow {
             throw new IllegalArgumentException("TerminalRow.setChar(): columnToSet=" + columnToSet + ", codePoint=" + codePoint + ", style=" + style);
 
         mStyle[columnToSet] = style;
+        mDirty = true;
 
         final int newCodePointDisplayWidth = WcWidth.width(codePoint);
 
@@ -167,6 +219,7 @@ public final class TerminalRow {
             }
         }
 
+        mColumnStartValid = false;
         final boolean newIsCombining = newCodePointDisplayWidth <= 0;
 
         boolean wasExtraColForWideChar = (columnToSet > 0) && wideDisplayCharacterStartingAt(columnToSet - 1);
@@ -183,13 +236,13 @@ public final class TerminalRow {
         }
 
         char[] text = mText;
-        final int oldStartOfColumnIndex = findStartOfColumn(columnToSet);
+        final int oldStartOfColumnIndex = findStartOfColumnUncached(columnToSet);
         final int oldCodePointDisplayWidth = WcWidth.width(text, oldStartOfColumnIndex);
 
         // Get the number of elements in the mText array this column uses now
         int oldCharactersUsedForColumn;
         if (columnToSet + oldCodePointDisplayWidth < mColumns) {
-            int oldEndOfColumnIndex = findStartOfColumn(columnToSet + oldCodePointDisplayWidth);
+            int oldEndOfColumnIndex = findStartOfColumnUncached(columnToSet + oldCodePointDisplayWidth);
             oldCharactersUsedForColumn = oldEndOfColumnIndex - oldStartOfColumnIndex;
         } else {
             // Last character.
@@ -256,7 +309,7 @@ public final class TerminalRow {
                 throw new IllegalArgumentException("Cannot put wide character in last column");
             } else if (columnToSet == mColumns - 2) {
                 // Truncate the line to the second part of this wide char:
-                mSpaceUsed = (short) newNextColumnIndex;
+                mSpaceUsed = newNextColumnIndex;
             } else {
                 // Overwrite the contents of the next column, which mean we actually remove java characters. Due to the
                 // check at the beginning of this method we know that we are not overwriting a wide char.
@@ -270,6 +323,28 @@ public final class TerminalRow {
         }
     }
 
+    /**
+     * Set a run of printable ASCII bytes (0x20-0x7E), all of display width 1, starting at the specified column. This is
+     * the bulk equivalent of calling {@link #setChar(int, int, long)} once per byte.
+     */
+    public void setAsciiChars(int columnToSet, byte[] source, int start, int count, long style) {
+        if (columnToSet < 0 || columnToSet + count > mStyle.length)
+            throw new IllegalArgumentException("TerminalRow.setAsciiChars(): columnToSet=" + columnToSet + ", count=" + count);
+        mDirty = true;
+
+        if (mHasNonOneWidthOrSurrogateChars) {
+            // Text may be shifted around by wide or combining chars, so let setChar() keep track of it.
+            for (int i = 0; i < count; i++)
+                setChar(columnToSet + i, source[start + i], style);
+            return;
+        }
+
+        final char[] text = mText;
+        for (int i = 0; i < count; i++)
+            text[columnToSet + i] = (char) source[start + i];
+        Arrays.fill(mStyle, columnToSet, columnToSet + count, style);
+    }
+
     boolean isBlank() {
         for (int charIndex = 0, charLen = getSpaceUsed(); charIndex < charLen; charIndex++)
             if (mText[charIndex] != ' ') return false;
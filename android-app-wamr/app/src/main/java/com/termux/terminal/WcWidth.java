@@ -1,5 +1,9 @@
 package com.termux.terminal;
 
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
 /**
  * Implementation of wcwidth(3) for Unicode 15.
  *
@@ -490,28 +494,68 @@ public final class WcWidth {
     };
 
 
-    private static boolean intable(int[][] table, int c) {
-        // First quick check f|| Latin1 etc. characters.
-        if (c < table[0][0]) return false;
+    /*
+     * Two-level lookup table holding the width of every code point in 2 bits, generated from the interval tables above
+     * at class init. The code space is split into blocks of 256 code points: BLOCK_INDEX maps a block number to one of
+     * the distinct blocks in BLOCK_DATA, each of which is 256 * 2 bits = 8 longs. Most blocks are uniformly width 1 (or
+     * 2 for CJK), so the deduplicated table stays small.
+     */
+    private static final int BLOCK_SHIFT = 8;
+    private static final int LONGS_PER_BLOCK = 8;
+    private static final int MAX_CODE_POINT = Character.MAX_CODE_POINT;
 
-        // Binary search in table.
-        int bot = 0;
-        int top = table.length - 1; // (int)(size / sizeof(struct interval) - 1);
-        while (top >= bot) {
-            int mid = (bot + top) / 2;
-            if (table[mid][1] < c) {
-                bot = mid + 1;
-            } else if (table[mid][0] > c) {
-                top = mid - 1;
+    private static final char[] BLOCK_INDEX;
+    private static final long[] BLOCK_DATA;
+
+    static {
+        // Paint the widths of all code points into a flat bit set, in the reverse order of the checks in
+        // widthFromProperties() so that the earlier checks win.
+        final long[] widths = new long[(MAX_CODE_POINT + 1) >> 5];
+        Arrays.fill(widths, 0x5555555555555555L);
+        for (int[] range : WIDE_EASTASIAN) fillWidth(widths, range[0], range[1], 2);
+        for (int[] range : ZERO_WIDTH) fillWidth(widths, range[0], range[1], 0);
+        fillWidth(widths, 0, 31, 0);
+        fillWidth(widths, 0x07F, 0x09F, 0);
+        fillWidth(widths, 0x034F, 0x034F, 0);
+        fillWidth(widths, 0x200B, 0x200F, 0);
+        fillWidth(widths, 0x2028, 0x202E, 0);
+        fillWidth(widths, 0x2060, 0x2063, 0);
+
+        final int blockCount = (MAX_CODE_POINT + 1) >> BLOCK_SHIFT;
+        final char[] blockIndex = new char[blockCount];
+        final long[] blockData = new long[blockCount * LONGS_PER_BLOCK];
+        final HashMap<LongBuffer, Integer> distinctBlocks = new HashMap<>();
+        for (int block = 0; block < blockCount; block++) {
+            LongBuffer data = LongBuffer.wrap(widths, block * LONGS_PER_BLOCK, LONGS_PER_BLOCK);
+            Integer index = distinctBlocks.get(data);
+            if (index == null) {
+                index = distinctBlocks.size();
+                distinctBlocks.put(data, index);
+                System.arraycopy(widths, block * LONGS_PER_BLOCK, blockData, index * LONGS_PER_BLOCK, LONGS_PER_BLOCK);
+            }
+            blockIndex[block] = (char) (int) index;
+        }
+        BLOCK_INDEX = blockIndex;
+        BLOCK_DATA = Arrays.copyOf(blockData, distinctBlocks.size() * LONGS_PER_BLOCK);
+    }
+
+    /** Set the 2-bit width of the code points from first to last (inclusive), a whole long at a time when aligned. */
+    private static void fillWidth(long[] widths, int first, int last, long width) {
+        final long pattern = width * 0x5555555555555555L;
+        int ucs = first;
+        while (ucs <= last) {
+            if ((ucs & 31) == 0 && ucs + 31 <= last) {
+                widths[ucs >> 5] = pattern;
+                ucs += 32;
             } else {
-                return true;
+                final int shift = (ucs & 31) << 1;
+                widths[ucs >> 5] = (widths[ucs >> 5] & ~(3L << shift)) | (width << shift);
+                ucs++;
             }
         }
-        return false;
     }
 
-    /** Return the terminal display width of a code point: 0, 1 || 2. */
-    public static int width(int ucs) {
+    private static int widthFromProperties(int ucs, boolean zeroWidth, boolean wide) {
         if (ucs == 0 ||
             ucs == 0x034F ||
             (0x200B <= ucs && ucs <= 0x200F) ||
@@ -527,9 +571,44 @@ public final class WcWidth {
         if (ucs < 32 || (0x07F <= ucs && ucs < 0x0A0)) return 0;
 
         // combining characters with zero width
-        if (intable(ZERO_WIDTH, ucs)) return 0;
+        if (zeroWidth) return 0;
+
+        return wide ? 2 : 1;
+    }
 
-        return intable(WIDE_EASTASIAN, ucs) ? 2 : 1;
+    private static boolean intable(int[][] table, int c) {
+        // First quick check f|| Latin1 etc. characters.
+        if (c < table[0][0]) return false;
+
+        // Binary search in table.
+        int bot = 0;
+        int top = table.length - 1; // (int)(size / sizeof(struct interval) - 1);
+        while (top >= bot) {
+            int mid = (bot + top) / 2;
+            if (table[mid][1] < c) {
+                bot = mid + 1;
+            } else if (table[mid][0] > c) {
+                top = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compute the width of a code point by binary searching the interval tables. This is the reference for the lookup
+     * table used by {@link #width(int)}.
+     */
+    static int widthFromTables(int ucs) {
+        return widthFromProperties(ucs, intable(ZERO_WIDTH, ucs), intable(WIDE_EASTASIAN, ucs));
+    }
+
+    /** Return the terminal display width of a code point: 0, 1 || 2. */
+    public static int width(int ucs) {
+        if (ucs < 0 || ucs > MAX_CODE_POINT) return widthFromTables(ucs);
+        final long bits = BLOCK_DATA[BLOCK_INDEX[ucs >> BLOCK_SHIFT] * LONGS_PER_BLOCK + ((ucs >> 5) & (LONGS_PER_BLOCK - 1))];
+        return (int) (bits >>> ((ucs & 31) << 1)) & 3;
     }
 
     /** The width at an index position in a java char array. */
@@ -0,0 +1,59 @@
+package com.example.c2wdemo
+
+import java.io.File
+import java.util.Base64
+import java.util.Properties
+
+/**
+ * Post-init snapshots of images, restored by [VmService] instead of booting the image cold.
+ *
+ * After an image boots cold to its first prompt, its snapshot is saved here with the key of the
+ * image it booted from and the output the guest printed on the way. A later launch with the same
+ * key restores the snapshot and replays that output. Any other key means the image or the app
+ * (and with it the runtime) has changed since, so the image boots cold again, which refreshes the
+ * snapshot.
+ */
+class BootSnapshotStore(private val dir: File) {
+
+    /** A saved boot. [output] is what the guest printed up to its prompt. */
+    class Boot(val snapshot: File, val output: ByteArray)
+
+    /** Where the boot snapshot of [imageId] is written. */
+    fun snapshotFile(imageId: String): File = File(dir, "$imageId.boot.snap")
+
+    private fun infoFile(imageId: String): File = File(dir, "$imageId.boot.properties")
+
+    /** The boot snapshot of [imageId], or null if there is none for an image with [key]. */
+    fun find(imageId: String, key: String): Boot? {
+        val snapshot = snapshotFile(imageId)
+        val info = infoFile(imageId)
+        if (!snapshot.exists() || !info.exists()) return null
+        val properties = Properties()
+        runCatching { info.inputStream().use { properties.load(it) } }.getOrElse { return null }
+        if (properties.getProperty(PROPERTY_KEY) != key) return null
+        val output = runCatching { Base64.getDecoder().decode(properties.getProperty(PROPERTY_OUTPUT, "")) }
+            .getOrElse { return null }
+        return Boot(snapshot, output)
+    }
+
+    /** Record that [snapshotFile] of [imageId] now holds a boot of the image with [key]. */
+    fun commit(imageId: String, key: String, output: ByteArray) {
+        val properties = Properties()
+        properties.setProperty(PROPERTY_KEY, key)
+        properties.setProperty(PROPERTY_OUTPUT, Base64.getEncoder().encodeToString(output))
+        val temp = File(dir, "${infoFile(imageId).name}.tmp")
+        temp.outputStream().use { properties.store(it, null) }
+        if (!temp.renameTo(infoFile(imageId))) temp.delete()
+    }
+
+    /** Delete the boot snapshot of [imageId], if there is one. */
+    fun delete(imageId: String) {
+        infoFile(imageId).delete()
+        snapshotFile(imageId).delete()
+    }
+
+    companion object {
+        private const val PROPERTY_KEY = "image.key"
+        private const val PROPERTY_OUTPUT = "output"
+    }
+}
@@ -1,5 +1,11 @@
 package com.example.c2wdemo
 
+import android.content.res.AssetFileDescriptor
+import android.os.ParcelFileDescriptor
+import android.util.Log
+import java.io.File
+import java.nio.ByteBuffer
+
 /**
  * JNI wrapper for friscy — libriscv RISC-V 64 emulator.
  *
@@ -7,51 +13,242 @@ package com.example.c2wdemo
  */
 object FriscyRuntime {
 
+    private const val TAG = "FriscyRuntime"
+
     init {
         System.loadLibrary("friscy_android")
     }
 
+    /** Input the stdin ring had no room for, pushed again as the guest reads. */
+    private val pendingInput = PendingInput(
+        onDropped = { Log.w(TAG, "Dropped $it bytes of input the guest did not read") },
+    ) { data, offset, length -> if (isRunning) nativeSendInput(data, offset, length) else -1 }
+
+    /** Told by the native writer that the output ring has bytes to drain. */
     interface OutputCallback {
-        fun onOutput(text: String)
+        fun onOutputAvailable()
+    }
+
+    /**
+     * When buffered guest output is handed to the [OutputListener]: as soon as [thresholdBytes]
+     * are pending, or [intervalMicros] after the first write that did not reach the threshold.
+     * Larger batches mean fewer JNI upcalls; a shorter interval means lower output latency.
+     */
+    data class OutputFlushPolicy(val thresholdBytes: Int = 4096, val intervalMicros: Int = 2000) {
+        init {
+            require(thresholdBytes >= 0 && intervalMicros >= 0) { "policy values must not be negative" }
+        }
+
+        companion object {
+            /** Deliver every guest write as soon as it happens. */
+            val IMMEDIATE = OutputFlushPolicy(thresholdBytes = 0, intervalMicros = 0)
+        }
+    }
+
+    /** Counters of the VFS resolved-path cache, see [resolveStats]. */
+    data class ResolveStats(val hits: Long, val negativeHits: Long, val misses: Long, val invalidations: Long) {
+        /** Fraction of path lookups answered without walking the tree. */
+        val hitRate: Float
+            get() = if (hits + misses == 0L) 0f else hits.toFloat() / (hits + misses)
+    }
+
+    /** Time from [sendInput] to the guest read that returned the input, see [inputLatency]. */
+    data class InputLatency(val reads: Long, val totalNanos: Long, val maxNanos: Long) {
+        val meanMicros: Double
+            get() = if (reads == 0L) 0.0 else totalNanos / 1000.0 / reads
+    }
+
+    /**
+     * Counters of the guest thread scheduler, see [schedulerStats]. [preemptions] are the
+     * [switches] made because a thread used up its time slice; [idleParks] are the times no
+     * thread could run and the runtime waited for input, sockets or a timeout.
+     */
+    data class SchedulerStats(
+        val threads: Long,
+        val peakThreads: Long,
+        val switches: Long,
+        val preemptions: Long,
+        val futexWaits: Long,
+        val futexWakes: Long,
+        val futexTimeouts: Long,
+        val idleParks: Long,
+    )
+
+    /** Receives guest output bytes. [data] is only valid for the duration of the call. */
+    fun interface OutputListener {
+        fun onOutput(data: ByteArray, offset: Int, length: Int)
     }
 
     // --- Native methods ---
 
     external fun nativeInit(): Boolean
-    external fun nativeLoadRootfs(tarBytes: ByteArray, entryPath: String, callback: OutputCallback): Boolean
+    external fun nativeLoadRootfs(tarBytes: ByteArray, entryPath: String, outputRing: ByteBuffer, callback: OutputCallback): Boolean
+    external fun nativeLoadRootfsFd(
+        fd: Int, offset: Long, length: Long, entryPath: String, indexPath: String?,
+        outputRing: ByteBuffer, callback: OutputCallback,
+    ): Boolean
+    external fun nativeOutputWritePosition(): Long
+    external fun nativeOutputConsumed(readPosition: Long): Boolean
+    external fun nativeSetOutputFlushPolicy(thresholdBytes: Int, intervalMicros: Int)
     external fun nativeStart(): Boolean
-    external fun nativeSendInput(text: String)
+    external fun nativeAwaitInputWait(timeoutMs: Long): Boolean
+    external fun nativeSetResolveCacheCapacity(capacity: Int)
+    external fun nativeHasBinaryTranslation(): Boolean
+    external fun nativeSetBinaryTranslation(enabled: Boolean, cacheDir: String?)
+    external fun nativeInstructionCount(): Long
+    external fun nativeGetResolveStats(): LongArray?
+    external fun nativeGetInputLatency(): LongArray
+    external fun nativeGetSchedulerStats(): LongArray
+    external fun nativeSendInput(data: ByteArray, offset: Int, length: Int): Int
+    external fun nativeSendInputBuffer(buffer: ByteBuffer, offset: Int, length: Int): Int
     external fun nativeStop()
     external fun nativeDestroy()
     external fun nativeIsRunning(): Boolean
     external fun nativeGetVersion(): String
     external fun nativeSetTerminalSize(cols: Int, rows: Int)
-    external fun nativeSaveSnapshot(path: String): Boolean
-    external fun nativeRestoreSnapshot(path: String): Boolean
+    external fun nativeSaveSnapshot(path: String, basePath: String?, compress: Boolean): Long
+    external fun nativeRestoreSnapshot(path: String, map: Boolean): Boolean
 
     // --- Kotlin API ---
 
     fun initialize(): Boolean = nativeInit()
 
-    fun loadRootfs(tarBytes: ByteArray, entryPath: String = "/bin/sh", onOutput: (String) -> Unit): Boolean {
-        return nativeLoadRootfs(tarBytes, entryPath, object : OutputCallback {
-            override fun onOutput(text: String) {
-                onOutput(text)
+    /**
+     * Load a rootfs and route the guest's output to [listener], which is called on the thread that
+     * produced the output.
+     */
+    fun loadRootfs(tarBytes: ByteArray, entryPath: String = "/bin/sh", listener: OutputListener): Boolean {
+        return withOutputRing(listener) { ring, callback -> nativeLoadRootfs(tarBytes, entryPath, ring, callback) }
+    }
+
+    /**
+     * Load a rootfs by mapping [file] instead of reading it onto the heap. File contents stay in the
+     * mapping until the guest writes to them.
+     *
+     * Only the tar headers are scanned up front, and directories are filled in when the guest first
+     * looks inside them. With [indexFile] the scanned headers are saved there and reused on the next
+     * boot of the same image, so even the scan is skipped.
+     */
+    fun loadRootfs(file: File, entryPath: String = "/bin/sh", indexFile: File? = null, listener: OutputListener): Boolean {
+        return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY).use { pfd ->
+            withOutputRing(listener) { ring, callback ->
+                nativeLoadRootfsFd(pfd.fd, 0, file.length(), entryPath, indexFile?.path, ring, callback)
+            }
+        }
+    }
+
+    /** Load a rootfs by mapping an uncompressed asset, see [loadRootfs]. */
+    fun loadRootfs(
+        asset: AssetFileDescriptor, entryPath: String = "/bin/sh", indexFile: File? = null, listener: OutputListener,
+    ): Boolean {
+        return withOutputRing(listener) { ring, callback ->
+            nativeLoadRootfsFd(
+                asset.parcelFileDescriptor.fd, asset.startOffset, asset.length, entryPath, indexFile?.path, ring, callback,
+            )
+        }
+    }
+
+    private inline fun withOutputRing(listener: OutputListener, load: (ByteBuffer, OutputCallback) -> Boolean): Boolean {
+        val ring = OutputRing()
+        return load(ring.buffer, object : OutputCallback {
+            override fun onOutputAvailable() {
+                do {
+                    ring.drain(nativeOutputWritePosition(), listener)
+                } while (nativeOutputConsumed(ring.readPosition))
             }
         })
     }
 
     fun start(): Boolean = nativeStart()
 
-    fun sendInput(input: String) {
-        if (isRunning) {
-            nativeSendInput(input)
+    /**
+     * After [start], wait until the guest first blocks reading stdin, which for a shell or REPL is
+     * when its prompt is on screen. Returns false if the guest stopped or [timeoutMs] passed first.
+     */
+    fun awaitPrompt(timeoutMs: Long): Boolean = nativeAwaitInputWait(timeoutMs)
+
+    /** How guest output is batched before it reaches the [OutputListener]. May be changed at any time. */
+    var outputFlushPolicy = OutputFlushPolicy()
+        set(value) {
+            nativeSetOutputFlushPolicy(value.thresholdBytes, value.intervalMicros)
+            field = value
+        }
+
+    /** How many resolved paths the VFS caches; 0 disables the cache. Applies from the next [loadRootfs]. */
+    var resolveCacheCapacity = 4096
+        set(value) {
+            require(value >= 0) { "capacity must not be negative" }
+            nativeSetResolveCacheCapacity(value)
+            field = value
+        }
+
+    /** Whether this build can translate guest code to native code (built with -Pfriscy.binaryTranslation=true). */
+    val binaryTranslationAvailable: Boolean get() = nativeHasBinaryTranslation()
+
+    /**
+     * Translate the entry binary's code to native code instead of interpreting it, keeping the
+     * translations in [cacheDir] so later boots of the same binary reuse them. Ignored unless
+     * [binaryTranslationAvailable]; applies from the next [loadRootfs].
+     */
+    fun setBinaryTranslation(enabled: Boolean, cacheDir: File? = null) {
+        cacheDir?.mkdirs()
+        nativeSetBinaryTranslation(enabled, cacheDir?.path)
+    }
+
+    /** Guest instructions executed since the last [loadRootfs]. */
+    val instructionCount: Long get() = nativeInstructionCount()
+
+    /** Input wake-up latency since the last [loadRootfs]. */
+    val inputLatency: InputLatency
+        get() = nativeGetInputLatency().let { InputLatency(it[0], it[1], it[2]) }
+
+    /** Guest thread scheduler counters since the last [loadRootfs]. */
+    val schedulerStats: SchedulerStats
+        get() = nativeGetSchedulerStats().let {
+            SchedulerStats(it[0], it[1], it[2], it[3], it[4], it[5], it[6], it[7])
         }
+
+    /** Path resolution counters of the loaded rootfs, or null if none is loaded. */
+    val resolveStats: ResolveStats?
+        get() = nativeGetResolveStats()?.let { ResolveStats(it[0], it[1], it[2], it[3]) }
+
+    fun sendInput(input: String) {
+        val bytes = input.toByteArray(Charsets.UTF_8)
+        sendInput(bytes, 0, bytes.size)
     }
 
+    /**
+     * Queue bytes for the guest's stdin. Bytes the stdin ring has no room for, because the guest
+     * has left a large amount of earlier input unread, are kept and queued as it reads. Returns
+     * how many were accepted, which is fewer than [length] only if input was dropped; see
+     * [droppedInputBytes].
+     */
+    fun sendInput(data: ByteArray, offset: Int = 0, length: Int = data.size - offset): Int {
+        if (!isRunning) return 0
+        return pendingInput.send(data, offset, length)
+    }
+
+    /** Queue bytes from [buffer], which must be a direct buffer, starting at [offset]. */
+    fun sendInput(buffer: ByteBuffer, offset: Int, length: Int): Int {
+        require(buffer.isDirect) { "buffer must be direct" }
+        if (!isRunning || length <= 0) return 0
+        // Straight from the buffer unless earlier input is still waiting for room
+        val queued = if (pendingInput.pendingBytes == 0) nativeSendInputBuffer(buffer, offset, length) else 0
+        if (queued >= length) return length
+        val rest = ByteArray(length - queued)
+        buffer.duplicate().apply { position(offset + queued) }.get(rest)
+        return queued + pendingInput.send(rest, 0, rest.size)
+    }
+
+    /** Input dropped because the guest stopped or left more than [PendingInput.DEFAULT_CAPACITY] bytes unread. */
+    val droppedInputBytes: Long get() = pendingInput.droppedBytes
+
     fun stop() = nativeStop()
 
-    fun destroy() = nativeDestroy()
+    fun destroy() {
+        nativeDestroy()
+        pendingInput.clear()
+    }
 
     val isRunning: Boolean get() = nativeIsRunning()
 
@@ -99,6 +99,8 @@ class ImageManager(private val context: Context) {
                 }
             }
 
+            // The saved tar index describes the old archive
+            indexFile(image.id).delete()
             tempFile.renameTo(destFile)
             emit(DownloadState.Complete(destFile))
         } catch (e: Exception) {
@@ -109,9 +111,24 @@ class ImageManager(private val context: Context) {
 
     /** Delete a cached image. */
     fun deleteImage(image: ContainerImage): Boolean {
+        indexFile(image.id).delete()
+        bootSnapshots().delete(image.id)
+        translationCacheDir(image.id).deleteRecursively()
         return cachedFile(image).delete()
     }
 
+    /**
+     * Where the runtime keeps the scanned tar headers of an image between boots. The runtime checks
+     * the index against the archive before using it, so a stale one is simply rebuilt.
+     */
+    fun indexFile(imageId: String): File = File(imagesDir, "$imageId.index")
+
+    /** Where binary translations of the image's executables are cached, see [FriscyRuntime.setBinaryTranslation]. */
+    fun translationCacheDir(imageId: String): File = File(imagesDir, "$imageId.translations")
+
+    /** The post-init snapshots [VmService] warm boots images from, kept next to the images. */
+    fun bootSnapshots(): BootSnapshotStore = BootSnapshotStore(imagesDir)
+
     /** List IDs of images that have been downloaded. */
     fun listCached(): Set<String> {
         return imagesDir.listFiles()
@@ -4,6 +4,7 @@ import android.content.ComponentName
 import android.content.Context
 import android.content.Intent
 import android.content.ServiceConnection
+import android.os.Build
 import android.os.Bundle
 import android.os.IBinder
 import android.view.View
@@ -30,6 +31,7 @@ import com.example.c2wdemo.ime.RootViewDeferringInsetsCallback
 import com.example.c2wdemo.ime.TranslateDeferringInsetsAnimationCallback
 import com.example.c2wdemo.terminal.FriscyTerminalBridge
 import com.example.c2wdemo.terminal.FriscyTerminalView
+import com.example.c2wdemo.terminal.TerminalRenderScheduler
 
 class MainActivity : AppCompatActivity() {
 
@@ -51,6 +53,9 @@ class MainActivity : AppCompatActivity() {
     /** The bridge connecting friscy runtime to the Termux TerminalEmulator. */
     private lateinit var bridge: FriscyTerminalBridge
 
+    /** Batches output from the VM into one parse and redraw per display frame. */
+    private lateinit var renderScheduler: TerminalRenderScheduler
+
     /** Sticky Ctrl mode: next character typed is sent as a control character. */
     private var ctrlSticky = false
 
@@ -67,15 +72,12 @@ class MainActivity : AppCompatActivity() {
             // Replay buffered output from service (output produced while UI was away)
             val buffered = localBinder.service.getBufferedOutput()
             if (buffered.isNotEmpty()) {
-                feedOutput(buffered)
+                feedOutput(buffered, 0, buffered.size)
             }
 
             // Register for live output
-            localBinder.service.setOutputCallback { text ->
-                runOnUiThread {
-                    feedOutput(text)
-                }
-            }
+            localBinder.service.setOutputCallback(::feedOutput)
+            localBinder.service.setBootListener { statsProvider.onBoot(it.millis, it.warm) }
         }
 
         override fun onServiceDisconnected(name: ComponentName?) {
@@ -117,6 +119,11 @@ class MainActivity : AppCompatActivity() {
         })
         terminalView.bridge = bridge
 
+        @Suppress("DEPRECATION")
+        val windowDisplay = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) display else windowManager.defaultDisplay
+        val refreshRate = windowDisplay?.refreshRate?.takeIf { it > 0f } ?: 60f
+        renderScheduler = TerminalRenderScheduler(bridge, (1_000_000_000 / refreshRate).toLong())
+
         btnSnap = findViewById(R.id.btnSnap)
         snapshotManager = SnapshotManager(this)
 
@@ -127,6 +134,8 @@ class MainActivity : AppCompatActivity() {
 
         // Start and bind to VmService, forwarding image parameters
         val serviceIntent = Intent(this, VmService::class.java).apply {
+            putExtra(ImagePickerActivity.EXTRA_IMAGE_ID,
+                intent.getStringExtra(ImagePickerActivity.EXTRA_IMAGE_ID))
             putExtra(ImagePickerActivity.EXTRA_IMAGE_SOURCE,
                 intent.getStringExtra(ImagePickerActivity.EXTRA_IMAGE_SOURCE)
                     ?: ImagePickerActivity.SOURCE_ASSET)
@@ -136,6 +145,10 @@ class MainActivity : AppCompatActivity() {
                 intent.getStringExtra(ImagePickerActivity.EXTRA_FILE_PATH))
             putExtra(ImagePickerActivity.EXTRA_ENTRY_POINT,
                 intent.getStringExtra(ImagePickerActivity.EXTRA_ENTRY_POINT) ?: "/bin/sh")
+            putExtra(VmService.EXTRA_WARM_BOOT,
+                intent.getBooleanExtra(VmService.EXTRA_WARM_BOOT, true))
+            putExtra(VmService.EXTRA_BINARY_TRANSLATION,
+                intent.getBooleanExtra(VmService.EXTRA_BINARY_TRANSLATION, false))
         }
         startService(serviceIntent)
         bindService(serviceIntent, serviceConnection, Context.BIND_AUTO_CREATE)
@@ -146,9 +159,7 @@ class MainActivity : AppCompatActivity() {
         if (::statsProvider.isInitialized) {
             statsProvider.resume(lifecycleScope)
         }
-        vmService?.setOutputCallback { text ->
-            runOnUiThread { feedOutput(text) }
-        }
+        vmService?.setOutputCallback(::feedOutput)
     }
 
     override fun onStop() {
@@ -160,14 +171,12 @@ class MainActivity : AppCompatActivity() {
     }
 
     /**
-     * Feed output from the friscy runtime into the terminal emulator.
+     * Queue output from the friscy runtime for the terminal emulator.
+     * May be called from any thread; it is parsed on the next display frame.
      * The TerminalEmulator handles all ANSI escape sequence parsing.
      */
-    private fun feedOutput(text: String) {
-        if (::statsProvider.isInitialized) {
-            statsProvider.onOutputEvent()
-        }
-        bridge.feedOutput(text)
+    private fun feedOutput(data: ByteArray, offset: Int, length: Int) {
+        renderScheduler.post(data, offset, length)
     }
 
     private fun setupImeAnimation() {
@@ -243,11 +252,11 @@ class MainActivity : AppCompatActivity() {
         // SNAP: tap to save, long-press to restore
         btnSnap.setOnClickListener {
             lifecycleScope.launch {
-                val ok = snapshotManager.save()
+                val pauseMs = snapshotManager.save()
                 runOnUiThread {
                     Toast.makeText(
                         this@MainActivity,
-                        if (ok) "Snapshot saved" else "Snapshot failed",
+                        if (pauseMs != null) "Snapshot saved (guest paused %.1f ms)".format(pauseMs) else "Snapshot failed",
                         Toast.LENGTH_SHORT
                     ).show()
                 }
@@ -265,7 +274,9 @@ class MainActivity : AppCompatActivity() {
             Toast.makeText(this, "No snapshots", Toast.LENGTH_SHORT).show()
             return
         }
-        val names = snapshots.map { it.name + " (${it.sizeBytes / 1024 / 1024}MB)" }.toTypedArray()
+        val names = snapshots.map {
+            it.name + " (${it.diskBytes / 1024 / 1024} of ${it.logicalBytes / 1024 / 1024}MB)"
+        }.toTypedArray()
         AlertDialog.Builder(this)
             .setTitle("Restore snapshot")
             .setItems(names) { _, which ->
@@ -289,6 +300,9 @@ class MainActivity : AppCompatActivity() {
         statsProvider.start(lifecycleScope) { data ->
             gaugeState.value = data
         }
+        renderScheduler.frameListener = TerminalRenderScheduler.FrameListener { coalescedChunks, droppedFrames ->
+            statsProvider.onRenderFrame(coalescedChunks, droppedFrames)
+        }
 
         val composeView = findViewById<ComposeView>(R.id.statusGauge)
         composeView.setContent {
@@ -312,11 +326,13 @@ class MainActivity : AppCompatActivity() {
     override fun onDestroy() {
         super.onDestroy()
         backSpineHandler?.destroy()
+        renderScheduler.cancel()
         if (::statsProvider.isInitialized) {
             statsProvider.stop()
         }
         if (serviceBound) {
             vmService?.clearOutputCallback()
+            vmService?.clearBootListener()
             unbindService(serviceConnection)
             serviceBound = false
         }
@@ -0,0 +1,54 @@
+package com.example.c2wdemo
+
+import java.nio.ByteBuffer
+
+/**
+ * Reading end of the ring that carries guest stdout/stderr from the native runtime.
+ *
+ * The native writer copies guest output straight into [buffer], a direct ByteBuffer, and publishes
+ * how far it has written. [drain] copies the new bytes into a reusable chunk and hands them to an
+ * [FriscyRuntime.OutputListener] exactly as the guest wrote them, so nothing is transcoded and
+ * nothing is allocated per write.
+ *
+ * Positions are free-running byte counts; a position maps to index `position and (capacity - 1)`.
+ */
+class OutputRing(val capacity: Int = DEFAULT_CAPACITY) {
+
+    companion object {
+        const val DEFAULT_CAPACITY = 64 * 1024
+        private const val CHUNK_SIZE = 16 * 1024
+    }
+
+    init {
+        require(capacity > 0 && capacity and (capacity - 1) == 0) { "capacity must be a power of two" }
+    }
+
+    /** Storage shared with the native writer. */
+    val buffer: ByteBuffer = ByteBuffer.allocateDirect(capacity)
+
+    /** Position just past the last byte handed to a listener. */
+    var readPosition = 0L
+        private set
+
+    private val chunk = ByteArray(minOf(capacity, CHUNK_SIZE))
+
+    /**
+     * Pass everything between [readPosition] and [writePosition] to [listener], in chunks that do
+     * not outlive the call. Returns the number of bytes drained.
+     */
+    @Synchronized
+    fun drain(writePosition: Long, listener: FriscyRuntime.OutputListener): Int {
+        val available = (writePosition - readPosition).toInt()
+        var remaining = available
+        while (remaining > 0) {
+            val index = (readPosition and (capacity - 1).toLong()).toInt()
+            val length = minOf(remaining, chunk.size, capacity - index)
+            buffer.position(index)
+            buffer.get(chunk, 0, length)
+            listener.onOutput(chunk, 0, length)
+            readPosition += length
+            remaining -= length
+        }
+        return available
+    }
+}
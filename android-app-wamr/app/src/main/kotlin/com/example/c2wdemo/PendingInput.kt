@@ -0,0 +1,129 @@
+package com.example.c2wdemo
+
+import kotlin.concurrent.thread
+
+/**
+ * Input that the native stdin ring could not take yet, kept in order and pushed again until the
+ * guest has read enough to make room.
+ *
+ * [push] queues bytes into the ring and returns how many it took, or a negative value if the
+ * guest is gone. Whatever it leaves is copied here and retried from a background thread, backing
+ * off while the guest is not reading. Input beyond [capacity] unsent bytes, and input left when
+ * the guest is gone, is dropped, counted in [droppedBytes] and passed to [onDropped].
+ */
+class PendingInput(
+    private val capacity: Int = DEFAULT_CAPACITY,
+    private val onDropped: (Int) -> Unit = {},
+    private val push: (ByteArray, Int, Int) -> Int,
+) {
+
+    companion object {
+        const val DEFAULT_CAPACITY = 4 * 1024 * 1024
+        private const val MIN_BACKOFF_MS = 1L
+        private const val MAX_BACKOFF_MS = 50L
+    }
+
+    init {
+        require(capacity >= 0) { "capacity must not be negative" }
+    }
+
+    private val lock = Any()
+
+    // Guarded by lock
+    private val chunks = ArrayDeque<ByteArray>()
+    private var headOffset = 0
+    private var unsent = 0
+    private var retrying = false
+
+    /** Bytes waiting for room in the stdin ring. */
+    val pendingBytes: Int
+        get() = synchronized(lock) { unsent }
+
+    @Volatile
+    var droppedBytes = 0L
+        private set
+
+    /**
+     * Queue [length] bytes after any input still pending. Returns how many were queued or kept for
+     * a retry, which is fewer than [length] only if the rest was dropped.
+     */
+    fun send(data: ByteArray, offset: Int, length: Int): Int {
+        if (length <= 0) return 0
+        synchronized(lock) {
+            var from = offset
+            var remaining = length
+            if (chunks.isEmpty()) {
+                val queued = push(data, from, remaining)
+                if (queued < 0) {
+                    dropLocked(remaining)
+                    return 0
+                }
+                from += queued
+                remaining -= queued
+                if (remaining == 0) return length
+            }
+            val kept = minOf(remaining, capacity - unsent)
+            if (kept > 0) {
+                chunks.addLast(data.copyOfRange(from, from + kept))
+                unsent += kept
+                startRetryLocked()
+            }
+            if (kept < remaining) dropLocked(remaining - kept)
+            return length - (remaining - kept)
+        }
+    }
+
+    /** Drop everything still pending, e.g. when the guest is destroyed. */
+    fun clear() {
+        synchronized(lock) {
+            if (unsent > 0) dropLocked(unsent)
+            chunks.clear()
+            headOffset = 0
+            unsent = 0
+        }
+    }
+
+    private fun dropLocked(bytes: Int) {
+        droppedBytes += bytes
+        onDropped(bytes)
+    }
+
+    private fun startRetryLocked() {
+        if (retrying) return
+        retrying = true
+        thread(name = "friscy-stdin-retry", isDaemon = true) { retry() }
+    }
+
+    private fun retry() {
+        var backoffMs = MIN_BACKOFF_MS
+        while (true) {
+            synchronized(lock) {
+                while (chunks.isNotEmpty()) {
+                    val head = chunks.first()
+                    val queued = push(head, headOffset, head.size - headOffset)
+                    if (queued < 0) {
+                        dropLocked(unsent)
+                        chunks.clear()
+                        headOffset = 0
+                        unsent = 0
+                        break
+                    }
+                    if (queued == 0) break
+                    backoffMs = MIN_BACKOFF_MS
+                    headOffset += queued
+                    unsent -= queued
+                    if (headOffset == head.size) {
+                        chunks.removeFirst()
+                        headOffset = 0
+                    }
+                }
+                if (chunks.isEmpty()) {
+                    retrying = false
+                    return
+                }
+            }
+            Thread.sleep(backoffMs)
+            backoffMs = minOf(backoffMs * 2, MAX_BACKOFF_MS)
+        }
+    }
+}
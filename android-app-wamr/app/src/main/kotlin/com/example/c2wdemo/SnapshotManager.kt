@@ -4,6 +4,9 @@ import android.content.Context
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
 import java.io.File
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
 import java.text.SimpleDateFormat
 import java.util.Date
 import java.util.Locale
@@ -14,51 +17,108 @@ import java.util.Locale
 data class SnapshotInfo(
     val name: String,
     val file: File,
-    val sizeBytes: Long,
+    /** Size of the machine state the snapshot represents (registers + guest memory). */
+    val logicalBytes: Long,
+    /** Size of the snapshot file. */
+    val diskBytes: Long,
     val createdAt: Long,
+    /** Snapshot this one is a delta against, or null if it is self-contained. */
+    val baseName: String? = null,
 )
 
 /**
  * Manages local snapshot files in `filesDir/snapshots/`.
  *
- * Snapshots are binary files containing CPU registers + flat arena memory,
- * allowing instant restore of a running container's state.
+ * Snapshots are binary files containing CPU registers, guest memory and the
+ * runtime state around them (filesystem, open files, threads), allowing
+ * instant restore of a running container's state. Only non-zero pages are
+ * stored, and a snapshot may be a delta that stores just the pages that
+ * changed since a base snapshot.
  */
 class SnapshotManager(context: Context) {
 
+    companion object {
+        private const val MAGIC = 0x4653524953435946L
+        private const val HEADER_SIZE = 96
+        private const val V2_HEADER_SIZE = 80
+        private const val FLAG_DELTA = 1
+
+        /** Read the [SnapshotInfo] of [file], or null if it is not a snapshot. */
+        fun readInfo(file: File): SnapshotInfo? {
+            val header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+            var baseName: String? = null
+            RandomAccessFile(file, "r").use { raf ->
+                val read = raf.channel.read(header, 0)
+                if (read < 32 || header.getLong(0) != MAGIC) return null
+                val version = header.getInt(8)
+                val regsSize = header.getInt(12)
+                if (version >= 2) {
+                    val headerSize = if (version == 2) V2_HEADER_SIZE else HEADER_SIZE
+                    if (read < headerSize) return null
+                    if (header.getInt(36) and FLAG_DELTA != 0) {
+                        val name = ByteArray(header.getInt(72))
+                        raf.seek(headerSize.toLong() + regsSize)
+                        raf.readFully(name)
+                        baseName = String(name, Charsets.UTF_8).removeSuffix(".snap")
+                    }
+                }
+            }
+            return SnapshotInfo(
+                name = file.nameWithoutExtension,
+                file = file,
+                logicalBytes = header.getInt(12) + header.getLong(16),
+                diskBytes = file.length(),
+                createdAt = file.lastModified(),
+                baseName = baseName,
+            )
+        }
+    }
+
     private val snapshotsDir = File(context.filesDir, "snapshots").also { it.mkdirs() }
 
+    /**
+     * Whether new snapshots are compressed. Compressed snapshots are smaller; uncompressed ones
+     * are restored by mapping the file, in a time that does not depend on guest memory size.
+     */
+    var compress = true
+
     /** List all saved snapshots, sorted by creation time (newest first). */
     fun list(): List<SnapshotInfo> {
         return snapshotsDir.listFiles()
             ?.filter { it.extension == "snap" }
-            ?.map { file ->
-                SnapshotInfo(
-                    name = file.nameWithoutExtension,
-                    file = file,
-                    sizeBytes = file.length(),
-                    createdAt = file.lastModified(),
-                )
-            }
+            ?.mapNotNull { file -> runCatching { readInfo(file) }.getOrNull() }
             ?.sortedByDescending { it.createdAt }
             ?: emptyList()
     }
 
-    /** Save the current machine state to a named snapshot. */
-    suspend fun save(name: String = generateName()): Boolean = withContext(Dispatchers.IO) {
+    /**
+     * Save the current machine state to a named snapshot. With [base], the name of a
+     * self-contained snapshot, only pages that changed since [base] are written.
+     *
+     * A running guest keeps running while the snapshot is compressed and written; it is only
+     * paused while its state is copied. Returns that pause in milliseconds, or null on failure.
+     */
+    suspend fun save(name: String = generateName(), base: String? = null): Double? = withContext(Dispatchers.IO) {
         val file = File(snapshotsDir, "$name.snap")
-        FriscyRuntime.nativeSaveSnapshot(file.absolutePath)
+        val pauseMicros = FriscyRuntime.nativeSaveSnapshot(file.absolutePath, base?.let { getPath(it) }, compress)
+        if (pauseMicros >= 0) pauseMicros / 1000.0 else null
     }
 
-    /** Restore machine state from a named snapshot. Machine must be loaded first. */
-    suspend fun restore(name: String): Boolean = withContext(Dispatchers.IO) {
+    /**
+     * Restore machine state from a named snapshot. Machine must be loaded first. With [map],
+     * uncompressed pages are mapped from the file and only read when the guest touches them.
+     * A corrupt snapshot fails without changing the machine; an I/O error while restoring
+     * stops it, and the image has to be loaded again.
+     */
+    suspend fun restore(name: String, map: Boolean = true): Boolean = withContext(Dispatchers.IO) {
         val file = File(snapshotsDir, "$name.snap")
         if (!file.exists()) return@withContext false
-        FriscyRuntime.nativeRestoreSnapshot(file.absolutePath)
+        FriscyRuntime.nativeRestoreSnapshot(file.absolutePath, map)
     }
 
-    /** Delete a snapshot by name. */
+    /** Delete a snapshot by name. Fails if other snapshots are deltas against it. */
     fun delete(name: String): Boolean {
+        if (list().any { it.baseName == name }) return false
         return File(snapshotsDir, "$name.snap").delete()
     }
 
@@ -11,7 +11,10 @@ import android.os.Binder
 import android.os.Build
 import android.os.IBinder
 import android.os.PowerManager
+import android.os.SystemClock
+import java.io.ByteArrayOutputStream
 import java.io.File
+import java.io.FileNotFoundException
 import androidx.core.app.NotificationCompat
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
@@ -19,6 +22,9 @@ import kotlinx.coroutines.SupervisorJob
 import kotlinx.coroutines.cancel
 import kotlinx.coroutines.launch
 
+/** Time from starting the VM to the guest's first prompt, and whether it came from a boot snapshot. */
+data class BootTime(val millis: Long, val warm: Boolean)
+
 class VmService : Service() {
 
     inner class LocalBinder : Binder() {
@@ -29,8 +35,11 @@ class VmService : Service() {
     private val serviceScope = CoroutineScope(SupervisorJob() + Dispatchers.Main)
 
     private var wakeLock: PowerManager.WakeLock? = null
-    private var outputCallback: ((String) -> Unit)? = null
+    @Volatile
+    private var outputCallback: FriscyRuntime.OutputListener? = null
 
+    /** Registry id of the image, used to key its saved rootfs index. */
+    private var imageId: String? = null
     /** Image source: "asset" or "file". */
     private var imageSource: String = ImagePickerActivity.SOURCE_ASSET
     /** Asset name (when source is "asset"). */
@@ -39,14 +48,29 @@ class VmService : Service() {
     private var filePath: String? = null
     /** Entry point binary inside the rootfs. */
     private var entryPoint: String = "/bin/sh"
+    /** Whether to restore the image's boot snapshot instead of booting it, see [BootSnapshotStore]. */
+    private var warmBoot = true
+    /** Whether to translate guest code to native code, in builds that can. */
+    private var binaryTranslation = false
+
+    /** Recent output bytes so reconnecting UI can replay missed text. */
+    private val outputBuffer = ByteArray(OUTPUT_BUFFER_CAPACITY)
+    private var outputBufferLength = 0
 
-    /** Ring buffer of recent output so reconnecting UI can replay missed text. */
-    private val outputBuffer = StringBuilder(OUTPUT_BUFFER_CAPACITY)
+    /** Guest output of a cold boot up to its prompt, saved with the boot snapshot; null when not recording. */
+    private var bootOutput: ByteArrayOutputStream? = null
 
     /** Whether the VM has been started by this service instance. */
     var vmStarted = false
         private set
 
+    /** How long the VM took to reach its prompt, once it has. */
+    @Volatile
+    var bootTime: BootTime? = null
+        private set
+    @Volatile
+    private var bootListener: ((BootTime) -> Unit)? = null
+
     override fun onCreate() {
         super.onCreate()
         createNotificationChannel()
@@ -55,11 +79,14 @@ class VmService : Service() {
     override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
         // Read image params from intent
         intent?.let {
+            imageId = it.getStringExtra(ImagePickerActivity.EXTRA_IMAGE_ID)
             imageSource = it.getStringExtra(ImagePickerActivity.EXTRA_IMAGE_SOURCE)
                 ?: ImagePickerActivity.SOURCE_ASSET
             assetName = it.getStringExtra(ImagePickerActivity.EXTRA_ASSET_NAME) ?: "rootfs.tar"
             filePath = it.getStringExtra(ImagePickerActivity.EXTRA_FILE_PATH)
             entryPoint = it.getStringExtra(ImagePickerActivity.EXTRA_ENTRY_POINT) ?: "/bin/sh"
+            warmBoot = it.getBooleanExtra(EXTRA_WARM_BOOT, true)
+            binaryTranslation = it.getBooleanExtra(EXTRA_BINARY_TRANSLATION, false)
         }
 
         startForeground(NOTIFICATION_ID, buildNotification())
@@ -88,7 +115,7 @@ class VmService : Service() {
 
     // --- Output callback management ---
 
-    fun setOutputCallback(cb: (String) -> Unit) {
+    fun setOutputCallback(cb: FriscyRuntime.OutputListener) {
         outputCallback = cb
     }
 
@@ -96,10 +123,20 @@ class VmService : Service() {
         outputCallback = null
     }
 
+    /** Call [listener] with the [BootTime] once the VM reaches its prompt, or now if it already has. */
+    fun setBootListener(listener: (BootTime) -> Unit) {
+        bootListener = listener
+        bootTime?.let(listener)
+    }
+
+    fun clearBootListener() {
+        bootListener = null
+    }
+
     /** Returns buffered output for UI replay on reconnect. */
-    fun getBufferedOutput(): String {
+    fun getBufferedOutput(): ByteArray {
         synchronized(outputBuffer) {
-            return outputBuffer.toString()
+            return outputBuffer.copyOf(outputBufferLength)
         }
     }
 
@@ -107,63 +144,190 @@ class VmService : Service() {
 
     private suspend fun startVm(assets: AssetManager) {
         try {
+            val bootStart = SystemClock.elapsedRealtime()
             deliverOutput("Initializing friscy runtime...\r\n")
 
             if (!FriscyRuntime.initialize()) {
                 deliverOutput("ERROR: Failed to initialize friscy\r\n")
                 return
             }
-
-            deliverOutput("Loading rootfs ($entryPoint)...\r\n")
-
-            val tarBytes = when (imageSource) {
-                ImagePickerActivity.SOURCE_FILE -> {
-                    val file = File(filePath ?: error("No file path"))
-                    if (!file.exists()) error("Image file not found: $filePath")
-                    deliverOutput("Source: ${file.name}\r\n")
-                    file.readBytes()
-                }
-                else -> {
-                    deliverOutput("Source: asset/$assetName\r\n")
-                    assets.open(assetName).use { it.readBytes() }
-                }
+            if (binaryTranslation && !FriscyRuntime.binaryTranslationAvailable) {
+                deliverOutput("[friscy] Binary translation is not in this build, interpreting\r\n")
             }
-            deliverOutput("rootfs: ${tarBytes.size} bytes\r\n")
+            FriscyRuntime.setBinaryTranslation(
+                binaryTranslation, imageId?.let { ImageManager(this).translationCacheDir(it) },
+            )
 
-            val loaded = FriscyRuntime.loadRootfs(tarBytes, entryPoint) { text ->
-                deliverOutput(text)
+            val listener = FriscyRuntime.OutputListener { data, offset, length ->
+                recordBootOutput(data, offset, length)
+                deliverOutput(data, offset, length)
             }
-            if (!loaded) {
+            if (!loadImage(assets, listener)) {
                 deliverOutput("ERROR: Failed to load rootfs\r\n")
                 return
             }
 
+            // Restore the image as it was at its prompt instead of booting it, if it has not changed
+            val id = imageId
+            val bootSnapshots = ImageManager(this).bootSnapshots()
+            val key = imageKey()
+            var warm = false
+            val boot = if (warmBoot && id != null) bootSnapshots.find(id, key) else null
+            if (boot != null) {
+                warm = FriscyRuntime.nativeRestoreSnapshot(boot.snapshot.path, true)
+                if (!warm) {
+                    deliverOutput("[friscy] Boot snapshot could not be restored, booting cold\r\n")
+                    // A failed restore may have changed part of the machine
+                    FriscyRuntime.destroy()
+                    if (!loadImage(assets, listener)) {
+                        deliverOutput("ERROR: Failed to load rootfs\r\n")
+                        return
+                    }
+                }
+            }
+            if (warmBoot && id != null && !warm) {
+                bootSnapshots.delete(id)
+                synchronized(outputBuffer) { bootOutput = ByteArrayOutputStream() }
+            }
+
             vmStarted = true
 
+            if (warm && boot != null) {
+                deliverOutput("[friscy] Shell restored from boot snapshot\r\n")
+                deliverOutput(boot.output, 0, boot.output.size)
+            }
             if (!FriscyRuntime.start()) {
                 deliverOutput("ERROR: Failed to start execution\r\n")
                 vmStarted = false
                 return
             }
+            if (!warm) deliverOutput("[friscy] Shell started\r\n")
 
-            deliverOutput("[friscy] Shell started\r\n")
+            if (FriscyRuntime.awaitPrompt(PROMPT_TIMEOUT_MS)) {
+                val time = BootTime(SystemClock.elapsedRealtime() - bootStart, warm)
+                bootTime = time
+                bootListener?.invoke(time)
+                if (id != null) saveBootSnapshot(bootSnapshots, id, key)
+            }
         } catch (e: Exception) {
             deliverOutput("ERROR: ${e.message}\r\n")
             vmStarted = false
+        } finally {
+            synchronized(outputBuffer) { bootOutput = null }
+        }
+    }
+
+    /** Load the rootfs of the image into a new machine. */
+    private fun loadImage(assets: AssetManager, listener: FriscyRuntime.OutputListener): Boolean {
+        deliverOutput("Loading rootfs ($entryPoint)...\r\n")
+        val indexFile = imageId?.let { ImageManager(this).indexFile(it) }
+        return when (imageSource) {
+            ImagePickerActivity.SOURCE_FILE -> {
+                val file = File(filePath ?: error("No file path"))
+                if (!file.exists()) error("Image file not found: $filePath")
+                deliverOutput("Source: ${file.name}\r\n")
+                deliverOutput("rootfs: ${file.length()} bytes\r\n")
+                FriscyRuntime.loadRootfs(file, entryPoint, indexFile, listener)
+            }
+            else -> {
+                deliverOutput("Source: asset/$assetName\r\n")
+                val asset = try {
+                    assets.openFd(assetName)
+                } catch (e: FileNotFoundException) {
+                    null // Compressed in the APK, so it cannot be mapped
+                }
+                if (asset != null) {
+                    asset.use {
+                        deliverOutput("rootfs: ${it.length} bytes\r\n")
+                        FriscyRuntime.loadRootfs(it, entryPoint, indexFile, listener)
+                    }
+                } else {
+                    val tarBytes = assets.open(assetName).use { it.readBytes() }
+                    deliverOutput("rootfs: ${tarBytes.size} bytes\r\n")
+                    FriscyRuntime.loadRootfs(tarBytes, entryPoint, listener)
+                }
+            }
+        }
+    }
+
+    /**
+     * Identifies the image and the runtime booting it without reading the image: the app's install
+     * time, which changes with the bundled assets and the runtime, and the image file's size and
+     * modification time. The runtime also rejects a snapshot whose rootfs does not match.
+     */
+    private fun imageKey(): String {
+        @Suppress("DEPRECATION")
+        val appUpdated = packageManager.getPackageInfo(packageName, 0).lastUpdateTime
+        val image = when (imageSource) {
+            ImagePickerActivity.SOURCE_FILE -> File(filePath ?: "").let { "${it.path}:${it.length()}:${it.lastModified()}" }
+            else -> "asset:$assetName"
+        }
+        return "$appUpdated|$image|$entryPoint"
+    }
+
+    /** Save the cold boot that just reached its prompt as the image's boot snapshot. */
+    private fun saveBootSnapshot(bootSnapshots: BootSnapshotStore, id: String, key: String) {
+        val output = synchronized(outputBuffer) {
+            bootOutput?.toByteArray().also { bootOutput = null }
+        } ?: return
+        // Uncompressed, so that restoring maps the pages instead of reading them
+        val file = bootSnapshots.snapshotFile(id)
+        if (FriscyRuntime.nativeSaveSnapshot(file.path, null, false) >= 0) {
+            bootSnapshots.commit(id, key, output)
+        } else {
+            file.delete()
+        }
+    }
+
+    /** Keep guest output for the boot snapshot, giving up if the boot prints too much to replay. */
+    private fun recordBootOutput(data: ByteArray, offset: Int, length: Int) {
+        synchronized(outputBuffer) {
+            val recording = bootOutput ?: return
+            if (recording.size() + length > BOOT_OUTPUT_LIMIT) {
+                bootOutput = null
+            } else {
+                recording.write(data, offset, length)
+            }
         }
     }
 
     private fun deliverOutput(text: String) {
+        val bytes = text.toByteArray(Charsets.UTF_8)
+        deliverOutput(bytes, 0, bytes.size)
+    }
+
+    /** Called on the VM thread for every drained chunk of guest output. */
+    private fun deliverOutput(data: ByteArray, offset: Int, length: Int) {
         synchronized(outputBuffer) {
-            outputBuffer.append(text)
-            if (outputBuffer.length > OUTPUT_BUFFER_CAPACITY) {
-                val excess = outputBuffer.length - OUTPUT_BUFFER_TRIM_TARGET
-                outputBuffer.delete(0, excess)
+            var start = offset
+            var count = length
+            if (outputBufferLength + count > OUTPUT_BUFFER_CAPACITY) {
+                // Keep the newest OUTPUT_BUFFER_TRIM_TARGET bytes, not starting mid UTF-8 sequence
+                if (count > OUTPUT_BUFFER_TRIM_TARGET) {
+                    start += count - OUTPUT_BUFFER_TRIM_TARGET
+                    count = OUTPUT_BUFFER_TRIM_TARGET
+                }
+                var keep = minOf(outputBufferLength, OUTPUT_BUFFER_TRIM_TARGET - count)
+                var from = outputBufferLength - keep
+                while (keep > 0 && isContinuationByte(outputBuffer[from])) {
+                    from++
+                    keep--
+                }
+                System.arraycopy(outputBuffer, from, outputBuffer, 0, keep)
+                outputBufferLength = keep
+                while (outputBufferLength == 0 && count > 0 && isContinuationByte(data[start])) {
+                    start++
+                    count--
+                }
             }
+            System.arraycopy(data, start, outputBuffer, outputBufferLength, count)
+            outputBufferLength += count
         }
-        outputCallback?.invoke(text)
+        outputCallback?.onOutput(data, offset, length)
     }
 
+    private fun isContinuationByte(b: Byte) = b.toInt() and 0xC0 == 0x80
+
     // --- Notification ---
 
     private fun createNotificationChannel() {
@@ -216,5 +380,12 @@ class VmService : Service() {
         private const val NOTIFICATION_ID = 1
         private const val OUTPUT_BUFFER_CAPACITY = 8192
         private const val OUTPUT_BUFFER_TRIM_TARGET = 6144
+        private const val BOOT_OUTPUT_LIMIT = 64 * 1024
+        private const val PROMPT_TIMEOUT_MS = 5 * 60 * 1000L
+
+        /** Boolean extra: restore the image's boot snapshot if it has one (default true). */
+        const val EXTRA_WARM_BOOT = "warm_boot"
+        /** Boolean extra: translate guest code to native code, in builds that can (default false). */
+        const val EXTRA_BINARY_TRANSLATION = "binary_translation"
     }
 }
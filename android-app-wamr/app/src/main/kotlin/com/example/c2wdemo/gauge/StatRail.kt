@@ -128,6 +128,19 @@ fun StatRail(
             offColor = RailSegmentOff,
         )
 
+        Spacer(modifier = Modifier.height(6.dp))
+
+        // --- Boot time to prompt: green when restored from a boot snapshot ---
+        RotatedLabel(if (gauge.warmBoot) "WRM" else "CLD")
+        val bootText = if (gauge.bootMs > 0) gauge.bootMs.coerceAtMost(9999).toString().padStart(4, ' ') else "    "
+        LedNumber(
+            text = bootText,
+            digitWidth = 6.dp,
+            digitHeight = 9.dp,
+            onColor = if (gauge.warmBoot) RailGreen else RailCyan,
+            offColor = RailSegmentOff,
+        )
+
         Spacer(modifier = Modifier.height(4.dp))
     }
 }
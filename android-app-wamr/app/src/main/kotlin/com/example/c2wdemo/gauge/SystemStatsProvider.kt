@@ -19,6 +19,8 @@ import kotlinx.coroutines.launch
  * - RAM: device memory usage via ActivityManager
  * - FPS: tracks output callback frequency (set externally)
  * - Latency: tracks command round-trip time (set externally)
+ * - Render: output chunks coalesced into frames and frames dropped (set externally)
+ * - Boot: time to the first prompt, cold or warm (set externally)
  */
 class SystemStatsProvider(private val context: Context) {
 
@@ -29,12 +31,22 @@ class SystemStatsProvider(private val context: Context) {
     private var outputEventCount = 0
     private var lastFps = 0
 
+    // Render tracking: chunks coalesced and vsyncs missed per second
+    private var coalescedChunkCount = 0
+    private var droppedFrameCount = 0
+
     // Latency tracking: time from last input to next output
     private var lastInputTimeNs = 0L
     @Volatile
     var lastLatencyMs = 0
         private set
 
+    // Boot time, reported once by the VM
+    @Volatile
+    private var bootMs = 0
+    @Volatile
+    private var warmBoot = false
+
     fun start(scope: CoroutineScope, onUpdate: (GaugeData) -> Unit) {
         this.onUpdate = onUpdate
         job = scope.launch {
@@ -44,12 +56,20 @@ class SystemStatsProvider(private val context: Context) {
                 val thermal = queryThermalFraction()
                 lastFps = outputEventCount
                 outputEventCount = 0
+                val coalescedChunks = coalescedChunkCount
+                val droppedFrames = droppedFrameCount
+                coalescedChunkCount = 0
+                droppedFrameCount = 0
 
                 val data = GaugeData(
                     ramPercent = ram,
                     fps = lastFps,
                     latencyMs = lastLatencyMs,
                     thermalFraction = thermal,
+                    coalescedChunks = coalescedChunks,
+                    droppedFrames = droppedFrames,
+                    bootMs = bootMs,
+                    warmBoot = warmBoot,
                 )
                 onUpdate(data)
             }
@@ -82,6 +102,22 @@ class SystemStatsProvider(private val context: Context) {
         }
     }
 
+    /**
+     * Call this for each frame that rendered VM output, with the number of output chunks
+     * coalesced into it and the number of frames dropped before it. Counts as one output event.
+     */
+    fun onRenderFrame(coalescedChunks: Int, droppedFrames: Int) {
+        coalescedChunkCount += coalescedChunks
+        droppedFrameCount += droppedFrames
+        onOutputEvent()
+    }
+
+    /** Call this when the VM reaches its first prompt, [warm] if it was restored from a boot snapshot. */
+    fun onBoot(millis: Long, warm: Boolean) {
+        warmBoot = warm
+        bootMs = millis.coerceIn(0, Int.MAX_VALUE.toLong()).toInt()
+    }
+
     /** Call this each time input is sent to the VM. */
     fun onInputEvent() {
         lastInputTimeNs = System.nanoTime()
@@ -39,6 +39,10 @@ data class GaugeData(
     val fps: Int = 0,
     val latencyMs: Int = 0,
     val thermalFraction: Float = 0f, // 0.0 = cool, 1.0 = emergency
+    val coalescedChunks: Int = 0,   // output chunks merged into rendered frames, per second
+    val droppedFrames: Int = 0,     // vsyncs missed by the terminal renderer, per second
+    val bootMs: Int = 0,            // time from VM start to the first prompt, 0 until reached
+    val warmBoot: Boolean = false,  // whether that boot was restored from a boot snapshot
 )
 
 /**
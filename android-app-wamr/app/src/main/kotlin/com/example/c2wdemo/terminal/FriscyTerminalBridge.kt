@@ -65,8 +65,8 @@ class FriscyTerminalBridge(
      */
     override fun write(data: ByteArray, offset: Int, count: Int) {
         if (count <= 0) return
-        val text = String(data, offset, count, Charsets.UTF_8)
-        FriscyRuntime.sendInput(text)
+        // Input the stdin ring has no room for yet is kept and retried; only drops are logged
+        FriscyRuntime.sendInput(data, offset, count)
     }
 
     override fun titleChanged(oldTitle: String?, newTitle: String?) {
@@ -86,6 +86,8 @@ class FriscyTerminalBridge(
     }
 
     override fun onColorsChanged() {
+        // Cached rows were painted with the old palette
+        emulator?.screen?.invalidateScreen()
         listener.onScreenUpdated()
     }
 
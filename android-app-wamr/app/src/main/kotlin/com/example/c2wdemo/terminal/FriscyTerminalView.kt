@@ -1,9 +1,9 @@
 package com.example.c2wdemo.terminal
 
 import android.content.Context
+import android.graphics.Bitmap
 import android.graphics.Canvas
-import android.graphics.Paint
-import android.graphics.Typeface
+import android.graphics.Rect
 import android.os.Handler
 import android.os.Looper
 import android.text.InputType
@@ -17,14 +17,21 @@ import android.view.inputmethod.InputConnection
 import android.view.inputmethod.InputMethodManager
 import com.example.c2wdemo.FriscyRuntime
 import com.termux.terminal.KeyHandler
+import com.termux.terminal.TerminalBuffer
+import com.termux.terminal.TerminalDamage
 import com.termux.terminal.TerminalEmulator
-import com.termux.terminal.TextStyle
+import kotlin.math.ceil
 
 /**
  * Custom View that renders a Termux [TerminalEmulator] screen buffer via Canvas.
  *
- * Renders each cell using a monospace font with proper foreground/background colors,
- * bold/italic/underline attributes, and a block cursor.
+ * Rows are drawn by [TerminalRenderer] using a monospace font with proper foreground/background
+ * colors, bold/italic/underline attributes, and a block cursor.
+ *
+ * The screen is painted into a cached bitmap of the terminal area, and each frame only repaints
+ * the rows that [TerminalBuffer.consumeDamage] reports as changed. The bitmap holds the rows as
+ * a ring, so when the whole screen scrolls only the index of its top row moves, not pixels.
+ * The cursor is drawn on top of the cached frame.
  */
 class FriscyTerminalView @JvmOverloads constructor(
     context: Context,
@@ -39,22 +46,22 @@ class FriscyTerminalView @JvmOverloads constructor(
             requestLayout()
         }
 
-    // Font metrics
-    private val textPaint = Paint(Paint.ANTI_ALIAS_FLAG).apply {
-        typeface = Typeface.MONOSPACE
-        textSize = 28f  // Will be adjusted in onSizeChanged
-    }
-    private var cellWidth = 0f
-    private var cellHeight = 0f
-    private var fontAscent = 0f
+    /** Draws rows and the cursor; owns the font metrics and colors. */
+    private val renderer = TerminalRenderer()
+    private val cellWidth get() = renderer.cellWidth
 
-    // Colors — Invader Zim theme defaults
-    private val defaultFg = 0xFF00FF88.toInt()  // green terminal
-    private val defaultBg = 0xFF0A0A14.toInt()  // dark background
-    private val cursorColor = 0xFF00FFFF.toInt() // cyan cursor
+    // Rows are laid out a whole number of pixels apart, so that they keep their pixels in the ring
+    private val rowHeight get() = ceil(renderer.cellHeight).toInt()
 
-    // Background paint
-    private val bgPaint = Paint().apply { style = Paint.Style.FILL }
+    // Cached frame: one slot of rowHeight pixels per screen row. Slots are only repainted when the
+    // screen buffer reports their row as damaged, and frameTop is the slot that holds row 0.
+    private var frameBitmap: Bitmap? = null
+    private var frameCanvas: Canvas? = null
+    private var frameTop = 0
+    private var frameScreen: TerminalBuffer? = null
+    private val damage = TerminalDamage()
+    private val frameSrc = Rect()
+    private val frameDst = Rect()
 
     // Cursor blink
     private var cursorVisible = true
@@ -67,6 +74,23 @@ class FriscyTerminalView @JvmOverloads constructor(
         }
     }
 
+    /**
+     * Compose cells from a cache of rasterized glyphs instead of shaping text with drawText.
+     * Off by default.
+     */
+    var glyphAtlasEnabled: Boolean
+        get() = renderer.glyphAtlasEnabled
+        set(value) {
+            if (value == renderer.glyphAtlasEnabled) return
+            renderer.glyphAtlasEnabled = value
+            // Repaint every row with the new drawing mode
+            frameScreen = null
+            invalidate()
+        }
+
+    /** The glyph cache while [glyphAtlasEnabled] is set, for its hit-rate metrics. */
+    val glyphAtlas: GlyphAtlas? get() = renderer.glyphAtlas
+
     /** Terminal dimensions in cells. */
     var termRows = 24; private set
     var termCols = 80; private set
@@ -74,15 +98,7 @@ class FriscyTerminalView @JvmOverloads constructor(
     init {
         isFocusable = true
         isFocusableInTouchMode = true
-        setBackgroundColor(defaultBg)
-        computeFontMetrics()
-    }
-
-    private fun computeFontMetrics() {
-        val metrics = textPaint.fontMetrics
-        fontAscent = -metrics.ascent
-        cellHeight = metrics.descent - metrics.ascent + metrics.leading
-        cellWidth = textPaint.measureText("W")
+        setBackgroundColor(renderer.defaultBg)
     }
 
     override fun onSizeChanged(w: Int, h: Int, oldw: Int, oldh: Int) {
@@ -96,7 +112,13 @@ class FriscyTerminalView @JvmOverloads constructor(
         val usableH = h - vPadding
 
         termCols = maxOf(1, (usableW / cellWidth).toInt())
-        termRows = maxOf(1, (usableH / cellHeight).toInt())
+        termRows = maxOf(1, usableH / rowHeight)
+
+        // Allocate the cached frame for the terminal area, forcing a full repaint into it
+        frameBitmap?.recycle()
+        frameBitmap = Bitmap.createBitmap(maxOf(1, usableW), termRows * rowHeight, Bitmap.Config.ARGB_8888)
+            .also { frameCanvas = Canvas(it) }
+        frameScreen = null
 
         // Initialize or resize the emulator
         val b = bridge ?: return
@@ -124,94 +146,62 @@ class FriscyTerminalView @JvmOverloads constructor(
         super.onDraw(canvas)
         val emulator = bridge?.emulator ?: return
         val screen = emulator.screen ?: return
+        val frame = frameBitmap ?: return
         val colors = emulator.mColors.mCurrentColors
 
-        val startX = paddingLeft.toFloat()
-        val startY = paddingTop.toFloat()
+        // Bring the cached frame up to date, repainting only the rows that changed since the last frame
+        screen.consumeDamage(damage)
+        val fullRedraw = damage.fullRedraw || screen !== frameScreen
+        frameScreen = screen
+        if (fullRedraw) {
+            frame.eraseColor(renderer.defaultBg)
+            frameTop = 0
+        } else if (damage.scrolledRows > 0) {
+            // The rows that scrolled off become the slots of the rows exposed at the bottom, which are damaged
+            frameTop = (frameTop + damage.scrolledRows) % termRows
+        }
+        val frameCanvas = this.frameCanvas!!
+        val rows = minOf(termRows, damage.rows.size)
+        for (row in 0 until rows) {
+            if (fullRedraw || damage.rows[row]) {
+                drawRow(frameCanvas, screen, row, colors)
+            }
+        }
+        drawFrame(canvas, frame)
 
+        // The cursor is drawn on top of the cached frame, so that blinking and moving it repaints nothing
         val cursorRow = emulator.cursorRow
         val cursorCol = emulator.cursorCol
-        val cursorEnabled = emulator.shouldCursorBeVisible()
-
-        for (row in 0 until termRows) {
-            val y = startY + row * cellHeight
-            val termRow = screen.allocateFullLineIfNecessary(screen.externalToInternalRow(row))
-
-            for (col in 0 until termCols) {
-                val x = startX + col * cellWidth
-                val style = termRow.getStyle(col)
-
-                // Decode colors
-                var fg = resolveColor(TextStyle.decodeForeColor(style), colors, defaultFg)
-                var bg = resolveColor(TextStyle.decodeBackColor(style), colors, defaultBg)
-                val effect = TextStyle.decodeEffect(style)
-
-                // Handle inverse
-                if (effect and TextStyle.CHARACTER_ATTRIBUTE_INVERSE != 0) {
-                    val tmp = fg; fg = bg; bg = tmp
-                }
-
-                // Handle dim
-                if (effect and TextStyle.CHARACTER_ATTRIBUTE_DIM != 0) {
-                    fg = dimColor(fg)
-                }
-
-                // Draw background (skip if same as default)
-                if (bg != defaultBg) {
-                    bgPaint.color = bg
-                    canvas.drawRect(x, y, x + cellWidth, y + cellHeight, bgPaint)
-                }
-
-                // Draw cursor
-                if (row == cursorRow && col == cursorCol && cursorEnabled && cursorVisible) {
-                    bgPaint.color = cursorColor
-                    canvas.drawRect(x, y, x + cellWidth, y + cellHeight, bgPaint)
-                    fg = defaultBg  // Invert text color on cursor
-                }
-
-                // Handle invisible
-                if (effect and TextStyle.CHARACTER_ATTRIBUTE_INVISIBLE != 0) continue
-
-                // Get character
-                val charIdx = termRow.findStartOfColumn(col)
-                if (charIdx >= termRow.getSpaceUsed()) continue
-                val c = termRow.mText[charIdx]
-                if (c == ' ' || c == '\u0000') continue
-
-                // Set text style
-                textPaint.color = fg
-                textPaint.isFakeBoldText = (effect and TextStyle.CHARACTER_ATTRIBUTE_BOLD) != 0
-                textPaint.textSkewX = if ((effect and TextStyle.CHARACTER_ATTRIBUTE_ITALIC) != 0) -0.25f else 0f
-                textPaint.isUnderlineText = (effect and TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE) != 0
-                textPaint.isStrikeThruText = (effect and TextStyle.CHARACTER_ATTRIBUTE_STRIKETHROUGH) != 0
-
-                // Draw character
-                if (Character.isHighSurrogate(c) && charIdx + 1 < termRow.getSpaceUsed()) {
-                    val text = String(charArrayOf(c, termRow.mText[charIdx + 1]))
-                    canvas.drawText(text, x, y + fontAscent, textPaint)
-                } else {
-                    canvas.drawText(c.toString(), x, y + fontAscent, textPaint)
-                }
-            }
+        if (emulator.shouldCursorBeVisible() && cursorVisible && cursorRow in 0 until rows && cursorCol in 0 until termCols) {
+            val termRow = screen.allocateFullLineIfNecessary(screen.externalToInternalRow(cursorRow))
+            val top = paddingTop + cursorRow * rowHeight
+            renderer.drawCursor(canvas, termRow, termCols, cursorCol, paddingLeft.toFloat(), top.toFloat(), colors)
         }
     }
 
-    private fun resolveColor(colorIndex: Int, palette: IntArray, fallback: Int): Int {
-        return if (colorIndex and 0xff000000.toInt() == 0xff000000.toInt()) {
-            // 24-bit true color
-            colorIndex
-        } else if (colorIndex in 0 until TextStyle.NUM_INDEXED_COLORS) {
-            palette[colorIndex]
-        } else {
-            fallback
+    /** Copy the ring of cached rows to the view: the slots from frameTop down first, then those above it. */
+    private fun drawFrame(canvas: Canvas, frame: Bitmap) {
+        val split = frameTop * rowHeight
+        val below = frame.height - split
+        frameSrc.set(0, split, frame.width, frame.height)
+        frameDst.set(paddingLeft, paddingTop, paddingLeft + frame.width, paddingTop + below)
+        canvas.drawBitmap(frame, frameSrc, frameDst, null)
+        if (split > 0) {
+            frameSrc.set(0, 0, frame.width, split)
+            frameDst.set(paddingLeft, paddingTop + below, paddingLeft + frame.width, paddingTop + frame.height)
+            canvas.drawBitmap(frame, frameSrc, frameDst, null)
         }
     }
 
-    private fun dimColor(color: Int): Int {
-        val r = ((color shr 16) and 0xFF) * 2 / 3
-        val g = ((color shr 8) and 0xFF) * 2 / 3
-        val b = (color and 0xFF) * 2 / 3
-        return (color and 0xFF000000.toInt()) or (r shl 16) or (g shl 8) or b
+    /** Repaint the slot of [row], clipped so that nothing spills into the neighbouring slots. */
+    private fun drawRow(canvas: Canvas, screen: TerminalBuffer, row: Int, colors: IntArray) {
+        val termRow = screen.allocateFullLineIfNecessary(screen.externalToInternalRow(row))
+        val top = (frameTop + row) % termRows * rowHeight
+        canvas.save()
+        canvas.clipRect(0, top, canvas.width, top + rowHeight)
+        canvas.drawColor(renderer.defaultBg)
+        renderer.drawRow(canvas, termRow, termCols, 0f, top.toFloat(), canvas.width.toFloat(), colors)
+        canvas.restore()
     }
 
     // --- Input handling ---
@@ -0,0 +1,213 @@
+package com.example.c2wdemo.terminal
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.Paint
+import android.graphics.PorterDuff
+import android.graphics.Rect
+import android.graphics.RectF
+import kotlin.math.ceil
+
+/**
+ * A cache of rasterized glyphs for [TerminalRenderer], so that a glyph is shaped and rasterized
+ * once per (code point, bold, italic) instead of on every frame.
+ *
+ * Glyphs are drawn into slots of an [Bitmap.Config.ALPHA_8] atlas. Each slot is two cells wide so
+ * that it can hold a wide char. A cell is composed with [Canvas.drawBitmap] using a paint whose
+ * color tints the coverage mask, so one slot serves every color. When all slots are in use the
+ * least recently used one is reused.
+ *
+ * Lookups use an open addressing hash table and the LRU order is an intrusive linked list over
+ * the slots, so drawing a cached glyph allocates nothing.
+ */
+class GlyphAtlas(
+    textPaint: Paint,
+    private val cellWidth: Float,
+    private val cellHeight: Float,
+    private val baseline: Float,
+    val capacity: Int = DEFAULT_CAPACITY,
+) {
+
+    companion object {
+        const val DEFAULT_CAPACITY = 1024
+        private const val ATLAS_COLUMNS = 32
+        private const val EMPTY = -1L
+        private const val NONE = -1
+    }
+
+    /** Glyphs drawn from the atlas. */
+    var hits = 0L; private set
+    /** Glyphs that had to be rasterized into the atlas. */
+    var misses = 0L; private set
+    /** Cached glyphs dropped to make room for new ones. */
+    var evictions = 0L; private set
+    /** Clusters drawn with [Canvas.drawText] because a single glyph could not represent them. */
+    var fallbacks = 0L
+        internal set
+
+    /** Fraction of cached glyph draws that did not need rasterizing. */
+    val hitRate: Float
+        get() = if (hits + misses == 0L) 0f else hits.toFloat() / (hits + misses)
+
+    private val slotWidth = ceil(2 * cellWidth).toInt()
+    private val slotHeight = ceil(cellHeight).toInt()
+    private val atlas = Bitmap.createBitmap(
+        ATLAS_COLUMNS * slotWidth,
+        (capacity + ATLAS_COLUMNS - 1) / ATLAS_COLUMNS * slotHeight,
+        Bitmap.Config.ALPHA_8,
+    )
+    private val atlasCanvas = Canvas(atlas)
+
+    // Glyphs are rasterized in opaque white; only their coverage ends up in the atlas
+    private val glyphPaint = Paint(textPaint).apply {
+        color = 0xFFFFFFFF.toInt()
+        isUnderlineText = false
+        isStrikeThruText = false
+    }
+    private val tintPaint = Paint(Paint.FILTER_BITMAP_FLAG)
+    private val glyphChars = CharArray(2)
+    private val srcRect = Rect()
+    private val dstRect = RectF()
+
+    // Open addressing hash table from glyph key to slot, with linear probing
+    private val tableMask = Integer.highestOneBit(maxOf(capacity, 1) * 4 - 1) - 1
+    private val tableKeys = LongArray(tableMask + 1) { EMPTY }
+    private val tableSlots = IntArray(tableMask + 1)
+
+    // Slots in least recently used order, from head (most recent) to tail
+    private val slotKeys = LongArray(capacity) { EMPTY }
+    private val slotPrev = IntArray(capacity) { NONE }
+    private val slotNext = IntArray(capacity) { NONE }
+    private var head = NONE
+    private var tail = NONE
+    private var usedSlots = 0
+
+    /** Draw [codePoint] spanning [width] cells with its top left corner at ([x], [top]). */
+    fun draw(canvas: Canvas, codePoint: Int, bold: Boolean, italic: Boolean, width: Int, x: Float, top: Float, color: Int) {
+        val key = (codePoint.toLong() shl 2) or (if (bold) 1L else 0L) or (if (italic) 2L else 0L)
+        var slot = lookup(key)
+        if (slot == NONE) {
+            misses++
+            slot = claimSlot(key)
+            rasterize(slot, codePoint, bold, italic)
+        } else {
+            hits++
+            moveToHead(slot)
+        }
+
+        val left = (slot % ATLAS_COLUMNS) * slotWidth
+        val slotTop = (slot / ATLAS_COLUMNS) * slotHeight
+        val glyphWidth = minOf(slotWidth, ceil(width * cellWidth).toInt())
+        srcRect.set(left, slotTop, left + glyphWidth, slotTop + slotHeight)
+        dstRect.set(x, top, x + glyphWidth, top + slotHeight)
+        tintPaint.color = color
+        canvas.drawBitmap(atlas, srcRect, dstRect, tintPaint)
+    }
+
+    /** Drop every cached glyph, e.g. after the font changed. */
+    fun clear() {
+        tableKeys.fill(EMPTY)
+        slotKeys.fill(EMPTY)
+        head = NONE
+        tail = NONE
+        usedSlots = 0
+    }
+
+    private fun rasterize(slot: Int, codePoint: Int, bold: Boolean, italic: Boolean) {
+        val left = (slot % ATLAS_COLUMNS) * slotWidth
+        val top = (slot / ATLAS_COLUMNS) * slotHeight
+        atlasCanvas.save()
+        atlasCanvas.clipRect(left, top, left + slotWidth, top + slotHeight)
+        atlasCanvas.drawColor(0, PorterDuff.Mode.CLEAR)
+        glyphPaint.isFakeBoldText = bold
+        glyphPaint.textSkewX = if (italic) -0.25f else 0f
+        val count = Character.toChars(codePoint, glyphChars, 0)
+        atlasCanvas.drawText(glyphChars, 0, count, left.toFloat(), top + baseline, glyphPaint)
+        atlasCanvas.restore()
+    }
+
+    /** Take a free slot, or evict the least recently used one, and make it the most recent for [key]. */
+    private fun claimSlot(key: Long): Int {
+        val slot: Int
+        if (usedSlots < capacity) {
+            slot = usedSlots++
+        } else {
+            slot = tail
+            remove(slotKeys[slot])
+            unlink(slot)
+            evictions++
+        }
+        slotKeys[slot] = key
+        insert(key, slot)
+        linkAtHead(slot)
+        return slot
+    }
+
+    private fun hash(key: Long): Int {
+        val h = key * -0x61c8864680b583ebL // 2^64 / golden ratio
+        return (h xor (h ushr 32)).toInt() and tableMask
+    }
+
+    private fun lookup(key: Long): Int {
+        var i = hash(key)
+        while (true) {
+            val k = tableKeys[i]
+            if (k == key) return tableSlots[i]
+            if (k == EMPTY) return NONE
+            i = (i + 1) and tableMask
+        }
+    }
+
+    private fun insert(key: Long, slot: Int) {
+        var i = hash(key)
+        while (tableKeys[i] != EMPTY) i = (i + 1) and tableMask
+        tableKeys[i] = key
+        tableSlots[i] = slot
+    }
+
+    /** Remove [key], shifting later entries of its probe sequence back so lookups need no tombstones. */
+    private fun remove(key: Long) {
+        var i = hash(key)
+        while (tableKeys[i] != key) {
+            if (tableKeys[i] == EMPTY) return
+            i = (i + 1) and tableMask
+        }
+        var hole = i
+        var j = (i + 1) and tableMask
+        while (tableKeys[j] != EMPTY) {
+            val home = hash(tableKeys[j])
+            // Move the entry at j into the hole unless its home lies cyclically in (hole, j]
+            val stays = if (hole <= j) home in (hole + 1)..j else home > hole || home <= j
+            if (!stays) {
+                tableKeys[hole] = tableKeys[j]
+                tableSlots[hole] = tableSlots[j]
+                hole = j
+            }
+            j = (j + 1) and tableMask
+        }
+        tableKeys[hole] = EMPTY
+    }
+
+    private fun moveToHead(slot: Int) {
+        if (slot == head) return
+        unlink(slot)
+        linkAtHead(slot)
+    }
+
+    private fun unlink(slot: Int) {
+        val prev = slotPrev[slot]
+        val next = slotNext[slot]
+        if (prev != NONE) slotNext[prev] = next else head = next
+        if (next != NONE) slotPrev[next] = prev else tail = prev
+        slotPrev[slot] = NONE
+        slotNext[slot] = NONE
+    }
+
+    private fun linkAtHead(slot: Int) {
+        slotPrev[slot] = NONE
+        slotNext[slot] = head
+        if (head != NONE) slotPrev[head] = slot
+        head = slot
+        if (tail == NONE) tail = slot
+    }
+}
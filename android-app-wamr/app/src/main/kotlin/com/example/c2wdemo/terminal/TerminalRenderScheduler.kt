@@ -0,0 +1,189 @@
+package com.example.c2wdemo.terminal
+
+import android.os.Looper
+import android.view.Choreographer
+
+/**
+ * Coalesces guest output so the terminal is parsed and invalidated at most once per display frame.
+ *
+ * Output chunks may be posted from any thread and are appended to a fixed-size pending ring. The first
+ * chunk after a frame posts a [Choreographer.FrameCallback]; on the next vsync the pending bytes are fed
+ * to the emulator with a single [FriscyTerminalBridge.feedOutput] call, which invalidates the view once.
+ *
+ * When the ring is full, [post] waits for a frame to make room, so a guest writing faster than the
+ * terminal draws is held back by the native output ring instead of growing the heap. The main thread
+ * cannot wait for its own frames, so posts there, after [cancel], or after [MAX_WAIT_MILLIS] without a
+ * frame, drop the oldest pending output instead.
+ *
+ * Must be created on the main thread, since it uses that thread's [Choreographer].
+ */
+class TerminalRenderScheduler(
+    private val bridge: FriscyTerminalBridge,
+    private val frameIntervalNanos: Long = DEFAULT_FRAME_INTERVAL_NANOS,
+    /** Output held for coming frames at most. */
+    val pendingCapacity: Int = DEFAULT_PENDING_CAPACITY,
+) : Choreographer.FrameCallback {
+
+    companion object {
+        private const val DEFAULT_FRAME_INTERVAL_NANOS = 16_666_667L
+        /** Output parsed per frame at most; anything beyond is left for the next frame to keep the UI responsive. */
+        private const val MAX_BYTES_PER_FRAME = 256 * 1024
+        const val DEFAULT_PENDING_CAPACITY = 4 * MAX_BYTES_PER_FRAME
+        /** How long a full ring waits for a frame before frames are taken to have stopped. */
+        private const val MAX_WAIT_MILLIS = 500L
+    }
+
+    init {
+        require(pendingCapacity > 0) { "pendingCapacity must be positive" }
+    }
+
+    /** Called on the main thread after each frame that fed output to the terminal. */
+    fun interface FrameListener {
+        fun onFrame(coalescedChunks: Int, droppedFrames: Int)
+    }
+
+    var frameListener: FrameListener? = null
+
+    private val choreographer = Choreographer.getInstance()
+    @Suppress("PLATFORM_CLASS_MAPPED_TO_KOTLIN")
+    private val lock = Object()
+
+    // Guarded by lock
+    private val pending = ByteArray(pendingCapacity)
+    private var pendingStart = 0
+    private var pendingLength = 0
+    private var pendingChunks = 0
+    private var frameScheduled = false
+    private var cancelled = false
+
+    /** Bytes handed to the emulator in the current frame. Only touched on the main thread. */
+    private val frameBuffer = ByteArray(MAX_BYTES_PER_FRAME)
+
+    /** Frames that fed output to the terminal. */
+    @Volatile
+    var frames = 0L
+        private set
+
+    /** Output chunks posted, each of which previously cost its own parse and invalidate. */
+    @Volatile
+    var coalescedChunks = 0L
+        private set
+
+    /** Vsync intervals missed because the main thread ran frame callbacks late. */
+    @Volatile
+    var droppedFrames = 0L
+        private set
+
+    /** Output dropped because the ring was full and the poster could not wait for a frame. */
+    @Volatile
+    var droppedBytes = 0L
+        private set
+
+    /** Output waiting for a frame. */
+    val pendingBytes: Int
+        get() = synchronized(lock) { pendingLength }
+
+    fun post(text: String) {
+        val bytes = text.toByteArray(Charsets.UTF_8)
+        post(bytes, 0, bytes.size)
+    }
+
+    /**
+     * Queue output for the next frame. Safe to call from any thread; off the main thread this waits
+     * while the pending ring is full.
+     */
+    fun post(data: ByteArray, offset: Int = 0, length: Int = data.size - offset) {
+        if (length <= 0) return
+        val mayWait = Looper.myLooper() != Looper.getMainLooper()
+        var from = offset
+        var remaining = length
+        synchronized(lock) {
+            var waitUntil = 0L
+            while (remaining > 0) {
+                if (pendingLength == pending.size) {
+                    val now = System.currentTimeMillis()
+                    if (waitUntil == 0L) waitUntil = now + MAX_WAIT_MILLIS
+                    if (mayWait && !cancelled && now < waitUntil) {
+                        scheduleFrameLocked()
+                        lock.wait(waitUntil - now)
+                        continue
+                    }
+                    val dropped = minOf(remaining, pendingLength)
+                    pendingStart = (pendingStart + dropped) % pending.size
+                    pendingLength -= dropped
+                    droppedBytes += dropped
+                }
+                waitUntil = 0L
+                val end = (pendingStart + pendingLength) % pending.size
+                val count = minOf(remaining, pending.size - pendingLength, pending.size - end)
+                System.arraycopy(data, from, pending, end, count)
+                pendingLength += count
+                from += count
+                remaining -= count
+            }
+            pendingChunks++
+            scheduleFrameLocked()
+        }
+    }
+
+    /**
+     * Stop delivering frames. Pending output is kept and delivered after the next [post]; until a
+     * frame runs again, posts to a full ring drop the oldest output instead of waiting.
+     */
+    fun cancel() {
+        synchronized(lock) {
+            if (frameScheduled) {
+                choreographer.removeFrameCallback(this)
+                frameScheduled = false
+            }
+            cancelled = true
+            lock.notifyAll()
+        }
+    }
+
+    override fun doFrame(frameTimeNanos: Long) {
+        // How late this callback runs after the vsync it was scheduled for, in whole frames
+        val lateNanos = System.nanoTime() - frameTimeNanos
+        val dropped = if (lateNanos >= frameIntervalNanos) (lateNanos / frameIntervalNanos).toInt() else 0
+
+        if (bridge.emulator == null) {
+            // The view has not been laid out yet, so keep the output until the emulator exists
+            synchronized(lock) {
+                frameScheduled = false
+                scheduleFrameLocked()
+            }
+            return
+        }
+
+        var chunks = 0
+        val length = synchronized(lock) {
+            val length = minOf(pendingLength, frameBuffer.size)
+            val first = minOf(length, pending.size - pendingStart)
+            System.arraycopy(pending, pendingStart, frameBuffer, 0, first)
+            System.arraycopy(pending, 0, frameBuffer, first, length - first)
+            pendingStart = (pendingStart + length) % pending.size
+            pendingLength -= length
+            chunks = pendingChunks
+            pendingChunks = 0
+            frameScheduled = false
+            cancelled = false
+            if (pendingLength > 0) scheduleFrameLocked()
+            // Posters waiting for room
+            lock.notifyAll()
+            length
+        }
+
+        if (length > 0) bridge.feedOutput(frameBuffer, length)
+        frames++
+        coalescedChunks += chunks
+        droppedFrames += dropped
+        frameListener?.onFrame(chunks, dropped)
+    }
+
+    private fun scheduleFrameLocked() {
+        if (!frameScheduled) {
+            frameScheduled = true
+            choreographer.postFrameCallback(this)
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.example.c2wdemo.terminal
+
+import android.graphics.Canvas
+import android.graphics.Paint
+import android.graphics.Typeface
+import com.termux.terminal.TerminalRow
+import com.termux.terminal.TextStyle
+
+/**
+ * Draws rows of a Termux screen buffer onto a Canvas with a monospace font.
+ *
+ * Consecutive cells with the same style are drawn as one run: a single background rect and a
+ * single [Canvas.drawText] call reading straight from [TerminalRow.mText]. Cells that are not
+ * printable ASCII (wide chars, surrogate pairs, combining sequences) are drawn one cluster at a
+ * time at their own column, so they cannot shift the grid. Nothing is allocated while drawing.
+ *
+ * With [glyphAtlasEnabled] single code point cells are instead composed from a [GlyphAtlas], and
+ * only clusters a single glyph cannot represent, and underlined or struck through runs, are drawn
+ * with [Canvas.drawText].
+ */
+class TerminalRenderer {
+
+    // Font metrics
+    val textPaint = Paint(Paint.ANTI_ALIAS_FLAG).apply {
+        typeface = Typeface.MONOSPACE
+        textSize = 28f
+    }
+    var cellWidth = 0f; private set
+    var cellHeight = 0f; private set
+    private var fontAscent = 0f
+
+    // Colors — Invader Zim theme defaults
+    val defaultFg = 0xFF00FF88.toInt()  // green terminal
+    val defaultBg = 0xFF0A0A14.toInt()  // dark background
+    val cursorColor = 0xFF00FFFF.toInt() // cyan cursor
+
+    // Background paint
+    private val bgPaint = Paint().apply { style = Paint.Style.FILL }
+
+    /** The glyph cache used while [glyphAtlasEnabled] is set. */
+    var glyphAtlas: GlyphAtlas? = null
+        private set
+
+    /** Compose cells from rasterized glyphs instead of shaping text on every draw. */
+    var glyphAtlasEnabled: Boolean
+        get() = glyphAtlas != null
+        set(value) {
+            glyphAtlas = if (value) glyphAtlas ?: GlyphAtlas(textPaint, cellWidth, cellHeight, fontAscent) else null
+        }
+
+    // Attributes currently set on textPaint, so runs with the same look do not touch it
+    private var paintColor = textPaint.color
+    private var paintEffect = -1
+
+    init {
+        computeFontMetrics()
+    }
+
+    private fun computeFontMetrics() {
+        val metrics = textPaint.fontMetrics
+        fontAscent = -metrics.ascent
+        cellHeight = metrics.descent - metrics.ascent + metrics.leading
+        cellWidth = textPaint.measureText("W")
+    }
+
+    /**
+     * Draw the first [columns] cells of [row] with the top left corner of the first cell at
+     * ([left], [top]), after clearing the whole row from x = 0 to [right].
+     */
+    fun drawRow(canvas: Canvas, row: TerminalRow, columns: Int, left: Float, top: Float, right: Float, palette: IntArray) {
+        bgPaint.color = defaultBg
+        canvas.drawRect(0f, top, right, top + cellHeight, bgPaint)
+
+        var start = 0
+        while (start < columns) {
+            val style = row.getStyle(start)
+            var end = start + 1
+            while (end < columns && row.getStyle(end) == style) end++
+            drawRun(canvas, row, columns, start, end, style, left, top, palette, false)
+            start = end
+        }
+    }
+
+    /** Draw a block cursor over the cell at [column], with the text under it in the background color. */
+    fun drawCursor(canvas: Canvas, row: TerminalRow, columns: Int, column: Int, left: Float, top: Float, palette: IntArray) {
+        val x = left + column * cellWidth
+        bgPaint.color = cursorColor
+        canvas.drawRect(x, top, x + cellWidth, top + cellHeight, bgPaint)
+        drawRun(canvas, row, columns, column, column + 1, row.getStyle(column), left, top, palette, true)
+    }
+
+    /** Draw the cells from [start] to [end] (exclusive), which all have [style]. */
+    private fun drawRun(
+        canvas: Canvas, row: TerminalRow, columns: Int, start: Int, end: Int, style: Long,
+        left: Float, top: Float, palette: IntArray, cursor: Boolean,
+    ) {
+        // Decode colors
+        var fg = resolveColor(TextStyle.decodeForeColor(style), palette, defaultFg)
+        var bg = resolveColor(TextStyle.decodeBackColor(style), palette, defaultBg)
+        val effect = TextStyle.decodeEffect(style)
+
+        // Handle inverse
+        if (effect and TextStyle.CHARACTER_ATTRIBUTE_INVERSE != 0) {
+            val tmp = fg; fg = bg; bg = tmp
+        }
+
+        // Handle dim
+        if (effect and TextStyle.CHARACTER_ATTRIBUTE_DIM != 0) {
+            fg = dimColor(fg)
+        }
+
+        if (cursor) {
+            fg = defaultBg  // Invert text color on cursor
+        } else if (bg != defaultBg) {
+            // One background rect for the whole run (the row has already been cleared to the default)
+            bgPaint.color = bg
+            canvas.drawRect(left + start * cellWidth, top, left + end * cellWidth, top + cellHeight, bgPaint)
+        }
+
+        // Handle invisible
+        if (effect and TextStyle.CHARACTER_ATTRIBUTE_INVISIBLE != 0) return
+
+        applyTextStyle(fg, effect)
+        val decorated = effect and (TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE or TextStyle.CHARACTER_ATTRIBUTE_STRIKETHROUGH) != 0
+        val baseline = top + fontAscent
+        val text = row.mText
+
+        var column = start
+        var charIndex = row.findStartOfColumn(column)
+        if (column > 0 && row.findStartOfColumn(column - 1) == charIndex) {
+            // Second half of a wide char, which is drawn with its first half
+            column++
+            charIndex = row.findStartOfColumn(column)
+        }
+
+        val atlas = glyphAtlas
+        if (atlas != null && !decorated) {
+            drawRunFromAtlas(atlas, canvas, row, columns, column, end, effect, fg, left, top)
+            return
+        }
+
+        // Printable ASCII cells are collected into a batch and drawn with one call
+        var batchColumn = 0
+        var batchIndex = 0
+        var batchCount = 0
+        val spaceUsed = row.spaceUsed
+        while (column < end && charIndex < spaceUsed) {
+            val nextColumn = nextClusterColumn(row, columns, column, charIndex)
+            val nextIndex = row.findStartOfColumn(nextColumn)
+
+            val c = text[charIndex]
+            if (nextColumn == column + 1 && nextIndex == charIndex + 1 && c.code in 0x20..0x7E) {
+                if (batchCount == 0) {
+                    batchColumn = column
+                    batchIndex = charIndex
+                }
+                batchCount++
+            } else {
+                if (batchCount > 0) {
+                    drawAsciiBatch(canvas, text, batchIndex, batchCount, left + batchColumn * cellWidth, baseline, decorated)
+                    batchCount = 0
+                }
+                if (c != ' ' && c != '\u0000' && nextIndex > charIndex) {
+                    canvas.drawText(text, charIndex, nextIndex - charIndex, left + column * cellWidth, baseline, textPaint)
+                }
+            }
+            column = nextColumn
+            charIndex = nextIndex
+        }
+        if (batchCount > 0) {
+            drawAsciiBatch(canvas, text, batchIndex, batchCount, left + batchColumn * cellWidth, baseline, decorated)
+        }
+    }
+
+    private fun drawRunFromAtlas(
+        atlas: GlyphAtlas, canvas: Canvas, row: TerminalRow, columns: Int, start: Int, end: Int,
+        effect: Int, fg: Int, left: Float, top: Float,
+    ) {
+        val bold = effect and TextStyle.CHARACTER_ATTRIBUTE_BOLD != 0
+        val italic = effect and TextStyle.CHARACTER_ATTRIBUTE_ITALIC != 0
+        val text = row.mText
+        val spaceUsed = row.spaceUsed
+        var column = start
+        var charIndex = row.findStartOfColumn(column)
+        while (column < end && charIndex < spaceUsed) {
+            val nextColumn = nextClusterColumn(row, columns, column, charIndex)
+            val nextIndex = row.findStartOfColumn(nextColumn)
+            val c = text[charIndex]
+            val x = left + column * cellWidth
+            if (nextIndex == charIndex + 1) {
+                if (c != ' ' && c != '\u0000') atlas.draw(canvas, c.code, bold, italic, nextColumn - column, x, top, fg)
+            } else if (nextIndex > charIndex) {
+                // Surrogate pairs (mostly color emoji) and combining sequences need text shaping
+                atlas.fallbacks++
+                canvas.drawText(text, charIndex, nextIndex - charIndex, x, top + fontAscent, textPaint)
+            }
+            column = nextColumn
+            charIndex = nextIndex
+        }
+    }
+
+    /** The column after the cluster starting at [column], skipping the second half of a wide char. */
+    private fun nextClusterColumn(row: TerminalRow, columns: Int, column: Int, charIndex: Int): Int {
+        var nextColumn = column + 1
+        while (nextColumn < columns && row.findStartOfColumn(nextColumn) == charIndex) nextColumn++
+        return nextColumn
+    }
+
+    private fun drawAsciiBatch(canvas: Canvas, text: CharArray, index: Int, count: Int, x: Float, baseline: Float, decorated: Boolean) {
+        var first = index
+        var last = index + count - 1
+        if (!decorated) {
+            // Leading and trailing spaces draw nothing unless underlined or struck through
+            while (first <= last && text[first] == ' ') first++
+            while (last >= first && text[last] == ' ') last--
+            if (first > last) return
+        }
+        canvas.drawText(text, first, last - first + 1, x + (first - index) * cellWidth, baseline, textPaint)
+    }
+
+    private fun applyTextStyle(color: Int, effect: Int) {
+        if (color != paintColor) {
+            textPaint.color = color
+            paintColor = color
+        }
+        if (effect != paintEffect) {
+            textPaint.isFakeBoldText = (effect and TextStyle.CHARACTER_ATTRIBUTE_BOLD) != 0
+            textPaint.textSkewX = if ((effect and TextStyle.CHARACTER_ATTRIBUTE_ITALIC) != 0) -0.25f else 0f
+            textPaint.isUnderlineText = (effect and TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE) != 0
+            textPaint.isStrikeThruText = (effect and TextStyle.CHARACTER_ATTRIBUTE_STRIKETHROUGH) != 0
+            paintEffect = effect
+        }
+    }
+
+    private fun resolveColor(colorIndex: Int, palette: IntArray, fallback: Int): Int {
+        return if (colorIndex and 0xff000000.toInt() == 0xff000000.toInt()) {
+            // 24-bit true color
+            colorIndex
+        } else if (colorIndex in 0 until TextStyle.NUM_INDEXED_COLORS) {
+            palette[colorIndex]
+        } else {
+            fallback
+        }
+    }
+
+    private fun dimColor(color: Int): Int {
+        val r = ((color shr 16) and 0xFF) * 2 / 3
+        val g = ((color shr 8) and 0xFF) * 2 / 3
+        val b = (color and 0xFF) * 2 / 3
+        return (color and 0xFF000000.toInt()) or (r shl 16) or (g shl 8) or b
+    }
+}
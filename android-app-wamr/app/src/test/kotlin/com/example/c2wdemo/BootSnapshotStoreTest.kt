@@ -0,0 +1,58 @@
+package com.example.c2wdemo
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+class BootSnapshotStoreTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private lateinit var store: BootSnapshotStore
+
+    @Before
+    fun setUp() {
+        store = BootSnapshotStore(folder.root)
+    }
+
+    /** Stand in for the runtime writing the snapshot, then record it. */
+    private fun saveBoot(imageId: String, key: String, output: String) {
+        store.snapshotFile(imageId).writeBytes(ByteArray(64))
+        store.commit(imageId, key, output.toByteArray())
+    }
+
+    @Test
+    fun `boot of the same image is found with its output`() {
+        saveBoot("alpine", "1|asset:rootfs.tar|/bin/sh", "Welcome\r\n/ # ")
+        val boot = store.find("alpine", "1|asset:rootfs.tar|/bin/sh")!!
+        assertEquals(store.snapshotFile("alpine"), boot.snapshot)
+        assertArrayEquals("Welcome\r\n/ # ".toByteArray(), boot.output)
+    }
+
+    @Test
+    fun `changed image key means a cold boot`() {
+        saveBoot("alpine", "1|asset:rootfs.tar|/bin/sh", "/ # ")
+        assertNull(store.find("alpine", "2|asset:rootfs.tar|/bin/sh"))
+        assertNull(store.find("node", "1|asset:rootfs.tar|/bin/sh"))
+    }
+
+    @Test
+    fun `snapshot without a record is not used`() {
+        store.snapshotFile("alpine").writeBytes(ByteArray(64))
+        assertNull("A snapshot whose save did not complete is not used", store.find("alpine", "key"))
+    }
+
+    @Test
+    fun `delete removes snapshot and record`() {
+        saveBoot("alpine", "key", "/ # ")
+        store.delete("alpine")
+        assertFalse(store.snapshotFile("alpine").exists())
+        assertNull(store.find("alpine", "key"))
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.c2wdemo
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+
+class OutputRingTest {
+
+    private val drained = ByteArrayOutputStream()
+    private val listener = FriscyRuntime.OutputListener { data, offset, length -> drained.write(data, offset, length) }
+
+    /** Write [bytes] the way the native writer does, returning the new write position. */
+    private fun OutputRing.write(writePosition: Long, bytes: ByteArray): Long {
+        for ((i, b) in bytes.withIndex()) {
+            buffer.put(((writePosition + i) and (capacity - 1).toLong()).toInt(), b)
+        }
+        return writePosition + bytes.size
+    }
+
+    @Test
+    fun `output is passed through byte for byte`() {
+        val ring = OutputRing(64)
+        // A 4-byte UTF-8 sequence and a NUL, both of which modified UTF-8 strings mangle
+        val bytes = byteArrayOf(0x61, 0xF0.toByte(), 0x9F.toByte(), 0x98.toByte(), 0x80.toByte(), 0x00, 0x62, 0xFF.toByte())
+        val writePosition = ring.write(0, bytes)
+
+        assertEquals(bytes.size, ring.drain(writePosition, listener))
+        assertArrayEquals(bytes, drained.toByteArray())
+        assertEquals(writePosition, ring.readPosition)
+    }
+
+    @Test
+    fun `drain wraps around the end of the ring`() {
+        val ring = OutputRing(16)
+        var writePosition = ring.write(0, ByteArray(12) { it.toByte() })
+        ring.drain(writePosition, listener)
+        drained.reset()
+
+        val bytes = ByteArray(10) { (100 + it).toByte() }
+        writePosition = ring.write(writePosition, bytes)
+        assertEquals(10, ring.drain(writePosition, listener))
+        assertArrayEquals(bytes, drained.toByteArray())
+    }
+
+    @Test
+    fun `many small writes arrive in order`() {
+        val ring = OutputRing(32)
+        val expected = ByteArrayOutputStream()
+        var writePosition = 0L
+        for (i in 0 until 1000) {
+            val bytes = ByteArray(1 + i % 31) { (i + it).toByte() }
+            expected.write(bytes)
+            writePosition = ring.write(writePosition, bytes)
+            ring.drain(writePosition, listener)
+        }
+        assertArrayEquals(expected.toByteArray(), drained.toByteArray())
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun `capacity must be a power of two`() {
+        OutputRing(100)
+    }
+}
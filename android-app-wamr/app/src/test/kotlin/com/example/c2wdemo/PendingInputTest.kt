@@ -0,0 +1,78 @@
+package com.example.c2wdemo
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+
+class PendingInputTest {
+
+    /** A stdin ring that takes at most [room] bytes until the guest reads them. */
+    private class Ring(var room: Int) {
+        val received = ByteArrayOutputStream()
+        @Volatile
+        var gone = false
+
+        @Synchronized
+        fun push(data: ByteArray, offset: Int, length: Int): Int {
+            if (gone) return -1
+            val taken = minOf(length, room)
+            received.write(data, offset, taken)
+            room -= taken
+            return taken
+        }
+
+        @Synchronized
+        fun read(bytes: Int) {
+            room += bytes
+        }
+
+        @Synchronized
+        fun bytes(): ByteArray = received.toByteArray()
+    }
+
+    private fun awaitPending(input: PendingInput, bytes: Int) {
+        val deadline = System.currentTimeMillis() + 5_000
+        while (input.pendingBytes != bytes && System.currentTimeMillis() < deadline) Thread.sleep(1)
+        assertEquals(bytes, input.pendingBytes)
+    }
+
+    @Test
+    fun `input beyond the ring is kept and arrives in order once the guest reads`() {
+        val ring = Ring(room = 100)
+        val input = PendingInput(push = ring::push)
+        val paste = ByteArray(1000) { it.toByte() }
+
+        assertEquals(600, input.send(paste, 0, 600))
+        assertEquals(400, input.send(paste, 600, 400))
+        assertEquals(900, input.pendingBytes)
+
+        ring.read(1000)
+        awaitPending(input, 0)
+        assertArrayEquals(paste, ring.bytes())
+        assertEquals(0L, input.droppedBytes)
+    }
+
+    @Test
+    fun `input past the capacity is dropped and reported`() {
+        val ring = Ring(room = 0)
+        var reported = 0
+        val input = PendingInput(capacity = 256, onDropped = { reported += it }, push = ring::push)
+
+        assertEquals(200, input.send(ByteArray(200), 0, 200))
+        assertEquals(56, input.send(ByteArray(100), 0, 100))
+        assertEquals(44L, input.droppedBytes)
+        assertEquals(44, reported)
+    }
+
+    @Test
+    fun `pending input is dropped when the guest is gone`() {
+        val ring = Ring(room = 10)
+        val input = PendingInput(push = ring::push)
+        input.send(ByteArray(50), 0, 50)
+
+        ring.gone = true
+        awaitPending(input, 0)
+        assertEquals(40L, input.droppedBytes)
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.c2wdemo
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+class SnapshotManagerTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val regsSize = 264
+    private val arenaSize = 512L shl 20
+
+    /** Write a snapshot header the way friscy/snapshot.hpp does, followed by [payload] bytes. */
+    private fun snapshot(name: String, version: Int, baseName: String? = null, payload: Int = 1000): File {
+        val base = baseName?.toByteArray() ?: ByteArray(0)
+        val headerSize = if (version >= 3) 96 else 80
+        val buffer = ByteBuffer.allocate(headerSize + regsSize + base.size + payload).order(ByteOrder.LITTLE_ENDIAN)
+        buffer.putLong(0x4653524953435946L)
+        buffer.putInt(version)
+        buffer.putInt(regsSize)
+        buffer.putLong(arenaSize)
+        buffer.putLong(12345)
+        if (version >= 2) {
+            buffer.putInt(4096)
+            buffer.putInt(if (baseName != null) 1 else 0)
+            buffer.position(72)
+            buffer.putInt(base.size)
+            buffer.position(headerSize + regsSize)
+            buffer.put(base)
+        }
+        return File(folder.root, "$name.snap").apply { writeBytes(buffer.array()) }
+    }
+
+    @Test
+    fun `full snapshot reports logical and disk size`() {
+        val file = snapshot("full", version = 2)
+        val info = SnapshotManager.readInfo(file)!!
+        assertEquals("full", info.name)
+        assertEquals(arenaSize + regsSize, info.logicalBytes)
+        assertEquals(file.length(), info.diskBytes)
+        assertNull(info.baseName)
+    }
+
+    @Test
+    fun `delta snapshot names its base`() {
+        val info = SnapshotManager.readInfo(snapshot("delta", version = 2, baseName = "full.snap"))!!
+        assertEquals("full", info.baseName)
+    }
+
+    @Test
+    fun `version 3 delta snapshot names its base after the longer header`() {
+        val info = SnapshotManager.readInfo(snapshot("delta", version = 3, baseName = "full.snap"))!!
+        assertEquals("full", info.baseName)
+        assertEquals(arenaSize + regsSize, info.logicalBytes)
+    }
+
+    @Test
+    fun `version 1 snapshots are still listed`() {
+        val info = SnapshotManager.readInfo(snapshot("old", version = 1))!!
+        assertEquals(arenaSize + regsSize, info.logicalBytes)
+        assertNull(info.baseName)
+    }
+
+    @Test
+    fun `other files are not snapshots`() {
+        val file = File(folder.root, "junk.snap").apply { writeBytes(ByteArray(100) { 7 }) }
+        assertNull(SnapshotManager.readInfo(file))
+    }
+}
@@ -56,6 +56,44 @@ class SystemStatsProviderTest {
         provider.stop()
     }
 
+    @Test
+    fun `render frames are counted with coalesced chunks and dropped frames`() = runTest {
+        var lastData = GaugeData()
+        provider.start(this) { lastData = it }
+
+        repeat(20) { provider.onRenderFrame(coalescedChunks = 5, droppedFrames = if (it == 0) 2 else 0) }
+        advanceTimeBy(1001)
+
+        assertEquals("Each rendered frame counts as one output event", 20, lastData.fps)
+        assertEquals(100, lastData.coalescedChunks)
+        assertEquals(2, lastData.droppedFrames)
+
+        advanceTimeBy(1000)
+        assertEquals("Render counters reset each second", 0, lastData.coalescedChunks)
+        assertEquals(0, lastData.droppedFrames)
+
+        provider.stop()
+    }
+
+    @Test
+    fun `boot time is reported with whether it was warm`() = runTest {
+        var lastData = GaugeData()
+        provider.start(this) { lastData = it }
+
+        advanceTimeBy(1001)
+        assertEquals("No boot time before the VM reports one", 0, lastData.bootMs)
+
+        provider.onBoot(millis = 420, warm = true)
+        advanceTimeBy(1000)
+        assertEquals(420, lastData.bootMs)
+        assertTrue(lastData.warmBoot)
+
+        advanceTimeBy(1000)
+        assertEquals("Boot time persists", 420, lastData.bootMs)
+
+        provider.stop()
+    }
+
     @Test
     fun `latency is measured from input to output`() {
         // Call onInputEvent, then onOutputEvent
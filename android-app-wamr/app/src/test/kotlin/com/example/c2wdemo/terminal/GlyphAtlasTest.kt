@@ -0,0 +1,114 @@
+package com.example.c2wdemo.terminal
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.Color
+import com.termux.terminal.TerminalEmulator
+import com.termux.terminal.TerminalOutput
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.GraphicsMode
+import kotlin.random.Random
+
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+@RunWith(RobolectricTestRunner::class)
+class GlyphAtlasTest {
+
+    private class NullOutput : TerminalOutput() {
+        override fun write(data: ByteArray, offset: Int, count: Int) {}
+        override fun titleChanged(oldTitle: String?, newTitle: String?) {}
+        override fun onCopyTextToClipboard(text: String?) {}
+        override fun onPasteTextFromClipboard() {}
+        override fun onBell() {}
+        override fun onColorsChanged() {}
+    }
+
+    private val renderer = TerminalRenderer()
+    private val canvas = Canvas(Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888))
+
+    private fun atlas(capacity: Int) =
+        GlyphAtlas(renderer.textPaint, renderer.cellWidth, renderer.cellHeight, -renderer.textPaint.fontMetrics.ascent, capacity)
+
+    private fun GlyphAtlas.draw(c: Char, bold: Boolean = false) = draw(canvas, c.code, bold, false, 1, 0f, 0f, Color.WHITE)
+
+    @Test
+    fun `repeated glyphs are rasterized once`() {
+        val atlas = atlas(16)
+        for (c in "hello") atlas.draw(c)
+        assertEquals(4L, atlas.misses)
+        assertEquals(1L, atlas.hits)
+
+        for (c in "hello") atlas.draw(c)
+        assertEquals(4L, atlas.misses)
+        assertEquals(6L, atlas.hits)
+        assertEquals(0.6f, atlas.hitRate, 0.001f)
+    }
+
+    @Test
+    fun `bold is cached separately`() {
+        val atlas = atlas(16)
+        atlas.draw('a')
+        atlas.draw('a', bold = true)
+        assertEquals(2L, atlas.misses)
+    }
+
+    @Test
+    fun `least recently used glyph is evicted`() {
+        val atlas = atlas(2)
+        atlas.draw('a')
+        atlas.draw('b')
+        atlas.draw('a') // a is now more recent than b
+        atlas.draw('c') // evicts b
+        assertEquals(1L, atlas.evictions)
+
+        atlas.draw('a')
+        assertEquals(2L, atlas.hits)
+        atlas.draw('b')
+        assertEquals(4L, atlas.misses)
+        assertEquals(2L, atlas.evictions)
+    }
+
+    @Test
+    fun `cache stays consistent under heavy eviction`() {
+        val atlas = atlas(37)
+        val random = Random(3)
+        val recent = ArrayDeque<Char>()
+        repeat(20_000) {
+            val c = (0x21 + random.nextInt(90)).toChar()
+            val misses = atlas.misses
+            atlas.draw(c)
+            val expectedHit = c in recent
+            assertEquals("draw of $c", expectedHit, atlas.misses == misses)
+            recent.remove(c)
+            recent.addFirst(c)
+            if (recent.size > atlas.capacity) recent.removeLast()
+        }
+    }
+
+    @Test
+    fun `complex clusters fall back to drawText`() {
+        renderer.glyphAtlasEnabled = true
+        val emulator = emulator("ab e\u0301 \uD83D\uDE00", 20, 2)
+        drawScreen(emulator, canvas)
+        val atlas = renderer.glyphAtlas!!
+        assertEquals("Only a and b are cached", 2L, atlas.misses)
+        assertEquals(2L, atlas.fallbacks)
+    }
+
+    private fun drawScreen(emulator: TerminalEmulator, target: Canvas) {
+        val screen = emulator.screen
+        for (row in 0 until emulator.mRows) {
+            val termRow = screen.allocateFullLineIfNecessary(screen.externalToInternalRow(row))
+            renderer.drawRow(target, termRow, emulator.mColumns, 0f, row * renderer.cellHeight, target.width.toFloat(), emulator.mColors.mCurrentColors)
+        }
+    }
+
+    private fun emulator(text: String, cols: Int, rows: Int): TerminalEmulator {
+        val emulator = TerminalEmulator(NullOutput(), cols, rows, 100, null)
+        val bytes = text.toByteArray(Charsets.UTF_8)
+        emulator.append(bytes, bytes.size)
+        return emulator
+    }
+}
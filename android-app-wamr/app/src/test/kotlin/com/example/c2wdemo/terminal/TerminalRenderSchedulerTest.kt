@@ -0,0 +1,116 @@
+package com.example.c2wdemo.terminal
+
+import android.os.Looper
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.Shadows.shadowOf
+import java.time.Duration
+import kotlin.concurrent.thread
+
+@RunWith(RobolectricTestRunner::class)
+class TerminalRenderSchedulerTest {
+
+    private var screenUpdates = 0
+    private lateinit var bridge: FriscyTerminalBridge
+    private lateinit var scheduler: TerminalRenderScheduler
+
+    @Before
+    fun setUp() {
+        bridge = FriscyTerminalBridge(object : FriscyTerminalBridge.BridgeListener {
+            override fun onScreenUpdated() {
+                screenUpdates++
+            }
+            override fun onTitleChanged(title: String) {}
+            override fun onBell() {}
+            override fun onCopyText(text: String) {}
+            override fun onPasteRequest() {}
+        })
+        scheduler = TerminalRenderScheduler(bridge)
+    }
+
+    private fun runFrames() {
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofSeconds(1))
+    }
+
+    private fun screenText() = bridge.emulator!!.screen.transcriptText
+
+    @Test
+    fun `chunks posted between frames are parsed and drawn once`() {
+        bridge.initializeEmulator(80, 24)
+        val producer = thread {
+            repeat(100) { scheduler.post("line $it\r\n") }
+        }
+        producer.join()
+        assertEquals("Nothing is parsed before the next frame", "", screenText())
+
+        var frameChunks = 0
+        scheduler.frameListener = TerminalRenderScheduler.FrameListener { chunks, _ -> frameChunks += chunks }
+        runFrames()
+
+        assertEquals(1L, scheduler.frames)
+        assertEquals(1, screenUpdates)
+        assertEquals(100L, scheduler.coalescedChunks)
+        assertEquals(100, frameChunks)
+        assertTrue(screenText().endsWith("line 99"))
+    }
+
+    @Test
+    fun `output is kept until the emulator exists`() {
+        scheduler.post("early output")
+        runFrames()
+        assertEquals(0, screenUpdates)
+
+        bridge.initializeEmulator(80, 24)
+        runFrames()
+        assertEquals("early output", screenText())
+        assertEquals(1, screenUpdates)
+    }
+
+    @Test
+    fun `large output is spread over several frames`() {
+        bridge.initializeEmulator(80, 24)
+        val line = "x".repeat(79) + "\r\n"
+        scheduler.post(line.repeat(10_000)) // 810 KB
+        scheduler.post("done")
+        runFrames()
+
+        assertTrue("frames=${scheduler.frames}", scheduler.frames >= 4)
+        assertEquals(scheduler.frames.toInt(), screenUpdates)
+        assertEquals(2L, scheduler.coalescedChunks)
+        assertTrue(screenText().endsWith("done"))
+    }
+
+    @Test
+    fun `output beyond the pending capacity waits for frames instead of growing`() {
+        bridge.initializeEmulator(80, 24)
+        val line = "y".repeat(79) + "\r\n"
+        val chunk = line.repeat(200).toByteArray() // 16 KB, as drained from the output ring
+        val total = 4 * scheduler.pendingCapacity
+        val producer = thread {
+            repeat(total / chunk.size) { scheduler.post(chunk) }
+            scheduler.post("done")
+        }
+
+        // Without frames the ring fills and the producer is held back
+        producer.join(200)
+        assertTrue("The producer waits for a frame", producer.isAlive)
+        assertEquals(scheduler.pendingCapacity, scheduler.pendingBytes)
+
+        while (producer.isAlive) {
+            shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(17))
+            assertTrue(scheduler.pendingBytes <= scheduler.pendingCapacity)
+        }
+        runFrames()
+
+        assertFalse(producer.isAlive)
+        assertEquals(0L, scheduler.droppedBytes)
+        assertEquals(0, scheduler.pendingBytes)
+        assertTrue("frames=${scheduler.frames}", scheduler.frames >= total / (256 * 1024))
+        assertTrue(screenText().endsWith("done"))
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.c2wdemo.terminal
+
+import android.graphics.Canvas
+import android.graphics.Paint
+import com.termux.terminal.TerminalEmulator
+import com.termux.terminal.TerminalOutput
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.lang.management.ManagementFactory
+
+@RunWith(RobolectricTestRunner::class)
+class TerminalRendererTest {
+
+    private class NullOutput : TerminalOutput() {
+        override fun write(data: ByteArray, offset: Int, count: Int) {}
+        override fun titleChanged(oldTitle: String?, newTitle: String?) {}
+        override fun onCopyTextToClipboard(text: String?) {}
+        override fun onPasteTextFromClipboard() {}
+        override fun onBell() {}
+        override fun onColorsChanged() {}
+    }
+
+    /** Records draw calls without allocating, so that allocations measured are the renderer's own. */
+    private class RecordingCanvas : Canvas() {
+        var textCalls = 0
+        var rectCalls = 0
+        var stringTextCalls = 0
+        val texts = ArrayList<String>()
+        val textX = ArrayList<Float>()
+        var recordText = true
+
+        override fun drawText(text: CharArray, index: Int, count: Int, x: Float, y: Float, paint: Paint) {
+            textCalls++
+            if (recordText) {
+                texts.add(String(text, index, count))
+                textX.add(x)
+            }
+        }
+
+        override fun drawText(text: String, x: Float, y: Float, paint: Paint) {
+            stringTextCalls++
+        }
+
+        override fun drawRect(left: Float, top: Float, right: Float, bottom: Float, paint: Paint) {
+            rectCalls++
+        }
+    }
+
+    private val renderer = TerminalRenderer()
+
+    private fun emulator(text: String, cols: Int = 80, rows: Int = 24): TerminalEmulator {
+        val emulator = TerminalEmulator(NullOutput(), cols, rows, 100, null)
+        val bytes = text.toByteArray(Charsets.UTF_8)
+        emulator.append(bytes, bytes.size)
+        return emulator
+    }
+
+    private fun drawRow(canvas: Canvas, emulator: TerminalEmulator, row: Int) {
+        val screen = emulator.screen
+        val termRow = screen.allocateFullLineIfNecessary(screen.externalToInternalRow(row))
+        renderer.drawRow(canvas, termRow, emulator.mColumns, 0f, row * renderer.cellHeight, 1000f, emulator.mColors.mCurrentColors)
+    }
+
+    @Test
+    fun `cells with the same style are drawn as one run`() {
+        val emulator = emulator("ls -la /usr/bin")
+        val canvas = RecordingCanvas()
+        drawRow(canvas, emulator, 0)
+
+        assertEquals(listOf("ls -la /usr/bin"), canvas.texts)
+        assertEquals("Only the row clear", 1, canvas.rectCalls)
+        assertEquals(0, canvas.stringTextCalls)
+    }
+
+    @Test
+    fun `style changes split runs and merge backgrounds`() {
+        val emulator = emulator("\u001B[31mred\u001B[0m plain \u001B[44mon blue\u001B[0m")
+        val canvas = RecordingCanvas()
+        drawRow(canvas, emulator, 0)
+
+        assertEquals(listOf("red", "plain", "on blue"), canvas.texts)
+        assertEquals("Row clear plus one rect for the blue run", 2, canvas.rectCalls)
+        assertEquals(4 * renderer.cellWidth, canvas.textX[1], 0.001f)
+    }
+
+    @Test
+    fun `wide and combining chars are drawn at their own column`() {
+        val emulator = emulator("a中b e\u0301x")
+        val canvas = RecordingCanvas()
+        drawRow(canvas, emulator, 0)
+
+        assertEquals(listOf("a", "中", "b", "e\u0301", "x"), canvas.texts)
+        assertEquals(listOf(0f, 1f, 3f, 5f, 6f).map { it * renderer.cellWidth }, canvas.textX)
+    }
+
+    @Test
+    fun `cursor draws the text under it`() {
+        val emulator = emulator("abc")
+        val canvas = RecordingCanvas()
+        val screen = emulator.screen
+        renderer.drawCursor(canvas, screen.allocateFullLineIfNecessary(screen.externalToInternalRow(0)), 80, 1, 0f, 0f, emulator.mColors.mCurrentColors)
+
+        assertEquals(listOf("b"), canvas.texts)
+        assertEquals(1, canvas.rectCalls)
+    }
+
+    @Test
+    fun `drawing a full screen allocates nothing`() {
+        val line = "\u001B[1;32muser@host\u001B[0m:\u001B[34m~/src\u001B[0m$ ls -la \u001B[7mselected\u001B[0m 中文 e\u0301\r\n"
+        val emulator = emulator(line.repeat(30))
+        val canvas = RecordingCanvas().apply { recordText = false }
+        val frame = { for (row in 0 until 24) drawRow(canvas, emulator, row) }
+
+        // Warm up so class loading and JIT compilation are not measured
+        repeat(200) { frame() }
+
+        val threads = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val threadId = Thread.currentThread().id
+        val frames = 1000
+        val before = threads.getThreadAllocatedBytes(threadId)
+        repeat(frames) { frame() }
+        val allocated = threads.getThreadAllocatedBytes(threadId) - before
+
+        assertTrue("text was drawn", canvas.textCalls > 0)
+        assertEquals(0, canvas.stringTextCalls)
+        // A String per cell would be over 50 KB per frame; allow a few bytes of measurement noise
+        assertTrue("allocated $allocated bytes in $frames frames", allocated / frames < 16)
+    }
+}
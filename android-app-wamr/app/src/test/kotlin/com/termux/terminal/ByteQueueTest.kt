@@ -0,0 +1,118 @@
+package com.termux.terminal
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import kotlin.concurrent.thread
+
+class ByteQueueTest {
+
+    @Test
+    fun `non-blocking read on empty queue returns zero`() {
+        val queue = ByteQueue(16)
+        assertEquals(0, queue.read(ByteArray(8), false))
+    }
+
+    @Test
+    fun `bytes are read back in write order across the wrap point`() {
+        val queue = ByteQueue(8)
+        val out = ByteArray(8)
+
+        assertTrue(queue.write(byteArrayOf(1, 2, 3, 4, 5, 6), 0, 6))
+        assertEquals(6, queue.read(out, false))
+
+        // Tail now wraps around the end of the 8-byte buffer
+        assertTrue(queue.write(byteArrayOf(0, 7, 8, 9, 10, 11), 1, 5))
+        val read = queue.read(out, false)
+        assertEquals(5, read)
+        assertArrayEquals(byteArrayOf(7, 8, 9, 10, 11), out.copyOf(read))
+    }
+
+    @Test
+    fun `read is limited by destination size`() {
+        val queue = ByteQueue(16)
+        queue.write(ByteArray(10) { it.toByte() }, 0, 10)
+
+        val out = ByteArray(4)
+        assertEquals(4, queue.read(out, false))
+        assertArrayEquals(byteArrayOf(0, 1, 2, 3), out)
+        assertEquals(4, queue.read(out, false))
+        assertEquals(2, queue.read(out, false))
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun `zero length write is rejected`() {
+        ByteQueue(16).write(ByteArray(4), 0, 0)
+    }
+
+    @Test
+    fun `close wakes a blocked reader`() {
+        val queue = ByteQueue(16)
+        var result = 0
+        val reader = thread { result = queue.read(ByteArray(4), true) }
+        Thread.sleep(50)
+        queue.close()
+        reader.join(5000)
+
+        assertFalse(reader.isAlive)
+        assertEquals(-1, result)
+    }
+
+    @Test
+    fun `close wakes a blocked writer`() {
+        val queue = ByteQueue(4)
+        var result = true
+        val writer = thread { result = queue.write(ByteArray(8), 0, 8) }
+        Thread.sleep(50)
+        queue.close()
+        writer.join(5000)
+
+        assertFalse(writer.isAlive)
+        assertFalse(result)
+    }
+
+    @Test
+    fun `producer and consumer threads transfer a stream intact`() {
+        // A tiny queue forces the producer and consumer to park on nearly every chunk
+        for (size in intArrayOf(1, 7, 4096)) {
+            val total = if (size < 64) 100_000 else 4_000_000
+            val checksum = pump(ByteQueue(size), total, chunk = 1000)
+            assertEquals("queue size $size", expectedChecksum(total), checksum)
+        }
+    }
+
+    /** Writes [total] bytes of a known pattern from a second thread and returns the consumer's checksum. */
+    private fun pump(queue: ByteQueue, total: Int, chunk: Int): Long {
+        val producer = thread {
+            val buffer = ByteArray(chunk)
+            var written = 0
+            while (written < total) {
+                val length = minOf(chunk, total - written)
+                for (i in 0 until length) buffer[i] = (written + i).toByte()
+                queue.write(buffer, 0, length)
+                written += length
+            }
+        }
+        val buffer = ByteArray(4096)
+        var read = 0
+        var checksum = 0L
+        while (read < total) {
+            val n = queue.read(buffer, true)
+            for (i in 0 until n) {
+                if (buffer[i] != (read + i).toByte()) throw AssertionError("Mismatch at offset ${read + i}")
+                checksum += buffer[i]
+            }
+            read += n
+        }
+        producer.join()
+        return checksum
+    }
+
+    private fun expectedChecksum(total: Int): Long {
+        var sum = 0L
+        for (i in 0 until total) sum += i.toByte()
+        return sum
+    }
+}
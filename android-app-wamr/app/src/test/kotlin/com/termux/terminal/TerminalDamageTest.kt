@@ -0,0 +1,144 @@
+package com.termux.terminal
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import kotlin.random.Random
+
+@RunWith(RobolectricTestRunner::class)
+class TerminalDamageTest {
+
+    private class NullOutput : TerminalOutput() {
+        override fun write(data: ByteArray, offset: Int, count: Int) {}
+        override fun titleChanged(oldTitle: String?, newTitle: String?) {}
+        override fun onCopyTextToClipboard(text: String?) {}
+        override fun onPasteTextFromClipboard() {}
+        override fun onBell() {}
+        override fun onColorsChanged() {}
+    }
+
+    private val damage = TerminalDamage()
+
+    private fun emulator(cols: Int = 80, rows: Int = 24) =
+        TerminalEmulator(NullOutput(), cols, rows, 100, null).also { it.screen.consumeDamage(damage) }
+
+    private fun TerminalEmulator.feed(text: String) {
+        val bytes = text.toByteArray(Charsets.UTF_8)
+        append(bytes, bytes.size)
+    }
+
+    private fun TerminalEmulator.dirtyRows(): List<Int> {
+        screen.consumeDamage(damage)
+        return damage.rows.indices.filter { damage.rows[it] }
+    }
+
+    @Test
+    fun `new screen is fully damaged once`() {
+        val emulator = TerminalEmulator(NullOutput(), 80, 24, 100, null)
+        emulator.screen.consumeDamage(damage)
+        assertTrue(damage.fullRedraw)
+        assertEquals(24, damage.dirtyRowCount)
+
+        emulator.screen.consumeDamage(damage)
+        assertFalse(damage.fullRedraw)
+        assertEquals(0, damage.dirtyRowCount)
+        assertArrayEquals(BooleanArray(24), damage.rows)
+    }
+
+    @Test
+    fun `updating a clock damages a single row`() {
+        val emulator = emulator()
+        emulator.feed("\u001B[1;70H12:00:01")
+        assertEquals(listOf(0), emulator.dirtyRows())
+        assertEquals(0, damage.scrolledRows)
+        // Less than 10% of the rows need to be repainted per tick
+        assertTrue(damage.dirtyRowCount * 10 < damage.rows.size)
+    }
+
+    @Test
+    fun `full screen scroll is reported as a scroll plus the exposed row`() {
+        val emulator = emulator()
+        emulator.feed("\u001B[24;1H")
+        emulator.dirtyRows()
+        emulator.feed("\r\nnext line")
+        assertEquals(listOf(23), emulator.dirtyRows())
+        assertEquals(1, damage.scrolledRows)
+        assertFalse(damage.fullRedraw)
+    }
+
+    @Test
+    fun `scrolling inside margins damages the scroll region`() {
+        val emulator = emulator()
+        emulator.feed("\u001B[5;10r\u001B[10;1H")
+        emulator.dirtyRows()
+        emulator.feed("\n")
+        assertEquals((4..9).toList(), emulator.dirtyRows())
+        assertEquals(0, damage.scrolledRows)
+    }
+
+    @Test
+    fun `scrolling a whole screen or more is a full redraw`() {
+        val emulator = emulator()
+        emulator.feed("\u001B[24;1H" + "\n".repeat(30))
+        emulator.dirtyRows()
+        assertTrue(damage.fullRedraw)
+        assertEquals(0, damage.scrolledRows)
+    }
+
+    @Test
+    fun `resize and palette changes are full redraws`() {
+        val emulator = emulator()
+        emulator.resize(80, 20)
+        assertEquals(20, emulator.dirtyRows().size)
+        assertTrue(damage.fullRedraw)
+
+        emulator.screen.invalidateScreen()
+        emulator.dirtyRows()
+        assertTrue(damage.fullRedraw)
+    }
+
+    @Test
+    fun `previous frame plus damage reproduces the screen`() {
+        val pieces = arrayOf(
+            "hello world ", "\r\n", "\n", "\t", "\u001B[31m", "\u001B[0m", "\u001B[H", "\u001B[5;10H", "\u001B[2J",
+            "\u001B[K", "中文", "é", "😀", "\u001B[3;8r", "\u001B[r", "\u001B[2L", "\u001B[3M", "\u001B[2S", "\u001B[2T",
+            "\u001B[4h", "\u001B[4l", "\u001B[@", "\u001B[P", "\u001B[20;1H", "\u001B[?1049h", "\u001B[?1049l",
+        )
+        val random = Random(1)
+        repeat(300) {
+            val cols = 5 + random.nextInt(40)
+            val rows = 3 + random.nextInt(10)
+            val emulator = TerminalEmulator(NullOutput(), cols, rows, 100, null)
+            var frame: List<String>? = null
+            var frameScreen: TerminalBuffer? = null
+            repeat(30) {
+                val input = buildString { repeat(random.nextInt(10)) { append(pieces[random.nextInt(pieces.size)]) } }
+                emulator.feed(input)
+                val screen = emulator.screen
+                screen.consumeDamage(damage)
+                val current = (0 until rows).map { rowContent(screen, it, cols) }
+                val previous = frame
+                if (previous != null && screen === frameScreen && !damage.fullRedraw) {
+                    for (row in 0 until rows) {
+                        if (damage.rows[row]) continue
+                        val source = row + damage.scrolledRows
+                        assertTrue("row $row after \"$input\"", source < rows && previous[source] == current[row])
+                    }
+                }
+                frame = current
+                frameScreen = screen
+            }
+        }
+    }
+
+    private fun rowContent(screen: TerminalBuffer, row: Int, cols: Int): String {
+        val line = screen.allocateFullLineIfNecessary(screen.externalToInternalRow(row))
+        val text = String(line.mText, 0, line.spaceUsed)
+        val styles = (0 until cols).joinToString(",") { line.getStyle(it).toString() }
+        return "$text|$styles"
+    }
+}
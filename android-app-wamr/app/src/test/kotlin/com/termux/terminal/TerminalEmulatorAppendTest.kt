@@ -0,0 +1,101 @@
+package com.termux.terminal
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+/**
+ * Checks that the bulk printable-ASCII path in [TerminalEmulator.append] leaves the screen in exactly the same state
+ * as feeding the same input one code point at a time through [TerminalEmulator.processCodePoint].
+ */
+@RunWith(RobolectricTestRunner::class)
+class TerminalEmulatorAppendTest {
+
+    private class NullOutput : TerminalOutput() {
+        override fun write(data: ByteArray, offset: Int, count: Int) {}
+        override fun titleChanged(oldTitle: String?, newTitle: String?) {}
+        override fun onCopyTextToClipboard(text: String?) {}
+        override fun onPasteTextFromClipboard() {}
+        override fun onBell() {}
+        override fun onColorsChanged() {}
+    }
+
+    private fun emulator(cols: Int, rows: Int) = TerminalEmulator(NullOutput(), cols, rows, 100, null)
+
+    private fun assertSameAsPerCodePoint(input: String, cols: Int = 10, rows: Int = 4) {
+        val bulk = emulator(cols, rows)
+        val bytes = input.toByteArray(Charsets.UTF_8)
+        bulk.append(bytes, bytes.size)
+
+        val reference = emulator(cols, rows)
+        input.codePoints().forEach { reference.processCodePoint(it) }
+
+        val bulkScreen = bulk.screen
+        val referenceScreen = reference.screen
+        assertEquals(referenceScreen.transcriptText, bulkScreen.transcriptText)
+        assertEquals("cursor row", reference.cursorRow, bulk.cursorRow)
+        assertEquals("cursor col", reference.cursorCol, bulk.cursorCol)
+        for (row in 0 until rows) {
+            assertEquals("line wrap of row $row", referenceScreen.getLineWrap(row), bulkScreen.getLineWrap(row))
+            for (col in 0 until cols) {
+                assertEquals("style at $row,$col", referenceScreen.getStyleAt(row, col), bulkScreen.getStyleAt(row, col))
+            }
+        }
+    }
+
+    @Test
+    fun `plain text on one row`() = assertSameAsPerCodePoint("hello")
+
+    @Test
+    fun `autowrap across rows and scrolling`() = assertSameAsPerCodePoint("0123456789abcdefghijklmnopqrstuvwxyz0123456789ABCDEFG")
+
+    @Test
+    fun `wrap is deferred until the next char`() = assertSameAsPerCodePoint("0123456789\r\nX")
+
+    @Test
+    fun `autowrap disabled overwrites last column`() = assertSameAsPerCodePoint("\u001B[?7l0123456789abcdef\r\nnext")
+
+    @Test
+    fun `insert mode shifts existing text`() = assertSameAsPerCodePoint("abcdefgh\r\u001B[4hXYZ\u001B[4l")
+
+    @Test
+    fun `insert mode with wrap`() = assertSameAsPerCodePoint("abcdefghi\u001B[4h0123456789")
+
+    @Test
+    fun `insert mode on a row with wide chars`() = assertSameAsPerCodePoint("a中文bc\r\u001B[4hXY")
+
+    @Test
+    fun `ascii after wide and combining chars`() = assertSameAsPerCodePoint("中文éx😀abcdefgh")
+
+    @Test
+    fun `styled runs`() = assertSameAsPerCodePoint("\u001B[31mred\u001B[1;44mbold blue\u001B[0m plain")
+
+    @Test
+    fun `left and right margins`() = assertSameAsPerCodePoint("\u001B[?69h\u001B[3;6s\u001B[1;3Habcdefghijkl")
+
+    @Test
+    fun `repeat uses last char of run`() = assertSameAsPerCodePoint("abc\u001B[3b")
+
+    @Test
+    fun `line drawing charset bypasses bulk path`() = assertSameAsPerCodePoint("\u001B(0lqqk\u001B(Blqqk")
+
+    @Test
+    fun `long listing scrolls into the transcript`() = assertSameAsPerCodePoint(
+        "drwxr-xr-x    2 root     root          4096 Jan  1 00:00 node_modules-package-name\r\n".repeat(200), 80, 24,
+    )
+
+    @Test
+    fun `bulk path resumes after split escape sequence`() {
+        val bulk = emulator(20, 4)
+        for (chunk in listOf("ab\u001B", "[31", "mcd", "ef")) {
+            val bytes = chunk.toByteArray(Charsets.UTF_8)
+            bulk.append(bytes, bytes.size)
+        }
+        val reference = emulator(20, 4)
+        "ab\u001B[31mcdef".codePoints().forEach { reference.processCodePoint(it) }
+
+        assertEquals(reference.screen.transcriptText, bulk.screen.transcriptText)
+        for (col in 0 until 20) assertEquals(reference.screen.getStyleAt(0, col), bulk.screen.getStyleAt(0, col))
+    }
+}
@@ -0,0 +1,112 @@
+package com.termux.terminal
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import kotlin.random.Random
+
+class TerminalRowTest {
+
+    @Test
+    fun `ascii row maps columns to identical indices`() {
+        val row = TerminalRow(10, 0)
+        val text = "abcdefghij".toByteArray()
+        row.setAsciiChars(0, text, 0, text.size, 0)
+        for (column in 0..10) assertEquals(column, row.findStartOfColumn(column))
+    }
+
+    @Test
+    fun `wide char occupies two columns`() {
+        val row = TerminalRow(6, 0)
+        row.setChar(1, 0x4E2D, 0) // CJK ideograph in columns 1-2
+        assertEquals(0, row.findStartOfColumn(0))
+        assertEquals(1, row.findStartOfColumn(1))
+        assertEquals(1, row.findStartOfColumn(2)) // Second half starts at the wide char
+        assertEquals(2, row.findStartOfColumn(3))
+        assertEquals(row.spaceUsed, row.findStartOfColumn(6))
+    }
+
+    @Test
+    fun `combining chars belong to the preceding column`() {
+        val row = TerminalRow(4, 0)
+        row.setChar(0, 'e'.code, 0)
+        row.setChar(0, 0x0301, 0) // Combining acute accent added to column 0
+        assertEquals(0, row.findStartOfColumn(0))
+        assertEquals(2, row.findStartOfColumn(1))
+    }
+
+    @Test
+    fun `column starts beyond the range of a short`() {
+        val columns = 3000
+        val row = TerminalRow(columns, 0)
+        // Each column becomes a space and ten accents. From the right, so that setChar walks plain columns.
+        for (column in columns - 1 downTo 0) repeat(10) { row.setChar(column, 0x0301, 0) }
+        assertEquals(11 * columns, row.spaceUsed)
+        assertEquals(11 * 2999, row.findStartOfColumn(2999))
+        assertEquals(row.spaceUsed, row.findStartOfColumn(columns))
+    }
+
+    @Test
+    fun `cached column starts follow every modification`() {
+        val codePoints = intArrayOf('a'.code, ' '.code, 0x0301, 0x200D, 0x4E2D, 0x1F600, 0x1F3FB, 0xE0100, 0)
+        val random = Random(42)
+        repeat(2000) {
+            val columns = 2 + random.nextInt(20)
+            val row = TerminalRow(columns, 0)
+            val other = TerminalRow(columns, 0)
+            repeat(40) {
+                try {
+                    when (random.nextInt(4)) {
+                        0, 1 -> {
+                            val column = random.nextInt(columns)
+                            val codePoint = codePoints[random.nextInt(codePoints.size)]
+                            if (WcWidth.width(codePoint) < 2 || column < columns - 1) row.setChar(column, codePoint, 0)
+                        }
+                        2 -> {
+                            val x1 = random.nextInt(columns)
+                            val x2 = x1 + random.nextInt(columns - x1 + 1)
+                            val destination = random.nextInt(columns - (x2 - x1) + 1)
+                            row.copyInterval(if (random.nextBoolean()) row else other, x1, x2, destination)
+                        }
+                        else -> {
+                            val column = random.nextInt(columns)
+                            other.setChar(column, codePoints[random.nextInt(3)], 0)
+                        }
+                    }
+                } catch (e: IllegalArgumentException) {
+                    return@repeat
+                }
+                for (column in 0..columns) {
+                    assertEquals("column $column", walkToColumn(row, columns, column), row.findStartOfColumn(column))
+                }
+            }
+        }
+    }
+
+    /** Reference: walk the row from the start like findStartOfColumn() did before it was cached. */
+    private fun walkToColumn(row: TerminalRow, columns: Int, column: Int): Int {
+        if (column == columns) return row.spaceUsed
+        val text = row.mText
+        var currentColumn = 0
+        var currentCharIndex = 0
+        while (true) {
+            var newCharIndex = currentCharIndex
+            val c = text[newCharIndex++]
+            val codePoint = if (Character.isHighSurrogate(c)) Character.toCodePoint(c, text[newCharIndex++]) else c.code
+            val width = WcWidth.width(codePoint)
+            if (width > 0) {
+                currentColumn += width
+                if (currentColumn == column) {
+                    while (newCharIndex < row.spaceUsed) {
+                        val next = Character.codePointAt(text, newCharIndex)
+                        if (WcWidth.width(next) > 0) break
+                        newCharIndex += Character.charCount(next)
+                    }
+                    return newCharIndex
+                } else if (currentColumn > column) {
+                    return currentCharIndex
+                }
+            }
+            currentCharIndex = newCharIndex
+        }
+    }
+}
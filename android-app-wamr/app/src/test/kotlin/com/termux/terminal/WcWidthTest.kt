@@ -0,0 +1,47 @@
+package com.termux.terminal
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class WcWidthTest {
+
+    @Test
+    fun `lookup table matches interval tables for every code point`() {
+        for (codePoint in 0..Character.MAX_CODE_POINT) {
+            val expected = WcWidth.widthFromTables(codePoint)
+            val actual = WcWidth.width(codePoint)
+            if (expected != actual) {
+                throw AssertionError("width(U+%04X) = %d, expected %d".format(codePoint, actual, expected))
+            }
+        }
+    }
+
+    @Test
+    fun `out of range code points match interval tables`() {
+        for (codePoint in intArrayOf(-1, Int.MIN_VALUE, Character.MAX_CODE_POINT + 1, Int.MAX_VALUE)) {
+            assertEquals(WcWidth.widthFromTables(codePoint), WcWidth.width(codePoint))
+        }
+    }
+
+    @Test
+    fun `known widths`() {
+        assertEquals(0, WcWidth.width(0))
+        assertEquals(0, WcWidth.width(0x1B))
+        assertEquals(0, WcWidth.width(0x85))
+        assertEquals(1, WcWidth.width('A'.code))
+        assertEquals(0, WcWidth.width(0x0301)) // Combining acute accent
+        assertEquals(0, WcWidth.width(0x200D)) // Zero width joiner
+        assertEquals(2, WcWidth.width(0x4E2D)) // CJK ideograph
+        assertEquals(2, WcWidth.width(0x1F600)) // Emoji
+        assertEquals(2, WcWidth.width(0x20000)) // CJK extension B
+        assertEquals(0, WcWidth.width(0xE0100)) // Variation selector supplement
+        assertEquals(1, WcWidth.width(Character.MAX_CODE_POINT))
+    }
+
+    @Test
+    fun `width of char array handles surrogate pairs`() {
+        val chars = "a😀".toCharArray()
+        assertEquals(1, WcWidth.width(chars, 0))
+        assertEquals(2, WcWidth.width(chars, 1))
+    }
+}
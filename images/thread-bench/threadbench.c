@@ -0,0 +1,59 @@
+// threadbench - a fixed amount of CPU work split across N threads
+//
+// Usage: threadbench THREADS [MILLION_ITERATIONS]
+//
+// Each thread runs its share of xorshift iterations, with no shared memory
+// and no syscalls, so the wall time only drops with THREADS if the threads
+// run on separate cores.
+
+#include <pthread.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <time.h>
+
+#define MAX_THREADS 64
+
+static uint64_t per_thread;
+
+static void* work(void* arg) {
+    uint64_t x = (uintptr_t)arg * 0x9E3779B97F4A7C15ULL + 1;
+    for (uint64_t i = 0; i < per_thread; i++) {
+        x ^= x << 13;
+        x ^= x >> 7;
+        x ^= x << 17;
+    }
+    return (void*)(uintptr_t)x;
+}
+
+int main(int argc, char** argv) {
+    int threads = argc > 1 ? atoi(argv[1]) : 1;
+    uint64_t total = (argc > 2 ? strtoull(argv[2], NULL, 10) : 100) * 1000000ULL;
+    if (threads < 1 || threads > MAX_THREADS) {
+        fprintf(stderr, "usage: threadbench THREADS(1-%d) [MILLION_ITERATIONS]\n", MAX_THREADS);
+        return 2;
+    }
+    per_thread = total / threads;
+
+    pthread_t tids[MAX_THREADS];
+    struct timespec start, end;
+    clock_gettime(CLOCK_MONOTONIC, &start);
+    for (int i = 0; i < threads; i++) {
+        if (pthread_create(&tids[i], NULL, work, (void*)(uintptr_t)i) != 0) {
+            perror("pthread_create");
+            return 1;
+        }
+    }
+    uint64_t checksum = 0;
+    for (int i = 0; i < threads; i++) {
+        void* result;
+        pthread_join(tids[i], &result);
+        checksum ^= (uintptr_t)result;
+    }
+    clock_gettime(CLOCK_MONOTONIC, &end);
+
+    long ms = (end.tv_sec - start.tv_sec) * 1000 + (end.tv_nsec - start.tv_nsec) / 1000000;
+    printf("threads=%d iterations=%llu ms=%ld checksum=%016llx\n", threads,
+           (unsigned long long)(per_thread * threads), ms, (unsigned long long)checksum);
+    return 0;
+}